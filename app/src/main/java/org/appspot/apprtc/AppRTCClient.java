@@ -26,12 +26,20 @@ public interface AppRTCClient {
     public final String roomId;
     public final boolean loopback;
     public final String urlParameters;
-    public RoomConnectionParameters(
-        String roomUrl, String roomId, boolean loopback, String urlParameters) {
+    // Local ICE candidates gathered within this window are sent as one signaling
+    // message. 0 sends every candidate on its own.
+    public final int iceCandidateBatchWindowMs;
+    public RoomConnectionParameters(String roomUrl, String roomId, boolean loopback,
+        String urlParameters, int iceCandidateBatchWindowMs) {
       this.roomUrl = roomUrl;
       this.roomId = roomId;
       this.loopback = loopback;
       this.urlParameters = urlParameters;
+      this.iceCandidateBatchWindowMs = Math.max(iceCandidateBatchWindowMs, 0);
+    }
+    public RoomConnectionParameters(
+        String roomUrl, String roomId, boolean loopback, String urlParameters) {
+      this(roomUrl, roomId, loopback, urlParameters, 0 /* iceCandidateBatchWindowMs */);
     }
     public RoomConnectionParameters(String roomUrl, String roomId, boolean loopback) {
       this(roomUrl, roomId, loopback, null /* urlParameters */);
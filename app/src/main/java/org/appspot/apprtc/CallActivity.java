@@ -20,7 +20,9 @@ import android.media.projection.MediaProjectionManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 import androidx.fragment.app.FragmentTransaction;
@@ -34,6 +36,7 @@ import android.widget.Toast;
 
 import com.serenegiant.apprtcmobile.R;
 import com.serenegiant.webrtc.Camera1SurfaceCaptureAndroid;
+import com.serenegiant.webrtc.SurfaceVideoCapture;
 
 import org.appspot.apprtc.AppRTCAudioManager.AudioDevice;
 import org.appspot.apprtc.AppRTCAudioManager.AudioManagerEvents;
@@ -43,6 +46,7 @@ import org.appspot.apprtc.PeerConnectionClient.DataChannelParameters;
 import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.EglBase;
 import org.webrtc.FileVideoCapturer;
@@ -52,13 +56,13 @@ import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFileRenderer;
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -71,6 +75,7 @@ import java.util.Set;
 public class CallActivity extends BaseActivity
 	implements AppRTCClient.SignalingEvents,
 	PeerConnectionClient.PeerConnectionEvents,
+	QualityAnomalyDetector.Listener,
 	CallFragment.OnCallEvents {
 	
 	private static final String TAG = "CallActivity";
@@ -128,8 +133,18 @@ public class CallActivity extends BaseActivity
 	public static final String EXTRA_NEGOTIATED = "org.appspot.apprtc.NEGOTIATED";
 	public static final String EXTRA_ID = "org.appspot.apprtc.ID";
 	public static final String EXTRA_ENABLE_RTCEVENTLOG = "org.appspot.apprtc.ENABLE_RTCEVENTLOG";
+	public static final String EXTRA_ICE_CANDIDATE_BATCH_WINDOW_MS =
+		"org.appspot.apprtc.ICE_CANDIDATE_BATCH_WINDOW_MS";
+	// Port of the OpenMetrics endpoint serving the live call metrics, 0 disables it.
+	public static final String EXTRA_METRICS_PORT = "org.appspot.apprtc.METRICS_PORT";
+	// If true the OpenMetrics endpoint listens on all interfaces instead of the loopback only.
+	public static final String EXTRA_METRICS_LAN = "org.appspot.apprtc.METRICS_LAN";
 
 	private static final int CAPTURE_PERMISSION_REQUEST_CODE = 1;
+	private static final String CALL_SETUP_TRACE_DIR_NAME = "call_setup_trace";
+	private static final String CALL_STATS_DIR_NAME = "call_stats";
+	private static final long THREAD_CPU_SAMPLE_PERIOD_MS = 2000;
+	private static final long MEMORY_SAMPLE_PERIOD_MS = 5000;
 	
 	// List of mandatory application permissions.
 	private static final String[] MANDATORY_PERMISSIONS = {"android.permission.MODIFY_AUDIO_SETTINGS",
@@ -140,6 +155,15 @@ public class CallActivity extends BaseActivity
 	
 	private static class ProxyVideoSink implements VideoSink {
 		private VideoSink target;
+		/**
+		 * 最初のフレーム受信時にCallSetupTracerへ記録するフェーズ, 記録後はnull
+		 */
+		@Nullable
+		private CallSetupTracer.Phase firstFramePhase;
+		
+		ProxyVideoSink(@Nullable final CallSetupTracer.Phase firstFramePhase) {
+			this.firstFramePhase = firstFramePhase;
+		}
 		
 		@Override
 		synchronized public void onFrame(VideoFrame frame) {
@@ -147,6 +171,10 @@ public class CallActivity extends BaseActivity
 				Logging.d(TAG, "Dropping frame in proxy because target is null.");
 				return;
 			}
+			if (firstFramePhase != null) {
+				CallSetupTracer.getInstance().mark(firstFramePhase);
+				firstFramePhase = null;
+			}
 			
 			target.onFrame(frame);
 		}
@@ -156,8 +184,9 @@ public class CallActivity extends BaseActivity
 		}
 	}
 	
-	private final ProxyVideoSink remoteProxyRenderer = new ProxyVideoSink();
-	private final ProxyVideoSink localProxyVideoSink = new ProxyVideoSink();
+	private final ProxyVideoSink remoteProxyRenderer =
+		new ProxyVideoSink(CallSetupTracer.Phase.FIRST_REMOTE_FRAME);
+	private final ProxyVideoSink localProxyVideoSink = new ProxyVideoSink(null);
 	@Nullable
 	private PeerConnectionClient peerConnectionClient = null;
 	@Nullable
@@ -195,6 +224,30 @@ public class CallActivity extends BaseActivity
 	private CallFragment callFragment;
 	private HudFragment hudFragment;
 	private CpuMonitor cpuMonitor;
+	// Attributes the CPU usage of this process to its threads.
+	private final ThreadCpuMonitor threadCpuMonitor = new ThreadCpuMonitor();
+	// Java/native heap, RSS/PSS and GC of this process for the HUD and post-call export.
+	private final MemoryMonitor memoryMonitor = new MemoryMonitor();
+	// Formats supported by the camera in use, null when not capturing from a camera.
+	@Nullable
+	private List<CaptureFormat> cameraCaptureFormats;
+	// Steps the camera capture format down and up with the CPU load, only updated on the
+	// signaling thread after it is created.
+	@Nullable
+	private volatile CaptureFormatController captureFormatController;
+	// Caps the capture format and the video bitrate with the device temperature and battery
+	// level, only updated on the signaling thread after it is created.
+	@Nullable
+	private volatile PerformanceGovernor performanceGovernor;
+	// The capturer when it can limit the frame rate without changing the capture format.
+	@Nullable
+	private volatile SurfaceVideoCapture surfaceVideoCapture;
+	// Time series of the statistics of this call for the HUD and post-call export.
+	private final StatsTimeSeries statsTimeSeries = new StatsTimeSeries();
+	// Detects quality problems from the metrics, only updated on the signaling thread.
+	private final QualityAnomalyDetector qualityAnomalyDetector = new QualityAnomalyDetector(this);
+	@Nullable
+	private OpenMetricsServer metricsServer;
 	
 	@Override
 	// TODO(bugs.webrtc.org/8580): LayoutParams.FLAG_TURN_SCREEN_ON and
@@ -347,7 +400,7 @@ public class CallActivity extends BaseActivity
 		// Create connection client. Use org.appspot.apprtc.DirectRTCClient if room name is an IP otherwise use the
 		// standard org.appspot.apprtc.WebSocketRTCClient.
 		if (loopback || !DirectRTCClient.IP_PATTERN.matcher(roomId).matches()) {
-			appRtcClient = new WebSocketRTCClient(this);
+			appRtcClient = new WebSocketRTCClient(this, TurnServerCache.getInstance(this));
 		} else {
 			Log.i(TAG, "Using org.appspot.apprtc.DirectRTCClient because room name looks like an IP." + roomId);
 			appRtcClient = new DirectRTCClient(this);
@@ -355,17 +408,22 @@ public class CallActivity extends BaseActivity
 		// Create connection parameters.
 		String urlParameters = intent.getStringExtra(EXTRA_URLPARAMETERS);
 		roomConnectionParameters =
-			new RoomConnectionParameters(roomUri.toString(), roomId, loopback, urlParameters);
+			new RoomConnectionParameters(roomUri.toString(), roomId, loopback, urlParameters,
+				intent.getIntExtra(EXTRA_ICE_CANDIDATE_BATCH_WINDOW_MS, 0));
 		
 		// Create CPU monitor
 		if (CpuMonitor.isSupported()) {
 			cpuMonitor = new CpuMonitor(this);
 			hudFragment.setCpuMonitor(cpuMonitor);
 		}
+		threadCpuMonitor.setCpuMonitor(cpuMonitor);
+		hudFragment.setThreadCpuMonitor(threadCpuMonitor);
+		hudFragment.setMemoryMonitor(memoryMonitor);
 		
 		// Send intent arguments to fragments.
 		callFragment.setArguments(intent.getExtras());
 		hudFragment.setArguments(intent.getExtras());
+		hudFragment.setStatsTimeSeries(statsTimeSeries);
 		// Activate call and HUD fragments and start the call.
 		final FragmentTransaction ft = getSupportFragmentManager().beginTransaction();
 		ft.add(R.id.call_fragment_container, callFragment);
@@ -391,6 +449,15 @@ public class CallActivity extends BaseActivity
 		}
 		peerConnectionClient.createPeerConnectionFactory(options);
 		
+		final int metricsPort = intent.getIntExtra(EXTRA_METRICS_PORT, 0);
+		if (metricsPort > 0) {
+			metricsServer = new OpenMetricsServer(
+				metricsPort, intent.getBooleanExtra(EXTRA_METRICS_LAN, false));
+			metricsServer.setCpuMonitor(cpuMonitor);
+			metricsServer.setPeerConnectionClient(peerConnectionClient);
+			metricsServer.start();
+		}
+		
 		if (screencaptureEnabled) {
 			startScreenCapture();
 		} else {
@@ -453,6 +520,7 @@ public class CallActivity extends BaseActivity
 				VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 				
 				if (videoCapturer != null) {
+					cameraCaptureFormats = enumerator.getSupportedFormats(deviceName);
 					return videoCapturer;
 				}
 			}
@@ -466,6 +534,7 @@ public class CallActivity extends BaseActivity
 				VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 				
 				if (videoCapturer != null) {
+					cameraCaptureFormats = enumerator.getSupportedFormats(deviceName);
 					return videoCapturer;
 				}
 			}
@@ -502,6 +571,7 @@ public class CallActivity extends BaseActivity
 				VideoCapturer videoCapturer = new Camera1SurfaceCaptureAndroid(deviceName);
 				
 				if (videoCapturer != null) {
+					cameraCaptureFormats = enumerator.getSupportedFormats(deviceName);
 					return videoCapturer;
 				}
 			}
@@ -515,6 +585,7 @@ public class CallActivity extends BaseActivity
 				VideoCapturer videoCapturer = new Camera1SurfaceCaptureAndroid(deviceName);
 				
 				if (videoCapturer != null) {
+					cameraCaptureFormats = enumerator.getSupportedFormats(deviceName);
 					return videoCapturer;
 				}
 			}
@@ -536,6 +607,8 @@ public class CallActivity extends BaseActivity
 		if (cpuMonitor != null) {
 			cpuMonitor.pause();
 		}
+		threadCpuMonitor.stop();
+		memoryMonitor.stop();
 	}
 	
 	@Override
@@ -549,6 +622,8 @@ public class CallActivity extends BaseActivity
 		if (cpuMonitor != null) {
 			cpuMonitor.resume();
 		}
+		threadCpuMonitor.start(THREAD_CPU_SAMPLE_PERIOD_MS);
+		memoryMonitor.start(MEMORY_SAMPLE_PERIOD_MS);
 	}
 	
 	@Override
@@ -582,6 +657,13 @@ public class CallActivity extends BaseActivity
 	
 	@Override
 	public void onCaptureFormatChange(int width, int height, int framerate) {
+		// The user chose the format, stop changing it automatically.
+		final CaptureFormatController controller = captureFormatController;
+		if (controller != null) {
+			controller.setEnabled(false);
+		}
+		// An intended resolution change, not a quality problem.
+		qualityAnomalyDetector.resetResolutionBaseline();
 		if (peerConnectionClient != null) {
 			peerConnectionClient.changeCaptureFormat(width, height, framerate);
 		}
@@ -621,6 +703,7 @@ public class CallActivity extends BaseActivity
 			return;
 		}
 		callStartedTimeMs = System.currentTimeMillis();
+		CallSetupTracer.getInstance().startCall();
 		
 		// Start room connection.
 		logAndToast(getString(R.string.connecting_to, roomConnectionParameters.roomUrl));
@@ -652,7 +735,32 @@ public class CallActivity extends BaseActivity
 			Log.w(TAG, "Call is connected in closed or error state");
 			return;
 		}
+		if (cameraCaptureFormats != null && peerConnectionParameters.videoCallEnabled
+			&& captureFormatController == null) {
+			final int width = peerConnectionParameters.videoWidth != 0
+				? peerConnectionParameters.videoWidth : 1280;
+			final int height = peerConnectionParameters.videoHeight != 0
+				? peerConnectionParameters.videoHeight : 720;
+			final int fps = peerConnectionParameters.videoFps != 0
+				? peerConnectionParameters.videoFps : 30;
+			captureFormatController = new CaptureFormatController(
+				(w, h, framerate) -> {
+					final PeerConnectionClient client = peerConnectionClient;
+					if (client != null) {
+						// Stepped by the CPU load or capped by the performance level.
+						qualityAnomalyDetector.resetResolutionBaseline();
+						client.switchCaptureFormat(w, h, framerate);
+					}
+				}, width, height, fps, cameraCaptureFormats);
+		}
+		if (peerConnectionParameters.videoCallEnabled && performanceGovernor == null) {
+			performanceGovernor = new PerformanceGovernor(
+				new ThermalBatterySampler(new File("/sys"), getApplicationContext()),
+				this::onPerformanceLevelChanged);
+			performanceGovernor.start();
+		}
 		// Enable statistics callback.
+		peerConnectionClient.setCpuMonitor(cpuMonitor);
 		peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
 		setSwappedFeeds(false /* isSwappedFeeds */);
 	}
@@ -687,6 +795,11 @@ public class CallActivity extends BaseActivity
 			fullscreenRenderer.release();
 			fullscreenRenderer = null;
 		}
+		if (metricsServer != null) {
+			metricsServer.stop();
+			metricsServer = null;
+		}
+		surfaceVideoCapture = null;
 		if (peerConnectionClient != null) {
 			peerConnectionClient.close();
 			peerConnectionClient = null;
@@ -695,6 +808,16 @@ public class CallActivity extends BaseActivity
 			audioManager.stop();
 			audioManager = null;
 		}
+		final PerformanceGovernor governor = performanceGovernor;
+		performanceGovernor = null;
+		if (governor != null) {
+			governor.release();
+		}
+		threadCpuMonitor.release();
+		memoryMonitor.release();
+		exportCallSetupTrace();
+		exportStatsTimeSeries();
+		exportMemoryLog();
 		if (iceConnected && !isError) {
 			setResult(RESULT_OK);
 		} else {
@@ -703,6 +826,67 @@ public class CallActivity extends BaseActivity
 		finish();
 	}
 	
+	/**
+	 * 今回の通話のフェーズ毎の所要時間をログへ出力して
+	 * これまでの通話の集計結果をアプリのプライベートディレクトリへ書き出す
+	 */
+	private void exportCallSetupTrace() {
+		final CallSetupTracer tracer = CallSetupTracer.getInstance();
+		tracer.finishCall();
+		final Context appContext = getApplicationContext();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final File dir = appContext.getDir(CALL_SETUP_TRACE_DIR_NAME, Context.MODE_PRIVATE);
+					tracer.export(dir);
+				} catch (final IOException e) {
+					Log.w(TAG, "Failed to export call setup trace", e);
+				}
+			}
+		}, CallSetupTracer.class.getSimpleName()).start();
+	}
+	
+	/**
+	 * 今回の通話の統計情報の時系列をアプリのプライベートディレクトリへ書き出す
+	 */
+	private void exportStatsTimeSeries() {
+		if (statsTimeSeries.getCount(StatsTimeSeries.Tier.SECOND) == 0) {
+			return;
+		}
+		final Context appContext = getApplicationContext();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final File dir = appContext.getDir(CALL_STATS_DIR_NAME, Context.MODE_PRIVATE);
+					statsTimeSeries.export(dir);
+				} catch (final IOException e) {
+					Log.w(TAG, "Failed to export call statistics", e);
+				}
+			}
+		}, StatsTimeSeries.class.getSimpleName()).start();
+	}
+	
+	/**
+	 * 今回の通話のメモリー使用量の時系列と平均/ピークをアプリのプライベートディレクトリへ書き出す
+	 */
+	private void exportMemoryLog() {
+		Log.i(TAG, "Memory: " + memoryMonitor.getSummary());
+		final Context appContext = getApplicationContext();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final File dir = appContext.getDir(CALL_STATS_DIR_NAME, Context.MODE_PRIVATE);
+					memoryMonitor.export(dir);
+				} catch (final IOException e) {
+					Log.w(TAG, "Failed to export memory log", e);
+				}
+			}
+		}, MemoryMonitor.class.getSimpleName()).start();
+	}
+	
 	private void disconnectWithErrorMessage(final String errorMessage) {
 		if (commandLineRun || !activityRunning) {
 			Log.e(TAG, "Critical error: " + errorMessage);
@@ -802,6 +986,12 @@ public class CallActivity extends BaseActivity
 		if (peerConnectionParameters.videoCallEnabled) {
 			videoCapturer = createVideoCapturer();
 		}
+		surfaceVideoCapture = videoCapturer instanceof SurfaceVideoCapture
+			? (SurfaceVideoCapture) videoCapturer : null;
+		hudFragment.setVideoCapture(surfaceVideoCapture);
+		if (metricsServer != null) {
+			metricsServer.setVideoCapture(surfaceVideoCapture);
+		}
 		peerConnectionClient.createPeerConnection(
 			localProxyVideoSink, remoteSinks, videoCapturer, signalingParameters);
 		
@@ -921,9 +1111,10 @@ public class CallActivity extends BaseActivity
 						appRtcClient.sendAnswerSdp(sdp);
 					}
 				}
-				if (peerConnectionParameters.videoMaxBitrate > 0) {
-					Log.d(TAG, "Set video maximum bitrate: " + peerConnectionParameters.videoMaxBitrate);
-					peerConnectionClient.setVideoMaxBitrate(peerConnectionParameters.videoMaxBitrate);
+				final Integer maxBitrate = getVideoMaxBitrate();
+				if (maxBitrate != null) {
+					Log.d(TAG, "Set video maximum bitrate: " + maxBitrate);
+					peerConnectionClient.setVideoMaxBitrate(maxBitrate);
 				}
 			}
 		});
@@ -956,6 +1147,7 @@ public class CallActivity extends BaseActivity
 	@Override
 	public void onIceConnected() {
 		final long delta = System.currentTimeMillis() - callStartedTimeMs;
+		CallSetupTracer.getInstance().mark(CallSetupTracer.Phase.ICE_CONNECTED);
 		runOnUiThread(new Runnable() {
 			@Override
 			public void run() {
@@ -983,19 +1175,132 @@ public class CallActivity extends BaseActivity
 	}
 	
 	@Override
-	public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+	public void onPeerConnectionStatsReady(final RtcStatsSnapshot snapshot) {
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				if (!isError && iceConnected) {
+					hudFragment.renderStatistics(snapshot);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void onPeerConnectionMetricsReady(final DerivedMetrics metrics) {
 		runOnUiThread(new Runnable() {
 			@Override
 			public void run() {
 				if (!isError && iceConnected) {
-					hudFragment.updateEncoderStatistics(reports);
+					hudFragment.updateMetrics(metrics);
 				}
 			}
 		});
+		final CpuMonitor monitor = cpuMonitor;
+		statsTimeSeries.record(metrics, monitor != null ? monitor.getCpuUsageCurrent() : -1);
+		qualityAnomalyDetector.update(metrics);
+		final CaptureFormatController controller = captureFormatController;
+		if (controller != null) {
+			controller.update(SystemClock.elapsedRealtime(), getCpuLoadPercent(metrics));
+		}
+		final PerformanceGovernor governor = performanceGovernor;
+		if (governor != null) {
+			governor.update(SystemClock.elapsedRealtime());
+		}
+		final OpenMetricsServer server = metricsServer;
+		if (server != null) {
+			server.update(metrics);
+		}
+	}
+	
+	/**
+	 * Returns the CPU load used to adapt the capture format. The average over all cores rarely
+	 * reaches the overuse threshold on many-core devices, so this uses signals that saturate:
+	 * the encoder being limited by the CPU, then the busiest cluster, or the busiest thread of
+	 * this process when CpuMonitor is not supported on recent Android versions.
+	 */
+	private int getCpuLoadPercent(@NonNull final DerivedMetrics metrics) {
+		final DerivedMetrics.StreamMetrics videoSend
+			= metrics.findOutbound(RtcStatsSnapshot.MediaKind.VIDEO);
+		if (videoSend != null
+			&& videoSend.qualityLimitation == RtcStatsSnapshot.QualityLimitation.CPU) {
+			return 100;
+		}
+		final CpuMonitor monitor = cpuMonitor;
+		if (monitor != null) {
+			int busiest = -1;
+			final int n = monitor.getClusterCount();
+			for (int i = 0; i < n; i++) {
+				busiest = Math.max(busiest, monitor.getClusterUsageCurrent(i));
+			}
+			return busiest >= 0 ? busiest : monitor.getCpuUsageAverage();
+		}
+		return (int) Math.round(Math.min(100, threadCpuMonitor.getBusiestThreadUsage()));
+	}
+	
+	/**
+	 * Called on the signaling thread when the device temperature or battery level changes
+	 * the performance level, caps the capture format and the video bitrate. The frame rate is
+	 * limited by dropping frames in the capturer when it supports that, so that the camera
+	 * is not restarted with another capture format only to lower the frame rate.
+	 */
+	private void onPerformanceLevelChanged(@NonNull final PerformanceGovernor.Level level) {
+		final SurfaceVideoCapture capture = surfaceVideoCapture;
+		if (capture != null) {
+			capture.setFramerateLimit(level.maxFps);
+		}
+		final CaptureFormatController controller = captureFormatController;
+		if (controller != null) {
+			controller.setCap(SystemClock.elapsedRealtime(), level.maxHeight,
+				capture != null ? 0 : level.maxFps);
+		}
+		final PeerConnectionClient client = peerConnectionClient;
+		if (client != null) {
+			// null removes the limit when neither the settings nor the level limit the bitrate.
+			client.setVideoMaxBitrate(getVideoMaxBitrate());
+		}
+	}
+	
+	/**
+	 * Returns the video bitrate limit in kbps, the lower of the configured one and the one of
+	 * the current performance level, or null when neither limits it.
+	 */
+	@Nullable
+	private Integer getVideoMaxBitrate() {
+		final int configured = peerConnectionParameters.videoMaxBitrate;
+		final PerformanceGovernor governor = performanceGovernor;
+		final int capped = governor != null ? governor.getLevel().maxBitrateKbps : 0;
+		if (configured > 0 && capped > 0) {
+			return Math.min(configured, capped);
+		} else if (configured > 0 || capped > 0) {
+			return Math.max(configured, capped);
+		}
+		return null;
 	}
 	
 	@Override
 	public void onPeerConnectionError(final String description) {
 		reportError(description);
 	}
+	
+	@Override
+	public void onAnomalyStarted(@NonNull final QualityAnomalyDetector.Anomaly anomaly,
+		final double value, final double baseline) {
+
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				if (!isError && iceConnected) {
+					logAndToast("Quality: " + anomaly);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void onAnomalyCleared(@NonNull final QualityAnomalyDetector.Anomaly anomaly,
+		final long durationMs) {
+
+		Log.i(TAG, "Quality recovered: " + anomaly + ", duration=" + durationMs + "ms");
+	}
 }
@@ -0,0 +1,315 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.serenegiant.nio.CharsetsUtils;
+import com.serenegiant.webrtc.stats.LogLinearHistogram;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 通話開始までの各フェーズの所要時間を単調増加時計(SystemClock#elapsedRealtimeNanos)で計測して
+ * 通話をまたいでフェーズ毎のヒストグラムへ集計するためのトレーサー
+ * 各フェーズについてbegin〜endの所要時間と通話開始(startCall)からendまでの経過時間を記録する
+ * 集計結果はCSVまたはJSONとして出力できる
+ * どのスレッドから呼び出しても良い
+ */
+public class CallSetupTracer {
+	private static final String TAG = CallSetupTracer.class.getSimpleName();
+
+	/**
+	 * 計測するフェーズ
+	 */
+	public enum Phase {
+		/** RoomParametersFetcher#makeRequestからルームのレスポンス受信まで */
+		ROOM_REQUEST,
+		/** TURNサーバー情報の取得(キャッシュヒット時はほぼ0) */
+		TURN_FETCH,
+		/** WebSocketChannelClient#connectからregister送信まで */
+		WS_REGISTER,
+		/** createOffer/createAnswerからSDP生成完了まで */
+		CREATE_SDP,
+		/** setLocalDescriptionから完了まで */
+		LOCAL_SDP_SET,
+		/** setRemoteDescriptionから完了まで */
+		REMOTE_SDP_SET,
+		/** 最初のローカルICE candidate */
+		FIRST_ICE_CANDIDATE,
+		/** onIceConnected */
+		ICE_CONNECTED,
+		/** CallActivityで最初のリモート映像フレームを受け取った */
+		FIRST_REMOTE_FRAME,
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+	private static final int NUM_PHASES = PHASES.length;
+	/**
+	 * 集計する所要時間/経過時間の最大値[ミリ秒], これより長いものは最大値として数える
+	 */
+	private static final double MAX_MS = 120000;
+
+	@NonNull
+	private static final CallSetupTracer sInstance = new CallSetupTracer();
+
+	/**
+	 * アプリ内で共有するトレーサーを取得
+	 * @return
+	 */
+	@NonNull
+	public static CallSetupTracer getInstance() {
+		return sInstance;
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	/**
+	 * 現在の通話の開始時刻[ナノ秒], 通話中でなければ0
+	 */
+	private long mCallStartNs;
+	/**
+	 * 現在の通話でのフェーズ毎のbegin時刻[ナノ秒], 未開始なら0
+	 */
+	private final long[] mBeginNs = new long[NUM_PHASES];
+	/**
+	 * 現在の通話でのフェーズ毎の通話開始からend時までの経過時間[ナノ秒], 未到達なら-1
+	 */
+	private final long[] mOffsetNs = new long[NUM_PHASES];
+	/**
+	 * フェーズ毎の所要時間[ミリ秒]の分布
+	 */
+	@NonNull
+	private final LogLinearHistogram[] mDurations = new LogLinearHistogram[NUM_PHASES];
+	/**
+	 * フェーズ毎の通話開始からの経過時間[ミリ秒]の分布
+	 */
+	@NonNull
+	private final LogLinearHistogram[] mOffsets = new LogLinearHistogram[NUM_PHASES];
+	private int mCalls;
+
+	private CallSetupTracer() {
+		for (int i = 0; i < NUM_PHASES; i++) {
+			mDurations[i] = new LogLinearHistogram(1, MAX_MS);
+			mOffsets[i] = new LogLinearHistogram(1, MAX_MS);
+		}
+	}
+
+	/**
+	 * 通話開始, フェーズの計測状態をリセットする
+	 */
+	public void startCall() {
+		synchronized (mSync) {
+			mCallStartNs = SystemClock.elapsedRealtimeNanos();
+			for (int i = 0; i < NUM_PHASES; i++) {
+				mBeginNs[i] = 0;
+				mOffsetNs[i] = -1;
+			}
+			mCalls++;
+		}
+	}
+
+	/**
+	 * 通話終了, 今回の通話の各フェーズをログへ出力する
+	 */
+	public void finishCall() {
+		final StringBuilder sb = new StringBuilder("Call setup:");
+		synchronized (mSync) {
+			if (mCallStartNs == 0) {
+				return;
+			}
+			mCallStartNs = 0;
+			for (int i = 0; i < NUM_PHASES; i++) {
+				if (mOffsetNs[i] >= 0) {
+					sb.append(' ').append(PHASES[i].name()).append('=')
+						.append(mOffsetNs[i] / 1000000).append("ms");
+				}
+			}
+		}
+		Log.i(TAG, sb.toString());
+	}
+
+	/**
+	 * フェーズの開始, 同じ通話内で2回目以降の呼び出しは無視する
+	 * @param phase
+	 */
+	public void begin(@NonNull final Phase phase) {
+		final long nowNs = SystemClock.elapsedRealtimeNanos();
+		synchronized (mSync) {
+			if ((mCallStartNs != 0) && (mBeginNs[phase.ordinal()] == 0)) {
+				mBeginNs[phase.ordinal()] = nowNs;
+			}
+		}
+	}
+
+	/**
+	 * フェーズの終了, 同じ通話内で2回目以降の呼び出しは無視する
+	 * beginが呼ばれていれば所要時間を、常に通話開始からの経過時間を記録する
+	 * @param phase
+	 */
+	public void end(@NonNull final Phase phase) {
+		final long nowNs = SystemClock.elapsedRealtimeNanos();
+		final int ix = phase.ordinal();
+		synchronized (mSync) {
+			if ((mCallStartNs == 0) || (mOffsetNs[ix] >= 0)) {
+				return;
+			}
+			mOffsetNs[ix] = nowNs - mCallStartNs;
+			mOffsets[ix].add(mOffsetNs[ix] / 1000000.0);
+			if (mBeginNs[ix] != 0) {
+				mDurations[ix].add((nowNs - mBeginNs[ix]) / 1000000.0);
+			}
+		}
+	}
+
+	/**
+	 * 所要時間の無い時点イベントを記録する, end(phase)と同じ
+	 * @param phase
+	 */
+	public void mark(@NonNull final Phase phase) {
+		end(phase);
+	}
+
+	/**
+	 * 現在の通話で指定したフェーズが終了しているかどうか
+	 * @param phase
+	 * @return
+	 */
+	public boolean isDone(@NonNull final Phase phase) {
+		synchronized (mSync) {
+			return mOffsetNs[phase.ordinal()] >= 0;
+		}
+	}
+
+	/**
+	 * 集計結果を破棄する
+	 */
+	public void reset() {
+		synchronized (mSync) {
+			for (int i = 0; i < NUM_PHASES; i++) {
+				mDurations[i].reset();
+				mOffsets[i].reset();
+			}
+			mCalls = 0;
+		}
+	}
+
+	/**
+	 * 集計結果をCSV文字列として取得
+	 * 1行目はヘッダー、以降フェーズ毎に所要時間と通話開始からの経過時間の統計値[ミリ秒]
+	 * @return
+	 */
+	@NonNull
+	public String toCsv() {
+		final StringBuilder sb = new StringBuilder(1024);
+		sb.append("phase,kind,count,mean_ms,min_ms,p50_ms,p90_ms,p99_ms,max_ms\n");
+		synchronized (mSync) {
+			for (int i = 0; i < NUM_PHASES; i++) {
+				appendCsv(sb, PHASES[i], "duration", mDurations[i]);
+				appendCsv(sb, PHASES[i], "offset", mOffsets[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 集計結果をJSON文字列として取得
+	 * @return
+	 */
+	@NonNull
+	public String toJson() {
+		final JSONObject json = new JSONObject();
+		try {
+			synchronized (mSync) {
+				json.put("calls", mCalls);
+				final JSONObject phases = new JSONObject();
+				for (int i = 0; i < NUM_PHASES; i++) {
+					final JSONObject phase = new JSONObject();
+					phase.put("duration", histogramToJson(mDurations[i]));
+					phase.put("offset", histogramToJson(mOffsets[i]));
+					phases.put(PHASES[i].name(), phase);
+				}
+				json.put("phases", phases);
+			}
+		} catch (final JSONException e) {
+			Log.w(TAG, e);
+		}
+		return json.toString();
+	}
+
+	/**
+	 * 集計結果を指定したディレクトリへcall_setup.csvとcall_setup.jsonとして書き出す
+	 * ファイルアクセスするのでUIスレッド以外から呼ぶこと
+	 * @param dir
+	 * @throws IOException
+	 */
+	public void export(@NonNull final File dir) throws IOException {
+		writeFile(new File(dir, "call_setup.csv"), toCsv());
+		writeFile(new File(dir, "call_setup.json"), toJson());
+	}
+
+	private static void appendCsv(@NonNull final StringBuilder sb,
+		@NonNull final Phase phase, @NonNull final String kind,
+		@NonNull final LogLinearHistogram histogram) {
+
+		sb.append(phase.name()).append(',').append(kind).append(',')
+			.append(histogram.getCount()).append(',')
+			.append(String.format(Locale.US, "%.1f",
+				histogram.getCount() > 0 ? histogram.getMean() : 0)).append(',')
+			.append(toMs(histogram.getMin())).append(',')
+			.append(toMs(histogram.getPercentile(50))).append(',')
+			.append(toMs(histogram.getPercentile(90))).append(',')
+			.append(toMs(histogram.getPercentile(99))).append(',')
+			.append(toMs(histogram.getMax())).append('\n');
+	}
+
+	private static void writeFile(@NonNull final File file, @NonNull final String contents)
+		throws IOException {
+
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes(CharsetsUtils.UTF8));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * ヒストグラムの統計値をミリ秒単位の整数で取得する, 値が無ければ0
+	 */
+	private static long toMs(final double value) {
+		return Double.isNaN(value) ? 0 : Math.round(value);
+	}
+
+	@NonNull
+	private static JSONObject histogramToJson(@NonNull final LogLinearHistogram histogram)
+		throws JSONException {
+
+		final JSONObject json = new JSONObject();
+		json.put("count", histogram.getCount());
+		json.put("mean_ms", histogram.getCount() > 0 ? histogram.getMean() : 0);
+		json.put("min_ms", toMs(histogram.getMin()));
+		json.put("p50_ms", toMs(histogram.getPercentile(50)));
+		json.put("p90_ms", toMs(histogram.getPercentile(90)));
+		json.put("p99_ms", toMs(histogram.getPercentile(99)));
+		json.put("max_ms", toMs(histogram.getMax()));
+		return json;
+	}
+}
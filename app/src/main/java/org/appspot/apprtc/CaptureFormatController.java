@@ -0,0 +1,334 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.util.Log;
+
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * CPU使用率に応じて映像入力の解像度とフレームレートを自動的に上げ下げするコントローラー
+ * カメラが対応している解像度から段階(レベル)の一覧を作り、
+ * CPU使用率が高い状態が続けば1段階下げ、余裕がある状態が続けば1段階上げる
+ * 統計情報の取得間隔は一定ではないので、状態が続いたかどうかは呼び出し回数ではなく経過時間で判定する
+ * 開始と解除で別の閾値と継続時間を使うヒステリシスに加えて、変更後の最小保持時間を設ける
+ * 上げた直後に再び下げることになった時は次に上げるまでの保持時間を倍にして
+ * 上げ下げを繰り返さないようにする
+ * setEnabled以外はスレッドセーフではないので1つのスレッドから呼び出すこと
+ */
+public class CaptureFormatController {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = CaptureFormatController.class.getSimpleName();
+
+	/**
+	 * 映像入力の解像度とフレームレートを変更するためのコールバックインターフェース
+	 */
+	public interface Callback {
+		void onCaptureFormatChange(final int width, final int height, final int framerate);
+	}
+
+	/**
+	 * カメラが対応している解像度が分からない時に使う解像度
+	 */
+	private static final int[][] DEFAULT_RESOLUTIONS = {
+		{1280, 720}, {960, 540}, {640, 480}, {640, 360}, {480, 360}, {320, 240},
+	};
+	/**
+	 * この高さ以上の解像度ではフレームレートを維持したまま解像度を下げる
+	 */
+	private static final int MIN_FULL_FPS_HEIGHT = 360;
+	/**
+	 * 解像度を下げる前に試すフレームレート
+	 */
+	private static final int[] REDUCED_FPS = {20, 15};
+	/**
+	 * 最も低いレベルの高さ, これより小さい解像度は使わない
+	 */
+	private static final int MIN_HEIGHT = 180;
+	/**
+	 * アスペクト比がこの差以内の解像度だけを使う
+	 */
+	private static final double ASPECT_TOLERANCE = 0.05;
+
+	/** CPU使用率がこの値以上なら過負荷[%] */
+	private static final int OVERUSE_PERCENT = 85;
+	/** CPU使用率がこの値以下なら余裕がある[%] */
+	private static final int UNDERUSE_PERCENT = 55;
+	/** レベルを下げるのに必要な過負荷の継続時間[ミリ秒] */
+	private static final long DOWNGRADE_DURATION_MS = 3000;
+	/** レベルを上げるのに必要な余裕がある状態の継続時間[ミリ秒] */
+	private static final long UPGRADE_DURATION_MS = 5000;
+	/** 変更後に次にレベルを下げるまでの最小時間[ミリ秒] */
+	private static final long MIN_DOWNGRADE_DWELL_MS = 10000;
+	/** 変更後に次にレベルを上げるまでの最小時間の初期値と最大値[ミリ秒] */
+	private static final long BASE_UPGRADE_DWELL_MS = 30000;
+	private static final long MAX_UPGRADE_DWELL_MS = 240000;
+	/** レベルを上げてからこの時間内に下げることになれば上げるのに失敗したとする[ミリ秒] */
+	private static final long FAILED_UPGRADE_WINDOW_MS = 60000;
+
+	/**
+	 * レベル毎の映像入力の解像度とフレームレート
+	 */
+	private static class Step {
+		private final int width;
+		private final int height;
+		private final int fps;
+
+		private Step(final int width, final int height, final int fps) {
+			this.width = width;
+			this.height = height;
+			this.fps = fps;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return width + "x" + height + "@" + fps;
+		}
+	}
+
+	@NonNull
+	private final Callback mCallback;
+	@NonNull
+	private final List<Step> mSteps = new ArrayList<>();
+	private volatile boolean mEnabled = true;
+	/**
+	 * 現在のレベル, 0が最も高品質
+	 */
+	private int mLevel;
+	/**
+	 * setCapで制限された最も高品質なレベル
+	 */
+	private int mMinLevel;
+	/**
+	 * 過負荷/余裕がある状態になった時刻[ミリ秒], その状態でなければ-1
+	 */
+	private long mOverSinceMs = -1;
+	private long mUnderSinceMs = -1;
+	private long mLastChangeMs = -1;
+	private boolean mLastChangeWasUpgrade;
+	private long mUpgradeDwellMs = BASE_UPGRADE_DWELL_MS;
+
+	/**
+	 * コンストラクタ
+	 * @param callback
+	 * @param width 開始時の映像入力の幅, 最も高いレベルになる
+	 * @param height 開始時の映像入力の高さ
+	 * @param fps 開始時の映像入力のフレームレート
+	 * @param supportedFormats カメラが対応している映像フォーマット, nullなら一般的な解像度を使う
+	 */
+	public CaptureFormatController(@NonNull final Callback callback,
+		final int width, final int height, final int fps,
+		@Nullable final List<CaptureFormat> supportedFormats) {
+
+		mCallback = callback;
+		buildSteps(width, height, fps, supportedFormats);
+		if (DEBUG) Log.v(TAG, "steps=" + mSteps);
+	}
+
+	/**
+	 * 自動的な変更を行うかどうかをセット
+	 * ユーザーが手動で映像フォーマットを変更した時等に無効にする, 任意のスレッドから呼び出して良い
+	 * @param enabled
+	 */
+	public void setEnabled(final boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	/**
+	 * 現在のレベル, 0が最も高品質
+	 * @return
+	 */
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * レベルの数
+	 * @return
+	 */
+	public int getLevelCount() {
+		return mSteps.size();
+	}
+
+	/**
+	 * 解像度とフレームレートの上限をセット, 端末の温度やバッテリー残量による制限に使う
+	 * 現在のレベルが上限を超えていればすぐに下げ、上限を超えるレベルへは上げない
+	 * 自動的な変更が無効でも適用する, 上限を解除してもレベルは戻さずCPU使用率に応じて上げる
+	 * @param nowMs 単調増加する現在時刻[ミリ秒]
+	 * @param maxHeight 高さの上限, 0なら制限なし
+	 * @param maxFps フレームレートの上限, 0なら制限なし
+	 */
+	public void setCap(final long nowMs, final int maxHeight, final int maxFps) {
+		if (mSteps.isEmpty()) {
+			return;
+		}
+		int minLevel = mSteps.size() - 1;
+		for (int i = 0; i < mSteps.size(); i++) {
+			final Step step = mSteps.get(i);
+			if (((maxHeight <= 0) || (step.height <= maxHeight))
+				&& ((maxFps <= 0) || (step.fps <= maxFps))) {
+				minLevel = i;
+				break;
+			}
+		}
+		if (DEBUG) Log.v(TAG, "setCap:" + maxHeight + "p@" + maxFps + ",minLevel=" + minLevel);
+		mMinLevel = minLevel;
+		if (mLevel < minLevel) {
+			Log.i(TAG, "capped to " + maxHeight + "p@" + maxFps
+				+ ", capture level " + mLevel + "->" + minLevel + ": " + mSteps.get(minLevel));
+			setLevel(minLevel, nowMs);
+			mLastChangeWasUpgrade = false;
+		}
+	}
+
+	/**
+	 * 定期的にCPU使用率を渡して必要であれば映像フォーマットを変更する
+	 * 呼び出し間隔は一定でなくても良い
+	 * @param nowMs 単調増加する現在時刻[ミリ秒]
+	 * @param cpuPercent 最も負荷の高いコアやスレッドの使用率のように過負荷時に100%近くまで上がる指標[%],
+	 *                   負ならその回は無視する
+	 */
+	public void update(final long nowMs, final int cpuPercent) {
+		if (!mEnabled) {
+			mOverSinceMs = mUnderSinceMs = -1;
+			return;
+		}
+		if ((cpuPercent < 0) || (mSteps.size() < 2)) {
+			return;
+		}
+		mOverSinceMs = cpuPercent >= OVERUSE_PERCENT
+			? (mOverSinceMs >= 0 ? mOverSinceMs : nowMs) : -1;
+		mUnderSinceMs = cpuPercent <= UNDERUSE_PERCENT
+			? (mUnderSinceMs >= 0 ? mUnderSinceMs : nowMs) : -1;
+		final long sinceChangeMs = mLastChangeMs >= 0 ? nowMs - mLastChangeMs : Long.MAX_VALUE;
+		if ((mOverSinceMs >= 0) && (nowMs - mOverSinceMs >= DOWNGRADE_DURATION_MS)
+			&& (mLevel < mSteps.size() - 1)
+			&& (sinceChangeMs >= MIN_DOWNGRADE_DWELL_MS)) {
+
+			if (mLastChangeWasUpgrade && (sinceChangeMs < FAILED_UPGRADE_WINDOW_MS)) {
+				// 上げたレベルを維持できなかったので次に上げるまでの時間を延ばす
+				mUpgradeDwellMs = Math.min(mUpgradeDwellMs * 2, MAX_UPGRADE_DWELL_MS);
+			}
+			changeLevel(mLevel + 1, nowMs, cpuPercent);
+			mLastChangeWasUpgrade = false;
+		} else if ((mUnderSinceMs >= 0) && (nowMs - mUnderSinceMs >= UPGRADE_DURATION_MS)
+			&& (mLevel > mMinLevel)
+			&& (sinceChangeMs >= mUpgradeDwellMs)) {
+
+			if (mLastChangeWasUpgrade && (sinceChangeMs >= FAILED_UPGRADE_WINDOW_MS)) {
+				// 前回上げたレベルを維持できたので保持時間を戻す
+				mUpgradeDwellMs = BASE_UPGRADE_DWELL_MS;
+			}
+			changeLevel(mLevel - 1, nowMs, cpuPercent);
+			mLastChangeWasUpgrade = true;
+		}
+	}
+
+	private void changeLevel(final int level, final long nowMs, final int cpuPercent) {
+		Log.i(TAG, "CPU " + cpuPercent + "%, capture level " + mLevel + "->" + level + ": "
+			+ mSteps.get(level) + ", next upgrade after " + mUpgradeDwellMs + "ms");
+		setLevel(level, nowMs);
+	}
+
+	private void setLevel(final int level, final long nowMs) {
+		final Step step = mSteps.get(level);
+		mLevel = level;
+		mLastChangeMs = nowMs;
+		mOverSinceMs = mUnderSinceMs = -1;
+		mCallback.onCaptureFormatChange(step.width, step.height, step.fps);
+	}
+
+	/**
+	 * レベル毎の解像度とフレームレートの一覧を作る
+	 * ・開始時の解像度から高さがMIN_FULL_FPS_HEIGHT以上の解像度まではフレームレートを維持して解像度を下げる
+	 * ・次にフレームレートをREDUCED_FPSの順に下げる
+	 * ・最後に低フレームレートのままMIN_HEIGHTまで解像度を下げる
+	 */
+	private void buildSteps(final int width, final int height, final int fps,
+		@Nullable final List<CaptureFormat> supportedFormats) {
+
+		// 開始時の解像度と同じアスペクト比で、開始時の解像度より小さい解像度を面積の降順に並べる
+		final double aspect = (double) width / height;
+		final List<Step> resolutions = new ArrayList<>();
+		resolutions.add(new Step(width, height, fps));
+		if (supportedFormats != null) {
+			for (final CaptureFormat format: supportedFormats) {
+				addResolution(resolutions, format.width, format.height,
+					Math.min(fps, format.framerate.max / 1000), aspect);
+			}
+		}
+		if (resolutions.size() < 2) {
+			for (final int[] size: DEFAULT_RESOLUTIONS) {
+				addResolution(resolutions, size[0], size[1], fps, aspect);
+			}
+		}
+
+		int i = 0;
+		for (; i < resolutions.size(); i++) {
+			final Step step = resolutions.get(i);
+			if ((i > 0) && (step.height < MIN_FULL_FPS_HEIGHT)) {
+				break;
+			}
+			mSteps.add(step);
+		}
+		final Step last = mSteps.get(mSteps.size() - 1);
+		int minFps = last.fps;
+		for (final int reduced: REDUCED_FPS) {
+			if (reduced < minFps) {
+				mSteps.add(new Step(last.width, last.height, reduced));
+				minFps = reduced;
+			}
+		}
+		for (; i < resolutions.size(); i++) {
+			final Step step = resolutions.get(i);
+			mSteps.add(new Step(step.width, step.height, Math.min(minFps, step.fps)));
+		}
+	}
+
+	/**
+	 * 条件に合う解像度を面積の降順になるように挿入する
+	 */
+	private static void addResolution(@NonNull final List<Step> resolutions,
+		final int width, final int height, final int fps, final double aspect) {
+
+		if ((height < MIN_HEIGHT) || (fps <= 0)
+			|| (Math.abs((double) width / height - aspect) > ASPECT_TOLERANCE)) {
+			return;
+		}
+		final int area = width * height;
+		final Step top = resolutions.get(0);
+		if (area >= top.width * top.height) {
+			// 開始時の解像度以上は使わない
+			return;
+		}
+		int pos = 1;
+		for (; pos < resolutions.size(); pos++) {
+			final Step step = resolutions.get(pos);
+			final int stepArea = step.width * step.height;
+			if (stepArea == area) {
+				// 同じ解像度は1つだけにして、最も高いフレームレートを使う
+				if (fps > step.fps) {
+					resolutions.set(pos, new Step(step.width, step.height, fps));
+				}
+				return;
+			} else if (stepArea < area) {
+				break;
+			}
+		}
+		resolutions.add(pos, new Step(width, height, fps));
+	}
+}
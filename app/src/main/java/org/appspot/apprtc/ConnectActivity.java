@@ -463,6 +463,12 @@ public class ConnectActivity extends BaseActivity {
 			R.string.pref_data_id_default, useValuesFromIntent);
 		String protocol = sharedPrefGetString(R.string.pref_data_protocol_key,
 			CallActivity.EXTRA_PROTOCOL, R.string.pref_data_protocol_default, useValuesFromIntent);
+
+		// Get the window to coalesce local ICE candidates into one signaling message.
+		int iceCandidateBatchWindowMs = sharedPrefGetInteger(
+			R.string.pref_ice_candidate_batch_window_ms_key,
+			CallActivity.EXTRA_ICE_CANDIDATE_BATCH_WINDOW_MS,
+			R.string.pref_ice_candidate_batch_window_ms_default, useValuesFromIntent);
 		
 		// Start AppRTCMobile activity.
 		Log.d(TAG, "Connecting to room " + roomId + " at URL " + roomUrl);
@@ -500,6 +506,7 @@ public class ConnectActivity extends BaseActivity {
 			intent.putExtra(CallActivity.EXTRA_ENABLE_RTCEVENTLOG, rtcEventLogEnabled);
 			intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
 			intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
+			intent.putExtra(CallActivity.EXTRA_ICE_CANDIDATE_BATCH_WINDOW_MS, iceCandidateBatchWindowMs);
 
 			intent.putExtra(CallActivity.EXTRA_DATA_CHANNEL_ENABLED, dataChannelEnabled);
 			
@@ -536,6 +543,16 @@ public class ConnectActivity extends BaseActivity {
 						getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, 0);
 					intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, videoOutHeight);
 				}
+				
+				if (getIntent().hasExtra(CallActivity.EXTRA_METRICS_PORT)) {
+					int metricsPort = getIntent().getIntExtra(CallActivity.EXTRA_METRICS_PORT, 0);
+					intent.putExtra(CallActivity.EXTRA_METRICS_PORT, metricsPort);
+				}
+				
+				if (getIntent().hasExtra(CallActivity.EXTRA_METRICS_LAN)) {
+					boolean metricsLan = getIntent().getBooleanExtra(CallActivity.EXTRA_METRICS_LAN, false);
+					intent.putExtra(CallActivity.EXTRA_METRICS_LAN, metricsLan);
+				}
 			}
 			
 			startActivityForResult(intent, CONNECTION_REQUEST);
@@ -0,0 +1,33 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import androidx.annotation.NonNull;
+
+/**
+ * CpuMonitorやThermalBatterySamplerが/procとsysfsのファイルとバッテリー残量を読み込むためのインターフェース
+ * 端末上ではLiveCpuDataSource、記録したデータを端末外で再生する時はテスト用のReplayCpuDataSource(src/test)を使う
+ */
+public interface CpuDataSource {
+	/**
+	 * 指定したファイルを読み込むためのProcFileReaderを生成する
+	 * @param path /proc/statのような端末上の絶対パス
+	 * @param initialCapacity バッファの初期サイズ
+	 * @return
+	 */
+	@NonNull
+	ProcFileReader open(@NonNull final String path, final int initialCapacity);
+
+	/**
+	 * バッテリー残量を取得する, ログ出力時にだけ呼ばれる
+	 * @return [%], 取得できなければ-1
+	 */
+	int getBatteryLevel();
+}
@@ -10,29 +10,22 @@ package org.appspot.apprtc;/*
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.BatteryManager;
 import android.os.Build;
 import android.os.SystemClock;
 import android.util.Log;
 
 import com.serenegiant.apprtcmobile.BuildConfig;
-import com.serenegiant.nio.CharsetsUtils;
-
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.lang.ref.WeakReference;
+import com.serenegiant.webrtc.stats.Ewma;
+import com.serenegiant.webrtc.stats.LogLinearHistogram;
+
 import java.util.Arrays;
-import java.util.Scanner;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 /**
@@ -53,10 +46,19 @@ import androidx.annotation.Nullable;
  * online, this unidirectional frequency inheritance should be no problem in
  * practice.)
  *
+ * <p>Per-core utilization is computed from the cpuN lines of /proc/stat, and
+ * cores are grouped into clusters by their cpufreq policy (related_cpus), so
+ * that a saturated cluster of an ARM big.LITTLE SoC can be seen even while
+ * the aggregate looks fine.
+ *
+ * <p>The files are read through a CpuDataSource, so that recorded snapshots can
+ * be replayed with ReplayCpuDataSource (unit tests only) to measure the cost and
+ * the accuracy of the sampling off-device.
+ *
  * <p>Caveats:
  * o No provision made for zany "turbo" mode, common in the x86 world.
- * o No provision made for ARM big.LITTLE; if CPU n can switch behind our
- * back, we might get incorrect estimates.
+ * o The aggregate frequency scale is not weighted per cluster; if CPU n can
+ * switch behind our back, we might get incorrect estimates.
  * o This is not thread-safe.  To call asynchronously, create different
  * org.appspot.apprtc.CpuMonitor objects.
  *
@@ -80,23 +82,45 @@ import androidx.annotation.Nullable;
 public class CpuMonitor {
 	private static final boolean DEBUG = false; // set false on production
 	private static final String TAG = CpuMonitor.class.getSimpleName();
-	private static final int MOVING_AVERAGE_SAMPLES = 5;
+	/**
+	 * CPU使用率と周波数の移動平均(EWMA)の半減期[サンプル数]
+	 */
+	private static final double USAGE_HALF_LIFE_SAMPLES = 2;
 
 	private static final int CPU_STAT_SAMPLE_PERIOD_MS = 2000;
 	private static final int CPU_STAT_LOG_PERIOD_MS = 6000;
+	/**
+	 * CPU使用率の移動平均がこの値以上になれば過負荷とする[%]
+	 */
+	private static final int CPU_OVERUSE_HIGH_PERCENT = 85;
+	/**
+	 * 過負荷中にCPU使用率の移動平均がこの値以下になれば過負荷を解除する[%]
+	 */
+	private static final int CPU_OVERUSE_LOW_PERCENT = 70;
+	/**
+	 * /proc/statを読み込むバッファの初期サイズ, 足りなければProcFileReaderが拡張する
+	 */
+	private static final int PROC_STAT_BUFFER_SIZE = 4096;
+	/**
+	 * cpufreqの周波数のファイルを読み込むバッファのサイズ
+	 */
+	private static final int FREQ_BUFFER_SIZE = 32;
 
 	/**
-	 * Should not hold strong reference of (app) context!!
+	 * /procとsysfsのファイルとバッテリー残量の読み込み元
 	 */
-	private final WeakReference<Context> mWeakAppContext;
+	@NonNull
+	private final CpuDataSource mDataSource;
 	// User CPU usage at current frequency.
-	private final MovingAverage userCpuUsage;
+	private final Ewma userCpuUsage;
 	// System CPU usage at current frequency.
-	private final MovingAverage systemCpuUsage;
+	private final Ewma systemCpuUsage;
 	// Total CPU usage relative to maximum frequency.
-	private final MovingAverage totalCpuUsage;
+	private final Ewma totalCpuUsage;
 	// CPU frequency in percentage from maximum.
-	private final MovingAverage frequencyScale;
+	private final Ewma frequencyScale;
+	// Distribution of the CPU usage (user + system) in percent since creation or reset.
+	private final LogLinearHistogram usageHistogram = new LogLinearHistogram(1, 100);
 
 	@Nullable
 	private ScheduledExecutorService executor;
@@ -106,92 +130,91 @@ public class CpuMonitor {
 	private int actualCpusPresent;
 	private boolean initialized;
 	private boolean cpuOveruse;
-	private String[] maxPath;
-	private String[] curPath;
+	// 最大周波数を読み込めればそのコアのreaderは閉じてnullにする
+	private ProcFileReader[] maxFreqReaders;
+	private ProcFileReader[] curFreqReaders;
 	private double[] curFreqScales;
+	// cpufreqのポリシーを共有するコアの一覧, ポリシーを読み込めればそのコアのreaderは閉じてnullにする
+	private ProcFileReader[] relatedCpusReaders;
+	// コア毎のcpufreqのポリシー(同じクラスタに属するコアの最小番号), 不明なら-1
+	private int[] corePolicy;
+	// コア毎の前回のビジー時間と全時間, /proc/statに現れなかった(オフライン)なら全時間を-1にする
+	private long[] coreBusyTime;
+	private long[] coreAllTime;
+	private long[] lastCoreBusyTime;
+	private long[] lastCoreAllTime;
+	// コア毎の前回のサンプリングからの使用率, オフラインなら-1
+	private double[] coreUsage;
+	// クラスタ毎の値, インデックスはポリシーの昇順
+	private int clusterCount;
+	private int[] clusterPolicy;
+	private int[] clusterCoreCount;
+	private long[] clusterFreqMax;
+	private double[] clusterUsage;
+	private double[] clusterFreqScale;
+	@Nullable
+	private ProcFileReader procStatReader;
+	// サンプリング毎に生成しないように2つのProcStatを入れ替えて使う
 	@Nullable
 	private ProcStat lastProcStat;
+	@Nullable
+	private ProcStat procStat;
+	// lastProcStatに前回の値が入っているかどうか, 最初の差分は起動時からの値になるので分布に含めない
+	private boolean hasLastProcStat;
 	private Future<?> mActiveFuture;
 	private boolean mReleased;
 
 	private static class ProcStat {
-		final long userTime;
-		final long systemTime;
-		final long idleTime;
+		long userTime;
+		long systemTime;
+		long idleTime;
 
-		ProcStat(long userTime, long systemTime, long idleTime) {
+		void set(long userTime, long systemTime, long idleTime) {
 			this.userTime = userTime;
 			this.systemTime = systemTime;
 			this.idleTime = idleTime;
 		}
 	}
 
-	/**
-	 * 移動平均を計算するためのヘルパークラス
-	 */
-	private static class MovingAverage {
-		private final int size;
-		private double sum;
-		private double currentValue;
-		private final double[] circularBuffer;
-		private int circularBufferIndex;
-
-		public MovingAverage(int size) {
-			if (size <= 0) {
-				throw new AssertionError("Size value in MovingAverage ctor should be positive.");
-			}
-			this.size = size;
-			circularBuffer = new double[size];
-		}
-
-		public void reset() {
-			Arrays.fill(circularBuffer, 0);
-			circularBufferIndex = 0;
-			sum = 0;
-			currentValue = 0;
-		}
-
-		public void addValue(double value) {
-			sum -= circularBuffer[circularBufferIndex];
-			circularBuffer[circularBufferIndex++] = value;
-			currentValue = value;
-			sum += value;
-			if (circularBufferIndex >= size) {
-				circularBufferIndex = 0;
-			}
-		}
-
-		public double getCurrent() {
-			return currentValue;
-		}
-
-		public double getAverage() {
-			return sum / (double) size;
-		}
-	}
-
 	public static boolean isSupported() {
 		return Build.VERSION.SDK_INT < Build.VERSION_CODES.N;
 	}
 
+	private static Context requireSupported(final Context context) {
+		if (!isSupported()) {
+			throw new RuntimeException("org.appspot.apprtc.CpuMonitor is not supported on this Android version.");
+		}
+		return context;
+	}
+
 	/**
 	 * コンストラクタ
+	 * 端末上の/procとsysfsを一定間隔で読み込む
 	 * @param context
 	 */
 	public CpuMonitor(final Context context) {
-		if (!isSupported()) {
-			throw new RuntimeException("org.appspot.apprtc.CpuMonitor is not supported on this Android version.");
-		}
+		this(new LiveCpuDataSource(requireSupported(context)), true);
+	}
 
+	/**
+	 * コンストラクタ
+	 * LiveCpuDataSourceを使う時は事前にisSupportedで確認すること
+	 * @param dataSource
+	 * @param autoSample trueなら一定間隔で自動的にサンプリングする,
+	 *                   falseならsampleを呼んだ時だけサンプリングする
+	 */
+	public CpuMonitor(@NonNull final CpuDataSource dataSource, final boolean autoSample) {
 		if (DEBUG) Log.d(TAG, "org.appspot.apprtc.CpuMonitor ctor.");
-		mWeakAppContext = new WeakReference<>(context.getApplicationContext());
-		userCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
-		systemCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
-		totalCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
-		frequencyScale = new MovingAverage(MOVING_AVERAGE_SAMPLES);
+		mDataSource = dataSource;
+		userCpuUsage = new Ewma(USAGE_HALF_LIFE_SAMPLES);
+		systemCpuUsage = new Ewma(USAGE_HALF_LIFE_SAMPLES);
+		totalCpuUsage = new Ewma(USAGE_HALF_LIFE_SAMPLES);
+		frequencyScale = new Ewma(USAGE_HALF_LIFE_SAMPLES);
 		lastStatLogTimeMs = SystemClock.elapsedRealtime();
 
-		scheduleCpuUtilizationTask();
+		if (autoSample) {
+			scheduleCpuUtilizationTask();
+		}
 	}
 
 	@Override
@@ -211,9 +234,18 @@ public class CpuMonitor {
 			mReleased = true;
 			if (DEBUG) Log.d(TAG, "release:");
 			releaseExecutor();
+			closeReaders();
 		}
 	}
 
+	/**
+	 * 自動的にサンプリングしない時に呼び出してCPU使用率を測定する
+	 * @return 測定できればtrue
+	 */
+	public synchronized boolean sample() {
+		return !mReleased && sampleCpuUtilization();
+	}
+
 	public synchronized void pause() {
 		if (DEBUG) Log.d(TAG, "pause:");
 		releaseExecutor();
@@ -231,6 +263,7 @@ public class CpuMonitor {
 		if (executor != null) {
 			if (DEBUG) Log.d(TAG, "reset");
 			resetStat();
+			usageHistogram.reset();
 			cpuOveruse = false;
 		}
 	}
@@ -238,19 +271,113 @@ public class CpuMonitor {
 	// TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
 	@SuppressWarnings("NoSynchronizedMethodCheck")
 	public synchronized int getCpuUsageCurrent() {
-		return doubleToPercent(userCpuUsage.getCurrent() + systemCpuUsage.getCurrent());
+		return doubleToPercent(userCpuUsage.getLast() + systemCpuUsage.getLast());
 	}
 
 	// TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
 	@SuppressWarnings("NoSynchronizedMethodCheck")
 	public synchronized int getCpuUsageAverage() {
-		return doubleToPercent(userCpuUsage.getAverage() + systemCpuUsage.getAverage());
+		return doubleToPercent(userCpuUsage.getValue() + systemCpuUsage.getValue());
+	}
+
+	/**
+	 * 生成またはresetからのCPU使用率の分布のパーセンタイル
+	 * 平均では分からないフレーム落ちの原因になる短時間のスパイクを見るために使う
+	 * @param percentile 0-100
+	 * @return [%], サンプルが無ければ-1
+	 */
+	public synchronized int getCpuUsagePercentile(final double percentile) {
+		final double value = usageHistogram.getPercentile(percentile);
+		return Double.isNaN(value) ? -1 : (int) Math.round(value);
 	}
 
 	// TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
 	@SuppressWarnings("NoSynchronizedMethodCheck")
 	public synchronized int getFrequencyScaleAverage() {
-		return doubleToPercent(frequencyScale.getAverage());
+		return doubleToPercent(frequencyScale.getValue());
+	}
+
+	/**
+	 * 存在するCPUコアの数(オフラインのコアを含む)
+	 * @return
+	 */
+	public synchronized int getCoreCount() {
+		return cpusPresent;
+	}
+
+	/**
+	 * 指定したコアの前回のサンプリングからの使用率
+	 * @param core
+	 * @return [%], オフラインか取得できていなければ-1
+	 */
+	public synchronized int getCoreUsageCurrent(final int core) {
+		if ((coreUsage == null) || (core < 0) || (core >= cpusPresent) || (coreUsage[core] < 0)) {
+			return -1;
+		}
+		return doubleToPercent(coreUsage[core]);
+	}
+
+	/**
+	 * cpufreqのポリシーで分けたクラスタの数, 一度もオンラインになっていないコアは含まない
+	 * @return
+	 */
+	public synchronized int getClusterCount() {
+		return clusterCount;
+	}
+
+	/**
+	 * 指定したクラスタに属する最小のコア番号
+	 * @param cluster 0以上getClusterCount未満
+	 * @return
+	 */
+	public synchronized int getClusterFirstCore(final int cluster) {
+		return clusterPolicy[cluster];
+	}
+
+	/**
+	 * 指定したクラスタに属するコアの数
+	 * @param cluster 0以上getClusterCount未満
+	 * @return
+	 */
+	public synchronized int getClusterCoreCount(final int cluster) {
+		return clusterCoreCount[cluster];
+	}
+
+	/**
+	 * 指定したクラスタの最大周波数
+	 * @param cluster 0以上getClusterCount未満
+	 * @return [kHz], 不明なら0
+	 */
+	public synchronized long getClusterMaxFrequency(final int cluster) {
+		return clusterFreqMax[cluster];
+	}
+
+	/**
+	 * 指定したクラスタのオンラインのコアの前回のサンプリングからの使用率
+	 * @param cluster 0以上getClusterCount未満
+	 * @return [%], 全てのコアがオフラインなら-1
+	 */
+	public synchronized int getClusterUsageCurrent(final int cluster) {
+		return clusterUsage[cluster] >= 0 ? doubleToPercent(clusterUsage[cluster]) : -1;
+	}
+
+	/**
+	 * 指定したクラスタの最大周波数に対する現在の周波数の割合
+	 * @param cluster 0以上getClusterCount未満
+	 * @return [%], 全てのコアがオフラインなら-1
+	 */
+	public synchronized int getClusterFrequencyScale(final int cluster) {
+		return clusterFreqScale[cluster] >= 0 ? doubleToPercent(clusterFreqScale[cluster]) : -1;
+	}
+
+	/**
+	 * CPUが過負荷状態かどうか
+	 * CPU使用率の移動平均がCPU_OVERUSE_HIGH_PERCENT以上になると過負荷、
+	 * CPU_OVERUSE_LOW_PERCENT以下になると解除するヒステリシス付き
+	 * @return
+	 */
+	public synchronized boolean isCpuOveruse() {
+		return cpuOveruse;
 	}
 
 //--------------------------------------------------------------------------------
@@ -270,10 +397,34 @@ public class CpuMonitor {
 		executor = null;
 	}
 
+	/**
+	 * 開いているファイルを閉じる
+	 */
+	private synchronized void closeReaders() {
+		if (initialized) {
+			for (int i = 0; i < cpusPresent; i++) {
+				if (maxFreqReaders[i] != null) {
+					maxFreqReaders[i].close();
+				}
+				curFreqReaders[i].close();
+				if (relatedCpusReaders[i] != null) {
+					relatedCpusReaders[i].close();
+				}
+			}
+			procStatReader.close();
+		}
+	}
+
 	private synchronized void scheduleCpuUtilizationTask() {
 		releaseExecutor();
 		if (!mReleased) {
-			executor = Executors.newSingleThreadScheduledExecutor();
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					// ThreadCpuMonitorでアプリ自身のスレッドとして分類できるように名前を付ける
+					return new Thread(r, TAG);
+				}
+			});
 			mActiveFuture = executor.scheduleAtFixedRate(new Runnable() {
 				@Override
 				public void run() {
@@ -289,39 +440,63 @@ public class CpuMonitor {
 			if (cpuMonitorAvailable
 				&& SystemClock.elapsedRealtime() - lastStatLogTimeMs >= CPU_STAT_LOG_PERIOD_MS) {
 				lastStatLogTimeMs = SystemClock.elapsedRealtime();
-				String statString = getStatString();
-				if (BuildConfig.DEBUG) Log.d(TAG, statString);
+				// 文字列の生成とバッテリー残量の取得はログを出力する時だけ行う
+				if (BuildConfig.DEBUG) Log.d(TAG, getStatString());
 			}
 		}
 	}
 
 	private void init() {
-		try (FileInputStream fin = new FileInputStream("/sys/devices/system/cpu/present");
-			final InputStreamReader streamReader = new InputStreamReader(fin, CharsetsUtils.UTF8);
-			final BufferedReader reader = new BufferedReader(streamReader);
-			final Scanner scanner = new Scanner(reader).useDelimiter("[-\n]")) {
-			scanner.nextInt(); // Skip leading number 0.
-			cpusPresent = 1 + scanner.nextInt();
-		} catch (FileNotFoundException e) {
+		// 内容は"0-7"のような形式, シングルコアなら"0"
+		final ProcFileReader presentReader
+			= mDataSource.open("/sys/devices/system/cpu/present", FREQ_BUFFER_SIZE);
+		if (presentReader.read()) {
+			final long first = presentReader.nextLong();
+			final long last = presentReader.nextLong();
+			if (last >= 0) {
+				cpusPresent = 1 + (int) last;
+			} else if (first >= 0) {
+				cpusPresent = 1 + (int) first;
+			} else {
+				if (DEBUG) Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
+			}
+		} else {
 			if (DEBUG) Log.e(TAG, "Cannot do CPU stats since /sys/devices/system/cpu/present is missing");
-		} catch (IOException e) {
-			if (DEBUG) Log.e(TAG, "Error closing file");
-		} catch (Exception e) {
-			if (DEBUG) Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
 		}
+		presentReader.close();
 
 		cpuFreqMax = new long[cpusPresent];
-		maxPath = new String[cpusPresent];
-		curPath = new String[cpusPresent];
+		maxFreqReaders = new ProcFileReader[cpusPresent];
+		curFreqReaders = new ProcFileReader[cpusPresent];
 		curFreqScales = new double[cpusPresent];
+		relatedCpusReaders = new ProcFileReader[cpusPresent];
+		corePolicy = new int[cpusPresent];
+		coreBusyTime = new long[cpusPresent];
+		coreAllTime = new long[cpusPresent];
+		lastCoreBusyTime = new long[cpusPresent];
+		lastCoreAllTime = new long[cpusPresent];
+		coreUsage = new double[cpusPresent];
+		clusterPolicy = new int[cpusPresent];
+		clusterCoreCount = new int[cpusPresent];
+		clusterFreqMax = new long[cpusPresent];
+		clusterUsage = new double[cpusPresent];
+		clusterFreqScale = new double[cpusPresent];
+		Arrays.fill(corePolicy, -1);
+		Arrays.fill(coreUsage, -1);
 		for (int i = 0; i < cpusPresent; i++) {
 			cpuFreqMax[i] = 0; // Frequency "not yet determined".
 			curFreqScales[i] = 0;
-			maxPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
-			curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
+			maxFreqReaders[i] = mDataSource.open(
+				"/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq", FREQ_BUFFER_SIZE);
+			curFreqReaders[i] = mDataSource.open(
+				"/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq", FREQ_BUFFER_SIZE);
+			relatedCpusReaders[i] = mDataSource.open(
+				"/sys/devices/system/cpu/cpu" + i + "/cpufreq/related_cpus", FREQ_BUFFER_SIZE);
 		}
+		procStatReader = mDataSource.open("/proc/stat", PROC_STAT_BUFFER_SIZE);
 
-		lastProcStat = new ProcStat(0, 0, 0);
+		lastProcStat = new ProcStat();
+		procStat = new ProcStat();
 		resetStat();
 
 		initialized = true;
@@ -335,23 +510,6 @@ public class CpuMonitor {
 		lastStatLogTimeMs = SystemClock.elapsedRealtime();
 	}
 
-	private int getBatteryLevel() {
-		// Use sticky broadcast with null receiver to read battery level once only.
-		int batteryLevel = 0;
-		final Context appContext = mWeakAppContext.get();
-		if (appContext != null) {
-			final Intent intent = appContext.registerReceiver(
-				null /* receiver */, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-
-			int batteryScale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
-			if (batteryScale > 0) {
-				batteryLevel =
-					(int) (100f * intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0) / batteryScale);
-			}
-		}
-		return batteryLevel;
-	}
-
 	/**
 	 * Re-measure CPU use.  Call this method at an interval of around 1/s.
 	 * This method returns true on success.  The fields
@@ -383,18 +541,33 @@ public class CpuMonitor {
 			curFreqScales[i] = 0;
 			if (cpuFreqMax[i] == 0) {
 				// We have never found this CPU's max frequency.  Attempt to read it.
-				long cpufreqMax = readFreqFromFile(maxPath[i]);
+				long cpufreqMax = maxFreqReaders[i].readLong(0);
 				if (cpufreqMax > 0) {
 					if (DEBUG) Log.d(TAG, "Core " + i + ". Max frequency: " + cpufreqMax);
 					lastSeenMaxFreq = cpufreqMax;
 					cpuFreqMax[i] = cpufreqMax;
-					maxPath[i] = null; // Kill path to free its memory.
+					// The max frequency never changes, so close the file and free its memory.
+					maxFreqReaders[i].close();
+					maxFreqReaders[i] = null;
 				}
 			} else {
 				lastSeenMaxFreq = cpuFreqMax[i]; // A valid, previously read value.
 			}
 
-			long cpuFreqCur = readFreqFromFile(curPath[i]);
+			if (corePolicy[i] < 0) {
+				// The cluster of this core is not known yet, related_cpus lists the cores of the
+				// same cpufreq policy like "4 5 6 7". It is only present while the core is online.
+				final long policy = relatedCpusReaders[i].readLong(-1);
+				if (policy >= 0) {
+					if (DEBUG) Log.d(TAG, "Core " + i + ". Policy: " + policy);
+					corePolicy[i] = (int) policy;
+					relatedCpusReaders[i].close();
+					relatedCpusReaders[i] = null;
+				}
+			}
+
+			// CPU core is off when the file is missing or empty. This is not an error.
+			long cpuFreqCur = curFreqReaders[i].readLong(0);
 			if (cpuFreqCur == 0 && lastSeenMaxFreq == 0) {
 				// No current frequency information for this CPU core - ignore it.
 				continue;
@@ -429,12 +602,11 @@ public class CpuMonitor {
 		 * invocations.
 		 */
 		double currentFrequencyScale = cpuFreqCurSum / (double) cpuFreqMaxSum;
-		if (frequencyScale.getCurrent() > 0) {
-			currentFrequencyScale = (frequencyScale.getCurrent() + currentFrequencyScale) * 0.5;
+		if (frequencyScale.hasValue()) {
+			currentFrequencyScale = (frequencyScale.getLast() + currentFrequencyScale) * 0.5;
 		}
 
-		ProcStat procStat = readProcStat();
-		if (procStat == null) {
+		if (!readProcStat(procStat)) {
 			return false;
 		}
 
@@ -448,24 +620,102 @@ public class CpuMonitor {
 		}
 
 		// Update statistics.
-		frequencyScale.addValue(currentFrequencyScale);
+		frequencyScale.update(currentFrequencyScale);
 
 		double currentUserCpuUsage = diffUserTime / (double) allTime;
-		userCpuUsage.addValue(currentUserCpuUsage);
+		userCpuUsage.update(currentUserCpuUsage);
 
 		double currentSystemCpuUsage = diffSystemTime / (double) allTime;
-		systemCpuUsage.addValue(currentSystemCpuUsage);
+		systemCpuUsage.update(currentSystemCpuUsage);
 
 		double currentTotalCpuUsage =
 			(currentUserCpuUsage + currentSystemCpuUsage) * currentFrequencyScale;
-		totalCpuUsage.addValue(currentTotalCpuUsage);
+		totalCpuUsage.update(currentTotalCpuUsage);
+		if (hasLastProcStat) {
+			usageHistogram.add((currentUserCpuUsage + currentSystemCpuUsage) * 100);
+		}
+		hasLastProcStat = true;
 
 		// Save new measurements for next round's deltas.
+		final ProcStat prev = lastProcStat;
 		lastProcStat = procStat;
+		procStat = prev;
+
+		updateCoreUsage();
+
+		updateCpuOveruse();
 
 		return true;
 	}
 
+	/**
+	 * readProcStatで読み込んだコア毎の時間からコア毎とクラスタ毎の使用率を更新する
+	 */
+	private void updateCoreUsage() {
+		for (int i = 0; i < cpusPresent; i++) {
+			final long diffAllTime = coreAllTime[i] - lastCoreAllTime[i];
+			if ((coreAllTime[i] < 0) || (lastCoreAllTime[i] < 0) || (diffAllTime <= 0)) {
+				coreUsage[i] = -1;
+			} else {
+				coreUsage[i] = (coreBusyTime[i] - lastCoreBusyTime[i]) / (double) diffAllTime;
+			}
+			lastCoreBusyTime[i] = coreBusyTime[i];
+			lastCoreAllTime[i] = coreAllTime[i];
+		}
+
+		// ポリシー毎に集計する, ポリシーはそのクラスタの最小のコア番号なので昇順に見つかる
+		clusterCount = 0;
+		for (int i = 0; i < cpusPresent; i++) {
+			final int policy = corePolicy[i];
+			if (policy < 0) {
+				continue;
+			}
+			int cluster = 0;
+			while ((cluster < clusterCount) && (clusterPolicy[cluster] != policy)) {
+				cluster++;
+			}
+			if (cluster == clusterCount) {
+				clusterCount++;
+				clusterPolicy[cluster] = policy;
+				clusterCoreCount[cluster] = 0;
+				clusterFreqMax[cluster] = 0;
+				clusterUsage[cluster] = 0;
+				clusterFreqScale[cluster] = 0;
+			}
+			clusterCoreCount[cluster]++;
+			clusterFreqMax[cluster] = Math.max(clusterFreqMax[cluster], cpuFreqMax[i]);
+		}
+		// 使用率と周波数はオンラインのコアの平均
+		for (int cluster = 0; cluster < clusterCount; cluster++) {
+			double usageSum = 0;
+			double freqScaleSum = 0;
+			int online = 0;
+			for (int i = 0; i < cpusPresent; i++) {
+				if ((corePolicy[i] == clusterPolicy[cluster]) && (coreUsage[i] >= 0)) {
+					usageSum += coreUsage[i];
+					freqScaleSum += curFreqScales[i];
+					online++;
+				}
+			}
+			clusterUsage[cluster] = online > 0 ? usageSum / online : -1;
+			clusterFreqScale[cluster] = online > 0 ? freqScaleSum / online : -1;
+		}
+	}
+
+	/**
+	 * CPU使用率の移動平均から過負荷状態を更新する
+	 */
+	private synchronized void updateCpuOveruse() {
+		final int average = getCpuUsageAverage();
+		if (!cpuOveruse && (average >= CPU_OVERUSE_HIGH_PERCENT)) {
+			cpuOveruse = true;
+			if (DEBUG) Log.d(TAG, "CPU overuse detected: " + average + "%");
+		} else if (cpuOveruse && (average <= CPU_OVERUSE_LOW_PERCENT)) {
+			cpuOveruse = false;
+			if (DEBUG) Log.d(TAG, "CPU overuse cleared: " + average + "%");
+		}
+	}
+
 	private int doubleToPercent(double d) {
 		return (int) (d * 100 + 0.5);
 	}
@@ -473,102 +723,98 @@ public class CpuMonitor {
 	private synchronized String getStatString() {
 		StringBuilder stat = new StringBuilder();
 		stat.append("CPU User: ")
-			.append(doubleToPercent(userCpuUsage.getCurrent()))
+			.append(doubleToPercent(userCpuUsage.getLast()))
 			.append("/")
-			.append(doubleToPercent(userCpuUsage.getAverage()))
+			.append(doubleToPercent(userCpuUsage.getValue()))
 			.append(". System: ")
-			.append(doubleToPercent(systemCpuUsage.getCurrent()))
+			.append(doubleToPercent(systemCpuUsage.getLast()))
 			.append("/")
-			.append(doubleToPercent(systemCpuUsage.getAverage()))
+			.append(doubleToPercent(systemCpuUsage.getValue()))
 			.append(". Freq: ")
-			.append(doubleToPercent(frequencyScale.getCurrent()))
+			.append(doubleToPercent(frequencyScale.getLast()))
 			.append("/")
-			.append(doubleToPercent(frequencyScale.getAverage()))
+			.append(doubleToPercent(frequencyScale.getValue()))
 			.append(". Total usage: ")
-			.append(doubleToPercent(totalCpuUsage.getCurrent()))
+			.append(doubleToPercent(totalCpuUsage.getLast()))
 			.append("/")
-			.append(doubleToPercent(totalCpuUsage.getAverage()))
+			.append(doubleToPercent(totalCpuUsage.getValue()))
 			.append(". Cores: ")
 			.append(actualCpusPresent);
 		stat.append("( ");
 		for (int i = 0; i < cpusPresent; i++) {
 			stat.append(doubleToPercent(curFreqScales[i])).append(" ");
 		}
-		stat.append("). Battery: ").append(getBatteryLevel());
+		stat.append("). Clusters: ");
+		for (int i = 0; i < clusterCount; i++) {
+			stat.append("[").append(clusterPolicy[i])
+				.append("+").append(clusterCoreCount[i])
+				.append(" ").append(getClusterUsageCurrent(i))
+				.append("%@").append(getClusterFrequencyScale(i))
+				.append("%] ");
+		}
+		stat.append("Battery: ").append(mDataSource.getBatteryLevel());
 		if (cpuOveruse) {
 			stat.append(". Overuse.");
 		}
 		return stat.toString();
 	}
 
-	/**
-	 * Read a single integer value from the named file.  Return the read value
-	 * or if an error occurs return 0.
-	 */
-	private long readFreqFromFile(String fileName) {
-		long number = 0;
-		try (FileInputStream stream = new FileInputStream(fileName);
-			 InputStreamReader streamReader = new InputStreamReader(stream, CharsetsUtils.UTF8);
-			 BufferedReader reader = new BufferedReader(streamReader)) {
-			String line = reader.readLine();
-			number = parseLong(line);
-		} catch (FileNotFoundException e) {
-			// CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-			// is not present. This is not an error.
-		} catch (IOException e) {
-			// CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-			// is empty. This is not an error.
-		}
-		return number;
-	}
-
-	private static long parseLong(String value) {
-		long number = 0;
-		try {
-			number = Long.parseLong(value);
-		} catch (NumberFormatException e) {
-			if (DEBUG) Log.e(TAG, "parseLong error.", e);
-		}
-		return number;
-	}
-
 	/*
 	 * Read the current utilization of all CPUs using the cumulative first line
-	 * of /proc/stat.
+	 * of /proc/stat, and of each online core from the following cpuN lines
+	 * into coreBusyTime/coreAllTime.
 	 */
-	@SuppressWarnings("StringSplitter")
-	private @Nullable
-	ProcStat readProcStat() {
-		long userTime = 0;
-		long systemTime = 0;
-		long idleTime = 0;
-		try (FileInputStream stream = new FileInputStream("/proc/stat");
-			 InputStreamReader streamReader = new InputStreamReader(stream, CharsetsUtils.UTF8);
-			 BufferedReader reader = new BufferedReader(streamReader)) {
-			// line should contain something like this:
-			// cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
-			//       user    nice  system     idle   iowait  irq   softirq
-			String line = reader.readLine();
-			String[] lines = line.split("\\s+");
-			int length = lines.length;
-			if (length >= 5) {
-				userTime = parseLong(lines[1]); // user
-				userTime += parseLong(lines[2]); // nice
-				systemTime = parseLong(lines[3]); // system
-				idleTime = parseLong(lines[4]); // idle
-			}
-			if (length >= 8) {
-				userTime += parseLong(lines[5]); // iowait
-				systemTime += parseLong(lines[6]); // irq
-				systemTime += parseLong(lines[7]); // softirq
+	private boolean readProcStat(final ProcStat result) {
+		if (!procStatReader.read()) {
+			if (DEBUG) Log.e(TAG, "Cannot read /proc/stat");
+			return false;
+		}
+		// line should contain something like this:
+		// cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
+		//       user    nice  system     idle   iowait  irq   softirq
+		if (!procStatReader.startsWith("cpu ")) {
+			if (DEBUG) Log.e(TAG, "Problems parsing /proc/stat");
+			return false;
+		}
+		procStatReader.skipToken();
+		final long user = procStatReader.nextLong();
+		final long nice = procStatReader.nextLong();
+		final long system = procStatReader.nextLong();
+		final long idle = procStatReader.nextLong();
+		if (idle < 0) {
+			if (DEBUG) Log.e(TAG, "Problems parsing /proc/stat");
+			return false;
+		}
+		long userTime = user + nice;
+		long systemTime = system;
+		final long iowait = procStatReader.nextLong();
+		final long irq = procStatReader.nextLong();
+		final long softirq = procStatReader.nextLong();
+		if (softirq >= 0) {
+			userTime += iowait;
+			systemTime += irq + softirq;
+		}
+		result.set(userTime, systemTime, idle);
+
+		// cpuN  user nice system idle iowait irq softirq, offline cores are not listed.
+		Arrays.fill(coreAllTime, -1);
+		while (procStatReader.nextLine() && procStatReader.startsWith("cpu")) {
+			final long core = procStatReader.nextLong();
+			final long coreUser = procStatReader.nextLong();
+			final long coreNice = procStatReader.nextLong();
+			final long coreSystem = procStatReader.nextLong();
+			final long coreIdle = procStatReader.nextLong();
+			final long coreIowait = procStatReader.nextLong();
+			final long coreIrq = procStatReader.nextLong();
+			final long coreSoftirq = procStatReader.nextLong();
+			if ((core < 0) || (core >= cpusPresent) || (coreSoftirq < 0)) {
+				continue;
 			}
-		} catch (FileNotFoundException e) {
-			if (DEBUG) Log.e(TAG, "Cannot open /proc/stat for reading", e);
-			return null;
-		} catch (Exception e) {
-			if (DEBUG) Log.e(TAG, "Problems parsing /proc/stat", e);
-			return null;
-		}
-		return new ProcStat(userTime, systemTime, idleTime);
+			// Same split as the cumulative line, iowait is counted as busy.
+			final long busy = coreUser + coreNice + coreIowait + coreSystem + coreIrq + coreSoftirq;
+			coreBusyTime[(int) core] = busy;
+			coreAllTime[(int) core] = busy + coreIdle;
+		}
+		return true;
 	}
 }
@@ -0,0 +1,154 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * DerivedMetricsEngineで前回の統計情報との差分から計算した区間毎のレート等
+ * 計算できなかった値はNaNになる
+ * 生成後は変更しないので任意のスレッドから参照して良い
+ */
+public class DerivedMetrics {
+
+	/**
+	 * RTPストリーム毎の区間内の値
+	 */
+	public static class StreamMetrics {
+		public final long ssrc;
+		@NonNull
+		public final RtcStatsSnapshot.MediaKind kind;
+		/** 送信ストリームならtrue, 受信ストリームならfalse */
+		public final boolean outbound;
+		/** [bps] */
+		public double bitrateBps = Double.NaN;
+		/** 再送のビットレート[bps], 送信のみ */
+		public double retransmitBitrateBps = Double.NaN;
+		/** [パケット/秒] */
+		public double packetRate = Double.NaN;
+		/** パケットロス率[%], 受信のみ */
+		public double packetLossPercent = Double.NaN;
+		/** [回/秒] */
+		public double nackRate = Double.NaN;
+		/** [回/秒] */
+		public double pliRate = Double.NaN;
+		/** [回/秒] */
+		public double firRate = Double.NaN;
+		/** エンコード/デコードしたフレーム数から計算したフレームレート[fps] */
+		public double framesPerSecond = Double.NaN;
+		/** 区間内の1フレーム当たりのエンコード時間(送信)/デコード時間(受信)[ミリ秒] */
+		public double msPerFrame = Double.NaN;
+		/** 区間内の平均ジッターバッファー遅延[ミリ秒], 受信のみ */
+		public double jitterBufferDelayMs = Double.NaN;
+		/** 現在のジッター[ミリ秒], 受信のみ */
+		public double jitterMs = Double.NaN;
+		/** 現在のフレームサイズ, 映像のみ */
+		public int frameWidth = -1;
+		public int frameHeight = -1;
+		/** 開始からのエンコード(送信)/デコード(受信)したフレーム数, 映像のみ */
+		public long frames = -1;
+		/** 画面共有の受信ストリームならtrue, 映像が静止している間はフレームレートが0になる */
+		public boolean screenshare;
+		/** 現在の品質制限の理由, 送信の映像のみ */
+		@NonNull
+		public RtcStatsSnapshot.QualityLimitation qualityLimitation
+			= RtcStatsSnapshot.QualityLimitation.UNKNOWN;
+
+		StreamMetrics(final long ssrc,
+			@NonNull final RtcStatsSnapshot.MediaKind kind, final boolean outbound) {
+
+			this.ssrc = ssrc;
+			this.kind = kind;
+			this.outbound = outbound;
+		}
+	}
+
+	/**
+	 * 統計情報のタイムスタンプ[マイクロ秒]
+	 */
+	public final long timestampUs;
+	/**
+	 * 前回の統計情報からの経過時間[秒], 最初の統計情報ならNaN
+	 */
+	public final double intervalSec;
+	@NonNull
+	public final List<StreamMetrics> inbound = new ArrayList<>();
+	@NonNull
+	public final List<StreamMetrics> outbound = new ArrayList<>();
+	/** 全送信ストリームの合計ビットレート[bps] */
+	public double totalSendBitrateBps = Double.NaN;
+	/** 全受信ストリームの合計ビットレート[bps] */
+	public double totalRecvBitrateBps = Double.NaN;
+	/** 選択中のcandidate pairの往復遅延時間[ミリ秒] */
+	public double rttMs = Double.NaN;
+	/** 選択中のcandidate pairの送信帯域推定値[bps] */
+	public double availableOutgoingBitrateBps = Double.NaN;
+
+	DerivedMetrics(final long timestampUs, final double intervalSec) {
+		this.timestampUs = timestampUs;
+		this.intervalSec = intervalSec;
+	}
+
+	/**
+	 * 指定した種類の最初の受信ストリームを取得
+	 * @param kind
+	 * @return 見つからなければnull
+	 */
+	@Nullable
+	public StreamMetrics findInbound(@NonNull final RtcStatsSnapshot.MediaKind kind) {
+		return find(inbound, kind);
+	}
+
+	/**
+	 * 指定した種類の最初の送信ストリームを取得
+	 * @param kind
+	 * @return 見つからなければnull
+	 */
+	@Nullable
+	public StreamMetrics findOutbound(@NonNull final RtcStatsSnapshot.MediaKind kind) {
+		return find(outbound, kind);
+	}
+
+	/**
+	 * 映像の受信ストリームがあれば映像、無ければ音声の受信ストリームを取得
+	 * @return 見つからなければnull
+	 */
+	@Nullable
+	public StreamMetrics primaryInbound() {
+		final StreamMetrics video = findInbound(RtcStatsSnapshot.MediaKind.VIDEO);
+		return video != null ? video : findInbound(RtcStatsSnapshot.MediaKind.AUDIO);
+	}
+
+	/**
+	 * 映像の送信ストリームがあれば映像、無ければ音声の送信ストリームを取得
+	 * @return 見つからなければnull
+	 */
+	@Nullable
+	public StreamMetrics primaryOutbound() {
+		final StreamMetrics video = findOutbound(RtcStatsSnapshot.MediaKind.VIDEO);
+		return video != null ? video : findOutbound(RtcStatsSnapshot.MediaKind.AUDIO);
+	}
+
+	@Nullable
+	private static StreamMetrics find(@NonNull final List<StreamMetrics> list,
+		@NonNull final RtcStatsSnapshot.MediaKind kind) {
+
+		for (final StreamMetrics metrics: list) {
+			if (metrics.kind == kind) {
+				return metrics;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,256 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * RtcStatsSnapshotの累積カウンターから区間毎のレートや平均値を計算するクラス
+ * RTPストリーム毎に前回のカウンター値だけを保持して差分を取るので
+ * 過去の統計情報を走査し直すことはない
+ * カウンターが減少した時(ストリームの再生成等)はその区間の値をNaNにする
+ * スレッドセーフではないので1つのスレッドから呼び出すこと
+ */
+public class DerivedMetricsEngine {
+
+	/**
+	 * RTPストリーム毎の前回のカウンター値
+	 */
+	private static class CounterState {
+		private final long ssrc;
+		private final boolean outbound;
+		private long bytes;
+		private long retransmittedBytes;
+		private long packets;
+		private long packetsLost;
+		private long nackCount;
+		private long pliCount;
+		private long firCount;
+		private long frames;
+		private double totalFrameTime;
+		private double jitterBufferDelay;
+		private long jitterBufferEmittedCount;
+		/**
+		 * 前回の統計情報に含まれていたかどうか
+		 */
+		private boolean seen;
+		/**
+		 * 今回の統計情報に含まれていたかどうか, 含まれていなければ破棄する
+		 */
+		private boolean alive;
+
+		private CounterState(final long ssrc, final boolean outbound) {
+			this.ssrc = ssrc;
+			this.outbound = outbound;
+		}
+	}
+
+	@NonNull
+	private final List<CounterState> mStates = new ArrayList<>();
+	private long mPrevTimestampUs = -1;
+
+	/**
+	 * 保持しているカウンター値を破棄する
+	 */
+	public void reset() {
+		mStates.clear();
+		mPrevTimestampUs = -1;
+	}
+
+	/**
+	 * 統計情報を追加して前回の統計情報からの区間の値を計算する
+	 * 最初の統計情報や新しく現れたストリームのレートはNaNになる
+	 * @param snapshot
+	 * @return
+	 */
+	@NonNull
+	public DerivedMetrics update(@NonNull final RtcStatsSnapshot snapshot) {
+		final double sec = (mPrevTimestampUs > 0) && (snapshot.timestampUs > mPrevTimestampUs)
+			? (snapshot.timestampUs - mPrevTimestampUs) / 1000000.0 : Double.NaN;
+		mPrevTimestampUs = snapshot.timestampUs;
+		final DerivedMetrics result = new DerivedMetrics(snapshot.timestampUs, sec);
+
+		for (final CounterState state: mStates) {
+			state.alive = false;
+		}
+		double totalSend = 0;
+		for (final RtcStatsSnapshot.OutboundRtp stats: snapshot.outboundRtp) {
+			final DerivedMetrics.StreamMetrics metrics
+				= new DerivedMetrics.StreamMetrics(stats.ssrc, stats.kind, true);
+			final CounterState state = findState(stats.ssrc, true);
+			if (state.seen) {
+				metrics.bitrateBps = rate(stats.bytesSent, state.bytes, sec) * 8;
+				metrics.retransmitBitrateBps
+					= rate(stats.retransmittedBytesSent, state.retransmittedBytes, sec) * 8;
+				metrics.packetRate = rate(stats.packetsSent, state.packets, sec);
+				metrics.nackRate = rate(stats.nackCount, state.nackCount, sec);
+				metrics.pliRate = rate(stats.pliCount, state.pliCount, sec);
+				metrics.firRate = rate(stats.firCount, state.firCount, sec);
+				metrics.framesPerSecond = rate(stats.framesEncoded, state.frames, sec);
+				metrics.msPerFrame = perCount(stats.totalEncodeTime, state.totalFrameTime,
+					stats.framesEncoded, state.frames) * 1000;
+			}
+			saveOutbound(state, stats);
+			metrics.frameWidth = stats.frameWidth;
+			metrics.frameHeight = stats.frameHeight;
+			metrics.frames = stats.framesEncoded;
+			metrics.qualityLimitation = stats.qualityLimitationReason;
+			totalSend += metrics.bitrateBps;
+			result.outbound.add(metrics);
+		}
+		double totalRecv = 0;
+		for (final RtcStatsSnapshot.InboundRtp stats: snapshot.inboundRtp) {
+			final DerivedMetrics.StreamMetrics metrics
+				= new DerivedMetrics.StreamMetrics(stats.ssrc, stats.kind, false);
+			final CounterState state = findState(stats.ssrc, false);
+			if (state.seen) {
+				metrics.bitrateBps = rate(stats.bytesReceived, state.bytes, sec) * 8;
+				metrics.packetRate = rate(stats.packetsReceived, state.packets, sec);
+				metrics.packetLossPercent = lossPercent(stats, state);
+				metrics.nackRate = rate(stats.nackCount, state.nackCount, sec);
+				metrics.pliRate = rate(stats.pliCount, state.pliCount, sec);
+				metrics.firRate = rate(stats.firCount, state.firCount, sec);
+				metrics.framesPerSecond = rate(stats.framesDecoded, state.frames, sec);
+				metrics.msPerFrame = perCount(stats.totalDecodeTime, state.totalFrameTime,
+					stats.framesDecoded, state.frames) * 1000;
+				metrics.jitterBufferDelayMs = perCount(stats.jitterBufferDelay, state.jitterBufferDelay,
+					stats.jitterBufferEmittedCount, state.jitterBufferEmittedCount) * 1000;
+			}
+			saveInbound(state, stats);
+			metrics.jitterMs = stats.jitter * 1000;
+			metrics.frameWidth = stats.frameWidth;
+			metrics.frameHeight = stats.frameHeight;
+			metrics.frames = stats.framesDecoded;
+			metrics.screenshare = stats.screenshare;
+			totalRecv += metrics.bitrateBps;
+			result.inbound.add(metrics);
+		}
+		// 合計はどれか1つでもNaNならNaNになる
+		if (!result.outbound.isEmpty()) {
+			result.totalSendBitrateBps = totalSend;
+		}
+		if (!result.inbound.isEmpty()) {
+			result.totalRecvBitrateBps = totalRecv;
+		}
+		// 今回含まれていなかったストリームのカウンター値を破棄する
+		for (int i = mStates.size() - 1; i >= 0; i--) {
+			final CounterState state = mStates.get(i);
+			if (state.alive) {
+				state.seen = true;
+			} else {
+				mStates.remove(i);
+			}
+		}
+
+		final RtcStatsSnapshot.CandidatePair pair = snapshot.selectedCandidatePair;
+		if (pair != null) {
+			result.rttMs = pair.currentRoundTripTime * 1000;
+			result.availableOutgoingBitrateBps = pair.availableOutgoingBitrate;
+		}
+		return result;
+	}
+
+	/**
+	 * 前回のカウンター値を取得する, 無ければ新しく追加する
+	 * 新しく追加した時はseenがfalseになる
+	 * @param ssrc
+	 * @param outbound
+	 * @return
+	 */
+	@NonNull
+	private CounterState findState(final long ssrc, final boolean outbound) {
+		for (final CounterState state: mStates) {
+			if ((state.ssrc == ssrc) && (state.outbound == outbound)) {
+				state.alive = true;
+				return state;
+			}
+		}
+		final CounterState state = new CounterState(ssrc, outbound);
+		state.alive = true;
+		mStates.add(state);
+		return state;
+	}
+
+	private static void saveOutbound(@NonNull final CounterState state,
+		@NonNull final RtcStatsSnapshot.OutboundRtp stats) {
+
+		state.bytes = stats.bytesSent;
+		state.retransmittedBytes = stats.retransmittedBytesSent;
+		state.packets = stats.packetsSent;
+		state.nackCount = stats.nackCount;
+		state.pliCount = stats.pliCount;
+		state.firCount = stats.firCount;
+		state.frames = stats.framesEncoded;
+		state.totalFrameTime = stats.totalEncodeTime;
+	}
+
+	private static void saveInbound(@NonNull final CounterState state,
+		@NonNull final RtcStatsSnapshot.InboundRtp stats) {
+
+		state.bytes = stats.bytesReceived;
+		state.packets = stats.packetsReceived;
+		state.packetsLost = stats.packetsLost;
+		state.nackCount = stats.nackCount;
+		state.pliCount = stats.pliCount;
+		state.firCount = stats.firCount;
+		state.frames = stats.framesDecoded;
+		state.totalFrameTime = stats.totalDecodeTime;
+		state.jitterBufferDelay = stats.jitterBufferDelay;
+		state.jitterBufferEmittedCount = stats.jitterBufferEmittedCount;
+	}
+
+	/**
+	 * 累積カウンターの1秒当たりの増加量を計算する
+	 * @param current
+	 * @param prev
+	 * @param sec
+	 * @return カウンターが無いか減少した時はNaN
+	 */
+	private static double rate(final long current, final long prev, final double sec) {
+		if ((current < 0) || (prev < 0) || (current < prev) || !(sec > 0)) {
+			return Double.NaN;
+		}
+		return (current - prev) / sec;
+	}
+
+	/**
+	 * 累積値の増加量を累積回数の増加量で割った区間内の平均値を計算する
+	 * @return 回数が増えていない時はNaN
+	 */
+	private static double perCount(final double total, final double prevTotal,
+		final long count, final long prevCount) {
+
+		if ((count < 0) || (prevCount < 0) || (count <= prevCount)
+			|| Double.isNaN(total) || Double.isNaN(prevTotal)) {
+			return Double.NaN;
+		}
+		return (total - prevTotal) / (count - prevCount);
+	}
+
+	/**
+	 * 区間内の受信パケットロス率[%]を計算する
+	 * packetsLostは重複受信で減ることがあるので負にならないようにする
+	 */
+	private static double lossPercent(@NonNull final RtcStatsSnapshot.InboundRtp stats,
+		@NonNull final CounterState state) {
+
+		if ((stats.packetsReceived < 0) || (stats.packetsLost < 0)
+			|| (state.packets < 0) || (state.packetsLost < 0)
+			|| (stats.packetsReceived < state.packets)) {
+			return Double.NaN;
+		}
+		final long received = stats.packetsReceived - state.packets;
+		final long lost = Math.max(0, stats.packetsLost - state.packetsLost);
+		return received + lost > 0 ? lost * 100.0 / (received + lost) : Double.NaN;
+	}
+}
@@ -17,8 +17,11 @@ import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,11 +53,15 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       // Optional port number
       + "(:(\\d+))?");
 
-  private final ExecutorService executor;
+  private final ScheduledExecutorService executor;
   private final SignalingEvents events;
   @Nullable
   private TCPChannelClient tcpClient;
   private RoomConnectionParameters connectionParameters;
+  // Local ICE candidates waiting for the coalescing window to expire.
+  private final List<IceCandidate> pendingIceCandidates = new ArrayList<>();
+  @Nullable
+  private ScheduledFuture<?> flushIceCandidatesFuture;
 
   private enum ConnectionState { NEW, CONNECTED, CLOSED, ERROR }
 
@@ -64,7 +71,7 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   public DirectRTCClient(SignalingEvents events) {
     this.events = events;
 
-    executor = Executors.newSingleThreadExecutor();
+    executor = Executors.newSingleThreadScheduledExecutor();
     roomState = ConnectionState.NEW;
   }
 
@@ -139,6 +146,8 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
    */
   private void disconnectFromRoomInternal() {
     roomState = ConnectionState.CLOSED;
+    cancelFlushIceCandidates();
+    pendingIceCandidates.clear();
 
     if (tcpClient != null) {
       tcpClient.disconnect();
@@ -177,37 +186,72 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     });
   }
 
+  /**
+   * Send Ice candidate to the other participant. Candidates gathered within the configured
+   * batch window are coalesced into a single message.
+   */
   @Override
   public void sendLocalIceCandidate(final IceCandidate candidate) {
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "candidate");
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-
-        if (roomState != ConnectionState.CONNECTED) {
-          reportError("Sending ICE candidate in non connected state.");
-          return;
+        pendingIceCandidates.add(candidate);
+        final int batchWindowMs = connectionParameters.iceCandidateBatchWindowMs;
+        if (batchWindowMs <= 0) {
+          flushPendingIceCandidates();
+        } else if (pendingIceCandidates.size() == 1) {
+          flushIceCandidatesFuture = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+              flushPendingIceCandidates();
+            }
+          }, batchWindowMs, TimeUnit.MILLISECONDS);
         }
-        sendMessage(json.toString());
       }
     });
   }
 
+  /**
+   * Sends all pending local ICE candidates.
+   *
+   * Runs on the looper thread.
+   */
+  private void flushPendingIceCandidates() {
+    cancelFlushIceCandidates();
+    if (pendingIceCandidates.isEmpty()) {
+      return;
+    }
+    final IceCandidate[] candidates =
+        pendingIceCandidates.toArray(new IceCandidate[pendingIceCandidates.size()]);
+    pendingIceCandidates.clear();
+
+    if (roomState != ConnectionState.CONNECTED) {
+      reportError("Sending ICE candidate in non connected state.");
+      return;
+    }
+    sendMessage(IceCandidateJson.toMessage(candidates));
+  }
+
+  private void cancelFlushIceCandidates() {
+    if (flushIceCandidatesFuture != null) {
+      flushIceCandidatesFuture.cancel(false);
+      flushIceCandidatesFuture = null;
+    }
+  }
+
   /** Send removed Ice candidates to the other participant. */
   @Override
   public void sendLocalIceCandidateRemovals(final IceCandidate[] candidates) {
     executor.execute(new Runnable() {
       @Override
       public void run() {
+        // Candidates must reach the other side before their removal.
+        flushPendingIceCandidates();
         JSONObject json = new JSONObject();
         jsonPut(json, "type", "remove-candidates");
         JSONArray jsonArray = new JSONArray();
         for (final IceCandidate candidate : candidates) {
-          jsonArray.put(toJsonCandidate(candidate));
+          jsonArray.put(IceCandidateJson.toJson(candidate));
         }
         jsonPut(json, "candidates", jsonArray);
 
@@ -251,12 +295,17 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       JSONObject json = new JSONObject(msg);
       String type = json.optString("type");
       if (type.equals("candidate")) {
-        events.onRemoteIceCandidate(toJavaCandidate(json));
+        events.onRemoteIceCandidate(IceCandidateJson.fromJson(json));
+      } else if (type.equals("candidates")) {
+        JSONArray candidateArray = json.getJSONArray("candidates");
+        for (int i = 0; i < candidateArray.length(); ++i) {
+          events.onRemoteIceCandidate(IceCandidateJson.fromJson(candidateArray.getJSONObject(i)));
+        }
       } else if (type.equals("remove-candidates")) {
         JSONArray candidateArray = json.getJSONArray("candidates");
         IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
         for (int i = 0; i < candidateArray.length(); ++i) {
-          candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
+          candidates[i] = IceCandidateJson.fromJson(candidateArray.getJSONObject(i));
         }
         events.onRemoteIceCandidatesRemoved(candidates);
       } else if (type.equals("answer")) {
@@ -329,19 +378,4 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       throw new RuntimeException(e);
     }
   }
-
-  // Converts a Java candidate to a JSONObject.
-  private static JSONObject toJsonCandidate(final IceCandidate candidate) {
-    JSONObject json = new JSONObject();
-    jsonPut(json, "label", candidate.sdpMLineIndex);
-    jsonPut(json, "id", candidate.sdpMid);
-    jsonPut(json, "candidate", candidate.sdp);
-    return json;
-  }
-
-  // Converts a JSON candidate to a Java object.
-  private static IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-    return new IceCandidate(
-        json.getString("id"), json.getInt("label"), json.getString("candidate"));
-  }
 }
@@ -9,6 +9,9 @@ package org.appspot.apprtc;/*
  */
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
 import android.util.TypedValue;
@@ -19,11 +22,11 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 
 import com.serenegiant.apprtcmobile.R;
+import com.serenegiant.webrtc.SurfaceVideoCapture;
+import com.serenegiant.webrtc.stats.LogLinearHistogram;
+import com.serenegiant.webrtc.stats.MinMaxWindow;
 
-import org.webrtc.StatsReport;
-
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Fragment for HUD statistics display.
@@ -39,6 +42,95 @@ public class HudFragment extends Fragment {
   private boolean displayHud;
   private volatile boolean isRunning;
   private CpuMonitor cpuMonitor;
+  private ThreadCpuMonitor threadCpuMonitor;
+  private MemoryMonitor memoryMonitor;
+  private StatsTimeSeries statsTimeSeries;
+  private SurfaceVideoCapture videoCapture;
+  // Reused holders for the threads using the most CPU.
+  private final ThreadCpuMonitor.ThreadUsage[] topThreads = new ThreadCpuMonitor.ThreadUsage[3];
+
+  // Minimum interval between HUD refreshes regardless of the stats poll rate.
+  private static final long HUD_REFRESH_INTERVAL_MS = 500;
+  // Number of stats polls the encoder fps min/max is taken over.
+  private static final int FPS_WINDOW_SAMPLES = 10;
+  // Time the average bitrate is taken over regardless of the stats poll rate.
+  private static final long AVERAGE_BITRATE_WINDOW_MS = 10000;
+  private static final double FRAME_TIME_RESOLUTION_MS = 0.1;
+  private static final double FRAME_TIME_MAX_MS = 1000;
+
+  // Display keys are prepared once to avoid building strings on every refresh.
+  private static final char[] KEY_ENCODER_FPS = "Fps:  ".toCharArray();
+  private static final char[] KEY_FPS_RANGE = " min/max ".toCharArray();
+  private static final char[] KEY_ENCODE_PERCENTILES = "EncMs p50/95/99: ".toCharArray();
+  private static final char[] KEY_CAPTURE_FPS = "CapFps avg: ".toCharArray();
+  private static final char[] KEY_CAPTURE_INTERVALS = " IntMs p50/95/99: ".toCharArray();
+  private static final char[] KEY_CAPTURE_DROPPED = " dropped ".toCharArray();
+  private static final char[] KEY_DECODE_PERCENTILES = "DecMs p50/95/99=".toCharArray();
+  private static final char[] KEY_CPU_P95 = " p95 ".toCharArray();
+  private static final char[] KEY_TARGET_BR = "Target BR: ".toCharArray();
+  private static final char[] KEY_ACTUAL_BR = "Actual BR: ".toCharArray();
+  private static final char[] KEY_AVERAGE_BR = "Avg BR(10s): ".toCharArray();
+  private static final char[] KEY_CPU = "CPU%: ".toCharArray();
+  private static final char[] KEY_FREQ = ". Freq: ".toCharArray();
+  private static final char[] KEY_CORES = "Cores%:".toCharArray();
+  private static final char[] KEY_CLUSTERS = "Clusters:".toCharArray();
+  private static final char[] KEY_THREADS = "Threads:".toCharArray();
+  private static final char[] KEY_MEMORY = "Mem MB: heap ".toCharArray();
+  private static final char[] KEY_NATIVE = " native ".toCharArray();
+  private static final char[] KEY_RSS = " rss ".toCharArray();
+  private static final char[] KEY_PSS = " pss ".toCharArray();
+  private static final char[] KEY_PEAK = " peak ".toCharArray();
+  private static final char[] KEY_GC = "GC: ".toCharArray();
+  private static final char[] KEY_SSRC = "ssrc_".toCharArray();
+  private static final char[] KEY_SEND_SUFFIX = "_send".toCharArray();
+  private static final char[] KEY_RECV_SUFFIX = "_recv".toCharArray();
+  private static final char[] KEY_FPS = "Fps=".toCharArray();
+  private static final char[] KEY_FRAME_SIZE = "FrameSize=".toCharArray();
+  private static final char[] KEY_FRAMES_ENCODED = "FramesEncoded=".toCharArray();
+  private static final char[] KEY_KEY_FRAMES_ENCODED = "KeyFramesEncoded=".toCharArray();
+  private static final char[] KEY_AVG_ENCODE_MS = "AvgEncodeMs=".toCharArray();
+  private static final char[] KEY_QUALITY_LIMITATION = "QualityLimitation=".toCharArray();
+  private static final char[] KEY_PACKETS_SENT = "PacketsSent=".toCharArray();
+  private static final char[] KEY_RETRANSMITTED_PACKETS = "RetransmittedPackets=".toCharArray();
+  private static final char[] KEY_NACK_PLI_FIR = "Nack/Pli/Fir=".toCharArray();
+  private static final char[] KEY_FRAMES_DECODED = "FramesDecoded=".toCharArray();
+  private static final char[] KEY_FRAMES_DROPPED = "FramesDropped=".toCharArray();
+  private static final char[] KEY_AVG_DECODE_MS = "AvgDecodeMs=".toCharArray();
+  private static final char[] KEY_JITTER_BUFFER_MS = "JitterBufferMs=".toCharArray();
+  private static final char[] KEY_PACKETS_RECEIVED = "PacketsReceived=".toCharArray();
+  private static final char[] KEY_PACKETS_LOST = "PacketsLost=".toCharArray();
+  private static final char[] KEY_FREEZES = "Freezes=".toCharArray();
+  private static final char[] KEY_BWE = "bwe".toCharArray();
+  private static final char[] KEY_SEND_BANDWIDTH = "SendBandwidth=".toCharArray();
+  private static final char[] KEY_RECEIVE_BANDWIDTH = "ReceiveBandwidth=".toCharArray();
+  private static final char[] KEY_TARGET_ENC_BITRATE = "TargetEncBitrate=".toCharArray();
+  private static final char[] KEY_CANDIDATE_PAIR = "candidate_pair".toCharArray();
+  private static final char[] KEY_LOCAL_CANDIDATE_TYPE = "LocalCandidateType=".toCharArray();
+  private static final char[] KEY_REMOTE_CANDIDATE_TYPE = "RemoteCandidateType=".toCharArray();
+  private static final char[] KEY_RTT = "Rtt=".toCharArray();
+  private static final char[] KEY_MS = "ms".toCharArray();
+  private static final char[] KEY_BYTES_SENT = "BytesSent=".toCharArray();
+  private static final char[] KEY_BYTES_RECEIVED = "BytesReceived=".toCharArray();
+  private static final char[] KEY_KBPS = "kbps".toCharArray();
+
+  private final Handler uiHandler = new Handler(Looper.getMainLooper());
+  private final HudText encoderText = new HudText();
+  private final HudText bweText = new HudText();
+  private final HudText connectionText = new HudText();
+  private final HudText videoSendText = new HudText();
+  private final HudText videoRecvText = new HudText();
+  // Per-interval encode/decode times for the whole call, fed from DerivedMetrics on every stats
+  // poll on the UI thread.
+  private final LogLinearHistogram encodeMsHistogram =
+      new LogLinearHistogram(FRAME_TIME_RESOLUTION_MS, FRAME_TIME_MAX_MS);
+  private final LogLinearHistogram decodeMsHistogram =
+      new LogLinearHistogram(FRAME_TIME_RESOLUTION_MS, FRAME_TIME_MAX_MS);
+  private final MinMaxWindow encoderFpsWindow = new MinMaxWindow(FPS_WINDOW_SAMPLES);
+
+  // Latest statistics not rendered yet, only accessed on the UI thread.
+  private RtcStatsSnapshot pendingSnapshot;
+  private boolean renderScheduled;
+  private long lastRenderTimeMs;
 
   @Override
   public View onCreateView(
@@ -87,6 +179,9 @@ public class HudFragment extends Fragment {
   @Override
   public void onStop() {
     isRunning = false;
+    uiHandler.removeCallbacks(renderTask);
+    renderScheduled = false;
+    pendingSnapshot = null;
     super.onStop();
   }
 
@@ -94,6 +189,27 @@ public class HudFragment extends Fragment {
     this.cpuMonitor = cpuMonitor;
   }
 
+  public void setThreadCpuMonitor(ThreadCpuMonitor threadCpuMonitor) {
+    this.threadCpuMonitor = threadCpuMonitor;
+    for (int i = 0; i < topThreads.length; i++) {
+      if (topThreads[i] == null) {
+        topThreads[i] = new ThreadCpuMonitor.ThreadUsage();
+      }
+    }
+  }
+
+  public void setMemoryMonitor(MemoryMonitor memoryMonitor) {
+    this.memoryMonitor = memoryMonitor;
+  }
+
+  public void setStatsTimeSeries(StatsTimeSeries statsTimeSeries) {
+    this.statsTimeSeries = statsTimeSeries;
+  }
+
+  public void setVideoCapture(SurfaceVideoCapture videoCapture) {
+    this.videoCapture = videoCapture;
+  }
+
   private void hudViewsSetProperties(int visibility) {
     hudViewBwe.setVisibility(visibility);
     hudViewConnection.setVisibility(visibility);
@@ -105,102 +221,400 @@ public class HudFragment extends Fragment {
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
-  private Map<String, String> getReportMap(StatsReport report) {
-    Map<String, String> reportMap = new HashMap<>();
-    for (StatsReport.Value value : report.values) {
-      reportMap.put(value.name, value.value);
+  /**
+   * Accumulates the per-interval values of the primary streams into the distributions shown by
+   * the HUD. Called on every stats poll so the distributions do not depend on the HUD refresh
+   * rate. Must be called on the UI thread.
+   */
+  public void updateMetrics(final DerivedMetrics metrics) {
+    if (!isRunning) {
+      return;
+    }
+    final DerivedMetrics.StreamMetrics send = metrics.primaryOutbound();
+    if (send != null) {
+      encodeMsHistogram.add(send.msPerFrame);
+      if (send.kind == RtcStatsSnapshot.MediaKind.VIDEO) {
+        encoderFpsWindow.add(send.framesPerSecond);
+      }
+    }
+    final DerivedMetrics.StreamMetrics recv = metrics.primaryInbound();
+    if (recv != null) {
+      decodeMsHistogram.add(recv.msPerFrame);
     }
-    return reportMap;
   }
 
-  public void updateEncoderStatistics(final StatsReport[] reports) {
+  /**
+   * Stores the latest statistics and schedules rendering of them. Rendering is throttled to
+   * HUD_REFRESH_INTERVAL_MS independently of the stats poll rate and is skipped while the HUD
+   * is not shown. Must be called on the UI thread.
+   */
+  public void renderStatistics(final RtcStatsSnapshot snapshot) {
     if (!isRunning || !displayHud) {
       return;
     }
-    StringBuilder encoderStat = new StringBuilder(128);
-    StringBuilder bweStat = new StringBuilder();
-    StringBuilder connectionStat = new StringBuilder();
-    StringBuilder videoSendStat = new StringBuilder();
-    StringBuilder videoRecvStat = new StringBuilder();
-    String fps = null;
-    String targetBitrate = null;
-    String actualBitrate = null;
-
-    for (StatsReport report : reports) {
-      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
-        // Send video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String trackId = reportMap.get("googTrackId");
-        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
-          fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("recv")) {
-        // Receive video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        // Check if this stat is for video track.
-        String frameWidth = reportMap.get("googFrameWidthReceived");
-        if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.id.equals("bweforvideo")) {
-        // BWE statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        targetBitrate = reportMap.get("googTargetEncBitrate");
-        actualBitrate = reportMap.get("googActualEncBitrate");
-
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
-        }
-      } else if (report.type.equals("googCandidatePair")) {
-        // Connection statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String activeConnection = reportMap.get("googActiveConnection");
-        if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
+    pendingSnapshot = snapshot;
+    if (!renderScheduled) {
+      renderScheduled = true;
+      final long delayMs =
+          Math.max(0, lastRenderTimeMs + HUD_REFRESH_INTERVAL_MS - SystemClock.uptimeMillis());
+      uiHandler.postDelayed(renderTask, delayMs);
+    }
+  }
+
+  private final Runnable renderTask = new Runnable() {
+    @Override
+    public void run() {
+      renderScheduled = false;
+      final RtcStatsSnapshot snapshot = pendingSnapshot;
+      pendingSnapshot = null;
+      if (snapshot == null || !isRunning || isHidden()) {
+        return;
+      }
+      lastRenderTimeMs = SystemClock.uptimeMillis();
+      render(snapshot);
+    }
+  };
+
+  private void render(final RtcStatsSnapshot snapshot) {
+    final RtcStatsSnapshot.OutboundRtp videoSend =
+        snapshot.findOutbound(RtcStatsSnapshot.MediaKind.VIDEO);
+    final RtcStatsSnapshot.InboundRtp videoRecv =
+        snapshot.findInbound(RtcStatsSnapshot.MediaKind.VIDEO);
+    final RtcStatsSnapshot.CandidatePair pair = snapshot.selectedCandidatePair;
+
+    // The detailed views are toggled by the debug button, skip formatting them while invisible.
+    if (hudViewBwe.getVisibility() == View.VISIBLE) {
+      renderVideoSend(videoSend);
+      renderVideoRecv(videoRecv);
+      renderBweAndConnection(pair, videoSend);
+    }
+
+    final HudText text = encoderText;
+    text.reset();
+    if (videoCallEnabled && videoSend != null) {
+      text.append(KEY_ENCODER_FPS).appendDouble(videoSend.framesPerSecond)
+          .append(KEY_FPS_RANGE).appendDouble(encoderFpsWindow.getMin())
+          .append('/').appendDouble(encoderFpsWindow.getMax()).newLine();
+      text.append(KEY_ENCODE_PERCENTILES);
+      appendPercentiles(text, encodeMsHistogram).newLine();
+      renderCapture(text);
+      text.append(KEY_TARGET_BR).appendBitrate(videoSend.targetBitrate).newLine();
+      if (statsTimeSeries != null) {
+        // The time series is updated before this is called.
+        text.append(KEY_ACTUAL_BR)
+            .appendBitrate(1000 * statsTimeSeries.getLatest(
+                StatsTimeSeries.Channel.SEND_BITRATE_KBPS))
+            .newLine();
+        text.append(KEY_AVERAGE_BR)
+            .appendBitrate(1000 * statsTimeSeries.average(StatsTimeSeries.Tier.SECOND,
+                StatsTimeSeries.Channel.SEND_BITRATE_KBPS, AVERAGE_BITRATE_WINDOW_MS))
+            .newLine();
+      }
+    }
+    if (cpuMonitor != null) {
+      text.append(KEY_CPU)
+          .appendLong(cpuMonitor.getCpuUsageCurrent())
+          .append('/')
+          .appendLong(cpuMonitor.getCpuUsageAverage())
+          .append(KEY_CPU_P95)
+          .appendLong(cpuMonitor.getCpuUsagePercentile(95))
+          .append(KEY_FREQ)
+          .appendLong(cpuMonitor.getFrequencyScaleAverage());
+      renderCpuBreakdown(text);
+    }
+    if (threadCpuMonitor != null) {
+      final int n = threadCpuMonitor.getTopThreads(topThreads);
+      if (n > 0) {
+        text.newLine().append(KEY_THREADS);
+        for (int i = 0; i < n; i++) {
+          text.append(' ').append(topThreads[i].name)
+              .append(' ').appendLong(Math.round(topThreads[i].usagePercent)).append('%');
         }
       }
     }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
+    if (memoryMonitor != null) {
+      renderMemory(text);
+    }
+    text.commit(encoderStatView);
+  }
+
+  /**
+   * Appends the frame rate and the frame interval jitter measured at the capturer before the
+   * encoder and the frames it dropped to keep the frame rate limit, e.g.
+   * "CapFps avg: 14.9 IntMs p50/95/99: 66.7/68.1/70.0 dropped 450", when it is a
+   * SurfaceVideoCapture that is capturing.
+   */
+  private void renderCapture(final HudText text) {
+    final SurfaceVideoCapture.Statistics statistics =
+        videoCapture != null ? videoCapture.getStatistics() : null;
+    if (statistics == null) {
+      return;
+    }
+    text.append(KEY_CAPTURE_FPS).appendDouble(statistics.getAverageFps())
+        .append(KEY_CAPTURE_INTERVALS)
+        .appendDouble(statistics.getFrameIntervalPercentileMs(50))
+        .append('/').appendDouble(statistics.getFrameIntervalPercentileMs(95))
+        .append('/').appendDouble(statistics.getFrameIntervalPercentileMs(99))
+        .append(KEY_CAPTURE_DROPPED).appendLong(statistics.getDroppedFrames())
+        .newLine();
+  }
+
+  /**
+   * Appends the memory usage in MB with the peak of the call, e.g.
+   * "Mem MB: heap 45/256 native 30 rss 210 peak 250 pss 180" and the GC count and time of
+   * the last sample, e.g. "GC: 2 35ms".
+   */
+  private void renderMemory(final HudText text) {
+    final double heapKb = memoryMonitor.getCurrent(MemoryMonitor.Metric.JAVA_HEAP_KB);
+    if (Double.isNaN(heapKb)) {
+      return;
+    }
+    text.newLine().append(KEY_MEMORY).appendLong(Math.round(heapKb / 1024))
+        .append('/').appendLong(memoryMonitor.getMaxHeapKb() / 1024)
+        .append(KEY_NATIVE).appendLong(Math.round(
+            memoryMonitor.getCurrent(MemoryMonitor.Metric.NATIVE_HEAP_KB) / 1024));
+    final double rssKb = memoryMonitor.getCurrent(MemoryMonitor.Metric.RSS_KB);
+    if (!Double.isNaN(rssKb)) {
+      text.append(KEY_RSS).appendLong(Math.round(rssKb / 1024))
+          .append(KEY_PEAK).appendLong(Math.round(
+              memoryMonitor.getPeak(MemoryMonitor.Metric.RSS_KB) / 1024));
+    }
+    final double pssKb = memoryMonitor.getCurrent(MemoryMonitor.Metric.PSS_KB);
+    if (!Double.isNaN(pssKb)) {
+      text.append(KEY_PSS).appendLong(Math.round(pssKb / 1024));
+    }
+    final double gcCount = memoryMonitor.getCurrent(MemoryMonitor.Metric.GC_COUNT);
+    if (!Double.isNaN(gcCount)) {
+      text.newLine().append(KEY_GC).appendLong(Math.round(gcCount)).append(' ')
+          .appendLong(Math.round(memoryMonitor.getCurrent(MemoryMonitor.Metric.GC_TIME_MS)))
+          .append(KEY_MS);
+    }
+  }
 
-    if (videoCallEnabled) {
-      if (fps != null) {
-        encoderStat.append("Fps:  ").append(fps).append("\n");
+  /**
+   * Appends the per-core usage and the usage@frequency of each cpufreq cluster, e.g.
+   * "Clusters: 0-3 95%@60% 4-7 10%@30%", since a saturated little cluster is hidden by the
+   * aggregate CPU usage.
+   */
+  private void renderCpuBreakdown(final HudText text) {
+    final int cores = cpuMonitor.getCoreCount();
+    if (cores > 1) {
+      text.newLine().append(KEY_CORES);
+      for (int i = 0; i < cores; i++) {
+        text.append(' ').appendLong(cpuMonitor.getCoreUsageCurrent(i));
       }
-      if (targetBitrate != null) {
-        encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+    }
+    final int clusters = cpuMonitor.getClusterCount();
+    if (clusters > 0) {
+      text.newLine().append(KEY_CLUSTERS);
+      for (int i = 0; i < clusters; i++) {
+        final int first = cpuMonitor.getClusterFirstCore(i);
+        text.append(' ').appendLong(first)
+            .append('-').appendLong(first + cpuMonitor.getClusterCoreCount(i) - 1)
+            .append(' ').appendLong(cpuMonitor.getClusterUsageCurrent(i))
+            .append('%').append('@').appendLong(cpuMonitor.getClusterFrequencyScale(i))
+            .append('%');
       }
-      if (actualBitrate != null) {
-        encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+    }
+  }
+
+  private void renderVideoSend(final RtcStatsSnapshot.OutboundRtp videoSend) {
+    final HudText text = videoSendText;
+    text.reset();
+    if (videoSend != null) {
+      text.append(KEY_SSRC).appendLong(videoSend.ssrc).append(KEY_SEND_SUFFIX).newLine()
+          .append(KEY_FPS).appendDouble(videoSend.framesPerSecond).newLine()
+          .append(KEY_FRAME_SIZE).appendLong(videoSend.frameWidth)
+          .append('x').appendLong(videoSend.frameHeight).newLine()
+          .append(KEY_FRAMES_ENCODED).appendLong(videoSend.framesEncoded).newLine()
+          .append(KEY_KEY_FRAMES_ENCODED).appendLong(videoSend.keyFramesEncoded).newLine()
+          .append(KEY_AVG_ENCODE_MS)
+          .appendDouble(perFrameMs(videoSend.totalEncodeTime, videoSend.framesEncoded)).newLine()
+          .append(KEY_QUALITY_LIMITATION).append(videoSend.qualityLimitationReason.name())
+          .newLine()
+          .append(KEY_PACKETS_SENT).appendLong(videoSend.packetsSent).newLine()
+          .append(KEY_RETRANSMITTED_PACKETS).appendLong(videoSend.retransmittedPacketsSent)
+          .newLine()
+          .append(KEY_NACK_PLI_FIR).appendLong(videoSend.nackCount)
+          .append('/').appendLong(videoSend.pliCount)
+          .append('/').appendLong(videoSend.firCount).newLine();
+    }
+    text.commit(hudViewVideoSend);
+  }
+
+  private void renderVideoRecv(final RtcStatsSnapshot.InboundRtp videoRecv) {
+    final HudText text = videoRecvText;
+    text.reset();
+    if (videoRecv != null) {
+      text.append(KEY_SSRC).appendLong(videoRecv.ssrc).append(KEY_RECV_SUFFIX).newLine()
+          .append(KEY_FPS).appendDouble(videoRecv.framesPerSecond).newLine()
+          .append(KEY_FRAME_SIZE).appendLong(videoRecv.frameWidth)
+          .append('x').appendLong(videoRecv.frameHeight).newLine()
+          .append(KEY_FRAMES_DECODED).appendLong(videoRecv.framesDecoded).newLine()
+          .append(KEY_FRAMES_DROPPED).appendLong(videoRecv.framesDropped).newLine()
+          .append(KEY_AVG_DECODE_MS)
+          .appendDouble(perFrameMs(videoRecv.totalDecodeTime, videoRecv.framesDecoded)).newLine()
+          .append(KEY_DECODE_PERCENTILES);
+      appendPercentiles(text, decodeMsHistogram).newLine()
+          .append(KEY_JITTER_BUFFER_MS)
+          .appendDouble(perFrameMs(videoRecv.jitterBufferDelay, videoRecv.jitterBufferEmittedCount))
+          .newLine()
+          .append(KEY_PACKETS_RECEIVED).appendLong(videoRecv.packetsReceived).newLine()
+          .append(KEY_PACKETS_LOST).appendLong(videoRecv.packetsLost).newLine()
+          .append(KEY_FREEZES).appendLong(videoRecv.freezeCount).newLine()
+          .append(KEY_NACK_PLI_FIR).appendLong(videoRecv.nackCount)
+          .append('/').appendLong(videoRecv.pliCount)
+          .append('/').appendLong(videoRecv.firCount).newLine();
+    }
+    text.commit(hudViewVideoRecv);
+  }
+
+  private void renderBweAndConnection(final RtcStatsSnapshot.CandidatePair pair,
+      final RtcStatsSnapshot.OutboundRtp videoSend) {
+    bweText.reset();
+    connectionText.reset();
+    if (pair != null) {
+      bweText.append(KEY_BWE).newLine()
+          .append(KEY_SEND_BANDWIDTH).appendBitrate(pair.availableOutgoingBitrate).newLine()
+          .append(KEY_RECEIVE_BANDWIDTH).appendBitrate(pair.availableIncomingBitrate).newLine();
+      if (videoSend != null) {
+        bweText.append(KEY_TARGET_ENC_BITRATE).appendBitrate(videoSend.targetBitrate).newLine();
       }
+      connectionText.append(KEY_CANDIDATE_PAIR).newLine()
+          .append(KEY_LOCAL_CANDIDATE_TYPE).append(pair.localCandidateType.name()).newLine()
+          .append(KEY_REMOTE_CANDIDATE_TYPE).append(pair.remoteCandidateType.name()).newLine()
+          .append(KEY_RTT).appendDouble(pair.currentRoundTripTime * 1000).append(KEY_MS).newLine()
+          .append(KEY_BYTES_SENT).appendLong(pair.bytesSent).newLine()
+          .append(KEY_BYTES_RECEIVED).appendLong(pair.bytesReceived).newLine()
+          .append(KEY_PACKETS_SENT).appendLong(pair.packetsSent).newLine()
+          .append(KEY_PACKETS_RECEIVED).appendLong(pair.packetsReceived).newLine();
     }
+    bweText.commit(hudViewBwe);
+    connectionText.commit(hudViewConnection);
+  }
 
-    if (cpuMonitor != null) {
-      encoderStat.append("CPU%: ")
-          .append(cpuMonitor.getCpuUsageCurrent())
-          .append("/")
-          .append(cpuMonitor.getCpuUsageAverage())
-          .append(". Freq: ")
-          .append(cpuMonitor.getFrequencyScaleAverage());
-    }
-    encoderStatView.setText(encoderStat.toString());
+  private static double perFrameMs(double totalSeconds, long count) {
+    return count > 0 ? totalSeconds * 1000 / count : Double.NaN;
+  }
+
+  private static HudText appendPercentiles(HudText text, LogLinearHistogram histogram) {
+    return text.appendDouble(histogram.getPercentile(50))
+        .append('/').appendDouble(histogram.getPercentile(95))
+        .append('/').appendDouble(histogram.getPercentile(99));
+  }
+
+  /**
+   * Reusable text buffer for one TextView. Numbers are formatted directly into the char buffer
+   * and the text is only set to the view when it differs from the text currently shown.
+   * Two buffers are used alternately because TextView#setText(char[], int, int) keeps a
+   * reference to the given array instead of copying it.
+   */
+  private static class HudText {
+    private char[] front = new char[256];
+    private char[] back = new char[256];
+    private int frontLength = -1;
+    private int length;
+
+    void reset() {
+      length = 0;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (length + extra > back.length) {
+        back = Arrays.copyOf(back, Math.max(back.length * 2, length + extra));
+      }
+    }
+
+    HudText append(char c) {
+      ensureCapacity(1);
+      back[length++] = c;
+      return this;
+    }
+
+    HudText append(char[] chars) {
+      ensureCapacity(chars.length);
+      System.arraycopy(chars, 0, back, length, chars.length);
+      length += chars.length;
+      return this;
+    }
+
+    HudText append(String str) {
+      final int n = str.length();
+      ensureCapacity(n);
+      str.getChars(0, n, back, length);
+      length += n;
+      return this;
+    }
+
+    HudText newLine() {
+      return append('\n');
+    }
+
+    HudText appendLong(long value) {
+      if (value < 0) {
+        // Negative values are used for missing statistics.
+        return append('-');
+      }
+      // Long.MAX_VALUE has 19 digits.
+      ensureCapacity(19);
+      final int start = length;
+      do {
+        back[length++] = (char) ('0' + (value % 10));
+        value /= 10;
+      } while (value > 0);
+      // Digits were written in reverse order.
+      for (int i = start, j = length - 1; i < j; i++, j--) {
+        final char c = back[i];
+        back[i] = back[j];
+        back[j] = c;
+      }
+      return this;
+    }
+
+    /**
+     * Appends the value with one decimal digit.
+     */
+    HudText appendDouble(double value) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        return append('-');
+      }
+      if (value < 0) {
+        append('-');
+        value = -value;
+      }
+      final long tenths = Math.round(value * 10);
+      return appendLong(tenths / 10).append('.').append((char) ('0' + (tenths % 10)));
+    }
+
+    HudText appendBitrate(double bps) {
+      if (Double.isNaN(bps) || bps < 0) {
+        return append('-');
+      }
+      return appendLong(Math.round(bps / 1000)).append(KEY_KBPS);
+    }
+
+    /**
+     * Sets the text to the view if it was changed since the last commit.
+     */
+    void commit(TextView view) {
+      if (length == frontLength && equals(front, back, length)) {
+        return;
+      }
+      view.setText(back, 0, length);
+      final char[] tmp = front;
+      front = back;
+      frontLength = length;
+      // The other buffer is no longer referenced by the view.
+      back = tmp;
+    }
+
+    private static boolean equals(char[] a, char[] b, int length) {
+      for (int i = 0; i < length; i++) {
+        if (a[i] != b[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
   }
 }
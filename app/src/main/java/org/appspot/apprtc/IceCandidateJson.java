@@ -0,0 +1,88 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.IceCandidate;
+
+import androidx.annotation.NonNull;
+
+/**
+ * WebSocketRTCClientとDirectRTCClientで共通のICE candidateのJSON変換
+ */
+final class IceCandidateJson {
+	private IceCandidateJson() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * ICE candidateをJSONObjectへ変換する
+	 * @param candidate
+	 * @return
+	 */
+	@NonNull
+	static JSONObject toJson(@NonNull final IceCandidate candidate) {
+		final JSONObject json = new JSONObject();
+		put(json, "label", candidate.sdpMLineIndex);
+		put(json, "id", candidate.sdpMid);
+		put(json, "candidate", candidate.sdp);
+		return json;
+	}
+
+	/**
+	 * 送信用のメッセージ文字列を生成する
+	 * ICE candidateが1つならtype="candidate"のメッセージ、
+	 * 複数ならバッチウインドウ内に集めたcandidateをまとめたtype="candidates"のメッセージにする
+	 * @param candidates
+	 * @return
+	 */
+	@NonNull
+	static String toMessage(@NonNull final IceCandidate[] candidates) {
+		final JSONObject json;
+		if (candidates.length == 1) {
+			json = toJson(candidates[0]);
+			put(json, "type", "candidate");
+		} else {
+			json = new JSONObject();
+			put(json, "type", "candidates");
+			final JSONArray jsonArray = new JSONArray();
+			for (final IceCandidate candidate: candidates) {
+				jsonArray.put(toJson(candidate));
+			}
+			put(json, "candidates", jsonArray);
+		}
+		return json.toString();
+	}
+
+	/**
+	 * JSONObjectをICE candidateへ変換する
+	 * @param json
+	 * @return
+	 * @throws JSONException
+	 */
+	@NonNull
+	static IceCandidate fromJson(@NonNull final JSONObject json) throws JSONException {
+		return new IceCandidate(
+			json.getString("id"), json.getInt("label"), json.getString("candidate"));
+	}
+
+	private static void put(
+		@NonNull final JSONObject json,
+		@NonNull final String key, final Object value) {
+
+		try {
+			json.put(key, value);
+		} catch (final JSONException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
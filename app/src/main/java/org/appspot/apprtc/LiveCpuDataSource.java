@@ -0,0 +1,76 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+import java.lang.ref.WeakReference;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 端末上の/procとsysfsのファイルを直接読み込むCpuDataSource実装
+ * Contextを渡さなければバッテリー残量は取得しない
+ */
+public class LiveCpuDataSource implements CpuDataSource {
+	/**
+	 * Should not hold strong reference of (app) context!!
+	 */
+	@Nullable
+	private final WeakReference<Context> mWeakAppContext;
+
+	/**
+	 * コンストラクタ
+	 * @param context nullならバッテリー残量は取得しない
+	 */
+	public LiveCpuDataSource(@Nullable final Context context) {
+		mWeakAppContext = context != null
+			? new WeakReference<>(context.getApplicationContext()) : null;
+	}
+
+	@NonNull
+	@Override
+	public ProcFileReader open(@NonNull final String path, final int initialCapacity) {
+		return new ProcFileReader(path, initialCapacity);
+	}
+
+	@Override
+	public int getBatteryLevel() {
+		final Context appContext = mWeakAppContext != null ? mWeakAppContext.get() : null;
+		if (appContext == null) {
+			return -1;
+		}
+		// BatteryManagerのプロパティを読む方がstickyなインテントを毎回受け取るより軽い
+		int batteryLevel = 0;
+		final BatteryManager manager
+			= (BatteryManager) appContext.getSystemService(Context.BATTERY_SERVICE);
+		if (manager != null) {
+			batteryLevel = manager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+		}
+		if (batteryLevel <= 0) {
+			// 取得できない端末ではsticky broadcastから読む
+			final Intent intent = appContext.registerReceiver(
+				null /* receiver */, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+			batteryLevel = -1;
+			if (intent != null) {
+				int batteryScale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+				if (batteryScale > 0) {
+					batteryLevel =
+						(int) (100f * intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0) / batteryScale);
+				}
+			}
+		}
+		return batteryLevel;
+	}
+}
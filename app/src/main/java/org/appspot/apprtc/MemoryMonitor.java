@@ -0,0 +1,464 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 自プロセスのメモリー使用量とGCの状況を定期的に取得するクラス
+ * ・Javaヒープ(Runtime)とネイティブヒープ(Debug#getNativeHeapAllocatedSize)
+ * ・GCの回数と時間(Debug#getRuntimeStat, API23以降)
+ * ・RSS(/proc/self/status)とPSS(/proc/self/smaps_rollup)
+ * 各値の移動平均と通話中のピークを保持し、通話毎の時系列をCSVとして書き出せる
+ * VideoFrame/TextureBufferのリークや長時間の通話によるメモリー不足での強制終了を
+ * 調査するために使う
+ */
+public class MemoryMonitor {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = MemoryMonitor.class.getSimpleName();
+
+	/**
+	 * 取得する値
+	 */
+	public enum Metric {
+		/** Javaヒープの使用量[kB] */
+		JAVA_HEAP_KB,
+		/** ネイティブヒープの使用量[kB] */
+		NATIVE_HEAP_KB,
+		/** 物理メモリーの使用量[kB] */
+		RSS_KB,
+		/** 共有分を按分した物理メモリーの使用量[kB], PSS_SAMPLE_INTERVAL回毎に更新する */
+		PSS_KB,
+		/** 前回からのGCの回数 */
+		GC_COUNT,
+		/** 前回からのGCの時間[ミリ秒] */
+		GC_TIME_MS,
+		/** 前回からの呼び出したスレッドを止めたGCの時間[ミリ秒] */
+		BLOCKING_GC_TIME_MS,
+	}
+
+	private static final Metric[] METRICS = Metric.values();
+	private static final int NUM_METRICS = METRICS.length;
+	/**
+	 * 取得を行うスレッドの名前
+	 */
+	private static final String THREAD_NAME = "MemoryMonitor";
+	private static final String STATUS_PATH = "/proc/self/status";
+	private static final String SMAPS_ROLLUP_PATH = "/proc/self/smaps_rollup";
+	private static final int STATUS_BUFFER_SIZE = 2048;
+	private static final int SMAPS_ROLLUP_BUFFER_SIZE = 1024;
+	/**
+	 * smaps_rollupの読み込みはカーネルが全てのメモリー領域を走査するので間引く
+	 */
+	private static final int PSS_SAMPLE_INTERVAL = 6;
+	private static final int MOVING_AVERAGE_SAMPLES = 6;
+	/**
+	 * 保持するサンプル数, 5秒間隔なら4時間分, 超えれば古いものから上書きする
+	 */
+	private static final int MAX_SAMPLES = 2880;
+	/**
+	 * Javaヒープの使用量が最大値に対してこの割合を超えたら警告をログへ出力する
+	 */
+	private static final double HEAP_WARNING_RATIO = 0.9;
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final ProcFileReader mStatusReader
+		= new ProcFileReader(STATUS_PATH, STATUS_BUFFER_SIZE);
+	@NonNull
+	private final ProcFileReader mSmapsRollupReader
+		= new ProcFileReader(SMAPS_ROLLUP_PATH, SMAPS_ROLLUP_BUFFER_SIZE);
+	private final boolean mHasSmapsRollup = new File(SMAPS_ROLLUP_PATH).exists();
+	private final long mStartMs = SystemClock.elapsedRealtime();
+	private final long mMaxHeapKb = Runtime.getRuntime().maxMemory() / 1024;
+	/**
+	 * サンプル毎の時刻と値のリングバッファ
+	 */
+	@NonNull
+	private final long[] mTimestamps = new long[MAX_SAMPLES];
+	@NonNull
+	private final double[][] mValues = new double[NUM_METRICS][MAX_SAMPLES];
+	private int mHead;
+	private int mSize;
+	@NonNull
+	private final double[] mCurrent = new double[NUM_METRICS];
+	@NonNull
+	private final double[] mPeak = new double[NUM_METRICS];
+	@NonNull
+	private final double[] mSum = new double[NUM_METRICS];
+	@NonNull
+	private final int[] mCount = new int[NUM_METRICS];
+	@Nullable
+	private ScheduledExecutorService mExecutor;
+	@Nullable
+	private ScheduledFuture<?> mFuture;
+	private int mSampleCount;
+	private long mLastGcCount = -1;
+	private long mLastGcTimeMs = -1;
+	private long mLastBlockingGcTimeMs = -1;
+	private boolean mHeapWarned;
+
+	/**
+	 * コンストラクタ
+	 */
+	public MemoryMonitor() {
+		for (int i = 0; i < NUM_METRICS; i++) {
+			mCurrent[i] = mPeak[i] = Double.NaN;
+		}
+	}
+
+	/**
+	 * 定期的な取得を開始する, 既に開始していれば取得間隔を変更する
+	 * @param periodMs
+	 */
+	public void start(final long periodMs) {
+		synchronized (mSync) {
+			if (mExecutor == null) {
+				mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(@NonNull final Runnable r) {
+						return new Thread(r, THREAD_NAME);
+					}
+				});
+			}
+			if (mFuture != null) {
+				mFuture.cancel(false);
+			}
+			mFuture = mExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					sample();
+				}
+			}, 0, periodMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 定期的な取得を終了する, 再度startすれば再開できる
+	 */
+	public void stop() {
+		synchronized (mSync) {
+			if (mFuture != null) {
+				mFuture.cancel(false);
+				mFuture = null;
+			}
+			if (mExecutor != null) {
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * 取得を終了して開いているファイルを閉じる, 取得済みの値は保持する
+	 */
+	public void release() {
+		stop();
+		synchronized (mSync) {
+			mStatusReader.close();
+			mSmapsRollupReader.close();
+		}
+	}
+
+	/**
+	 * メモリー使用量とGCの状況を取得する
+	 * 通常はstartで開始したスレッドから呼ばれる
+	 */
+	public void sample() {
+		final Runtime runtime = Runtime.getRuntime();
+		final long javaHeapKb = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+		final long nativeHeapKb = Debug.getNativeHeapAllocatedSize() / 1024;
+		// Debug#getRuntimeStatはStringを返すのでGCの値だけはサンプリング毎に生成される
+		final long gcCount = getRuntimeStat("art.gc.gc-count");
+		final long gcTimeMs = getRuntimeStat("art.gc.gc-time");
+		final long blockingGcTimeMs = getRuntimeStat("art.gc.blocking-gc-time");
+		synchronized (mSync) {
+			final boolean samplePss = (mSampleCount % PSS_SAMPLE_INTERVAL) == 0;
+			mSampleCount++;
+			mCurrent[Metric.JAVA_HEAP_KB.ordinal()] = javaHeapKb;
+			mCurrent[Metric.NATIVE_HEAP_KB.ordinal()] = nativeHeapKb;
+			mCurrent[Metric.RSS_KB.ordinal()] = toValue(readStatus("VmRSS:"));
+			if (samplePss) {
+				mCurrent[Metric.PSS_KB.ordinal()] = toValue(readPss());
+			}
+			mCurrent[Metric.GC_COUNT.ordinal()] = delta(gcCount, mLastGcCount);
+			mCurrent[Metric.GC_TIME_MS.ordinal()] = delta(gcTimeMs, mLastGcTimeMs);
+			mCurrent[Metric.BLOCKING_GC_TIME_MS.ordinal()]
+				= delta(blockingGcTimeMs, mLastBlockingGcTimeMs);
+			mLastGcCount = gcCount;
+			mLastGcTimeMs = gcTimeMs;
+			mLastBlockingGcTimeMs = blockingGcTimeMs;
+			add(SystemClock.elapsedRealtime() - mStartMs);
+		}
+		// 最大値に近付いた時に一度だけログへ出力する
+		final boolean nearLimit = javaHeapKb > mMaxHeapKb * HEAP_WARNING_RATIO;
+		if (nearLimit && !mHeapWarned) {
+			Log.w(TAG, "Java heap is close to the limit: " + getSummary());
+		}
+		mHeapWarned = nearLimit;
+		if (DEBUG) Log.v(TAG, "sample:" + getSummary());
+	}
+
+	/**
+	 * 最新の値
+	 * @param metric
+	 * @return 取得できていなければNaN
+	 */
+	public double getCurrent(@NonNull final Metric metric) {
+		synchronized (mSync) {
+			return mCurrent[metric.ordinal()];
+		}
+	}
+
+	/**
+	 * 直近MOVING_AVERAGE_SAMPLES回の移動平均
+	 * @param metric
+	 * @return 値が無ければNaN
+	 */
+	public double getAverage(@NonNull final Metric metric) {
+		synchronized (mSync) {
+			final int ch = metric.ordinal();
+			final int n = Math.min(mSize, MOVING_AVERAGE_SAMPLES);
+			double sum = 0;
+			int count = 0;
+			for (int i = 1; i <= n; i++) {
+				final double v = mValues[ch][(mHead - i + MAX_SAMPLES) % MAX_SAMPLES];
+				if (!Double.isNaN(v)) {
+					sum += v;
+					count++;
+				}
+			}
+			return count > 0 ? sum / count : Double.NaN;
+		}
+	}
+
+	/**
+	 * 開始からの最大値
+	 * @param metric
+	 * @return 値が無ければNaN
+	 */
+	public double getPeak(@NonNull final Metric metric) {
+		synchronized (mSync) {
+			return mPeak[metric.ordinal()];
+		}
+	}
+
+	/**
+	 * Javaヒープの最大サイズ
+	 * @return [kB]
+	 */
+	public long getMaxHeapKb() {
+		return mMaxHeapKb;
+	}
+
+	/**
+	 * ログ出力用に最新の値とピークを文字列として取得
+	 * @return
+	 */
+	@NonNull
+	public String getSummary() {
+		final StringBuilder sb = new StringBuilder();
+		synchronized (mSync) {
+			for (final Metric metric: METRICS) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				final int ch = metric.ordinal();
+				sb.append(metric.name().toLowerCase(Locale.US)).append('=');
+				appendValue(sb, mCurrent[ch]);
+				sb.append('/');
+				appendValue(sb, mPeak[ch]);
+			}
+		}
+		return sb.append(", max_heap_kb=").append(mMaxHeapKb).toString();
+	}
+
+	/**
+	 * 全サンプルをCSV文字列として取得
+	 * 1行目はヘッダー(timestamp_ms, 各値の名前)
+	 * @return
+	 */
+	@NonNull
+	public String toCsv() {
+		final StringBuilder sb = new StringBuilder(4096);
+		sb.append("timestamp_ms");
+		for (final Metric metric: METRICS) {
+			sb.append(',').append(metric.name().toLowerCase(Locale.US));
+		}
+		sb.append('\n');
+		synchronized (mSync) {
+			int ix = (mHead - mSize + MAX_SAMPLES) % MAX_SAMPLES;
+			for (int i = 0; i < mSize; i++) {
+				sb.append(mTimestamps[ix]);
+				for (int ch = 0; ch < NUM_METRICS; ch++) {
+					sb.append(',');
+					appendValue(sb, mValues[ch][ix]);
+				}
+				sb.append('\n');
+				ix = (ix + 1) % MAX_SAMPLES;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 通話全体の平均とピークをCSV文字列として取得
+	 * 1行目はヘッダー(metric, average, peak)
+	 * @return
+	 */
+	@NonNull
+	public String toSummaryCsv() {
+		final StringBuilder sb = new StringBuilder(512);
+		sb.append("metric,average,peak\n");
+		synchronized (mSync) {
+			for (final Metric metric: METRICS) {
+				final int ch = metric.ordinal();
+				sb.append(metric.name().toLowerCase(Locale.US)).append(',');
+				appendValue(sb, mCount[ch] > 0 ? mSum[ch] / mCount[ch] : Double.NaN);
+				sb.append(',');
+				appendValue(sb, mPeak[ch]);
+				sb.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 時系列と平均/ピークを指定したディレクトリへmemory.csvとmemory_summary.csvとして書き出す
+	 * ファイルアクセスするのでUIスレッド以外から呼ぶこと
+	 * @param dir
+	 * @throws IOException
+	 */
+	public void export(@NonNull final File dir) throws IOException {
+		write(new File(dir, "memory.csv"), toCsv());
+		write(new File(dir, "memory_summary.csv"), toSummaryCsv());
+	}
+
+	private static void write(@NonNull final File file, @NonNull final String csv)
+		throws IOException {
+
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(csv.getBytes(CharsetsUtils.UTF8));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * mCurrentの値をリングバッファへ追加してピークと合計を更新する, mSyncをロックして呼ぶこと
+	 */
+	private void add(final long timestampMs) {
+		mTimestamps[mHead] = timestampMs;
+		for (int ch = 0; ch < NUM_METRICS; ch++) {
+			final double v = mCurrent[ch];
+			mValues[ch][mHead] = v;
+			if (!Double.isNaN(v)) {
+				mSum[ch] += v;
+				mCount[ch]++;
+				if (Double.isNaN(mPeak[ch]) || (v > mPeak[ch])) {
+					mPeak[ch] = v;
+				}
+			}
+		}
+		mHead = (mHead + 1) % MAX_SAMPLES;
+		if (mSize < MAX_SAMPLES) {
+			mSize++;
+		}
+	}
+
+	/**
+	 * /proc/self/statusから指定した項目の値を読み込む, mSyncをロックして呼ぶこと
+	 * @param key "VmRSS:"等
+	 * @return [kB], 読み込めなければ-1
+	 */
+	private long readStatus(@NonNull final String key) {
+		if (mStatusReader.read()) {
+			do {
+				if (mStatusReader.startsWith(key)) {
+					return mStatusReader.nextLong();
+				}
+			} while (mStatusReader.nextLine());
+		}
+		return -1;
+	}
+
+	/**
+	 * PSSを読み込む, smaps_rollupが無い古いカーネルではDebug#getPssを使う
+	 * mSyncをロックして呼ぶこと
+	 * @return [kB], 読み込めなければ-1
+	 */
+	private long readPss() {
+		if (!mHasSmapsRollup) {
+			return Debug.getPss();
+		}
+		if (mSmapsRollupReader.read()) {
+			do {
+				if (mSmapsRollupReader.startsWith("Pss:")) {
+					return mSmapsRollupReader.nextLong();
+				}
+			} while (mSmapsRollupReader.nextLine());
+		}
+		return -1;
+	}
+
+	/**
+	 * ARTのGCの統計値を取得する
+	 * @param name
+	 * @return 取得できなければ-1
+	 */
+	private static long getRuntimeStat(@NonNull final String name) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			final String value = Debug.getRuntimeStat(name);
+			if (value != null) {
+				try {
+					return Long.parseLong(value);
+				} catch (final NumberFormatException e) {
+					if (DEBUG) Log.w(TAG, e);
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static double delta(final long value, final long last) {
+		return (value >= 0) && (last >= 0) ? value - last : Double.NaN;
+	}
+
+	private static double toValue(final long value) {
+		return value >= 0 ? value : Double.NaN;
+	}
+
+	private static void appendValue(@NonNull final StringBuilder sb, final double value) {
+		if (!Double.isNaN(value)) {
+			sb.append(Math.round(value * 100) / 100.0);
+		}
+	}
+}
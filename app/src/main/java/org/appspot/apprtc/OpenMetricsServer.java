@@ -0,0 +1,502 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.util.Log;
+
+import com.serenegiant.webrtc.SurfaceVideoCapture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 通話中のメトリクスをOpenMetrics(Prometheus)のテキスト形式で提供するHTTPサーバー
+ * GET /metrics へのリクエストに対して、最後に受け取ったDerivedMetricsの値と
+ * CpuMonitorのCPU使用率/周波数、ICEの接続状態、PeerConnectionClientのexecutorの
+ * キューの長さ、SurfaceVideoCaptureがフレームレートの上限に合わせて間引いたフレーム数
+ * (カウンター)を返す
+ * スクレイプ時の処理は専用の1スレッドで順番に行い、レスポンスは生成時に確保した
+ * バッファへ直接書き込むので、スクレイプがメディア処理のスレッドを邪魔することはない
+ */
+public class OpenMetricsServer {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = OpenMetricsServer.class.getSimpleName();
+
+	private static final String METRICS_PATH = "/metrics";
+	private static final int SOCKET_TIMEOUT_MS = 2000;
+	private static final int MAX_REQUEST_BYTES = 4096;
+
+	/**
+	 * 提供するゲージとカウンター
+	 */
+	private enum Gauge {
+		SEND_BITRATE("apprtc_send_bitrate_bps", "Send bitrate of the primary outbound stream."),
+		RECV_BITRATE("apprtc_recv_bitrate_bps", "Receive bitrate of the primary inbound stream."),
+		SEND_FPS("apprtc_send_fps", "Encoded frames per second."),
+		RECV_FPS("apprtc_recv_fps", "Decoded frames per second."),
+		RTT("apprtc_rtt_seconds", "Round trip time of the selected candidate pair."),
+		PACKET_LOSS("apprtc_packet_loss_ratio", "Packet loss ratio of the primary inbound stream."),
+		CPU_USAGE("apprtc_cpu_usage_ratio", "CPU usage from CpuMonitor."),
+		CPU_FREQUENCY_SCALE("apprtc_cpu_frequency_scale_ratio",
+			"Average CPU frequency relative to the maximum from CpuMonitor."),
+		EXECUTOR_QUEUE_DEPTH("apprtc_executor_queue_depth",
+			"Number of tasks waiting on the PeerConnectionClient executor."),
+		CAPTURE_DROPPED_FRAMES("apprtc_capture_dropped_frames", true,
+			"Frames dropped by the capturer to keep its frame rate limit since the capture started.");
+
+		/**
+		 * カウンターならtrue, サンプル名は"_total"で終わり、値が無い時はサンプルを書き込まない
+		 */
+		final boolean counter;
+		final byte[] header;
+		final byte[] sample;
+
+		Gauge(@NonNull final String name, @NonNull final String help) {
+			this(name, false, help);
+		}
+
+		Gauge(@NonNull final String name, final boolean counter, @NonNull final String help) {
+			this.counter = counter;
+			header = ascii("# TYPE " + name + (counter ? " counter" : " gauge")
+				+ "\n# HELP " + name + " " + help + "\n");
+			sample = ascii(name + (counter ? "_total " : " "));
+		}
+	}
+
+	private static final Gauge[] GAUGES = Gauge.values();
+
+	/**
+	 * ICEの接続状態, PeerConnection.IceConnectionStateと同じ名前
+	 */
+	private static final String[] ICE_STATES = {
+		"NEW", "CHECKING", "CONNECTED", "COMPLETED", "FAILED", "DISCONNECTED", "CLOSED",
+	};
+	private static final byte[] ICE_STATE_HEADER = ascii(
+		"# TYPE apprtc_ice_connection_state stateset\n"
+		+ "# HELP apprtc_ice_connection_state ICE connection state of the peer connection.\n");
+	private static final byte[][] ICE_STATE_SAMPLES = new byte[ICE_STATES.length][];
+	static {
+		for (int i = 0; i < ICE_STATES.length; i++) {
+			ICE_STATE_SAMPLES[i] = ascii("apprtc_ice_connection_state{apprtc_ice_connection_state=\""
+				+ ICE_STATES[i] + "\"} ");
+		}
+	}
+	private static final byte[] EOF = ascii("# EOF\n");
+	private static final byte[] NAN = ascii("NaN");
+	private static final byte[] RESPONSE_OK = ascii("HTTP/1.1 200 OK\r\n"
+		+ "Content-Type: application/openmetrics-text; version=1.0.0; charset=utf-8\r\n"
+		+ "Connection: close\r\n"
+		+ "Content-Length: ");
+	private static final byte[] RESPONSE_NOT_FOUND = ascii("HTTP/1.1 404 Not Found\r\n"
+		+ "Connection: close\r\n"
+		+ "Content-Length: 0\r\n\r\n");
+	private static final byte[] CRLF_CRLF = ascii("\r\n\r\n");
+
+	@NonNull
+	private final Object mSync = new Object();
+	private final int mPort;
+	private final boolean mBindAll;
+	/**
+	 * 最新のゲージの値, Gauge#ordinalをインデックスとする, mSyncで保護する
+	 */
+	@NonNull
+	private final double[] mValues = new double[GAUGES.length];
+	/**
+	 * レスポンス生成時にmValuesをコピーする作業用配列, サーバースレッドでのみアクセスする
+	 */
+	@NonNull
+	private final double[] mRenderValues = new double[GAUGES.length];
+	@NonNull
+	private final byte[] mRequest = new byte[MAX_REQUEST_BYTES];
+	@NonNull
+	private byte[] mBody = new byte[4096];
+	private int mBodyLength;
+	@NonNull
+	private final byte[] mHeader = new byte[RESPONSE_OK.length + 32];
+	@Nullable
+	private CpuMonitor mCpuMonitor;
+	@Nullable
+	private PeerConnectionClient mPeerConnectionClient;
+	@Nullable
+	private SurfaceVideoCapture mVideoCapture;
+	@Nullable
+	private ServerSocket mServerSocket;
+	@Nullable
+	private Thread mThread;
+
+	/**
+	 * コンストラクタ
+	 * @param port 待ち受けるポート番号
+	 * @param bindAll trueなら全てのインターフェース(LAN)で、falseならループバックアドレスだけで待ち受ける
+	 */
+	public OpenMetricsServer(final int port, final boolean bindAll) {
+		mPort = port;
+		mBindAll = bindAll;
+		Arrays.fill(mValues, Double.NaN);
+	}
+
+	/**
+	 * 待ち受けを開始する, ソケットの生成はサーバースレッドで行う
+	 */
+	public void start() {
+		synchronized (mSync) {
+			if (mThread != null) {
+				return;
+			}
+			mThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve();
+				}
+			}, TAG);
+			mThread.start();
+		}
+	}
+
+	/**
+	 * 待ち受けを終了する
+	 */
+	public void stop() {
+		final ServerSocket serverSocket;
+		synchronized (mSync) {
+			serverSocket = mServerSocket;
+			mServerSocket = null;
+			mThread = null;
+			mCpuMonitor = null;
+			mPeerConnectionClient = null;
+		}
+		closeQuietly(serverSocket);
+	}
+
+	/**
+	 * CPU使用率を取得するCpuMonitorをセット
+	 * @param cpuMonitor
+	 */
+	public void setCpuMonitor(@Nullable final CpuMonitor cpuMonitor) {
+		synchronized (mSync) {
+			mCpuMonitor = cpuMonitor;
+		}
+	}
+
+	/**
+	 * ICEの接続状態を取得するPeerConnectionClientをセット
+	 * @param client
+	 */
+	public void setPeerConnectionClient(@Nullable final PeerConnectionClient client) {
+		synchronized (mSync) {
+			mPeerConnectionClient = client;
+		}
+	}
+
+	/**
+	 * 間引いたフレーム数を取得するSurfaceVideoCaptureをセット
+	 * @param capture
+	 */
+	public void setVideoCapture(@Nullable final SurfaceVideoCapture capture) {
+		synchronized (mSync) {
+			mVideoCapture = capture;
+		}
+	}
+
+	/**
+	 * 最新のメトリクスをセット, 値をコピーするだけなので任意のスレッドから呼び出して良い
+	 * @param metrics
+	 */
+	public void update(@NonNull final DerivedMetrics metrics) {
+		final DerivedMetrics.StreamMetrics send = metrics.primaryOutbound();
+		final DerivedMetrics.StreamMetrics recv = metrics.primaryInbound();
+		synchronized (mSync) {
+			mValues[Gauge.SEND_BITRATE.ordinal()] = send != null ? send.bitrateBps : Double.NaN;
+			mValues[Gauge.SEND_FPS.ordinal()] = send != null ? send.framesPerSecond : Double.NaN;
+			mValues[Gauge.RECV_BITRATE.ordinal()] = recv != null ? recv.bitrateBps : Double.NaN;
+			mValues[Gauge.RECV_FPS.ordinal()] = recv != null ? recv.framesPerSecond : Double.NaN;
+			mValues[Gauge.PACKET_LOSS.ordinal()]
+				= recv != null ? recv.packetLossPercent / 100 : Double.NaN;
+			mValues[Gauge.RTT.ordinal()] = metrics.rttMs / 1000;
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * サーバースレッドの処理, 接続を1つずつ順番に処理する
+	 */
+	private void serve() {
+		final ServerSocket serverSocket;
+		try {
+			final InetAddress address = mBindAll ? null : InetAddress.getLoopbackAddress();
+			serverSocket = new ServerSocket(mPort, 4, address);
+		} catch (final IOException e) {
+			Log.e(TAG, "Failed to listen on port " + mPort, e);
+			return;
+		}
+		synchronized (mSync) {
+			if (mThread != Thread.currentThread()) {
+				// 既にstopが呼ばれている
+				closeQuietly(serverSocket);
+				return;
+			}
+			mServerSocket = serverSocket;
+		}
+		Log.i(TAG, "Serving metrics on port " + mPort + (mBindAll ? "" : " (loopback only)"));
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				try {
+					socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+					handle(socket);
+				} catch (final IOException e) {
+					if (DEBUG) Log.w(TAG, "Failed to handle request", e);
+				} finally {
+					closeQuietly(socket);
+				}
+			} catch (final SocketException e) {
+				if (!serverSocket.isClosed()) {
+					// stop以外の理由で待ち受けできなくなった
+					Log.w(TAG, "Failed to accept, stop serving metrics", e);
+				}
+				break;
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+		synchronized (mSync) {
+			if (mThread == Thread.currentThread()) {
+				// stopが呼ばれずに終了した時は再度startできるようにする
+				mServerSocket = null;
+				mThread = null;
+			}
+		}
+		closeQuietly(serverSocket);
+		Log.i(TAG, "Stopped serving metrics on port " + mPort);
+	}
+
+	private void handle(@NonNull final Socket socket) throws IOException {
+		final int length = readRequestHead(socket.getInputStream());
+		final OutputStream out = socket.getOutputStream();
+		if (isMetricsRequest(length)) {
+			render();
+			final int headerLength = writeHeader(mBodyLength);
+			out.write(mHeader, 0, headerLength);
+			out.write(mBody, 0, mBodyLength);
+		} else {
+			out.write(RESPONSE_NOT_FOUND);
+		}
+		out.flush();
+	}
+
+	/**
+	 * リクエストヘッダーの終わり(空行)までをmRequestへ読み込む
+	 * @param in
+	 * @return 読み込んだバイト数
+	 * @throws IOException
+	 */
+	private int readRequestHead(@NonNull final InputStream in) throws IOException {
+		int length = 0;
+		while (length < mRequest.length) {
+			final int n = in.read(mRequest, length, mRequest.length - length);
+			if (n < 0) {
+				break;
+			}
+			length += n;
+			if (indexOf(mRequest, length, CRLF_CRLF) >= 0) {
+				break;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * リクエスト行が"GET /metrics"かどうか
+	 * @param length
+	 * @return
+	 */
+	private boolean isMetricsRequest(final int length) {
+		final String prefix = "GET " + METRICS_PATH;
+		if (length < prefix.length() + 1) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (mRequest[i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		final byte next = mRequest[prefix.length()];
+		return (next == ' ') || (next == '?');
+	}
+
+	/**
+	 * 現在の値からレスポンスボディをmBodyへ書き込む
+	 */
+	private void render() {
+		final CpuMonitor cpuMonitor;
+		final PeerConnectionClient client;
+		final SurfaceVideoCapture capture;
+		synchronized (mSync) {
+			System.arraycopy(mValues, 0, mRenderValues, 0, mValues.length);
+			cpuMonitor = mCpuMonitor;
+			client = mPeerConnectionClient;
+			capture = mVideoCapture;
+		}
+		if (cpuMonitor != null) {
+			mRenderValues[Gauge.CPU_USAGE.ordinal()] = cpuMonitor.getCpuUsageCurrent() / 100.0;
+			mRenderValues[Gauge.CPU_FREQUENCY_SCALE.ordinal()]
+				= cpuMonitor.getFrequencyScaleAverage() / 100.0;
+		}
+		mRenderValues[Gauge.EXECUTOR_QUEUE_DEPTH.ordinal()]
+			= PeerConnectionClient.getExecutorQueueDepth();
+		final SurfaceVideoCapture.Statistics statistics
+			= capture != null ? capture.getStatistics() : null;
+		mRenderValues[Gauge.CAPTURE_DROPPED_FRAMES.ordinal()]
+			= statistics != null ? statistics.getDroppedFrames() : Double.NaN;
+		final String iceState = client != null ? client.getIceConnectionStateName() : null;
+
+		mBodyLength = 0;
+		for (final Gauge gauge: GAUGES) {
+			final double value = mRenderValues[gauge.ordinal()];
+			append(gauge.header);
+			if (!gauge.counter || !Double.isNaN(value)) {
+				append(gauge.sample);
+				appendDouble(value);
+				appendByte('\n');
+			}
+		}
+		append(ICE_STATE_HEADER);
+		for (int i = 0; i < ICE_STATES.length; i++) {
+			append(ICE_STATE_SAMPLES[i]);
+			appendByte(ICE_STATES[i].equals(iceState) ? '1' : '0');
+			appendByte('\n');
+		}
+		append(EOF);
+	}
+
+	/**
+	 * Content-LengthまでのレスポンスヘッダーをmHeaderへ書き込む
+	 * @param contentLength
+	 * @return ヘッダーのバイト数
+	 */
+	private int writeHeader(final int contentLength) {
+		System.arraycopy(RESPONSE_OK, 0, mHeader, 0, RESPONSE_OK.length);
+		int pos = RESPONSE_OK.length;
+		pos = writeLong(mHeader, pos, contentLength);
+		System.arraycopy(CRLF_CRLF, 0, mHeader, pos, CRLF_CRLF.length);
+		return pos + CRLF_CRLF.length;
+	}
+
+	private void ensureCapacity(final int extra) {
+		if (mBodyLength + extra > mBody.length) {
+			mBody = Arrays.copyOf(mBody, Math.max(mBody.length * 2, mBodyLength + extra));
+		}
+	}
+
+	private void append(@NonNull final byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, mBody, mBodyLength, bytes.length);
+		mBodyLength += bytes.length;
+	}
+
+	private void appendByte(final char c) {
+		ensureCapacity(1);
+		mBody[mBodyLength++] = (byte)c;
+	}
+
+	/**
+	 * 実数を小数点以下最大6桁で書き込む
+	 * @param value
+	 */
+	private void appendDouble(final double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			append(NAN);
+			return;
+		}
+		// 符号+整数部19桁+小数点+小数部6桁
+		ensureCapacity(27);
+		double v = value;
+		if (v < 0) {
+			mBody[mBodyLength++] = '-';
+			v = -v;
+		}
+		final long scaled = Math.round(v * 1000000);
+		mBodyLength = writeLong(mBody, mBodyLength, scaled / 1000000);
+		long fraction = scaled % 1000000;
+		if (fraction != 0) {
+			mBody[mBodyLength++] = '.';
+			int digits = 6;
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				digits--;
+			}
+			final int end = mBodyLength + digits;
+			for (int i = end - 1; i >= mBodyLength; i--) {
+				mBody[i] = (byte)('0' + (fraction % 10));
+				fraction /= 10;
+			}
+			mBodyLength = end;
+		}
+	}
+
+	/**
+	 * 0以上の整数を10進数で書き込む
+	 * @return 書き込んだ後の位置
+	 */
+	private static int writeLong(@NonNull final byte[] buf, final int pos, final long value) {
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10) {
+			digits++;
+		}
+		long v = value;
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			buf[i] = (byte)('0' + (v % 10));
+			v /= 10;
+		}
+		return pos + digits;
+	}
+
+	private static int indexOf(@NonNull final byte[] buf, final int length, @NonNull final byte[] pattern) {
+		for (int i = 0; i + pattern.length <= length; i++) {
+			int j = 0;
+			while ((j < pattern.length) && (buf[i + j] == pattern[j])) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void closeQuietly(@Nullable final Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	@NonNull
+	private static byte[] ascii(@NonNull final String str) {
+		final byte[] result = new byte[str.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte)str.charAt(i);
+		}
+		return result;
+	}
+}
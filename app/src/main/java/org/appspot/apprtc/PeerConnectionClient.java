@@ -39,8 +39,6 @@ import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SoftwareVideoDecoderFactory;
 import org.webrtc.SoftwareVideoEncoderFactory;
-import org.webrtc.StatsObserver;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoDecoderFactory;
@@ -59,18 +57,13 @@ import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.Nullable;
 
@@ -93,7 +86,6 @@ public class PeerConnectionClient {
   private static final String VIDEO_CODEC_H264_HIGH = "H264 High";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
-  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String VIDEO_FLEXFEC_FIELDTRIAL =
       "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
   private static final String VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL = "WebRTC-IntelVP8/Enabled/";
@@ -101,7 +93,6 @@ public class PeerConnectionClient {
       "WebRTC-H264HighProfile/Enabled/";
   private static final String DISABLE_WEBRTC_AGC_FIELDTRIAL =
       "WebRTC-Audio-MinimizeResamplingOnMobile/Enabled/";
-  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
   private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
   private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
   private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -111,19 +102,38 @@ public class PeerConnectionClient {
   private static final int HD_VIDEO_HEIGHT = 720;
   private static final int BPS_IN_KBPS = 1000;
   private static final String RTCEVENTLOG_OUTPUT_DIR_NAME = "rtc_event_log";
+  // Kept within the 15 characters of a kernel thread name.
+  public static final String EXECUTOR_THREAD_NAME = "PCClientExec";
 
   // Executor thread is started once in private ctor and is used for all
   // peer connection API calls to ensure new peer connection factory is
   // created on the same thread as previously destroyed factory.
-  private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+  // Equivalent to Executors.newSingleThreadExecutor(), but keeps the queue reachable so that
+  // its depth can be exported as a metric, and names the thread for ThreadCpuMonitor.
+  private static final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+          r -> new Thread(r, EXECUTOR_THREAD_NAME));
 
   private final PCObserver pcObserver = new PCObserver();
   private final SDPObserver sdpObserver = new SDPObserver();
-  private final Timer statsTimer = new Timer();
+  private final StatsPollScheduler statsScheduler =
+      new StatsPollScheduler(() -> executor.execute(this::getStats));
   private final EglBase rootEglBase;
   private final Context appContext;
   private final PeerConnectionParameters peerConnectionParameters;
   private final PeerConnectionEvents events;
+  // Only accessed on the signaling thread where the stats are delivered.
+  private final DerivedMetricsEngine metricsEngine = new DerivedMetricsEngine();
+  private final RtcStatsCollector statsCollector = new RtcStatsCollector(snapshot -> {
+    statsScheduler.onPollComplete();
+    if (!statsScheduler.isStarted()) {
+      // Requested before the polling was stopped.
+      return;
+    }
+    // Metrics are delivered first so that listeners of the stats can read them.
+    events.onPeerConnectionMetricsReady(metricsEngine.update(snapshot));
+    events.onPeerConnectionStatsReady(snapshot);
+  });
 
   @Nullable
   private PeerConnectionFactory factory;
@@ -154,6 +164,9 @@ public class PeerConnectionClient {
   @Nullable
   private List<IceCandidate> queuedRemoteCandidates;
   private boolean isInitiator;
+  // Last ICE connection state, read from other threads by the metrics endpoint.
+  @Nullable
+  private volatile IceConnectionState iceConnectionState;
   @Nullable
   private SessionDescription localSdp; // either offer or answer SDP
   @Nullable
@@ -304,9 +317,17 @@ public class PeerConnectionClient {
     void onPeerConnectionClosed();
 
     /**
-     * Callback fired once peer connection statistics is ready.
+     * Callback fired once peer connection statistics is ready. Called on the
+     * signaling thread.
      */
-    void onPeerConnectionStatsReady(final StatsReport[] reports);
+    void onPeerConnectionStatsReady(final RtcStatsSnapshot snapshot);
+
+    /**
+     * Callback fired once per-interval rates and deltas are computed from the
+     * cumulative counters of the statistics. Called on the signaling thread
+     * just before onPeerConnectionStatsReady.
+     */
+    void onPeerConnectionMetricsReady(final DerivedMetrics metrics);
 
     /**
      * Callback fired once peer connection error happened.
@@ -660,7 +681,7 @@ public class PeerConnectionClient {
       factory.stopAecDump();
     }
     Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
+    statsScheduler.stop();
     if (dataChannel != null) {
       dataChannel.dispose();
       dataChannel = null;
@@ -722,39 +743,54 @@ public class PeerConnectionClient {
     return isVideoCallEnabled() && videoWidth * videoHeight >= 1280 * 720;
   }
 
-  @SuppressWarnings("deprecation") // TODO(sakal): getStats is deprecated.
   private void getStats() {
-    if (peerConnection == null || isError) {
+    // The poll may have been queued on the executor before the polling was stopped.
+    if (peerConnection == null || isError || !statsScheduler.isStarted()) {
+      statsScheduler.onPollComplete();
       return;
     }
-    boolean success = peerConnection.getStats(new StatsObserver() {
-      @Override
-      public void onComplete(final StatsReport[] reports) {
-        events.onPeerConnectionStatsReady(reports);
-      }
-    }, null);
-    if (!success) {
-      Log.e(TAG, "getStats() returns false!");
-    }
+    // Use the standard stats API, the parsed snapshot is delivered on the signaling thread.
+    peerConnection.getStats(statsCollector);
   }
 
+  /**
+   * Starts or stops the statistics polling. The polling is faster than periodMs for a while
+   * after it is started and after ICE connection state changes, and slower at steady state.
+   * It can be enabled again after it is disabled.
+   */
   public void enableStatsEvents(boolean enable, int periodMs) {
     if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(() -> getStats());
-          }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
-      }
+      statsScheduler.start(periodMs);
     } else {
-      statsTimer.cancel();
+      statsScheduler.stop();
     }
   }
 
+  /**
+   * Sets the CPU monitor used to back off the statistics polling while the CPU is overused.
+   */
+  public void setCpuMonitor(@Nullable final CpuMonitor cpuMonitor) {
+    statsScheduler.setOveruseDetector(cpuMonitor != null ? cpuMonitor::isCpuOveruse : null);
+  }
+
+  /**
+   * Returns the name of the last reported ICE connection state, or null before the first change.
+   * Safe to call from any thread.
+   */
+  @Nullable
+  public String getIceConnectionStateName() {
+    final IceConnectionState state = iceConnectionState;
+    return state != null ? state.name() : null;
+  }
+
+  /**
+   * Returns the number of tasks waiting on the peer connection executor.
+   * Safe to call from any thread.
+   */
+  public static int getExecutorQueueDepth() {
+    return executor.getQueue().size();
+  }
+
   public void setAudioEnabled(final boolean enable) {
     executor.execute(() -> {
       enableAudio = enable;
@@ -781,6 +817,7 @@ public class PeerConnectionClient {
       if (peerConnection != null && !isError) {
         Log.d(TAG, "PC Create OFFER");
         isInitiator = true;
+        CallSetupTracer.getInstance().begin(CallSetupTracer.Phase.CREATE_SDP);
         peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
       }
     });
@@ -791,6 +828,7 @@ public class PeerConnectionClient {
       if (peerConnection != null && !isError) {
         Log.d(TAG, "PC create ANSWER");
         isInitiator = false;
+        CallSetupTracer.getInstance().begin(CallSetupTracer.Phase.CREATE_SDP);
         peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
       }
     });
@@ -825,20 +863,16 @@ public class PeerConnectionClient {
       if (peerConnection == null || isError) {
         return;
       }
-      String sdpDescription = sdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
+      // Parse once, apply all edits and serialize once.
+      final SdpDocument sdpDocument = SdpDocument.parse(sdp.description);
+      preferCodecs(sdpDocument);
       if (peerConnectionParameters.audioStartBitrate > 0) {
-        sdpDescription = setStartBitrate(
-            AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
+        sdpDocument.setStartBitrate(
+            AUDIO_CODEC_OPUS, false, peerConnectionParameters.audioStartBitrate);
       }
       Log.d(TAG, "Set remote SDP.");
-      SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
+      CallSetupTracer.getInstance().begin(CallSetupTracer.Phase.REMOTE_SDP_SET);
+      SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDocument.toString());
       peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
     });
   }
@@ -984,148 +1018,14 @@ public class PeerConnectionClient {
     return fieldTrials;
   }
 
-  @SuppressWarnings("StringSplitter")
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
-    }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
-    }
-    return newSdpDescription.toString();
-  }
-
-  /** Returns the line number containing "m=audio|video", or -1 if no such line exists. */
-  private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
-    final String mediaDescription = isAudio ? "m=audio " : "m=video ";
-    for (int i = 0; i < sdpLines.length; ++i) {
-      if (sdpLines[i].startsWith(mediaDescription)) {
-        return i;
-      }
-    }
-    return -1;
-  }
-
-  private static String joinString(
-      Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
-    Iterator<? extends CharSequence> iter = s.iterator();
-    if (!iter.hasNext()) {
-      return "";
-    }
-    StringBuilder buffer = new StringBuilder(iter.next());
-    while (iter.hasNext()) {
-      buffer.append(delimiter).append(iter.next());
-    }
-    if (delimiterAtEnd) {
-      buffer.append(delimiter);
-    }
-    return buffer.toString();
-  }
-
-  private static @Nullable String movePayloadTypesToFront(
-      List<String> preferredPayloadTypes, String mLine) {
-    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
-    final List<String> origLineParts = Arrays.asList(mLine.split(" "));
-    if (origLineParts.size() <= 3) {
-      Log.e(TAG, "Wrong SDP media description format: " + mLine);
-      return null;
-    }
-    final List<String> header = origLineParts.subList(0, 3);
-    final List<String> unpreferredPayloadTypes =
-        new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
-    unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
-    // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
-    // types.
-    final List<String> newLineParts = new ArrayList<>();
-    newLineParts.addAll(header);
-    newLineParts.addAll(preferredPayloadTypes);
-    newLineParts.addAll(unpreferredPayloadTypes);
-    return joinString(newLineParts, " ", false /* delimiterAtEnd */);
-  }
-
-  private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-    final String[] lines = sdpDescription.split("\r\n");
-    final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    // A list with all the payload types with name |codec|. The payload types are integers in the
-    // range 96-127, but they are stored as strings here.
-    final List<String> codecPayloadTypes = new ArrayList<>();
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
-    for (String line : lines) {
-      Matcher codecMatcher = codecPattern.matcher(line);
-      if (codecMatcher.matches()) {
-        codecPayloadTypes.add(codecMatcher.group(1));
-      }
-    }
-    if (codecPayloadTypes.isEmpty()) {
-      Log.w(TAG, "No payload types with name " + codec);
-      return sdpDescription;
+  // Moves the preferred audio/video codecs to the front of their m-lines.
+  private void preferCodecs(SdpDocument sdpDocument) {
+    if (preferIsac) {
+      sdpDocument.preferCodec(AUDIO_CODEC_ISAC, true);
     }
-
-    final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
-    if (newMLine == null) {
-      return sdpDescription;
+    if (isVideoCallEnabled()) {
+      sdpDocument.preferCodec(getSdpVideoCodecName(peerConnectionParameters), false);
     }
-    Log.d(TAG, "Change media description from: " + lines[mLineIndex] + " to " + newMLine);
-    lines[mLineIndex] = newMLine;
-    return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
   }
 
   private void drainCandidates() {
@@ -1172,10 +1072,33 @@ public class PeerConnectionClient {
     videoSource.adaptOutputFormat(width, height, framerate);
   }
 
+  /**
+   * Restarts the capturer with the given format instead of only adapting the output of the video
+   * source, so that the camera and the frame conversion also run at the reduced resolution and
+   * frame rate. The format is kept for the next startVideoSource.
+   */
+  public void switchCaptureFormat(final int width, final int height, final int framerate) {
+    executor.execute(() -> {
+      if (!isVideoCallEnabled() || isError || videoCapturer == null) {
+        Log.e(TAG, "Failed to switch capture format. Video: " + isVideoCallEnabled()
+            + ". Error : " + isError);
+        return;
+      }
+      Log.d(TAG, "switchCaptureFormat: " + width + "x" + height + "@" + framerate);
+      videoWidth = width;
+      videoHeight = height;
+      videoFps = framerate;
+      if (!videoCapturerStopped) {
+        videoCapturer.changeCaptureFormat(width, height, framerate);
+      }
+    });
+  }
+
   // Implementation detail: observe ICE & stream changes and react accordingly.
   private class PCObserver implements PeerConnection.Observer {
     @Override
     public void onIceCandidate(final IceCandidate candidate) {
+      CallSetupTracer.getInstance().mark(CallSetupTracer.Phase.FIRST_ICE_CANDIDATE);
       executor.execute(() -> events.onIceCandidate(candidate));
     }
 
@@ -1191,8 +1114,10 @@ public class PeerConnectionClient {
 
     @Override
     public void onIceConnectionChange(final PeerConnection.IceConnectionState newState) {
+      iceConnectionState = newState;
       executor.execute(() -> {
         Log.d(TAG, "IceConnectionState: " + newState);
+        statsScheduler.boost();
         if (newState == IceConnectionState.CONNECTED) {
           events.onIceConnected();
         } else if (newState == IceConnectionState.DISCONNECTED) {
@@ -1267,23 +1192,19 @@ public class PeerConnectionClient {
   private class SDPObserver implements SdpObserver {
     @Override
     public void onCreateSuccess(final SessionDescription origSdp) {
+      CallSetupTracer.getInstance().end(CallSetupTracer.Phase.CREATE_SDP);
       if (localSdp != null) {
         reportError("Multiple SDP create.");
         return;
       }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
-      final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
+      final SdpDocument sdpDocument = SdpDocument.parse(origSdp.description);
+      preferCodecs(sdpDocument);
+      final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDocument.toString());
       localSdp = sdp;
       executor.execute(() -> {
         if (peerConnection != null && !isError) {
           Log.d(TAG, "Set local SDP from " + sdp.type);
+          CallSetupTracer.getInstance().begin(CallSetupTracer.Phase.LOCAL_SDP_SET);
           peerConnection.setLocalDescription(sdpObserver, sdp);
         }
       });
@@ -1301,11 +1222,13 @@ public class PeerConnectionClient {
           if (peerConnection.getRemoteDescription() == null) {
             // We've just set our local SDP so time to send it.
             Log.d(TAG, "Local SDP set successfully");
+            CallSetupTracer.getInstance().end(CallSetupTracer.Phase.LOCAL_SDP_SET);
             events.onLocalDescription(localSdp);
           } else {
             // We've just set remote description, so drain remote
             // and send local ICE candidates.
             Log.d(TAG, "Remote SDP set successfully");
+            CallSetupTracer.getInstance().end(CallSetupTracer.Phase.REMOTE_SDP_SET);
             drainCandidates();
           }
         } else {
@@ -1315,12 +1238,14 @@ public class PeerConnectionClient {
             // We've just set our local SDP so time to send it, drain
             // remote and send local ICE candidates.
             Log.d(TAG, "Local SDP set successfully");
+            CallSetupTracer.getInstance().end(CallSetupTracer.Phase.LOCAL_SDP_SET);
             events.onLocalDescription(localSdp);
             drainCandidates();
           } else {
             // We've just set remote SDP - do nothing for now -
             // answer will be created soon.
             Log.d(TAG, "Remote SDP set successfully");
+            CallSetupTracer.getInstance().end(CallSetupTracer.Phase.REMOTE_SDP_SET);
           }
         }
       });
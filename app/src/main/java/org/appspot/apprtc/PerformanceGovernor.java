@@ -0,0 +1,275 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 端末の温度とバッテリー残量に応じて通話の映像品質の上限を決めるクラス
+ * ThermalBatterySamplerで一定間隔毎に温度とバッテリーの状態を取得して制限レベルを決め、
+ * レベルが変わればListenerへ映像入力の高さとフレームレート、映像のビットレートの上限を通知する
+ * 温度は上げる時と戻す時で閾値を変えるヒステリシスに加えて、レベルを戻すまでの最小保持時間を設ける
+ * sysfsの読み込みはstartで開始した専用のスレッドで行い、#updateでは最後に取得した値だけを評価する
+ * #update以外はスレッドセーフ, #updateとListenerへの通知は1つのスレッドから呼び出すこと
+ */
+public class PerformanceGovernor {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = PerformanceGovernor.class.getSimpleName();
+	static final String THREAD_NAME = "PerfGovernor";
+
+	/**
+	 * 制限レベル
+	 */
+	public enum Level {
+		/** 制限なし */
+		NORMAL(0, 0, 0),
+		/** 540p@30fps, 1.5Mbps */
+		WARM(540, 30, 1500),
+		/** 360p@20fps, 800kbps */
+		HOT(360, 20, 800),
+		/** 360p@15fps, 500kbps */
+		CRITICAL(360, 15, 500);
+
+		/** 映像入力の高さの上限, 0なら制限なし */
+		public final int maxHeight;
+		/** 映像入力のフレームレートの上限, 0なら制限なし */
+		public final int maxFps;
+		/** 映像のビットレートの上限[kbps], 0なら制限なし */
+		public final int maxBitrateKbps;
+
+		Level(final int maxHeight, final int maxFps, final int maxBitrateKbps) {
+			this.maxHeight = maxHeight;
+			this.maxFps = maxFps;
+			this.maxBitrateKbps = maxBitrateKbps;
+		}
+	}
+
+	/**
+	 * 制限レベルが変わった時のコールバックインターフェース
+	 */
+	public interface Listener {
+		void onPerformanceLevelChanged(@NonNull final Level level);
+	}
+
+	/** 温度とバッテリーの状態を取得する間隔[ミリ秒] */
+	private static final long SAMPLE_INTERVAL_MS = 5000;
+	/** WARM, HOT, CRITICALになる温度[℃] */
+	private static final double[] LEVEL_CELSIUS = {65, 75, 85};
+	/** レベルを戻す時は閾値からこの温度だけ下がるまで待つ[℃] */
+	private static final double HYSTERESIS_CELSIUS = 3;
+	/** レベルを変更してから戻すまでの最小時間[ミリ秒] */
+	private static final long MIN_RELAX_DWELL_MS = 30000;
+	/** 充電していない時にバッテリー残量がこの値以下ならWARM以上にする[%] */
+	private static final int LOW_BATTERY_PERCENT = 20;
+	/** 充電していない時にバッテリー残量がこの値以下ならHOT以上にする[%] */
+	private static final int CRITICAL_BATTERY_PERCENT = 10;
+	/**
+	 * PowerManager.THERMAL_STATUS_MODERATE, SEVERE, CRITICAL
+	 * API29未満でもコンパイルできるように値を直接定義する
+	 */
+	private static final int[] LEVEL_THERMAL_STATUS = {2, 3, 4};
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final ThermalBatterySampler mSampler;
+	@NonNull
+	private final Listener mListener;
+	@Nullable
+	private ScheduledExecutorService mExecutor;
+	private boolean mReleased;
+	/**
+	 * サンプリング用のスレッドで取得した値, mSyncで保護する
+	 */
+	private double mTemperatureC = Double.NaN;
+	private int mThermalStatus = ThermalBatterySampler.THERMAL_STATUS_UNKNOWN;
+	private int mBatteryPercent = -1;
+	private boolean mCharging;
+	private int mSampleCount;
+	/**
+	 * 最後に評価した時のmSampleCount
+	 */
+	private int mEvaluatedCount;
+	@NonNull
+	private volatile Level mLevel = Level.NORMAL;
+	private long mLastChangeMs = -1;
+
+	/**
+	 * コンストラクタ
+	 * @param sampler
+	 * @param listener
+	 */
+	public PerformanceGovernor(
+		@NonNull final ThermalBatterySampler sampler,
+		@NonNull final Listener listener) {
+
+		mSampler = sampler;
+		mListener = listener;
+	}
+
+	/**
+	 * 専用のスレッドでSAMPLE_INTERVAL_MS毎の温度とバッテリーの状態の取得を開始する
+	 */
+	public void start() {
+		synchronized (mSync) {
+			if (mReleased || (mExecutor != null)) {
+				return;
+			}
+			mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(@NonNull final Runnable r) {
+					return new Thread(r, THREAD_NAME);
+				}
+			});
+			mExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					sample();
+				}
+			}, 0, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 取得を終了する, 再度startすれば再開できる
+	 */
+	public void stop() {
+		synchronized (mSync) {
+			if (mExecutor != null) {
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * 取得を終了して関係するリソースを破棄する
+	 */
+	public void release() {
+		stop();
+		synchronized (mSync) {
+			// 取得中ならmSyncで待ってから閉じる
+			mReleased = true;
+			mSampler.release();
+		}
+	}
+
+	/**
+	 * 現在の制限レベル
+	 * @return
+	 */
+	@NonNull
+	public Level getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * 温度とバッテリーの状態を取得する
+	 * 通常はstartで開始したスレッドから呼ばれる
+	 */
+	void sample() {
+		synchronized (mSync) {
+			if (mReleased) {
+				return;
+			}
+			mSampler.sample();
+			mTemperatureC = mSampler.getTemperatureCelsius();
+			mThermalStatus = mSampler.getThermalStatus();
+			mBatteryPercent = mSampler.getBatteryPercent();
+			mCharging = mSampler.isCharging();
+			mSampleCount++;
+		}
+	}
+
+	/**
+	 * 定期的に呼び出す, 前回から新しく取得した温度とバッテリーの状態があれば評価して
+	 * 制限レベルが変わればListenerへ通知する, ファイルの読み込みはしない
+	 * @param nowMs 単調増加する現在時刻[ミリ秒]
+	 */
+	public void update(final long nowMs) {
+		final double celsius;
+		final int status;
+		final int battery;
+		final boolean charging;
+		synchronized (mSync) {
+			if (mSampleCount == mEvaluatedCount) {
+				return;
+			}
+			mEvaluatedCount = mSampleCount;
+			celsius = mTemperatureC;
+			status = mThermalStatus;
+			battery = mBatteryPercent;
+			charging = mCharging;
+		}
+		final Level target = evaluate(celsius, status, battery, charging);
+		if (target == mLevel) {
+			return;
+		}
+		if ((target.ordinal() < mLevel.ordinal())
+			&& (mLastChangeMs >= 0) && (nowMs - mLastChangeMs < MIN_RELAX_DWELL_MS)) {
+			// 戻すのは最小保持時間が経過してから
+			return;
+		}
+		Log.i(TAG, "performance level " + mLevel + "->" + target
+			+ ", temperature=" + celsius
+			+ ", thermalStatus=" + status
+			+ ", battery=" + battery + "%"
+			+ (charging ? "(charging)" : ""));
+		mLevel = target;
+		mLastChangeMs = nowMs;
+		mListener.onPerformanceLevelChanged(target);
+	}
+
+	/**
+	 * 取得した温度とバッテリーの状態から制限レベルを決める
+	 */
+	@NonNull
+	private Level evaluate(final double celsius, final int status,
+		final int battery, final boolean charging) {
+
+		final Level[] levels = Level.values();
+		int level = 0;
+		// 温度, 現在のレベル以下の閾値はヒステリシス分下げて評価する
+		if (!Double.isNaN(celsius)) {
+			for (int i = 0; i < LEVEL_CELSIUS.length; i++) {
+				final double threshold = i + 1 <= mLevel.ordinal()
+					? LEVEL_CELSIUS[i] - HYSTERESIS_CELSIUS : LEVEL_CELSIUS[i];
+				if (celsius >= threshold) {
+					level = i + 1;
+				}
+			}
+		}
+		// sysfsの温度を読めない端末でもシステムの温度状態を使えるようにする
+		for (int i = 0; i < LEVEL_THERMAL_STATUS.length; i++) {
+			if (status >= LEVEL_THERMAL_STATUS[i]) {
+				level = Math.max(level, i + 1);
+			}
+		}
+		// バッテリー
+		if ((battery >= 0) && !charging) {
+			if (battery <= CRITICAL_BATTERY_PERCENT) {
+				level = Math.max(level, Level.HOT.ordinal());
+			} else if (battery <= LOW_BATTERY_PERCENT) {
+				level = Math.max(level, Level.WARM.ordinal());
+			}
+		}
+		if (DEBUG) Log.v(TAG, "evaluate:temperature=" + celsius
+			+ ",status=" + status + ",battery=" + battery + ",level=" + levels[level]);
+		return levels[level];
+	}
+}
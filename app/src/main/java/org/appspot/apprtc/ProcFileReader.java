@@ -0,0 +1,287 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * /procや/sysのファイルを繰り返し読み込むためのヘルパークラス
+ * ファイルディスクリプタを開いたままにしてpreadで先頭から読み直し、
+ * 再利用するバイト配列上でStringを生成せずに数値を解析する
+ * ファイルが存在しない時(CPUコアがオフライン等)は次回の読み込み時に開き直す
+ * fillをオーバーライドすれば記録したデータを端末外で再生できる(ReplayCpuDataSource)
+ * スレッドセーフではないので1つのスレッドから呼び出すこと
+ */
+public class ProcFileReader {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = ProcFileReader.class.getSimpleName();
+
+	@NonNull
+	private final File mFile;
+	@Nullable
+	private FileDescriptor mFd;
+	@NonNull
+	private byte[] mBuffer;
+	/**
+	 * 最後に読み込んだバイト数
+	 */
+	private int mLength;
+	/**
+	 * 解析中の位置
+	 */
+	private int mPos;
+
+	/**
+	 * コンストラクタ
+	 * @param path
+	 * @param initialCapacity バッファの初期サイズ, ファイルがこれより大きければ拡張する
+	 */
+	public ProcFileReader(@NonNull final String path, final int initialCapacity) {
+		mFile = new File(path);
+		mBuffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	/**
+	 * ファイルを閉じる, 再度readを呼べば開き直す
+	 */
+	public void close() {
+		if (mFd != null) {
+			try {
+				Os.close(mFd);
+			} catch (final ErrnoException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+			mFd = null;
+		}
+		mLength = mPos = 0;
+	}
+
+	/**
+	 * ファイルを先頭から読み直して解析位置を先頭に戻す
+	 * @return 1バイト以上読み込めればtrue
+	 */
+	public boolean read() {
+		mLength = mPos = 0;
+		if (!fill() || (mLength == 0)) {
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * ファイルの内容をバッファへ読み込む
+	 * 記録したデータを再生する時等はオーバーライドしてsetContentで内容をセットする
+	 * @return 読み込めなければfalse
+	 */
+	protected boolean fill() {
+		if (mFd == null) {
+			// 存在しないファイルを開こうとして例外を生成しないように先に確認する
+			if (!mFile.exists()) {
+				return false;
+			}
+			try {
+				mFd = Os.open(mFile.getPath(), OsConstants.O_RDONLY, 0);
+			} catch (final ErrnoException e) {
+				if (DEBUG) Log.w(TAG, "Failed to open " + mFile, e);
+				return false;
+			}
+		}
+		try {
+			while (true) {
+				final int n = Os.pread(mFd, mBuffer, mLength, mBuffer.length - mLength, mLength);
+				if (n <= 0) {
+					break;
+				}
+				mLength += n;
+				if (mLength == mBuffer.length) {
+					mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+				}
+			}
+		} catch (final ErrnoException | InterruptedIOException e) {
+			// CPUコアがオフラインになった等, 次回開き直す
+			if (DEBUG) Log.w(TAG, "Failed to read " + mFile, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * fillの中から呼び出して読み込んだ内容をセットする
+	 * @param src
+	 * @param length
+	 */
+	protected final void setContent(@NonNull final byte[] src, final int length) {
+		if (mBuffer.length < length) {
+			mBuffer = new byte[length];
+		}
+		System.arraycopy(src, 0, mBuffer, 0, length);
+		mLength = length;
+	}
+
+	/**
+	 * 読み込むファイルのパス
+	 * @return
+	 */
+	@NonNull
+	public String getPath() {
+		return mFile.getPath();
+	}
+
+	/**
+	 * ファイルを読み直して先頭の整数を取得する
+	 * @param defaultValue 読み込めなかった時の値
+	 * @return
+	 */
+	public long readLong(final long defaultValue) {
+		if (read()) {
+			final long value = nextLong();
+			return value >= 0 ? value : defaultValue;
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * 未解析のデータがあるかどうか
+	 * @return
+	 */
+	public boolean hasRemaining() {
+		return mPos < mLength;
+	}
+
+	/**
+	 * 現在の行が指定した文字列で始まるかどうか, 解析位置は変更しない
+	 * @param prefix ASCII文字列
+	 * @return
+	 */
+	public boolean startsWith(@NonNull final String prefix) {
+		final int n = prefix.length();
+		if (mPos + n > mLength) {
+			return false;
+		}
+		for (int i = 0; i < n; i++) {
+			if (mBuffer[mPos + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 現在の行の次の0以上の整数を取得して解析位置を進める
+	 * 数字以外の文字は読み飛ばすが、行末は越えない
+	 * @return 現在の行に整数が無ければ-1
+	 */
+	public long nextLong() {
+		while ((mPos < mLength) && !isDigit(mBuffer[mPos])) {
+			if (mBuffer[mPos] == '\n') {
+				return -1;
+			}
+			mPos++;
+		}
+		if (mPos >= mLength) {
+			return -1;
+		}
+		long value = 0;
+		while ((mPos < mLength) && isDigit(mBuffer[mPos])) {
+			value = value * 10 + (mBuffer[mPos++] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * 現在の行の空白以外の文字の並びを1つ読み飛ばす
+	 */
+	public void skipToken() {
+		while ((mPos < mLength) && isSpace(mBuffer[mPos])) {
+			mPos++;
+		}
+		while ((mPos < mLength) && !isSpace(mBuffer[mPos]) && (mBuffer[mPos] != '\n')) {
+			mPos++;
+		}
+	}
+
+	/**
+	 * 現在の行の空白以外の文字の並びを1つコピーして解析位置を進める
+	 * @param dst dstより長い時は切り詰める
+	 * @return コピーしたバイト数
+	 */
+	public int readToken(@NonNull final byte[] dst) {
+		while ((mPos < mLength) && isSpace(mBuffer[mPos])) {
+			mPos++;
+		}
+		int n = 0;
+		while ((mPos < mLength) && !isSpace(mBuffer[mPos]) && (mBuffer[mPos] != '\n')) {
+			if (n < dst.length) {
+				dst[n++] = mBuffer[mPos];
+			}
+			mPos++;
+		}
+		return n;
+	}
+
+	/**
+	 * 最初のopenから最後のcloseまでの間のバイト列をコピーして解析位置をcloseの次へ進める
+	 * /proc/[pid]/statのスレッド名のように括弧を含み得る値を取り出すために使う
+	 * @param open
+	 * @param close
+	 * @param dst dstより長い時は切り詰める
+	 * @return コピーしたバイト数, 見つからなければ-1
+	 */
+	public int readEnclosed(final char open, final char close, @NonNull final byte[] dst) {
+		int start = mPos;
+		while ((start < mLength) && (mBuffer[start] != open)) {
+			start++;
+		}
+		int end = mLength - 1;
+		while ((end > start) && (mBuffer[end] != close)) {
+			end--;
+		}
+		if (end <= start) {
+			return -1;
+		}
+		final int n = Math.min(end - start - 1, dst.length);
+		System.arraycopy(mBuffer, start + 1, dst, 0, n);
+		mPos = end + 1;
+		return n;
+	}
+
+	/**
+	 * 次の行の先頭へ解析位置を進める
+	 * @return 次の行があればtrue
+	 */
+	public boolean nextLine() {
+		while (mPos < mLength) {
+			if (mBuffer[mPos++] == '\n') {
+				break;
+			}
+		}
+		return mPos < mLength;
+	}
+
+	private static boolean isDigit(final byte b) {
+		return (b >= '0') && (b <= '9');
+	}
+
+	private static boolean isSpace(final byte b) {
+		return (b == ' ') || (b == '\t');
+	}
+}
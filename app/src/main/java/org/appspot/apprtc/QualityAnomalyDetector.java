@@ -0,0 +1,335 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+/**
+ * DerivedMetricsから通話品質の異常を検出するクラス
+ * 統計情報の取得毎にupdateを呼ぶと、異常の開始と解消をイベントとして通知する
+ * 異常毎に開始と解消で別の閾値と継続時間を使うヒステリシス付きで判定するので
+ * 閾値付近で値が揺れてもイベントがばたつかない
+ * 統計情報の取得間隔は変化するので継続時間はサンプル数ではなく統計情報のタイムスタンプで測る
+ * 基準値は指数移動平均等の固定個のプリミティブ値だけで保持するので
+ * 通話時間が長くなってもメモリ使用量は増えない
+ * スレッドセーフではないので1つのスレッドから呼び出すこと
+ */
+public class QualityAnomalyDetector {
+	private static final String TAG = QualityAnomalyDetector.class.getSimpleName();
+
+	/**
+	 * 検出する異常の種類
+	 */
+	public enum Anomaly {
+		/** 受信映像のフレームレートがほぼ0になった */
+		REMOTE_VIDEO_FREEZE,
+		/** 送信ビットレートが基準値から大きく低下した */
+		SEND_BITRATE_COLLAPSE,
+		/** 受信パケットロス率が高い状態が続いている */
+		PACKET_LOSS,
+		/** 往復遅延時間が基準値から大きく増加した */
+		RTT_SPIKE,
+		/** 送信映像の解像度が低下した */
+		RESOLUTION_DROP,
+	}
+
+	/**
+	 * 異常の開始/解消を受け取るためのコールバックインターフェース
+	 * updateを呼び出したスレッド上で呼ばれる
+	 */
+	public interface Listener {
+		/**
+		 * 異常が開始した時に呼ばれる
+		 * @param anomaly
+		 * @param value 異常と判定した時の値(REMOTE_VIDEO_FREEZEならfps, SEND_BITRATE_COLLAPSEならbps,
+		 * 				PACKET_LOSSなら%, RTT_SPIKEならミリ秒, RESOLUTION_DROPなら映像の高さ)
+		 * @param baseline 比較した基準値(単位はvalueと同じ), 基準値を使わない異常ではNaN
+		 */
+		void onAnomalyStarted(@NonNull final Anomaly anomaly, final double value, final double baseline);
+
+		/**
+		 * 異常が解消した時に呼ばれる
+		 * @param anomaly
+		 * @param durationMs 異常が続いた時間[ミリ秒]
+		 */
+		void onAnomalyCleared(@NonNull final Anomaly anomaly, final long durationMs);
+	}
+
+	private static final Anomaly[] ANOMALIES = Anomaly.values();
+
+	/** 受信映像のフレームレートがこの値未満ならフリーズ */
+	private static final double FREEZE_FPS = 1.0;
+	/** フリーズ中に受信映像のフレームレートがこの値以上になれば解消 */
+	private static final double UNFREEZE_FPS = 5.0;
+	/** 送信ビットレートが基準値のこの割合未満なら低下 */
+	private static final double BITRATE_COLLAPSE_RATIO = 0.3;
+	/** 送信ビットレート低下中に基準値のこの割合以上になれば解消 */
+	private static final double BITRATE_RECOVER_RATIO = 0.6;
+	/** 送信ビットレートの基準値がこの値未満の時は判定しない[bps] */
+	private static final double MIN_BITRATE_BASELINE_BPS = 100000;
+	/** パケットロス率がこの値以上なら異常[%] */
+	private static final double PACKET_LOSS_HIGH_PERCENT = 5.0;
+	/** パケットロス率がこの値以下になれば解消[%] */
+	private static final double PACKET_LOSS_LOW_PERCENT = 2.0;
+	/** 往復遅延時間が基準値のこの倍率以上かつ基準値+RTT_SPIKE_MIN_INCREASE_MS以上なら異常 */
+	private static final double RTT_SPIKE_RATIO = 2.0;
+	private static final double RTT_SPIKE_MIN_INCREASE_MS = 200;
+	/** 往復遅延時間の異常中に基準値のこの倍率以下になれば解消 */
+	private static final double RTT_RECOVER_RATIO = 1.3;
+	/** 送信映像の高さが基準値のこの割合未満なら解像度低下 */
+	private static final double RESOLUTION_DROP_RATIO = 0.75;
+	/** 解像度低下中に基準値のこの割合以上になれば解消 */
+	private static final double RESOLUTION_RECOVER_RATIO = 0.9;
+	/**
+	 * 自分でキャプチャフォーマットを変更した後に解像度低下の基準値を取り直す期間[ミリ秒]
+	 * 変更前の解像度の統計情報が届く間は基準値を最大値ではなく最新の値に追従させる
+	 */
+	private static final long RESOLUTION_REBASELINE_MS = 3000;
+	/** 基準値の指数移動平均の係数 */
+	private static final double BASELINE_ALPHA = 0.05;
+	/** 基準値を使う判定を開始するまでに必要なサンプル数 */
+	private static final int BASELINE_WARMUP_SAMPLES = 5;
+
+	@NonNull
+	private final Listener mListener;
+	@NonNull
+	private final Hysteresis[] mStates = new Hysteresis[ANOMALIES.length];
+	private double mBitrateBaseline = Double.NaN;
+	private int mBitrateSamples;
+	private double mRttBaseline = Double.NaN;
+	private int mRttSamples;
+	/**
+	 * 解像度低下判定の基準値, 異常中でない時の送信映像の高さの最大値
+	 */
+	private int mMaxFrameHeight;
+	/**
+	 * #resetResolutionBaselineが呼ばれて、次のupdateで基準値の取り直しを開始するかどうか
+	 * 任意のスレッドから要求できるようにvolatileにする
+	 */
+	private volatile boolean mResolutionRebaselineRequested;
+	/**
+	 * この時刻[ミリ秒]までは解像度低下を判定せずに基準値を最新の値に追従させる
+	 */
+	private long mResolutionRebaselineUntilMs = Long.MIN_VALUE;
+
+	/**
+	 * コンストラクタ
+	 * @param listener
+	 */
+	public QualityAnomalyDetector(@NonNull final Listener listener) {
+		mListener = listener;
+		mStates[Anomaly.REMOTE_VIDEO_FREEZE.ordinal()] = new Hysteresis(2000, 2000);
+		mStates[Anomaly.SEND_BITRATE_COLLAPSE.ordinal()] = new Hysteresis(2000, 3000);
+		mStates[Anomaly.PACKET_LOSS.ordinal()] = new Hysteresis(3000, 3000);
+		mStates[Anomaly.RTT_SPIKE.ordinal()] = new Hysteresis(2000, 3000);
+		mStates[Anomaly.RESOLUTION_DROP.ordinal()] = new Hysteresis(2000, 2000);
+	}
+
+	/**
+	 * 送信映像の解像度低下の基準値を取り直す
+	 * アプリ自身がキャプチャフォーマットを変更して解像度を下げた時に呼ぶと
+	 * 意図した解像度の変更を異常として検出しない
+	 * 解像度低下が継続中であれば次のupdateで解消として通知する
+	 * 任意のスレッドから呼び出せる
+	 */
+	public void resetResolutionBaseline() {
+		mResolutionRebaselineRequested = true;
+	}
+
+	/**
+	 * 指定した異常が継続中かどうか
+	 * @param anomaly
+	 * @return
+	 */
+	public boolean isActive(@NonNull final Anomaly anomaly) {
+		return mStates[anomaly.ordinal()].active;
+	}
+
+	/**
+	 * 統計情報の取得毎に呼び出して異常を判定する
+	 * @param metrics
+	 */
+	public void update(@NonNull final DerivedMetrics metrics) {
+		final long nowMs = metrics.timestampUs / 1000;
+		final DerivedMetrics.StreamMetrics videoRecv
+			= metrics.findInbound(RtcStatsSnapshot.MediaKind.VIDEO);
+		final DerivedMetrics.StreamMetrics videoSend
+			= metrics.findOutbound(RtcStatsSnapshot.MediaKind.VIDEO);
+		final DerivedMetrics.StreamMetrics recv = metrics.primaryInbound();
+		final DerivedMetrics.StreamMetrics send = metrics.primaryOutbound();
+
+		// 受信映像のフリーズ
+		// 最初のフレームをデコードするまでと、静止していればフレームが来ない画面共有は判定しない
+		if (videoRecv != null) {
+			if (videoRecv.screenshare) {
+				clear(Anomaly.REMOTE_VIDEO_FREEZE, nowMs);
+			} else if (videoRecv.frames > 0) {
+				final double fps = videoRecv.framesPerSecond;
+				evaluate(Anomaly.REMOTE_VIDEO_FREEZE, nowMs,
+					fps < FREEZE_FPS, fps >= UNFREEZE_FPS, fps, Double.NaN);
+			}
+		}
+
+		// 送信ビットレートの低下
+		if (send != null) {
+			final double bps = send.bitrateBps;
+			if (!Double.isNaN(bps)) {
+				final boolean ready = (mBitrateSamples >= BASELINE_WARMUP_SAMPLES)
+					&& (mBitrateBaseline >= MIN_BITRATE_BASELINE_BPS);
+				final boolean bad = ready && (bps < mBitrateBaseline * BITRATE_COLLAPSE_RATIO);
+				final boolean active = evaluate(Anomaly.SEND_BITRATE_COLLAPSE, nowMs,
+					bad, !ready || (bps >= mBitrateBaseline * BITRATE_RECOVER_RATIO),
+					bps, mBitrateBaseline);
+				// 異常中と異常の疑いがある時は基準値を更新しない
+				if (!active && !bad) {
+					mBitrateBaseline = ewma(mBitrateBaseline, bps);
+					mBitrateSamples++;
+				}
+			}
+		}
+
+		// パケットロス
+		if (recv != null) {
+			final double loss = recv.packetLossPercent;
+			evaluate(Anomaly.PACKET_LOSS, nowMs,
+				loss >= PACKET_LOSS_HIGH_PERCENT, loss <= PACKET_LOSS_LOW_PERCENT, loss, Double.NaN);
+		}
+
+		// 往復遅延時間の増加
+		final double rtt = metrics.rttMs;
+		if (!Double.isNaN(rtt)) {
+			final boolean ready = mRttSamples >= BASELINE_WARMUP_SAMPLES;
+			final boolean bad = ready && (rtt >= mRttBaseline * RTT_SPIKE_RATIO)
+				&& (rtt >= mRttBaseline + RTT_SPIKE_MIN_INCREASE_MS);
+			final boolean active = evaluate(Anomaly.RTT_SPIKE, nowMs,
+				bad, !ready || (rtt <= mRttBaseline * RTT_RECOVER_RATIO),
+				rtt, mRttBaseline);
+			if (!active && !bad) {
+				mRttBaseline = ewma(mRttBaseline, rtt);
+				mRttSamples++;
+			}
+		}
+
+		// 送信映像の解像度低下
+		if (mResolutionRebaselineRequested) {
+			mResolutionRebaselineRequested = false;
+			mResolutionRebaselineUntilMs = nowMs + RESOLUTION_REBASELINE_MS;
+			clear(Anomaly.RESOLUTION_DROP, nowMs);
+		}
+		if ((videoSend != null) && (videoSend.frameHeight > 0)) {
+			final int height = videoSend.frameHeight;
+			if (nowMs < mResolutionRebaselineUntilMs) {
+				mMaxFrameHeight = height;
+			} else {
+				final boolean active = evaluate(Anomaly.RESOLUTION_DROP, nowMs,
+					(mMaxFrameHeight > 0) && (height < mMaxFrameHeight * RESOLUTION_DROP_RATIO),
+					height >= mMaxFrameHeight * RESOLUTION_RECOVER_RATIO,
+					height, mMaxFrameHeight);
+				if (!active && (height > mMaxFrameHeight)) {
+					mMaxFrameHeight = height;
+				}
+			}
+		}
+	}
+
+	/**
+	 * ヒステリシスを更新して状態が変化すればコールバックする
+	 * 値がNaNの時は比較結果がどちらもfalseになるので状態を維持する
+	 * @return 更新後に異常中ならtrue
+	 */
+	private boolean evaluate(@NonNull final Anomaly anomaly, final long nowMs,
+		final boolean bad, final boolean good, final double value, final double baseline) {
+
+		final Hysteresis state = mStates[anomaly.ordinal()];
+		final int changed = state.update(bad, good, nowMs);
+		if (changed > 0) {
+			Log.w(TAG, "Anomaly started: " + anomaly + ", value=" + value + ", baseline=" + baseline);
+			mListener.onAnomalyStarted(anomaly, value, baseline);
+		} else if (changed < 0) {
+			final long durationMs = nowMs - state.activeSinceMs;
+			Log.i(TAG, "Anomaly cleared: " + anomaly + ", duration=" + durationMs + "ms");
+			mListener.onAnomalyCleared(anomaly, durationMs);
+		}
+		return state.active;
+	}
+
+	/**
+	 * 判定の前提が無くなった時に継続時間を待たずに状態をリセットする
+	 * 異常中であれば解消を通知する
+	 */
+	private void clear(@NonNull final Anomaly anomaly, final long nowMs) {
+		final Hysteresis state = mStates[anomaly.ordinal()];
+		final boolean wasActive = state.active;
+		state.reset();
+		if (wasActive) {
+			final long durationMs = nowMs - state.activeSinceMs;
+			Log.i(TAG, "Anomaly reset: " + anomaly + ", duration=" + durationMs + "ms");
+			mListener.onAnomalyCleared(anomaly, durationMs);
+		}
+	}
+
+	private static double ewma(final double average, final double value) {
+		return Double.isNaN(average) ? value : average + BASELINE_ALPHA * (value - average);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 開始と解消にそれぞれ条件が継続する時間を必要とするヒステリシス
+	 * 継続時間は条件を満たした最初のサンプルからの経過時間なので少なくとも2サンプル必要
+	 */
+	private static class Hysteresis {
+		private final long triggerMs;
+		private final long clearMs;
+		private boolean active;
+		/**
+		 * 異常開始(異常中は解消)の条件を満たし始めた時刻[ミリ秒], 満たしていなければ-1
+		 */
+		private long conditionSinceMs = -1;
+		private long activeSinceMs;
+
+		private Hysteresis(final long triggerMs, final long clearMs) {
+			this.triggerMs = triggerMs;
+			this.clearMs = clearMs;
+		}
+
+		/**
+		 * @param bad 異常開始の条件を満たしているかどうか
+		 * @param good 異常解消の条件を満たしているかどうか
+		 * @param nowMs
+		 * @return 異常が開始したら1, 解消したら-1, 変化が無ければ0
+		 */
+		private int update(final boolean bad, final boolean good, final long nowMs) {
+			if (!(active ? good : bad)) {
+				conditionSinceMs = -1;
+				return 0;
+			}
+			if (conditionSinceMs < 0) {
+				conditionSinceMs = nowMs;
+			}
+			if (nowMs - conditionSinceMs < (active ? clearMs : triggerMs)) {
+				return 0;
+			}
+			active = !active;
+			conditionSinceMs = -1;
+			if (active) {
+				activeSinceMs = nowMs;
+				return 1;
+			}
+			return -1;
+		}
+
+		private void reset() {
+			active = false;
+			conditionSinceMs = -1;
+		}
+	}
+}
@@ -20,13 +20,10 @@ import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
+
+import androidx.annotation.Nullable;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
@@ -34,10 +31,10 @@ import java.util.Scanner;
  */
 public class RoomParametersFetcher {
   private static final String TAG = "RoomRTCClient";
-  private static final int TURN_HTTP_TIMEOUT_MS = 5000;
   private final RoomParametersFetcherEvents events;
   private final String roomUrl;
   private final String roomMessage;
+  private final TurnServerCache turnServerCache;
 
   /**
    * Room parameters fetcher callbacks.
@@ -57,13 +54,24 @@ public class RoomParametersFetcher {
 
   public RoomParametersFetcher(
       String roomUrl, String roomMessage, final RoomParametersFetcherEvents events) {
+    this(roomUrl, roomMessage, events, null);
+  }
+
+  // |turnServerCache| keeps TURN servers across calls, null fetches them for this request only.
+  public RoomParametersFetcher(String roomUrl, String roomMessage,
+      final RoomParametersFetcherEvents events, @Nullable TurnServerCache turnServerCache) {
     this.roomUrl = roomUrl;
     this.roomMessage = roomMessage;
     this.events = events;
+    this.turnServerCache =
+        turnServerCache != null ? turnServerCache : new TurnServerCache(null /* cacheDir */);
   }
 
   public void makeRequest() {
     Log.d(TAG, "Connecting to room: " + roomUrl);
+    CallSetupTracer.getInstance().begin(CallSetupTracer.Phase.ROOM_REQUEST);
+    // Fetch TURN servers of the last ice_server_url of this room server while joining.
+    turnServerCache.prefetch(roomUrl);
     AsyncHttpURLConnection httpConnection =
         new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpEvents() {
           @Override
@@ -74,6 +82,7 @@ public class RoomParametersFetcher {
 
           @Override
           public void onHttpComplete(String response) {
+            CallSetupTracer.getInstance().end(CallSetupTracer.Phase.ROOM_REQUEST);
             roomHttpResponseParse(response);
           }
         });
@@ -115,6 +124,14 @@ public class RoomParametersFetcher {
             IceCandidate candidate = new IceCandidate(
                 message.getString("id"), message.getInt("label"), message.getString("candidate"));
             iceCandidates.add(candidate);
+          } else if (messageType.equals("candidates")) {
+            // Batched candidates sent within the sender's coalescing window.
+            JSONArray candidateArray = message.getJSONArray("candidates");
+            for (int j = 0; j < candidateArray.length(); ++j) {
+              JSONObject candidateJson = candidateArray.getJSONObject(j);
+              iceCandidates.add(new IceCandidate(candidateJson.getString("id"),
+                  candidateJson.getInt("label"), candidateJson.getString("candidate")));
+            }
           } else {
             Log.e(TAG, "Unknown message: " + messageString);
           }
@@ -125,7 +142,7 @@ public class RoomParametersFetcher {
       Log.d(TAG, "WSS url: " + wssUrl);
       Log.d(TAG, "WSS POST url: " + wssPostUrl);
 
-      List<PeerConnection.IceServer> iceServers =
+      final List<PeerConnection.IceServer> iceServers =
           iceServersFromPCConfigJSON(roomJson.getString("pc_config"));
       boolean isTurnPresent = false;
       for (PeerConnection.IceServer server : iceServers) {
@@ -137,64 +154,36 @@ public class RoomParametersFetcher {
           }
         }
       }
-      // Request TURN servers.
-      if (!isTurnPresent && !roomJson.optString("ice_server_url").isEmpty()) {
-        List<PeerConnection.IceServer> turnServers =
-            requestTurnServers(roomJson.getString("ice_server_url"));
-        for (PeerConnection.IceServer turnServer : turnServers) {
-          Log.d(TAG, "TurnServer: " + turnServer);
-          iceServers.add(turnServer);
-        }
+      final SignalingParameters params = new SignalingParameters(
+          iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates);
+      // Request TURN servers, served from the cache or from the prefetch when possible.
+      String iceServerUrl = roomJson.optString("ice_server_url");
+      if (!isTurnPresent && !iceServerUrl.isEmpty()) {
+        turnServerCache.setIceServerUrl(roomUrl, iceServerUrl);
+        CallSetupTracer.getInstance().begin(CallSetupTracer.Phase.TURN_FETCH);
+        turnServerCache.request(iceServerUrl, new TurnServerCache.Callback() {
+          @Override
+          public void onTurnServersReady(List<PeerConnection.IceServer> turnServers) {
+            CallSetupTracer.getInstance().end(CallSetupTracer.Phase.TURN_FETCH);
+            for (PeerConnection.IceServer turnServer : turnServers) {
+              Log.d(TAG, "TurnServer: " + turnServer);
+              iceServers.add(turnServer);
+            }
+            events.onSignalingParametersReady(params);
+          }
+
+          @Override
+          public void onTurnServersError(String description) {
+            events.onSignalingParametersError("Room IO error: " + description);
+          }
+        });
+        return;
       }
 
-      SignalingParameters params = new SignalingParameters(
-          iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates);
       events.onSignalingParametersReady(params);
     } catch (JSONException e) {
       events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
-    } catch (IOException e) {
-      events.onSignalingParametersError("Room IO error: " + e.toString());
-    }
-  }
-
-  // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-  // off the main thread!
-  private List<PeerConnection.IceServer> requestTurnServers(String url)
-      throws IOException, JSONException {
-    List<PeerConnection.IceServer> turnServers = new ArrayList<>();
-    Log.d(TAG, "Request TURN from: " + url);
-    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-    connection.setDoOutput(true);
-    connection.setRequestProperty("REFERER", "https://appr.tc");
-    connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-    connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-    int responseCode = connection.getResponseCode();
-    if (responseCode != 200) {
-      throw new IOException("Non-200 response when requesting TURN server from " + url + " : "
-          + connection.getHeaderField(null));
-    }
-    InputStream responseStream = connection.getInputStream();
-    String response = drainStream(responseStream);
-    connection.disconnect();
-    Log.d(TAG, "TURN response: " + response);
-    JSONObject responseJSON = new JSONObject(response);
-    JSONArray iceServers = responseJSON.getJSONArray("iceServers");
-    for (int i = 0; i < iceServers.length(); ++i) {
-      JSONObject server = iceServers.getJSONObject(i);
-      JSONArray turnUrls = server.getJSONArray("urls");
-      String username = server.has("username") ? server.getString("username") : "";
-      String credential = server.has("credential") ? server.getString("credential") : "";
-      for (int j = 0; j < turnUrls.length(); j++) {
-        String turnUrl = turnUrls.getString(j);
-        PeerConnection.IceServer turnServer =
-            PeerConnection.IceServer.builder(turnUrl)
-              .setUsername(username)
-              .setPassword(credential)
-              .createIceServer();
-        turnServers.add(turnServer);
-      }
     }
-    return turnServers;
   }
 
   // Return the list of ICE servers described by a WebRTCPeerConnection
@@ -216,10 +205,4 @@ public class RoomParametersFetcher {
     }
     return ret;
   }
-
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
-  }
 }
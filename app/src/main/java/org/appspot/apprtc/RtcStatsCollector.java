@@ -0,0 +1,249 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsCollectorCallback;
+import org.webrtc.RTCStatsReport;
+
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 標準のRTCStatsCollectorCallbackで受け取ったRTCStatsReportを解析して
+ * RtcStatsSnapshotへ変換するためのヘルパークラス
+ * 旧来のStatsObserver/StatsReportと違って文字列のマップを生成せずに
+ * 必要なメンバーだけをプリミティブ型のフィールドとして取り出す
+ * onStatsDeliveredはlibwebrtcのシグナリングスレッドから呼ばれるので
+ * 解析処理はUIスレッドでは行われない
+ */
+public class RtcStatsCollector implements RTCStatsCollectorCallback {
+
+	/**
+	 * 解析した統計情報を受け取るためのコールバックインターフェース
+	 */
+	public interface Callback {
+		/**
+		 * 統計情報を解析した時に呼ばれる, libwebrtcのシグナリングスレッド上で呼ばれる
+		 * @param snapshot
+		 */
+		void onStatsSnapshot(@NonNull final RtcStatsSnapshot snapshot);
+	}
+
+	private static final String TYPE_INBOUND_RTP = "inbound-rtp";
+	private static final String TYPE_OUTBOUND_RTP = "outbound-rtp";
+	private static final String TYPE_CANDIDATE_PAIR = "candidate-pair";
+	private static final String TYPE_MEDIA_SOURCE = "media-source";
+	private static final String TYPE_TRANSPORT = "transport";
+
+	@NonNull
+	private final Callback mCallback;
+
+	/**
+	 * コンストラクタ
+	 * @param callback
+	 */
+	public RtcStatsCollector(@NonNull final Callback callback) {
+		mCallback = callback;
+	}
+
+	@Override
+	public void onStatsDelivered(final RTCStatsReport report) {
+		mCallback.onStatsSnapshot(parse(report));
+	}
+
+	/**
+	 * RTCStatsReportを解析してRtcStatsSnapshotを生成する
+	 * @param report
+	 * @return
+	 */
+	@NonNull
+	public static RtcStatsSnapshot parse(@NonNull final RTCStatsReport report) {
+		final RtcStatsSnapshot snapshot = new RtcStatsSnapshot(report.getTimestampUs());
+		final Map<String, RTCStats> statsMap = report.getStatsMap();
+		String selectedPairId = null;
+		RTCStats nominatedPair = null;
+		for (final RTCStats stats: statsMap.values()) {
+			final String type = stats.getType();
+			final Map<String, Object> members = stats.getMembers();
+			if (TYPE_INBOUND_RTP.equals(type)) {
+				snapshot.inboundRtp.add(parseInbound(members));
+			} else if (TYPE_OUTBOUND_RTP.equals(type)) {
+				snapshot.outboundRtp.add(parseOutbound(members));
+			} else if (TYPE_MEDIA_SOURCE.equals(type)) {
+				snapshot.mediaSources.add(parseMediaSource(members));
+			} else if (TYPE_TRANSPORT.equals(type)) {
+				if (selectedPairId == null) {
+					selectedPairId = getString(members, "selectedCandidatePairId");
+				}
+			} else if (TYPE_CANDIDATE_PAIR.equals(type)) {
+				if ((nominatedPair == null)
+					&& getBoolean(members, "nominated")
+					&& "succeeded".equals(getString(members, "state"))) {
+					nominatedPair = stats;
+				}
+			}
+		}
+		// transportのselectedCandidatePairIdを優先して、無ければ接続済みでnominatedなものを使う
+		RTCStats pair = selectedPairId != null ? statsMap.get(selectedPairId) : null;
+		if (pair == null) {
+			pair = nominatedPair;
+		}
+		if (pair != null) {
+			snapshot.selectedCandidatePair = parseCandidatePair(statsMap, pair.getMembers());
+		}
+		return snapshot;
+	}
+
+	@NonNull
+	private static RtcStatsSnapshot.InboundRtp parseInbound(@NonNull final Map<String, Object> members) {
+		final RtcStatsSnapshot.InboundRtp result = new RtcStatsSnapshot.InboundRtp();
+		result.ssrc = getLong(members, "ssrc");
+		result.kind = RtcStatsSnapshot.MediaKind.of(getString(members, "kind"));
+		result.packetsReceived = getLong(members, "packetsReceived");
+		result.packetsLost = getLong(members, "packetsLost");
+		result.bytesReceived = getLong(members, "bytesReceived");
+		result.jitter = getDouble(members, "jitter");
+		result.jitterBufferDelay = getDouble(members, "jitterBufferDelay");
+		result.jitterBufferEmittedCount = getLong(members, "jitterBufferEmittedCount");
+		result.nackCount = getLong(members, "nackCount");
+		result.pliCount = getLong(members, "pliCount");
+		result.firCount = getLong(members, "firCount");
+		result.framesReceived = getLong(members, "framesReceived");
+		result.framesDecoded = getLong(members, "framesDecoded");
+		result.keyFramesDecoded = getLong(members, "keyFramesDecoded");
+		result.screenshare = "screenshare".equals(getString(members, "contentType"));
+		result.framesDropped = getLong(members, "framesDropped");
+		result.totalDecodeTime = getDouble(members, "totalDecodeTime");
+		result.framesPerSecond = getDouble(members, "framesPerSecond");
+		result.frameWidth = (int)getLong(members, "frameWidth");
+		result.frameHeight = (int)getLong(members, "frameHeight");
+		result.freezeCount = getLong(members, "freezeCount");
+		result.totalFreezesDuration = getDouble(members, "totalFreezesDuration");
+		result.totalSamplesReceived = getLong(members, "totalSamplesReceived");
+		result.concealedSamples = getLong(members, "concealedSamples");
+		result.audioLevel = getDouble(members, "audioLevel");
+		return result;
+	}
+
+	@NonNull
+	private static RtcStatsSnapshot.OutboundRtp parseOutbound(@NonNull final Map<String, Object> members) {
+		final RtcStatsSnapshot.OutboundRtp result = new RtcStatsSnapshot.OutboundRtp();
+		result.ssrc = getLong(members, "ssrc");
+		result.kind = RtcStatsSnapshot.MediaKind.of(getString(members, "kind"));
+		result.packetsSent = getLong(members, "packetsSent");
+		result.bytesSent = getLong(members, "bytesSent");
+		result.retransmittedPacketsSent = getLong(members, "retransmittedPacketsSent");
+		result.retransmittedBytesSent = getLong(members, "retransmittedBytesSent");
+		result.targetBitrate = getDouble(members, "targetBitrate");
+		result.nackCount = getLong(members, "nackCount");
+		result.pliCount = getLong(members, "pliCount");
+		result.firCount = getLong(members, "firCount");
+		result.framesSent = getLong(members, "framesSent");
+		result.framesEncoded = getLong(members, "framesEncoded");
+		result.keyFramesEncoded = getLong(members, "keyFramesEncoded");
+		result.hugeFramesSent = getLong(members, "hugeFramesSent");
+		result.totalEncodeTime = getDouble(members, "totalEncodeTime");
+		result.totalPacketSendDelay = getDouble(members, "totalPacketSendDelay");
+		result.framesPerSecond = getDouble(members, "framesPerSecond");
+		result.frameWidth = (int)getLong(members, "frameWidth");
+		result.frameHeight = (int)getLong(members, "frameHeight");
+		result.qpSum = getLong(members, "qpSum");
+		result.qualityLimitationReason = RtcStatsSnapshot.QualityLimitation.of(
+			getString(members, "qualityLimitationReason"));
+		result.qualityLimitationResolutionChanges
+			= getLong(members, "qualityLimitationResolutionChanges");
+		return result;
+	}
+
+	@NonNull
+	private static RtcStatsSnapshot.MediaSource parseMediaSource(@NonNull final Map<String, Object> members) {
+		final RtcStatsSnapshot.MediaSource result = new RtcStatsSnapshot.MediaSource();
+		result.kind = RtcStatsSnapshot.MediaKind.of(getString(members, "kind"));
+		result.width = (int)getLong(members, "width");
+		result.height = (int)getLong(members, "height");
+		result.frames = getLong(members, "frames");
+		result.framesPerSecond = getDouble(members, "framesPerSecond");
+		result.audioLevel = getDouble(members, "audioLevel");
+		result.totalAudioEnergy = getDouble(members, "totalAudioEnergy");
+		result.totalSamplesDuration = getDouble(members, "totalSamplesDuration");
+		return result;
+	}
+
+	@NonNull
+	private static RtcStatsSnapshot.CandidatePair parseCandidatePair(
+		@NonNull final Map<String, RTCStats> statsMap,
+		@NonNull final Map<String, Object> members) {
+
+		final RtcStatsSnapshot.CandidatePair result = new RtcStatsSnapshot.CandidatePair();
+		result.nominated = getBoolean(members, "nominated");
+		result.succeeded = "succeeded".equals(getString(members, "state"));
+		result.localCandidateType = getCandidateType(statsMap, getString(members, "localCandidateId"));
+		result.remoteCandidateType = getCandidateType(statsMap, getString(members, "remoteCandidateId"));
+		result.packetsSent = getLong(members, "packetsSent");
+		result.packetsReceived = getLong(members, "packetsReceived");
+		result.bytesSent = getLong(members, "bytesSent");
+		result.bytesReceived = getLong(members, "bytesReceived");
+		result.currentRoundTripTime = getDouble(members, "currentRoundTripTime");
+		result.totalRoundTripTime = getDouble(members, "totalRoundTripTime");
+		result.responsesReceived = getLong(members, "responsesReceived");
+		result.availableOutgoingBitrate = getDouble(members, "availableOutgoingBitrate");
+		result.availableIncomingBitrate = getDouble(members, "availableIncomingBitrate");
+		return result;
+	}
+
+	@NonNull
+	private static RtcStatsSnapshot.CandidateType getCandidateType(
+		@NonNull final Map<String, RTCStats> statsMap,
+		@Nullable final String candidateId) {
+
+		final RTCStats candidate = candidateId != null ? statsMap.get(candidateId) : null;
+		return RtcStatsSnapshot.CandidateType.of(
+			candidate != null ? getString(candidate.getMembers(), "candidateType") : null);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 整数値のメンバーを取得する
+	 * libwebrtcはuint32をLong, int32をInteger, uint64をBigIntegerとして返すので
+	 * Numberとして扱う
+	 * @param members
+	 * @param name
+	 * @return 存在しない時は-1
+	 */
+	private static long getLong(@NonNull final Map<String, Object> members, @NonNull final String name) {
+		final Object value = members.get(name);
+		return value instanceof Number ? ((Number)value).longValue() : -1;
+	}
+
+	/**
+	 * 実数値のメンバーを取得する
+	 * @param members
+	 * @param name
+	 * @return 存在しない時はNaN
+	 */
+	private static double getDouble(@NonNull final Map<String, Object> members, @NonNull final String name) {
+		final Object value = members.get(name);
+		return value instanceof Number ? ((Number)value).doubleValue() : Double.NaN;
+	}
+
+	private static boolean getBoolean(@NonNull final Map<String, Object> members, @NonNull final String name) {
+		final Object value = members.get(name);
+		return (value instanceof Boolean) && (Boolean)value;
+	}
+
+	@Nullable
+	private static String getString(@NonNull final Map<String, Object> members, @NonNull final String name) {
+		final Object value = members.get(name);
+		return value instanceof String ? (String)value : null;
+	}
+}
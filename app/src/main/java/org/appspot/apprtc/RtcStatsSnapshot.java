@@ -0,0 +1,281 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * RtcStatsCollectorで1回のgetStatsの結果を解析した統計情報
+ * 標準のRTCStatsReportのうちinbound-rtp/outbound-rtp/candidate-pair/media-sourceを
+ * プリミティブ型のフィールドへ変換して保持する
+ * 値が含まれていなかったフィールドは整数なら-1、実数ならNaNになる
+ * 生成後は変更しないので任意のスレッドから参照して良い
+ */
+public class RtcStatsSnapshot {
+
+	/**
+	 * メディアの種類
+	 */
+	public enum MediaKind {
+		AUDIO,
+		VIDEO,
+		UNKNOWN;
+
+		@NonNull
+		static MediaKind of(@Nullable final String kind) {
+			if ("video".equals(kind)) {
+				return VIDEO;
+			} else if ("audio".equals(kind)) {
+				return AUDIO;
+			}
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * ICE candidateの種類
+	 */
+	public enum CandidateType {
+		HOST,
+		SRFLX,
+		PRFLX,
+		RELAY,
+		UNKNOWN;
+
+		@NonNull
+		static CandidateType of(@Nullable final String type) {
+			if ("host".equals(type)) {
+				return HOST;
+			} else if ("srflx".equals(type)) {
+				return SRFLX;
+			} else if ("prflx".equals(type)) {
+				return PRFLX;
+			} else if ("relay".equals(type)) {
+				return RELAY;
+			}
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * 送信側の品質制限の理由(outbound-rtpのqualityLimitationReason)
+	 */
+	public enum QualityLimitation {
+		NONE,
+		CPU,
+		BANDWIDTH,
+		OTHER,
+		UNKNOWN;
+
+		@NonNull
+		static QualityLimitation of(@Nullable final String reason) {
+			if ("none".equals(reason)) {
+				return NONE;
+			} else if ("cpu".equals(reason)) {
+				return CPU;
+			} else if ("bandwidth".equals(reason)) {
+				return BANDWIDTH;
+			} else if ("other".equals(reason)) {
+				return OTHER;
+			}
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * 受信RTPストリーム毎の統計情報(inbound-rtp)
+	 */
+	public static class InboundRtp {
+		public long ssrc = -1;
+		@NonNull
+		public MediaKind kind = MediaKind.UNKNOWN;
+		public long packetsReceived = -1;
+		public long packetsLost = -1;
+		public long bytesReceived = -1;
+		/** [秒] */
+		public double jitter = Double.NaN;
+		/** [秒] */
+		public double jitterBufferDelay = Double.NaN;
+		public long jitterBufferEmittedCount = -1;
+		public long nackCount = -1;
+		public long pliCount = -1;
+		public long firCount = -1;
+		// 以下は映像のみ
+		public long framesReceived = -1;
+		public long framesDecoded = -1;
+		public long keyFramesDecoded = -1;
+		/** 送信側がcontentTypeに画面共有を指定していればtrue, 映像が変化しなければフレームが来ない */
+		public boolean screenshare;
+		public long framesDropped = -1;
+		/** [秒] */
+		public double totalDecodeTime = Double.NaN;
+		public double framesPerSecond = Double.NaN;
+		public int frameWidth = -1;
+		public int frameHeight = -1;
+		public long freezeCount = -1;
+		/** [秒] */
+		public double totalFreezesDuration = Double.NaN;
+		// 以下は音声のみ
+		public long totalSamplesReceived = -1;
+		public long concealedSamples = -1;
+		public double audioLevel = Double.NaN;
+	}
+
+	/**
+	 * 送信RTPストリーム毎の統計情報(outbound-rtp)
+	 */
+	public static class OutboundRtp {
+		public long ssrc = -1;
+		@NonNull
+		public MediaKind kind = MediaKind.UNKNOWN;
+		public long packetsSent = -1;
+		public long bytesSent = -1;
+		public long retransmittedPacketsSent = -1;
+		public long retransmittedBytesSent = -1;
+		/** [bps] */
+		public double targetBitrate = Double.NaN;
+		public long nackCount = -1;
+		public long pliCount = -1;
+		public long firCount = -1;
+		// 以下は映像のみ
+		public long framesSent = -1;
+		public long framesEncoded = -1;
+		public long keyFramesEncoded = -1;
+		public long hugeFramesSent = -1;
+		/** [秒] */
+		public double totalEncodeTime = Double.NaN;
+		/** [秒] */
+		public double totalPacketSendDelay = Double.NaN;
+		public double framesPerSecond = Double.NaN;
+		public int frameWidth = -1;
+		public int frameHeight = -1;
+		public long qpSum = -1;
+		@NonNull
+		public QualityLimitation qualityLimitationReason = QualityLimitation.UNKNOWN;
+		public long qualityLimitationResolutionChanges = -1;
+	}
+
+	/**
+	 * 選択中のICE candidate pairの統計情報(candidate-pair)
+	 */
+	public static class CandidatePair {
+		public boolean nominated;
+		/** stateがsucceededかどうか */
+		public boolean succeeded;
+		@NonNull
+		public CandidateType localCandidateType = CandidateType.UNKNOWN;
+		@NonNull
+		public CandidateType remoteCandidateType = CandidateType.UNKNOWN;
+		public long packetsSent = -1;
+		public long packetsReceived = -1;
+		public long bytesSent = -1;
+		public long bytesReceived = -1;
+		/** [秒] */
+		public double currentRoundTripTime = Double.NaN;
+		/** [秒] */
+		public double totalRoundTripTime = Double.NaN;
+		public long responsesReceived = -1;
+		/** [bps] */
+		public double availableOutgoingBitrate = Double.NaN;
+		/** [bps] */
+		public double availableIncomingBitrate = Double.NaN;
+	}
+
+	/**
+	 * ローカルのメディアソース毎の統計情報(media-source)
+	 */
+	public static class MediaSource {
+		@NonNull
+		public MediaKind kind = MediaKind.UNKNOWN;
+		// 以下は映像のみ
+		public int width = -1;
+		public int height = -1;
+		public long frames = -1;
+		public double framesPerSecond = Double.NaN;
+		// 以下は音声のみ
+		public double audioLevel = Double.NaN;
+		public double totalAudioEnergy = Double.NaN;
+		public double totalSamplesDuration = Double.NaN;
+	}
+
+	/**
+	 * 統計情報のタイムスタンプ[マイクロ秒]
+	 */
+	public final long timestampUs;
+	@NonNull
+	public final List<InboundRtp> inboundRtp = new ArrayList<>();
+	@NonNull
+	public final List<OutboundRtp> outboundRtp = new ArrayList<>();
+	@NonNull
+	public final List<MediaSource> mediaSources = new ArrayList<>();
+	/**
+	 * 選択中のcandidate pair, 未接続ならnull
+	 */
+	@Nullable
+	public CandidatePair selectedCandidatePair;
+
+	/**
+	 * コンストラクタ
+	 * @param timestampUs
+	 */
+	public RtcStatsSnapshot(final long timestampUs) {
+		this.timestampUs = timestampUs;
+	}
+
+	/**
+	 * 指定した種類の最初の受信ストリームを取得
+	 * @param kind
+	 * @return 見つからなければnull
+	 */
+	@Nullable
+	public InboundRtp findInbound(@NonNull final MediaKind kind) {
+		for (final InboundRtp stats: inboundRtp) {
+			if (stats.kind == kind) {
+				return stats;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 指定した種類の最初の送信ストリームを取得
+	 * simulcast時は複数あるので全てを見るときはoutboundRtpを直接参照すること
+	 * @param kind
+	 * @return 見つからなければnull
+	 */
+	@Nullable
+	public OutboundRtp findOutbound(@NonNull final MediaKind kind) {
+		for (final OutboundRtp stats: outboundRtp) {
+			if (stats.kind == kind) {
+				return stats;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 指定した種類の最初のメディアソースを取得
+	 * @param kind
+	 * @return 見つからなければnull
+	 */
+	@Nullable
+	public MediaSource findMediaSource(@NonNull final MediaKind kind) {
+		for (final MediaSource stats: mediaSources) {
+			if (stats.kind == kind) {
+				return stats;
+			}
+		}
+		return null;
+	}
+}
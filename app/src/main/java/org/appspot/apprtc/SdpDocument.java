@@ -0,0 +1,313 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * SDPを一度だけパースしてセッション部とメディアセクション(m=行単位)に分割し、
+ * コーデックの優先順位変更やビットレート指定などの編集をまとめて適用してから
+ * 一度だけ文字列へ戻すためのヘルパークラス
+ * 以前はPeerConnectionClient内で編集の度にSDP全体を分割・正規表現検索・再結合していた
+ *
+ * <p>This class is not thread-safe.
+ */
+class SdpDocument {
+	private static final String TAG = "SdpDocument";
+	private static final String LINE_SEPARATOR = "\r\n";
+	private static final String MEDIA_PREFIX = "m=";
+	private static final String RTPMAP_PREFIX = "a=rtpmap:";
+	private static final String FMTP_PREFIX = "a=fmtp:";
+	static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+	static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+
+	/**
+	 * a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+	 * のうちペイロードタイプとエンコーディング名を保持する
+	 */
+	private static class RtpMap {
+		@NonNull
+		final String payloadType;
+		@NonNull
+		final String encodingName;
+
+		RtpMap(@NonNull final String payloadType, @NonNull final String encodingName) {
+			this.payloadType = payloadType;
+			this.encodingName = encodingName;
+		}
+	}
+
+	/**
+	 * m=行から次のm=行の手前までのメディアセクション
+	 * lines.get(0)が常にm=行
+	 */
+	private static class MediaSection {
+		@NonNull
+		final String media;
+		@NonNull
+		final List<String> lines = new ArrayList<>();
+		@NonNull
+		final List<RtpMap> rtpMaps = new ArrayList<>();
+
+		MediaSection(@NonNull final String mLine) {
+			final int end = mLine.indexOf(' ');
+			media = end > MEDIA_PREFIX.length()
+				? mLine.substring(MEDIA_PREFIX.length(), end) : "";
+			lines.add(mLine);
+		}
+
+		void addLine(@NonNull final String line) {
+			lines.add(line);
+			if (line.startsWith(RTPMAP_PREFIX)) {
+				final RtpMap rtpMap = parseRtpMap(line);
+				if (rtpMap != null) {
+					rtpMaps.add(rtpMap);
+				}
+			}
+		}
+
+		/**
+		 * 指定したエンコーディング名に一致するペイロードタイプの一覧を返す
+		 */
+		@NonNull
+		List<String> findPayloadTypes(@NonNull final String codec) {
+			final List<String> result = new ArrayList<>();
+			for (final RtpMap rtpMap : rtpMaps) {
+				if (codec.equals(rtpMap.encodingName)) {
+					result.add(rtpMap.payloadType);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * 指定した行の先頭文字列に一致する最初の行のインデックスを返す、見つからなければ-1
+		 */
+		int indexOfLine(@NonNull final String prefix) {
+			final int n = lines.size();
+			for (int i = 0; i < n; i++) {
+				if (lines.get(i).startsWith(prefix)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	@NonNull
+	private final String original;
+	@NonNull
+	private final List<String> sessionLines = new ArrayList<>();
+	@NonNull
+	private final List<MediaSection> sections = new ArrayList<>();
+	private boolean modified;
+
+	/**
+	 * SDP文字列をパースしてSdpDocumentを生成する
+	 * @param sdpDescription
+	 * @return
+	 */
+	@NonNull
+	static SdpDocument parse(@NonNull final String sdpDescription) {
+		return new SdpDocument(sdpDescription);
+	}
+
+	private SdpDocument(@NonNull final String sdpDescription) {
+		original = sdpDescription;
+		final int length = sdpDescription.length();
+		MediaSection current = null;
+		int start = 0;
+		while (start < length) {
+			int end = sdpDescription.indexOf('\n', start);
+			if (end < 0) {
+				end = length;
+			}
+			// 行末の\rを取り除く
+			final int lineEnd = (end > start) && (sdpDescription.charAt(end - 1) == '\r')
+				? end - 1 : end;
+			if (lineEnd > start) {
+				final String line = sdpDescription.substring(start, lineEnd);
+				if (line.startsWith(MEDIA_PREFIX)) {
+					current = new MediaSection(line);
+					sections.add(current);
+				} else if (current != null) {
+					current.addLine(line);
+				} else {
+					sessionLines.add(line);
+				}
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * 指定したコーデックのペイロードタイプを最初のaudioまたはvideoセクションの
+	 * m=行の先頭へ移動させる
+	 * @param codec
+	 * @param isAudio
+	 * @return 変更されたかどうか
+	 */
+	boolean preferCodec(@NonNull final String codec, final boolean isAudio) {
+		final MediaSection section = findSection(isAudio ? "audio" : "video");
+		if (section == null) {
+			Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
+			return false;
+		}
+		// A list with all the payload types with name |codec|. The payload types are integers in the
+		// range 96-127, but they are stored as strings here.
+		final List<String> codecPayloadTypes = section.findPayloadTypes(codec);
+		if (codecPayloadTypes.isEmpty()) {
+			Log.w(TAG, "No payload types with name " + codec);
+			return false;
+		}
+		final String mLine = section.lines.get(0);
+		final String newMLine = movePayloadTypesToFront(codecPayloadTypes, mLine);
+		if (newMLine == null) {
+			return false;
+		}
+		if (!newMLine.equals(mLine)) {
+			Log.d(TAG, "Change media description from: " + mLine + " to " + newMLine);
+			section.lines.set(0, newMLine);
+			modified = true;
+		}
+		return true;
+	}
+
+	/**
+	 * 指定したコーデックの開始ビットレート(映像)または最大平均ビットレート(音声)を
+	 * a=fmtp行へ設定する、a=fmtp行が存在しなければa=rtpmap行の直後に追加する
+	 * @param codec
+	 * @param isVideoCodec
+	 * @param bitrateKbps
+	 * @return 変更されたかどうか
+	 */
+	boolean setStartBitrate(@NonNull final String codec,
+		final boolean isVideoCodec, final int bitrateKbps) {
+
+		MediaSection section = null;
+		String codecRtpMap = null;
+		for (final MediaSection s : sections) {
+			final List<String> payloadTypes = s.findPayloadTypes(codec);
+			if (!payloadTypes.isEmpty()) {
+				section = s;
+				codecRtpMap = payloadTypes.get(0);
+				break;
+			}
+		}
+		if (codecRtpMap == null) {
+			Log.w(TAG, "No rtpmap for " + codec + " codec");
+			return false;
+		}
+		final String param = isVideoCodec
+			? VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps
+			: AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
+
+		// Check if a=fmtp string already exist in remote SDP for this codec and
+		// update it with new bitrate parameter.
+		final int fmtpIndex = section.indexOfLine(FMTP_PREFIX + codecRtpMap + " ");
+		if ((fmtpIndex >= 0) && (section.lines.get(fmtpIndex).indexOf('=', FMTP_PREFIX.length()) > 0)) {
+			final String line = section.lines.get(fmtpIndex) + "; " + param;
+			Log.d(TAG, "Update remote SDP line: " + line);
+			section.lines.set(fmtpIndex, line);
+		} else {
+			// Append new a=fmtp line if no such line exist for a codec.
+			final int rtpmapIndex = section.indexOfLine(RTPMAP_PREFIX + codecRtpMap + " ");
+			final String line = FMTP_PREFIX + codecRtpMap + " " + param;
+			Log.d(TAG, "Add remote SDP line: " + line);
+			section.lines.add(rtpmapIndex + 1, line);
+		}
+		modified = true;
+		return true;
+	}
+
+	/**
+	 * 編集済みであればSDP文字列を再構築して返す、未編集ならパース前の文字列をそのまま返す
+	 * @return
+	 */
+	@NonNull
+	@Override
+	public String toString() {
+		if (!modified) {
+			return original;
+		}
+		final StringBuilder sb = new StringBuilder(original.length() + 128);
+		for (final String line : sessionLines) {
+			sb.append(line).append(LINE_SEPARATOR);
+		}
+		for (final MediaSection section : sections) {
+			for (final String line : section.lines) {
+				sb.append(line).append(LINE_SEPARATOR);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Nullable
+	private MediaSection findSection(@NonNull final String media) {
+		for (final MediaSection section : sections) {
+			if (media.equals(section.media)) {
+				return section;
+			}
+		}
+		return null;
+	}
+
+	@Nullable
+	private static RtpMap parseRtpMap(@NonNull final String line) {
+		final int start = RTPMAP_PREFIX.length();
+		final int space = line.indexOf(' ', start);
+		if (space <= start) {
+			return null;
+		}
+		final int slash = line.indexOf('/', space + 1);
+		if (slash <= space + 1) {
+			return null;
+		}
+		for (int i = start; i < space; i++) {
+			if (!Character.isDigit(line.charAt(i))) {
+				return null;
+			}
+		}
+		return new RtpMap(line.substring(start, space), line.substring(space + 1, slash));
+	}
+
+	@Nullable
+	private static String movePayloadTypesToFront(
+		@NonNull final List<String> preferredPayloadTypes, @NonNull final String mLine) {
+
+		// The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
+		final String[] origLineParts = mLine.split(" ");
+		if (origLineParts.length <= 3) {
+			Log.e(TAG, "Wrong SDP media description format: " + mLine);
+			return null;
+		}
+		// Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
+		// types.
+		final StringBuilder sb = new StringBuilder(mLine.length());
+		sb.append(origLineParts[0]).append(' ')
+			.append(origLineParts[1]).append(' ')
+			.append(origLineParts[2]);
+		for (final String payloadType : preferredPayloadTypes) {
+			sb.append(' ').append(payloadType);
+		}
+		for (int i = 3; i < origLineParts.length; i++) {
+			if (!preferredPayloadTypes.contains(origLineParts[i])) {
+				sb.append(' ').append(origLineParts[i]);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -51,6 +51,7 @@ public class SettingsActivity extends BaseActivity implements OnSharedPreference
   private String keyprefSpeakerphone;
 
   private String keyPrefRoomServerUrl;
+  private String keyprefIceCandidateBatchWindowMs;
   private String keyPrefDisplayHud;
   private String keyPrefTracing;
   private String keyprefEnabledRtcEventLog;
@@ -103,6 +104,7 @@ public class SettingsActivity extends BaseActivity implements OnSharedPreference
     keyprefDataId = getString(R.string.pref_data_id_key);
 
     keyPrefRoomServerUrl = getString(R.string.pref_room_server_url_key);
+    keyprefIceCandidateBatchWindowMs = getString(R.string.pref_ice_candidate_batch_window_ms_key);
     keyPrefDisplayHud = getString(R.string.pref_displayhud_key);
     keyPrefTracing = getString(R.string.pref_tracing_key);
     keyprefEnabledRtcEventLog = getString(R.string.pref_enable_rtceventlog_key);
@@ -161,6 +163,7 @@ public class SettingsActivity extends BaseActivity implements OnSharedPreference
     setDataChannelEnable(sharedPreferences);
 
     updateSummary(sharedPreferences, keyPrefRoomServerUrl);
+    updateSummary(sharedPreferences, keyprefIceCandidateBatchWindowMs);
     updateSummaryB(sharedPreferences, keyPrefDisplayHud);
     updateSummaryB(sharedPreferences, keyPrefTracing);
     updateSummaryB(sharedPreferences, keyprefEnabledRtcEventLog);
@@ -214,6 +217,7 @@ public class SettingsActivity extends BaseActivity implements OnSharedPreference
         || key.equals(keyprefStartAudioBitrateType)
         || key.equals(keyPrefAudioCodec)
         || key.equals(keyPrefRoomServerUrl)
+        || key.equals(keyprefIceCandidateBatchWindowMs)
         || key.equals(keyprefMaxRetransmitTimeMs)
         || key.equals(keyprefMaxRetransmits)
         || key.equals(keyprefDataProtocol)
@@ -0,0 +1,267 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 統計情報の取得間隔を状況に応じて変えるスケジューラー
+ * ・開始直後とICEの状態変化直後のランプアップ中は基準間隔より短い間隔で取得する
+ * ・安定状態では基準間隔より長い間隔で取得する
+ * ・CPUの過負荷中は取得間隔を倍々に延ばす
+ * ・前回の取得が完了していなければその回は取得しない
+ * java.util.Timerと違ってstopした後でも再度startできる
+ */
+public class StatsPollScheduler {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = StatsPollScheduler.class.getSimpleName();
+	/**
+	 * スケジューラーのスレッド名, スレッド名は15文字に切り詰められるので短くする
+	 */
+	static final String THREAD_NAME = "StatsPoll";
+
+	/**
+	 * 統計情報を取得するためのインターフェース
+	 */
+	public interface Poller {
+		/**
+		 * 統計情報の取得を開始する, スケジューラーのスレッドから呼ばれる
+		 * 取得が完了したら(取得できなかった時も)StatsPollScheduler#onPollCompleteを呼ぶこと
+		 */
+		void poll();
+	}
+
+	/**
+	 * CPUの過負荷状態を取得するためのインターフェース
+	 */
+	public interface OveruseDetector {
+		boolean isOverused();
+	}
+
+	/**
+	 * ランプアップ中の取得間隔の基準間隔に対する割合の逆数
+	 */
+	private static final int FAST_DIVISOR = 4;
+	/**
+	 * 安定状態での取得間隔の基準間隔に対する倍率
+	 */
+	private static final int STEADY_MULTIPLIER = 2;
+	/**
+	 * 過負荷時のバックオフの最大倍率
+	 */
+	private static final int MAX_BACKOFF = 8;
+	/**
+	 * 最短の取得間隔[ミリ秒]
+	 */
+	private static final long MIN_PERIOD_MS = 250;
+	/**
+	 * 開始後にランプアップとして扱う期間[ミリ秒]
+	 */
+	private static final long RAMP_UP_MS = 10000;
+	/**
+	 * ICEの状態変化後にランプアップとして扱う期間[ミリ秒]
+	 */
+	private static final long STATE_CHANGE_BOOST_MS = 5000;
+	/**
+	 * 取得の完了通知が来ないまま経過したらその取得を失われたものとして扱う時間[ミリ秒]
+	 */
+	private static final long IN_FLIGHT_TIMEOUT_MS = 5000;
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Poller mPoller;
+	@Nullable
+	private OveruseDetector mOveruseDetector;
+	@Nullable
+	private ScheduledExecutorService mExecutor;
+	@Nullable
+	private ScheduledFuture<?> mFuture;
+	private long mPeriodMs;
+	/**
+	 * この時刻まではランプアップ中として短い間隔で取得する[ミリ秒]
+	 */
+	private long mBoostUntilMs;
+	private int mBackoff = 1;
+	/**
+	 * 取得中ならその開始時刻[ミリ秒], 取得中でなければ0
+	 */
+	private long mInFlightSinceMs;
+	private int mSkipped;
+
+	/**
+	 * コンストラクタ
+	 * @param poller
+	 */
+	public StatsPollScheduler(@NonNull final Poller poller) {
+		mPoller = poller;
+	}
+
+	/**
+	 * CPUの過負荷状態を取得するためのOveruseDetectorをセット
+	 * @param detector nullならバックオフしない
+	 */
+	public void setOveruseDetector(@Nullable final OveruseDetector detector) {
+		synchronized (mSync) {
+			mOveruseDetector = detector;
+		}
+	}
+
+	/**
+	 * 定期的な取得を開始する, 既に開始していれば基準間隔を変更してランプアップからやり直す
+	 * @param periodMs 基準の取得間隔[ミリ秒]
+	 */
+	public void start(final long periodMs) {
+		if (periodMs <= 0) {
+			throw new IllegalArgumentException("periodMs should be positive");
+		}
+		synchronized (mSync) {
+			if (mExecutor == null) {
+				mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(@NonNull final Runnable r) {
+						return new Thread(r, THREAD_NAME);
+					}
+				});
+			}
+			mPeriodMs = periodMs;
+			mBoostUntilMs = SystemClock.elapsedRealtime() + RAMP_UP_MS;
+			mBackoff = 1;
+			mInFlightSinceMs = 0;
+			mSkipped = 0;
+			scheduleLocked(0);
+		}
+	}
+
+	/**
+	 * 定期的な取得を終了する, 再度startすれば再開できる
+	 */
+	public void stop() {
+		synchronized (mSync) {
+			if (mFuture != null) {
+				mFuture.cancel(false);
+				mFuture = null;
+			}
+			if (mExecutor != null) {
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
+			mInFlightSinceMs = 0;
+		}
+	}
+
+	/**
+	 * 定期的な取得中かどうか
+	 * stop後にも実行される可能性があるPoller#poll内で投げた処理の先頭で確認するために使う
+	 * @return
+	 */
+	public boolean isStarted() {
+		synchronized (mSync) {
+			return mExecutor != null;
+		}
+	}
+
+	/**
+	 * ICEの接続状態が変化した時等、しばらく短い間隔で取得したい時に呼ぶ
+	 * 次回の取得を直ちに行う
+	 */
+	public void boost() {
+		synchronized (mSync) {
+			if (mExecutor == null) {
+				return;
+			}
+			mBoostUntilMs = SystemClock.elapsedRealtime() + STATE_CHANGE_BOOST_MS;
+			scheduleLocked(0);
+		}
+	}
+
+	/**
+	 * 取得が完了した時に呼ぶ, 任意のスレッドから呼び出して良い
+	 */
+	public void onPollComplete() {
+		synchronized (mSync) {
+			mInFlightSinceMs = 0;
+		}
+	}
+
+	/**
+	 * 前回の取得が完了していなかったために取得しなかった回数
+	 * @return
+	 */
+	public int getSkippedCount() {
+		synchronized (mSync) {
+			return mSkipped;
+		}
+	}
+
+	private void scheduleLocked(final long delayMs) {
+		if (mFuture != null) {
+			mFuture.cancel(false);
+		}
+		mFuture = mExecutor.schedule(mTickTask, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	@NonNull
+	private final Runnable mTickTask = new Runnable() {
+		@Override
+		public void run() {
+			final OveruseDetector detector;
+			synchronized (mSync) {
+				if (mExecutor == null) {
+					return;
+				}
+				detector = mOveruseDetector;
+			}
+			// CpuMonitorは自身の同期オブジェクトを使うのでmSyncの外で呼ぶ
+			final boolean overused = (detector != null) && detector.isOverused();
+			boolean poll = false;
+			synchronized (mSync) {
+				if (mExecutor == null) {
+					return;
+				}
+				final long now = SystemClock.elapsedRealtime();
+				if ((mInFlightSinceMs == 0) || (now - mInFlightSinceMs > IN_FLIGHT_TIMEOUT_MS)) {
+					mInFlightSinceMs = now;
+					poll = true;
+				} else {
+					mSkipped++;
+					if (DEBUG) Log.v(TAG, "previous poll is still in flight, skipped=" + mSkipped);
+				}
+				if (overused) {
+					mBackoff = Math.min(mBackoff * 2, MAX_BACKOFF);
+				} else {
+					mBackoff = 1;
+				}
+				final long periodMs;
+				if (overused) {
+					periodMs = mPeriodMs * STEADY_MULTIPLIER * mBackoff;
+				} else if (now < mBoostUntilMs) {
+					periodMs = Math.max(MIN_PERIOD_MS, mPeriodMs / FAST_DIVISOR);
+				} else {
+					periodMs = mPeriodMs * STEADY_MULTIPLIER;
+				}
+				mFuture = mExecutor.schedule(this, periodMs, TimeUnit.MILLISECONDS);
+			}
+			if (poll) {
+				mPoller.poll();
+			}
+		}
+	};
+}
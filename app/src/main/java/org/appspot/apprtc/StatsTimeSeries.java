@@ -0,0 +1,466 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 通話中の統計情報を時系列で保持するためのクラス
+ * 1秒/10秒/1分の3段階の解像度毎に固定長のリングバッファを持ち、
+ * 各リングバッファは生成時に確保したプリミティブ配列だけを使うので
+ * 長時間通話してもメモリ使用量は増えない
+ * 各段階のサンプルはその区間内に記録された値の平均値(NaNは除外)
+ * 任意のスレッドから呼び出して良い
+ */
+public class StatsTimeSeries {
+
+	/**
+	 * 記録する値の種類
+	 * 送受信に関する値は映像ストリームがあれば映像、無ければ音声の値
+	 */
+	public enum Channel {
+		/** 送信ビットレート[kbps] */
+		SEND_BITRATE_KBPS,
+		/** 受信ビットレート[kbps] */
+		RECV_BITRATE_KBPS,
+		/** 送信フレームレート[fps] */
+		SEND_FPS,
+		/** 受信フレームレート[fps] */
+		RECV_FPS,
+		/** 往復遅延時間[ミリ秒] */
+		RTT_MS,
+		/** 受信パケットロス率[%] */
+		PACKET_LOSS_PERCENT,
+		/** 受信ジッター[ミリ秒] */
+		JITTER_MS,
+		/** CpuMonitorのCPU使用率[%] */
+		CPU_PERCENT,
+		/** 送信映像の幅 */
+		SEND_FRAME_WIDTH,
+		/** 送信映像の高さ */
+		SEND_FRAME_HEIGHT,
+		/** 受信映像の幅 */
+		RECV_FRAME_WIDTH,
+		/** 受信映像の高さ */
+		RECV_FRAME_HEIGHT,
+	}
+
+	/**
+	 * 時系列の解像度
+	 */
+	public enum Tier {
+		/** 1秒毎, 5分間 */
+		SECOND(1000, 300),
+		/** 10秒毎, 1時間 */
+		TEN_SECONDS(10000, 360),
+		/** 1分毎, 4時間 */
+		MINUTE(60000, 240);
+
+		public final long intervalMs;
+		public final int capacity;
+
+		Tier(final long intervalMs, final int capacity) {
+			this.intervalMs = intervalMs;
+			this.capacity = capacity;
+		}
+	}
+
+	private static final Channel[] CHANNELS = Channel.values();
+	private static final int NUM_CHANNELS = CHANNELS.length;
+	private static final Tier[] TIERS = Tier.values();
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Ring[] mRings = new Ring[TIERS.length];
+	/**
+	 * 最後に記録した値
+	 */
+	@NonNull
+	private final double[] mLatest = new double[NUM_CHANNELS];
+	/**
+	 * record(DerivedMetrics, int)で値を変換するための作業用配列
+	 */
+	@NonNull
+	private final double[] mWork = new double[NUM_CHANNELS];
+
+	/**
+	 * コンストラクタ
+	 */
+	public StatsTimeSeries() {
+		for (int i = 0; i < TIERS.length; i++) {
+			mRings[i] = new Ring(TIERS[i]);
+		}
+		clear();
+	}
+
+	/**
+	 * 記録した値を全て破棄する
+	 */
+	public void clear() {
+		synchronized (mSync) {
+			for (final Ring ring: mRings) {
+				ring.clear();
+			}
+			for (int i = 0; i < NUM_CHANNELS; i++) {
+				mLatest[i] = Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * DerivedMetricsEngineで計算した値を各チャネルの値へ変換して記録する
+	 * @param metrics
+	 * @param cpuPercent CPU使用率[%], 不明なら負の値
+	 */
+	public void record(@NonNull final DerivedMetrics metrics, final int cpuPercent) {
+		synchronized (mSync) {
+			final double[] values = mWork;
+			for (int i = 0; i < NUM_CHANNELS; i++) {
+				values[i] = Double.NaN;
+			}
+			final DerivedMetrics.StreamMetrics send = metrics.primaryOutbound();
+			if (send != null) {
+				values[Channel.SEND_BITRATE_KBPS.ordinal()] = send.bitrateBps / 1000;
+				values[Channel.SEND_FPS.ordinal()] = send.framesPerSecond;
+				values[Channel.SEND_FRAME_WIDTH.ordinal()] = toValue(send.frameWidth);
+				values[Channel.SEND_FRAME_HEIGHT.ordinal()] = toValue(send.frameHeight);
+			}
+			final DerivedMetrics.StreamMetrics recv = metrics.primaryInbound();
+			if (recv != null) {
+				values[Channel.RECV_BITRATE_KBPS.ordinal()] = recv.bitrateBps / 1000;
+				values[Channel.RECV_FPS.ordinal()] = recv.framesPerSecond;
+				values[Channel.PACKET_LOSS_PERCENT.ordinal()] = recv.packetLossPercent;
+				values[Channel.JITTER_MS.ordinal()] = recv.jitterMs;
+				values[Channel.RECV_FRAME_WIDTH.ordinal()] = toValue(recv.frameWidth);
+				values[Channel.RECV_FRAME_HEIGHT.ordinal()] = toValue(recv.frameHeight);
+			}
+			values[Channel.RTT_MS.ordinal()] = metrics.rttMs;
+			values[Channel.CPU_PERCENT.ordinal()] = toValue(cpuPercent);
+			record(metrics.timestampUs / 1000, values);
+		}
+	}
+
+	/**
+	 * 値を記録する
+	 * @param timestampMs 記録時刻[ミリ秒], 単調増加であること
+	 * @param values Channel#ordinalをインデックスとする値の配列, 値が無ければNaN
+	 */
+	public void record(final long timestampMs, @NonNull final double[] values) {
+		if (values.length < NUM_CHANNELS) {
+			throw new IllegalArgumentException("values should have " + NUM_CHANNELS + " elements");
+		}
+		synchronized (mSync) {
+			for (final Ring ring: mRings) {
+				ring.add(timestampMs, values);
+			}
+			System.arraycopy(values, 0, mLatest, 0, NUM_CHANNELS);
+		}
+	}
+
+	/**
+	 * 最後に記録した値を取得
+	 * @param channel
+	 * @return 値が無ければNaN
+	 */
+	public double getLatest(@NonNull final Channel channel) {
+		synchronized (mSync) {
+			return mLatest[channel.ordinal()];
+		}
+	}
+
+	/**
+	 * 指定した解像度で保持しているサンプル数(集計中の区間も含む)を取得
+	 * @param tier
+	 * @return
+	 */
+	public int getCount(@NonNull final Tier tier) {
+		synchronized (mSync) {
+			return mRings[tier.ordinal()].count();
+		}
+	}
+
+	/**
+	 * 指定した解像度の直近のサンプルを古い順に読み出す
+	 * 集計中の区間はその時点までの平均値を最後のサンプルとして返す
+	 * @param tier
+	 * @param channel
+	 * @param timestampsMs 各サンプルの区間の開始時刻[ミリ秒]を受け取る配列, nullなら受け取らない
+	 * @param values 値を受け取る配列, この配列の長さまでの直近のサンプルを読み出す
+	 * @return 読み出したサンプル数
+	 */
+	public int read(@NonNull final Tier tier, @NonNull final Channel channel,
+		@Nullable final long[] timestampsMs, @NonNull final double[] values) {
+
+		int n = values.length;
+		if ((timestampsMs != null) && (timestampsMs.length < n)) {
+			n = timestampsMs.length;
+		}
+		synchronized (mSync) {
+			return mRings[tier.ordinal()].read(channel.ordinal(), timestampsMs, values, n);
+		}
+	}
+
+	/**
+	 * 指定した解像度で区間の開始時刻が(最後に記録した時刻-durationMs, 最後に記録した時刻]の
+	 * 範囲にあるサンプルの平均値を取得
+	 * 統計情報の取得間隔が解像度より長くてもサンプル数ではなく時間で区切るので
+	 * 値が無い区間は平均に含まれない
+	 * @param tier
+	 * @param channel
+	 * @param durationMs 平均する時間[ミリ秒]
+	 * @return 値が無ければNaN
+	 */
+	public double average(@NonNull final Tier tier, @NonNull final Channel channel, final long durationMs) {
+		synchronized (mSync) {
+			return mRings[tier.ordinal()].average(channel.ordinal(), durationMs);
+		}
+	}
+
+	/**
+	 * 指定した解像度の全サンプルをCSV文字列として取得
+	 * 1行目はヘッダー(timestamp_ms, 各チャネル名)
+	 * @param tier
+	 * @return
+	 */
+	@NonNull
+	public String toCsv(@NonNull final Tier tier) {
+		final StringBuilder sb = new StringBuilder(4096);
+		sb.append("timestamp_ms");
+		for (final Channel channel: CHANNELS) {
+			sb.append(',').append(channel.name().toLowerCase(Locale.US));
+		}
+		sb.append('\n');
+		synchronized (mSync) {
+			mRings[tier.ordinal()].appendCsv(sb);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 全ての解像度の時系列を指定したディレクトリへstats_{解像度}.csvとして書き出す
+	 * ファイルアクセスするのでUIスレッド以外から呼ぶこと
+	 * @param dir
+	 * @throws IOException
+	 */
+	public void export(@NonNull final File dir) throws IOException {
+		for (final Tier tier: TIERS) {
+			final File file = new File(dir, "stats_" + tier.name().toLowerCase(Locale.US) + ".csv");
+			final OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(toCsv(tier).getBytes(CharsetsUtils.UTF8));
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static double toValue(final long value) {
+		return value >= 0 ? value : Double.NaN;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 1つの解像度分の固定長リングバッファ
+	 * 区間内の値を合計して区間が切り替わった時に平均値を1サンプルとして書き込む
+	 */
+	private static class Ring {
+		private final long intervalMs;
+		private final int capacity;
+		/**
+		 * 各サンプルの区間の開始時刻[ミリ秒]
+		 */
+		private final long[] timestamps;
+		/**
+		 * [チャネル][サンプル]
+		 */
+		private final double[][] values;
+		/**
+		 * 次に書き込む位置
+		 */
+		private int head;
+		private int size;
+		/**
+		 * 集計中の区間番号(時刻/intervalMs), 未集計なら-1
+		 */
+		private long bucket;
+		/**
+		 * 最後に記録した時刻[ミリ秒], 未記録なら-1
+		 */
+		private long lastTimestampMs;
+		private final double[] sums = new double[NUM_CHANNELS];
+		private final int[] counts = new int[NUM_CHANNELS];
+
+		private Ring(@NonNull final Tier tier) {
+			intervalMs = tier.intervalMs;
+			capacity = tier.capacity;
+			timestamps = new long[capacity];
+			values = new double[NUM_CHANNELS][capacity];
+		}
+
+		private void clear() {
+			head = size = 0;
+			bucket = -1;
+			lastTimestampMs = -1;
+			for (int i = 0; i < NUM_CHANNELS; i++) {
+				sums[i] = 0;
+				counts[i] = 0;
+			}
+		}
+
+		private void add(final long timestampMs, @NonNull final double[] v) {
+			final long b = timestampMs / intervalMs;
+			if (b != bucket) {
+				flush();
+				bucket = b;
+			}
+			lastTimestampMs = timestampMs;
+			for (int i = 0; i < NUM_CHANNELS; i++) {
+				if (!Double.isNaN(v[i])) {
+					sums[i] += v[i];
+					counts[i]++;
+				}
+			}
+		}
+
+		/**
+		 * 集計中の区間の平均値をリングバッファへ書き込む
+		 */
+		private void flush() {
+			if (bucket < 0) {
+				return;
+			}
+			timestamps[head] = bucket * intervalMs;
+			for (int i = 0; i < NUM_CHANNELS; i++) {
+				values[i][head] = pendingAverage(i);
+				sums[i] = 0;
+				counts[i] = 0;
+			}
+			head = (head + 1) % capacity;
+			if (size < capacity) {
+				size++;
+			}
+			bucket = -1;
+		}
+
+		private double pendingAverage(final int channel) {
+			return counts[channel] > 0 ? sums[channel] / counts[channel] : Double.NaN;
+		}
+
+		/**
+		 * 集計中の区間を含めたサンプル数
+		 * 集計中の区間がある時は最も古いサンプルは読み出せないのでcapacityを超えない
+		 * @return
+		 */
+		private int count() {
+			return bucket >= 0 ? Math.min(size + 1, capacity) : size;
+		}
+
+		private int read(final int channel,
+			@Nullable final long[] timestampsMs, @NonNull final double[] out, final int max) {
+
+			final int n = Math.min(max, count());
+			final boolean pending = bucket >= 0;
+			// 集計中の区間がある時は最後の1つを集計中の値にする
+			final int fromRing = pending ? n - 1 : n;
+			int ix = head - fromRing;
+			if (ix < 0) {
+				ix += capacity;
+			}
+			for (int i = 0; i < fromRing; i++) {
+				if (timestampsMs != null) {
+					timestampsMs[i] = timestamps[ix];
+				}
+				out[i] = values[channel][ix];
+				ix = (ix + 1) % capacity;
+			}
+			if (pending && (n > 0)) {
+				if (timestampsMs != null) {
+					timestampsMs[n - 1] = bucket * intervalMs;
+				}
+				out[n - 1] = pendingAverage(channel);
+			}
+			return n;
+		}
+
+		/**
+		 * 区間の開始時刻が(最後に記録した時刻-durationMs, 最後に記録した時刻]のサンプルの平均値
+		 * @param channel
+		 * @param durationMs
+		 * @return
+		 */
+		private double average(final int channel, final long durationMs) {
+			if (lastTimestampMs < 0) {
+				return Double.NaN;
+			}
+			final long from = lastTimestampMs - durationMs;
+			double sum = 0;
+			int cnt = 0;
+			if ((bucket >= 0) && (bucket * intervalMs > from) && (counts[channel] > 0)) {
+				sum += pendingAverage(channel);
+				cnt++;
+			}
+			// 集計中の区間がある時は最も古いサンプルは上書き済みなので読まない
+			final int n = bucket >= 0 ? count() - 1 : size;
+			int ix = head;
+			for (int i = 0; i < n; i++) {
+				ix = ix > 0 ? ix - 1 : capacity - 1;
+				if (timestamps[ix] <= from) {
+					break;
+				}
+				final double v = values[channel][ix];
+				if (!Double.isNaN(v)) {
+					sum += v;
+					cnt++;
+				}
+			}
+			return cnt > 0 ? sum / cnt : Double.NaN;
+		}
+
+		private void appendCsv(@NonNull final StringBuilder sb) {
+			int ix = head - size;
+			if (ix < 0) {
+				ix += capacity;
+			}
+			for (int i = 0; i < size; i++) {
+				sb.append(timestamps[ix]);
+				for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+					sb.append(',');
+					appendValue(sb, values[ch][ix]);
+				}
+				sb.append('\n');
+				ix = (ix + 1) % capacity;
+			}
+			if (bucket >= 0) {
+				sb.append(bucket * intervalMs);
+				for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+					sb.append(',');
+					appendValue(sb, pendingAverage(ch));
+				}
+				sb.append('\n');
+			}
+		}
+
+		private static void appendValue(@NonNull final StringBuilder sb, final double value) {
+			if (!Double.isNaN(value)) {
+				sb.append(Math.round(value * 100) / 100.0);
+			}
+		}
+	}
+}
@@ -14,15 +14,24 @@ import com.serenegiant.nio.CharsetsUtils;
 
 import org.webrtc.ThreadUtils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 
 import androidx.annotation.Nullable;
@@ -34,13 +43,30 @@ import androidx.annotation.Nullable;
  * All public methods should be called from a looper executor thread
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
+ * <p>
+ * The sockets are non-blocking and serviced by a single selector thread. Each message is sent as
+ * one frame: a 4 byte big-endian payload length followed by the UTF-8 encoded payload.
+ * <p>
+ * When created with TCPSessionEvents the client listens on the given address and accepts any
+ * number of concurrent connections. Each accepted connection is identified by a session id.
  */
 public class TCPChannelClient {
   private static final String TAG = "org.appspot.apprtc.TCPChannelClient";
+  private static final String THREAD_NAME = "TCPChannelClient";
+
+  private static final int FRAME_HEADER_BYTES = 4;
+  // Upper bound of a single frame payload, larger frames are treated as a protocol error.
+  private static final int MAX_FRAME_BYTES = 4 * 1024 * 1024;
+  private static final int READ_BUFFER_BYTES = 16 * 1024;
+  // Maximum number of frames written by one gathering write.
+  private static final int MAX_GATHERED_FRAMES = 16;
+  // Session id used by the single connection of the two party modes.
+  private static final int SINGLE_SESSION_ID = 0;
 
   private final ExecutorService executor;
   private final ThreadUtils.ThreadChecker executorThreadCheck;
-  private final TCPChannelEvents eventListener;
+  private final TCPSessionEvents eventListener;
+  @Nullable
   private TCPSocket socket;
 
   /**
@@ -54,6 +80,17 @@ public class TCPChannelClient {
     void onTCPClose();
   }
 
+  /**
+   * Callback interface for the multi session server mode. All callbacks are invoked from the
+   * looper executor thread.
+   */
+  public interface TCPSessionEvents {
+    void onTCPSessionConnected(int sessionId);
+    void onTCPSessionMessage(int sessionId, String message);
+    void onTCPSessionClose(int sessionId);
+    void onTCPError(String description);
+  }
+
   /**
    * Initializes the org.appspot.apprtc.TCPChannelClient. If IP is a local IP address, starts a listening server on
    * that IP. If not, instead connects to the IP.
@@ -64,6 +101,24 @@ public class TCPChannelClient {
    */
   public TCPChannelClient(
       ExecutorService executor, TCPChannelEvents eventListener, String ip, int port) {
+    this(executor, new SingleSessionAdapter(eventListener), ip, port, false);
+  }
+
+  /**
+   * Initializes the org.appspot.apprtc.TCPChannelClient in multi session server mode. Listens on
+   * the IP and accepts any number of clients.
+   *
+   * @param eventListener Listener that will receive per session events.
+   * @param ip            IP address to listen on.
+   * @param port          Port to listen on.
+   */
+  public TCPChannelClient(
+      ExecutorService executor, TCPSessionEvents eventListener, String ip, int port) {
+    this(executor, eventListener, ip, port, true);
+  }
+
+  private TCPChannelClient(ExecutorService executor,
+      TCPSessionEvents eventListener, String ip, int port, boolean multiSession) {
     this.executor = executor;
     executorThreadCheck = new ThreadUtils.ThreadChecker();
     executorThreadCheck.detachThread();
@@ -77,22 +132,40 @@ public class TCPChannelClient {
       return;
     }
 
-    if (address.isAnyLocalAddress()) {
-      socket = new TCPSocketServer(address, port);
-    } else {
-      socket = new TCPSocketClient(address, port);
+    final Selector selector;
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      reportError("Failed to open selector: " + e.getMessage());
+      return;
     }
 
+    final boolean server = multiSession || address.isAnyLocalAddress();
+    socket = new TCPSocket(selector, address, port, server, multiSession);
     socket.start();
   }
 
   /**
    * Disconnects the client if not already disconnected. This will fire the onTCPClose event.
+   * In multi session mode all sessions are closed and the listening socket is released.
    */
   public void disconnect() {
     executorThreadCheck.checkIsOnValidThread();
 
-    socket.disconnect();
+    if (socket != null) {
+      socket.disconnect();
+    }
+  }
+
+  /**
+   * Closes one session of the multi session server mode. This will fire onTCPSessionClose.
+   */
+  public void disconnect(int sessionId) {
+    executorThreadCheck.checkIsOnValidThread();
+
+    if (socket != null) {
+      socket.closeConnection(sessionId);
+    }
   }
 
   /**
@@ -101,9 +174,23 @@ public class TCPChannelClient {
    * @param message Message to be sent.
    */
   public void send(String message) {
+    send(SINGLE_SESSION_ID, message);
+  }
+
+  /**
+   * Sends a message to one session of the multi session server mode.
+   *
+   * @param sessionId Session to send to.
+   * @param message   Message to be sent.
+   */
+  public void send(int sessionId, String message) {
     executorThreadCheck.checkIsOnValidThread();
 
-    socket.send(message);
+    if (socket == null) {
+      reportError("Sending data on closed socket.");
+      return;
+    }
+    socket.send(sessionId, message);
   }
 
   /**
@@ -120,245 +207,518 @@ public class TCPChannelClient {
   }
 
   /**
-   * Base class for server and client sockets. Contains a listening thread that will call
-   * eventListener.onTCPMessage on new messages.
+   * Maps the session events of the single connection to TCPChannelEvents.
    */
-  private abstract class TCPSocket extends Thread {
-    // Lock for editing out and rawSocket
-    protected final Object rawSocketLock;
-    @Nullable
-    private PrintWriter out;
-    @Nullable
-    private Socket rawSocket;
+  private static class SingleSessionAdapter implements TCPSessionEvents {
+    private final TCPChannelEvents events;
+    // Set when the connection was accepted instead of connected.
+    boolean server;
 
-    /**
-     * Connect to the peer, potentially a slow operation.
-     *
-     * @return Socket connection, null if connection failed.
-     */
-    @Nullable
-    public abstract Socket connect();
+    SingleSessionAdapter(TCPChannelEvents events) {
+      this.events = events;
+    }
 
-    /** Returns true if sockets is a server rawSocket. */
-    public abstract boolean isServer();
+    @Override
+    public void onTCPSessionConnected(int sessionId) {
+      events.onTCPConnected(server);
+    }
 
-    TCPSocket() {
-      rawSocketLock = new Object();
+    @Override
+    public void onTCPSessionMessage(int sessionId, String message) {
+      events.onTCPMessage(message);
+    }
+
+    @Override
+    public void onTCPSessionClose(int sessionId) {
+      events.onTCPClose();
+    }
+
+    @Override
+    public void onTCPError(String description) {
+      events.onTCPError(description);
+    }
+  }
+
+  /**
+   * State of one connected socket. Read state and the write batch are only touched on the
+   * selector thread, pendingFrames is guarded by TCPSocket.channelLock.
+   */
+  private static class Connection {
+    final int sessionId;
+    final SocketChannel channel;
+    // UTF-8 payloads waiting to be written.
+    final ArrayDeque<byte[]> pendingFrames = new ArrayDeque<>();
+
+    // Received bytes of a frame header split between two reads.
+    final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+    // Payload length of the frame being received, -1 while waiting for a frame header.
+    int frameLength = -1;
+    int frameReceived;
+    byte[] frameBytes;
+
+    // Frame headers live in slices of one direct buffer and are reused for every batch.
+    final ByteBuffer[] frameHeaders = new ByteBuffer[MAX_GATHERED_FRAMES];
+    final ByteBuffer[] writeBatch = new ByteBuffer[MAX_GATHERED_FRAMES * 2];
+    int writeBatchOffset;
+    int writeBatchCount;
+
+    Connection(int sessionId, SocketChannel channel) {
+      this.sessionId = sessionId;
+      this.channel = channel;
+      final ByteBuffer headers =
+          ByteBuffer.allocateDirect(FRAME_HEADER_BYTES * MAX_GATHERED_FRAMES);
+      for (int i = 0; i < MAX_GATHERED_FRAMES; i++) {
+        headers.limit((i + 1) * FRAME_HEADER_BYTES);
+        headers.position(i * FRAME_HEADER_BYTES);
+        frameHeaders[i] = headers.slice();
+      }
+    }
+  }
+
+  /**
+   * Selector thread that listens or connects, then reads and writes length prefixed frames.
+   * Messages decoded from one read are delivered to eventListener by a single executor task.
+   */
+  private class TCPSocket extends Thread {
+    private final Selector selector;
+    private final InetAddress address;
+    private final int port;
+    private final boolean server;
+    private final boolean multiSession;
+
+    // Lock for editing the channels and the outgoing frame queues.
+    private final Object channelLock = new Object();
+    @Nullable
+    private ServerSocketChannel serverChannel;
+    private final Map<Integer, Connection> connections = new HashMap<>();
+    private int nextSessionId = SINGLE_SESSION_ID;
+    private volatile boolean running = true;
+    private volatile boolean writeRequested;
+
+    // Shared by all connections, only touched on the selector thread.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+
+    TCPSocket(Selector selector, InetAddress address, int port,
+        boolean server, boolean multiSession) {
+      super(THREAD_NAME);
+      this.selector = selector;
+      this.address = address;
+      this.port = port;
+      this.server = server;
+      this.multiSession = multiSession;
+      if (eventListener instanceof SingleSessionAdapter) {
+        ((SingleSessionAdapter) eventListener).server = server;
+      }
     }
 
     /**
-     * The listening thread.
+     * The selector thread.
      */
     @Override
     public void run() {
-      Log.d(TAG, "Listening thread started...");
+      Log.d(TAG, "Selector thread started...");
+      try {
+        if (server) {
+          listen();
+        } else {
+          connect();
+        }
+        while (running) {
+          selector.select();
+          if (!running) {
+            break;
+          }
+          if (writeRequested) {
+            writeRequested = false;
+            enableWrites();
+          }
+          final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            try {
+              if (key.isAcceptable()) {
+                accept(key);
+              } else if (key.isConnectable()) {
+                finishConnect(key);
+              } else {
+                handleIO(key);
+              }
+            } catch (CancelledKeyException e) {
+              // The channel was closed from the executor thread while its key was selected,
+              // only that connection is affected.
+              final Object attachment = key.attachment();
+              if (attachment instanceof Connection) {
+                closeConnection(((Connection) attachment).sessionId);
+              }
+            }
+          }
+        }
+      } catch (ClosedChannelException | ClosedSelectorException e) {
+        // Closed by disconnect(), this is expected.
+      } catch (IOException e) {
+        if (running) {
+          reportError("Socket error: " + e.getMessage());
+        }
+      } catch (RuntimeException e) {
+        if (running) {
+          reportError("Socket error: " + e);
+        }
+      }
 
-      // Receive connection to temporary variable first, so we don't block.
-      Socket tempSocket = connect();
-      BufferedReader in;
+      Log.d(TAG, "Selector thread exiting...");
+      // Close the channels if they are still open.
+      disconnect();
+      try {
+        selector.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close selector: " + e.getMessage());
+      }
+    }
 
-      Log.d(TAG, "TCP connection established.");
+    /** Opens a non-blocking listening socket. */
+    private void listen() throws IOException {
+      Log.d(TAG, "Listening on [" + address.getHostAddress() + "]:" + port);
 
-      synchronized (rawSocketLock) {
-        if (rawSocket != null) {
-          Log.e(TAG, "Socket already existed and will be replaced.");
+      final ServerSocketChannel tempChannel = ServerSocketChannel.open();
+      try {
+        tempChannel.configureBlocking(false);
+        tempChannel.socket().bind(new InetSocketAddress(address, port));
+      } catch (IOException e) {
+        tempChannel.close();
+        reportError("Failed to create server socket: " + e.getMessage());
+        running = false;
+        return;
+      }
+      synchronized (channelLock) {
+        if (!running) {
+          tempChannel.close();
+          return;
         }
+        serverChannel = tempChannel;
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      }
+    }
 
-        rawSocket = tempSocket;
+    /** Starts a non-blocking connect to the peer. */
+    private void connect() throws IOException {
+      Log.d(TAG, "Connecting to [" + address.getHostAddress() + "]:" + port);
 
-        // Connecting failed, error has already been reported, just exit.
-        if (rawSocket == null) {
-          return;
-        }
+      final SocketChannel tempChannel = SocketChannel.open();
+      final boolean connected;
+      try {
+        tempChannel.configureBlocking(false);
+        connected = tempChannel.connect(new InetSocketAddress(address, port));
+      } catch (IOException e) {
+        tempChannel.close();
+        reportError("Failed to connect: " + e.getMessage());
+        running = false;
+        return;
+      }
+      final Connection connection = addConnection(tempChannel);
+      if (connection == null) {
+        return;
+      }
+      if (connected) {
+        onConnected(connection);
+      } else {
+        tempChannel.register(selector, SelectionKey.OP_CONNECT, connection);
+      }
+    }
 
-        try {
-          out = new PrintWriter(
-              new OutputStreamWriter(rawSocket.getOutputStream(), CharsetsUtils.UTF8), true);
-          in = new BufferedReader(
-              new InputStreamReader(rawSocket.getInputStream(), CharsetsUtils.UTF8));
-        } catch (IOException e) {
-          reportError("Failed to open IO on rawSocket: " + e.getMessage());
-          return;
+    /**
+     * Accepts an incoming connection. In the two party mode only the first connection is
+     * accepted, later connections are left in the backlog.
+     */
+    private void accept(SelectionKey key) throws IOException {
+      final SocketChannel tempChannel = ((ServerSocketChannel) key.channel()).accept();
+      if (tempChannel == null) {
+        return;
+      }
+      if (!multiSession) {
+        key.interestOps(0);
+      }
+      tempChannel.configureBlocking(false);
+      final Connection connection = addConnection(tempChannel);
+      if (connection != null) {
+        onConnected(connection);
+      }
+    }
+
+    private void finishConnect(SelectionKey key) {
+      final Connection connection = (Connection) key.attachment();
+      try {
+        connection.channel.finishConnect();
+      } catch (IOException e) {
+        reportError("Failed to connect: " + e.getMessage());
+        running = false;
+        return;
+      }
+      onConnected(connection);
+    }
+
+    @Nullable
+    private Connection addConnection(SocketChannel channel) throws IOException {
+      synchronized (channelLock) {
+        if (!running) {
+          channel.close();
+          return null;
+        }
+        final Connection connection = new Connection(nextSessionId, channel);
+        if (multiSession) {
+          nextSessionId++;
+        } else if (connections.containsKey(SINGLE_SESSION_ID)) {
+          Log.e(TAG, "Socket already existed and will be replaced.");
         }
+        connections.put(connection.sessionId, connection);
+        return connection;
       }
+    }
+
+    private void onConnected(final Connection connection) {
+      Log.d(TAG, "TCP connection established, session=" + connection.sessionId);
+      try {
+        connection.channel.socket().setTcpNoDelay(true);
+        connection.channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException e) {
+        reportError("Failed to open IO on channel: " + e.getMessage());
+        closeConnection(connection.sessionId);
+        return;
+      }
+      // Messages sent before the connection completed are flushed now.
+      enableWrites();
 
       Log.v(TAG, "Execute onTCPConnected");
       executor.execute(new Runnable() {
         @Override
         public void run() {
           Log.v(TAG, "Run onTCPConnected");
-          eventListener.onTCPConnected(isServer());
+          eventListener.onTCPSessionConnected(connection.sessionId);
         }
       });
+    }
 
+    private void handleIO(SelectionKey key) {
+      final Connection connection = (Connection) key.attachment();
+      try {
+        if (key.isReadable() && !read(connection)) {
+          // No data received, socket probably closed.
+          closeConnection(connection.sessionId);
+          return;
+        }
+        if (key.isValid() && key.isWritable()) {
+          write(key, connection);
+        }
+      } catch (IOException e) {
+        if (multiSession) {
+          // Failure of one client must not affect the other sessions.
+          Log.w(TAG, "Session " + connection.sessionId + " socket error: " + e.getMessage());
+        } else if (running) {
+          reportError("Socket error: " + e.getMessage());
+        }
+        closeConnection(connection.sessionId);
+      }
+    }
+
+    /**
+     * Reads available bytes and dispatches all complete frames.
+     *
+     * @return false if the peer closed the connection.
+     */
+    private boolean read(final Connection connection) throws IOException {
+      readBuffer.clear();
+      final int bytesRead = connection.channel.read(readBuffer);
+      if (bytesRead < 0) {
+        return false;
+      }
+      readBuffer.flip();
+      List<String> messages = null;
       while (true) {
-        final String message;
-        try {
-          message = in.readLine();
-        } catch (IOException e) {
-          synchronized (rawSocketLock) {
-            // If socket was closed, this is expected.
-            if (rawSocket == null) {
-              break;
-            }
+        if (connection.frameLength < 0) {
+          final ByteBuffer header = connection.frameHeader;
+          while (header.hasRemaining() && readBuffer.hasRemaining()) {
+            header.put(readBuffer.get());
           }
-
-          reportError("Failed to read from rawSocket: " + e.getMessage());
-          break;
+          if (header.hasRemaining()) {
+            break;
+          }
+          header.flip();
+          connection.frameLength = header.getInt();
+          header.clear();
+          if (connection.frameLength < 0 || connection.frameLength > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + connection.frameLength);
+          }
+          if (connection.frameBytes == null || connection.frameBytes.length < connection.frameLength) {
+            connection.frameBytes = new byte[Math.max(connection.frameLength, READ_BUFFER_BYTES)];
+          }
+          connection.frameReceived = 0;
         }
-
-        // No data received, rawSocket probably closed.
-        if (message == null) {
+        final int chunk = Math.min(readBuffer.remaining(),
+            connection.frameLength - connection.frameReceived);
+        readBuffer.get(connection.frameBytes, connection.frameReceived, chunk);
+        connection.frameReceived += chunk;
+        if (connection.frameReceived < connection.frameLength) {
           break;
         }
+        if (messages == null) {
+          messages = new ArrayList<>();
+        }
+        messages.add(
+            new String(connection.frameBytes, 0, connection.frameLength, CharsetsUtils.UTF8));
+        connection.frameLength = -1;
+      }
 
+      if (messages != null) {
+        final List<String> received = messages;
         executor.execute(new Runnable() {
           @Override
           public void run() {
-            Log.v(TAG, "Receive: " + message);
-            eventListener.onTCPMessage(message);
+            for (final String message : received) {
+              Log.v(TAG, "Receive: " + message);
+              eventListener.onTCPSessionMessage(connection.sessionId, message);
+            }
           }
         });
       }
-
-      Log.d(TAG, "Receiving thread exiting...");
-
-      // Close the rawSocket if it is still open.
-      disconnect();
+      return true;
     }
 
-    /** Closes the rawSocket if it is still open. Also fires the onTCPClose event. */
-    public void disconnect() {
-      try {
-        synchronized (rawSocketLock) {
-          if (rawSocket != null) {
-            rawSocket.close();
-            rawSocket = null;
-            out = null;
-
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                eventListener.onTCPClose();
-              }
-            });
-          }
+    /** Writes queued frames with gathering writes until the queue is empty or the socket is full. */
+    private void write(SelectionKey key, Connection connection) throws IOException {
+      final ByteBuffer[] batch = connection.writeBatch;
+      while (true) {
+        if (connection.writeBatchOffset >= connection.writeBatchCount
+            && !fillWriteBatch(connection)) {
+          key.interestOps(SelectionKey.OP_READ);
+          return;
+        }
+        connection.channel.write(batch, connection.writeBatchOffset,
+            connection.writeBatchCount - connection.writeBatchOffset);
+        while (connection.writeBatchOffset < connection.writeBatchCount
+            && !batch[connection.writeBatchOffset].hasRemaining()) {
+          batch[connection.writeBatchOffset++] = null;
+        }
+        if (connection.writeBatchOffset < connection.writeBatchCount) {
+          // Socket send buffer is full, wait for OP_WRITE.
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
         }
-      } catch (IOException e) {
-        reportError("Failed to close rawSocket: " + e.getMessage());
       }
     }
 
     /**
-     * Sends a message on the socket. Should only be called on the executor thread.
+     * Moves queued payloads into the gathering write batch.
+     *
+     * @return false if there was nothing to write.
      */
-    public void send(String message) {
-      Log.v(TAG, "Send: " + message);
-
-      synchronized (rawSocketLock) {
-        if (out == null) {
-          reportError("Sending data on closed socket.");
-          return;
+    private boolean fillWriteBatch(Connection connection) {
+      connection.writeBatchOffset = connection.writeBatchCount = 0;
+      synchronized (channelLock) {
+        for (int i = 0; i < MAX_GATHERED_FRAMES && !connection.pendingFrames.isEmpty(); i++) {
+          final byte[] payload = connection.pendingFrames.poll();
+          final ByteBuffer header = connection.frameHeaders[i];
+          header.clear();
+          header.putInt(payload.length);
+          header.flip();
+          connection.writeBatch[connection.writeBatchCount++] = header;
+          connection.writeBatch[connection.writeBatchCount++] = ByteBuffer.wrap(payload);
         }
-
-        out.write(message + "\n");
-        out.flush();
       }
+      return connection.writeBatchCount > 0;
     }
-  }
-
-  private class TCPSocketServer extends TCPSocket {
-    // Server socket is also guarded by rawSocketLock.
-    @Nullable
-    private ServerSocket serverSocket;
-
-    final private InetAddress address;
-    final private int port;
 
-    public TCPSocketServer(InetAddress address, int port) {
-      this.address = address;
-      this.port = port;
+    /**
+     * Adds OP_WRITE to the interest set of connections with queued frames.
+     * Called on the selector thread.
+     */
+    private void enableWrites() {
+      synchronized (channelLock) {
+        for (final Connection connection : connections.values()) {
+          if (connection.pendingFrames.isEmpty()) {
+            continue;
+          }
+          final SelectionKey key = connection.channel.keyFor(selector);
+          if (key != null && key.isValid() && connection.channel.isConnected()) {
+            try {
+              key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+              // Closed from the executor thread, closeConnection already fired the close event.
+            }
+          }
+        }
+      }
     }
 
-    /** Opens a listening socket and waits for a connection. */
-    @Nullable
-    @Override
-    public Socket connect() {
-      Log.d(TAG, "Listening on [" + address.getHostAddress() + "]:" + port);
-
-      final ServerSocket tempSocket;
-      try {
-        tempSocket = new ServerSocket(port, 0, address);
-      } catch (IOException e) {
-        reportError("Failed to create server socket: " + e.getMessage());
-        return null;
+    /** Closes one connection if it is still open. Also fires the close event for it. */
+    public void closeConnection(int sessionId) {
+      final Connection connection;
+      synchronized (channelLock) {
+        connection = connections.remove(sessionId);
       }
-
-      synchronized (rawSocketLock) {
-        if (serverSocket != null) {
-          Log.e(TAG, "Server rawSocket was already listening and new will be opened.");
-        }
-
-        serverSocket = tempSocket;
+      if (connection != null) {
+        close(connection);
       }
+    }
 
+    private void close(final Connection connection) {
+      final boolean wasConnected = connection.channel.isConnected();
       try {
-        return tempSocket.accept();
+        connection.channel.close();
       } catch (IOException e) {
-        reportError("Failed to receive connection: " + e.getMessage());
-        return null;
+        reportError("Failed to close socket: " + e.getMessage());
+      }
+
+      if (wasConnected) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            eventListener.onTCPSessionClose(connection.sessionId);
+          }
+        });
       }
     }
 
-    /** Closes the listening socket and calls super. */
-    @Override
+    /** Closes all channels if they are still open. Also fires the close events. */
     public void disconnect() {
-      try {
-        synchronized (rawSocketLock) {
-          if (serverSocket != null) {
-            serverSocket.close();
-            serverSocket = null;
+      running = false;
+      final List<Connection> closing;
+      synchronized (channelLock) {
+        if (serverChannel != null) {
+          try {
+            serverChannel.close();
+          } catch (IOException e) {
+            reportError("Failed to close server socket: " + e.getMessage());
           }
+          serverChannel = null;
         }
-      } catch (IOException e) {
-        reportError("Failed to close server socket: " + e.getMessage());
+        closing = new ArrayList<>(connections.values());
+        connections.clear();
       }
-
-      super.disconnect();
-    }
-
-    @Override
-    public boolean isServer() {
-      return true;
-    }
-  }
-
-  private class TCPSocketClient extends TCPSocket {
-    final private InetAddress address;
-    final private int port;
-
-    public TCPSocketClient(InetAddress address, int port) {
-      this.address = address;
-      this.port = port;
+      for (final Connection connection : closing) {
+        close(connection);
+      }
+      selector.wakeup();
     }
 
-    /** Connects to the peer. */
-    @Nullable
-    @Override
-    public Socket connect() {
-      Log.d(TAG, "Connecting to [" + address.getHostAddress() + "]:" + port);
+    /**
+     * Queues a message on the socket. Should only be called on the executor thread.
+     */
+    public void send(int sessionId, String message) {
+      Log.v(TAG, "Send: " + message);
 
-      try {
-        return new Socket(address, port);
-      } catch (IOException e) {
-        reportError("Failed to connect: " + e.getMessage());
-        return null;
+      synchronized (channelLock) {
+        final Connection connection = running ? connections.get(sessionId) : null;
+        if (connection == null) {
+          reportError("Sending data on closed socket.");
+          return;
+        }
+        connection.pendingFrames.add(message.getBytes(CharsetsUtils.UTF8));
       }
-    }
-
-    @Override
-    public boolean isServer() {
-      return false;
+      writeRequested = true;
+      selector.wakeup();
     }
   }
 }
@@ -0,0 +1,247 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 端末の温度とバッテリーの状態をsysfsから取得するクラス
+ * ・[root]/class/thermal/thermal_zone* /temp (ミリ℃)
+ * ・[root]/class/power_supply/battery/capacity (%) と status
+ * ファイルはProcFileReaderで開いたままにして読み直すので、ACTION_BATTERY_CHANGEDの
+ * stickyなインテントを毎回受け取るよりも軽い
+ * sysfsのルートとファイルを読み込むCpuDataSourceを指定できるので、
+ * テスト用のディレクトリを使って端末外でも動作確認できる
+ * SELinuxでsysfsを読めない端末では、Contextを渡していればBatteryManagerと
+ * PowerManager#getCurrentThermalStatus(API29以降)を代わりに使う
+ * スレッドセーフではないので1つのスレッドから呼び出すこと
+ */
+public class ThermalBatterySampler {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = ThermalBatterySampler.class.getSimpleName();
+
+	/**
+	 * 温度を評価するサーマルゾーンの種類に含まれる文字列(小文字)
+	 * 一致するゾーンが無ければ全てのゾーンの最大値を使う
+	 */
+	private static final String[] CPU_ZONE_KEYWORDS = {"cpu", "soc", "tsens"};
+	/**
+	 * これより大きい値はミリ℃とみなす
+	 */
+	private static final long MILLI_DEGREE_THRESHOLD = 1000;
+	/**
+	 * 有効な温度の範囲[℃], 範囲外の値を返すゾーンは無視する
+	 */
+	private static final double MIN_VALID_CELSIUS = 0;
+	private static final double MAX_VALID_CELSIUS = 150;
+	private static final int BUFFER_SIZE = 32;
+
+	/**
+	 * PowerManager#getCurrentThermalStatusが使えないか取得できなかった時の値
+	 */
+	public static final int THERMAL_STATUS_UNKNOWN = -1;
+
+	@NonNull
+	private final List<ProcFileReader> mZoneReaders = new ArrayList<>();
+	@NonNull
+	private final ProcFileReader mCapacityReader;
+	@NonNull
+	private final ProcFileReader mStatusReader;
+	@Nullable
+	private final BatteryManager mBatteryManager;
+	@Nullable
+	private final PowerManager mPowerManager;
+
+	private double mTemperatureC = Double.NaN;
+	private int mBatteryPercent = -1;
+	private boolean mCharging;
+	private int mThermalStatus = THERMAL_STATUS_UNKNOWN;
+
+	/**
+	 * コンストラクタ
+	 * @param sysfsRoot sysfsのルートディレクトリ, 通常は/sys
+	 * @param context nullでなければsysfsを読めない時にシステムサービスから取得する
+	 */
+	public ThermalBatterySampler(@NonNull final File sysfsRoot, @Nullable final Context context) {
+		this(sysfsRoot, new LiveCpuDataSource(null), context);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param sysfsRoot sysfsのルートディレクトリ, サーマルゾーンの一覧はここから取得する
+	 * @param source ファイルを読み込むためのProcFileReaderを生成する
+	 * @param context nullでなければsysfsを読めない時にシステムサービスから取得する
+	 */
+	public ThermalBatterySampler(@NonNull final File sysfsRoot,
+		@NonNull final CpuDataSource source, @Nullable final Context context) {
+
+		final File thermalDir = new File(sysfsRoot, "class/thermal");
+		final String[] names = thermalDir.list();
+		final List<ProcFileReader> allZones = new ArrayList<>();
+		if (names != null) {
+			for (final String name: names) {
+				if (!name.startsWith("thermal_zone")) {
+					continue;
+				}
+				final File zoneDir = new File(thermalDir, name);
+				final ProcFileReader reader
+					= source.open(new File(zoneDir, "temp").getPath(), BUFFER_SIZE);
+				allZones.add(reader);
+				final String type = readType(source, new File(zoneDir, "type"));
+				if (DEBUG) Log.v(TAG, name + ": type=" + type);
+				if (isCpuZone(type)) {
+					mZoneReaders.add(reader);
+				}
+			}
+		}
+		if (mZoneReaders.isEmpty()) {
+			mZoneReaders.addAll(allZones);
+		} else {
+			for (final ProcFileReader reader: allZones) {
+				if (!mZoneReaders.contains(reader)) {
+					reader.close();
+				}
+			}
+		}
+		final File batteryDir = new File(sysfsRoot, "class/power_supply/battery");
+		mCapacityReader = source.open(new File(batteryDir, "capacity").getPath(), BUFFER_SIZE);
+		mStatusReader = source.open(new File(batteryDir, "status").getPath(), BUFFER_SIZE);
+		if (context != null) {
+			mBatteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+			mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+		} else {
+			mBatteryManager = null;
+			mPowerManager = null;
+		}
+	}
+
+	/**
+	 * 開いているファイルを閉じる
+	 */
+	public void release() {
+		for (final ProcFileReader reader: mZoneReaders) {
+			reader.close();
+		}
+		mCapacityReader.close();
+		mStatusReader.close();
+	}
+
+	/**
+	 * 温度とバッテリーの状態を取得し直す
+	 */
+	public void sample() {
+		// 温度
+		double max = Double.NaN;
+		for (final ProcFileReader reader: mZoneReaders) {
+			final long value = reader.readLong(-1);
+			if (value < 0) {
+				continue;
+			}
+			final double celsius = value > MILLI_DEGREE_THRESHOLD ? value / 1000.0 : value;
+			if ((celsius > MIN_VALID_CELSIUS) && (celsius < MAX_VALID_CELSIUS)
+				&& (Double.isNaN(max) || (celsius > max))) {
+				max = celsius;
+			}
+		}
+		mTemperatureC = max;
+		if ((mPowerManager != null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)) {
+			mThermalStatus = mPowerManager.getCurrentThermalStatus();
+		}
+
+		// バッテリー
+		final long capacity = mCapacityReader.readLong(-1);
+		if ((capacity < 0) && (mBatteryManager != null)) {
+			final int percent
+				= mBatteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+			// 取得できない時は0かInteger.MIN_VALUEが返る
+			mBatteryPercent = percent > 0 ? percent : -1;
+		} else {
+			mBatteryPercent = (int) capacity;
+		}
+		if (mStatusReader.read()) {
+			mCharging = mStatusReader.startsWith("Charging") || mStatusReader.startsWith("Full");
+		} else if ((mBatteryManager != null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)) {
+			mCharging = mBatteryManager.isCharging();
+		} else {
+			mCharging = false;
+		}
+	}
+
+	/**
+	 * CPU/SoCのサーマルゾーンの最高温度
+	 * @return [℃], 取得できなければNaN
+	 */
+	public double getTemperatureCelsius() {
+		return mTemperatureC;
+	}
+
+	/**
+	 * PowerManager#getCurrentThermalStatusの値
+	 * @return PowerManager.THERMAL_STATUS_XXX, 取得できなければTHERMAL_STATUS_UNKNOWN
+	 */
+	public int getThermalStatus() {
+		return mThermalStatus;
+	}
+
+	/**
+	 * バッテリー残量
+	 * @return [%], 取得できなければ-1
+	 */
+	public int getBatteryPercent() {
+		return mBatteryPercent;
+	}
+
+	/**
+	 * 充電中または満充電かどうか
+	 * @return
+	 */
+	public boolean isCharging() {
+		return mCharging;
+	}
+
+	/**
+	 * サーマルゾーンの種類を読み込む, 初期化時にだけ呼ぶ
+	 */
+	@NonNull
+	private static String readType(@NonNull final CpuDataSource source, @NonNull final File file) {
+		final ProcFileReader reader = source.open(file.getPath(), BUFFER_SIZE);
+		try {
+			if (reader.read()) {
+				final byte[] buf = new byte[BUFFER_SIZE];
+				final int n = reader.readToken(buf);
+				return new String(buf, 0, n).toLowerCase(Locale.US);
+			}
+		} finally {
+			reader.close();
+		}
+		return "";
+	}
+
+	private static boolean isCpuZone(@NonNull final String type) {
+		for (final String keyword: CPU_ZONE_KEYWORDS) {
+			if (type.contains(keyword)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
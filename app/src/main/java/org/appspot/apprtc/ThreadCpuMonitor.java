@@ -0,0 +1,508 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 自プロセスのスレッド毎のCPU使用時間を/proc/self/task/[tid]/statから定期的に取得して
+ * スレッド名で分類したCPU使用率を集計するクラス
+ * CPUの過負荷時に、映像入力/エンコード・デコード/描画/WebRTC内部/アプリ自身のどれが
+ * 原因かを切り分けるために使う
+ * スレッド毎のstatファイルはProcFileReaderで開いたままにして読み直す
+ * スレッド名はstatの括弧内(/proc/self/task/[tid]/commと同じ内容)から取得し、
+ * 変化した時だけStringを生成する
+ */
+public class ThreadCpuMonitor {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = ThreadCpuMonitor.class.getSimpleName();
+
+	/**
+	 * スレッドの分類
+	 */
+	public enum Category {
+		/** 映像入力(CaptureThread, カメラ, 画面キャプチャ) */
+		CAPTURE,
+		/** 映像のエンコード/デコード */
+		CODEC,
+		/** 映像の描画 */
+		RENDER,
+		/** 音声の入出力 */
+		AUDIO,
+		/** WebRTC内部のスレッド(network/worker/signaling, TaskQueue等) */
+		WEBRTC,
+		/** UIスレッドとアプリ自身が生成したスレッド */
+		APP,
+		/** その他 */
+		OTHER,
+	}
+
+	/**
+	 * スレッド毎のCPU使用率を受け取るためのホルダークラス
+	 * getTopThreadsへ渡す配列は呼び出し側で生成して使い回す
+	 */
+	public static class ThreadUsage {
+		public int tid;
+		@NonNull
+		public String name = "";
+		@NonNull
+		public Category category = Category.OTHER;
+		/**
+		 * CPUコア1つに対する割合[%], 複数コアを使うスレッドは無いので100を超えない
+		 */
+		public double usagePercent;
+	}
+
+	/**
+	 * 取得を行うスレッドの名前, スレッド名は15文字に切り詰められるので短くする
+	 */
+	private static final String THREAD_NAME = "ThreadCpuMon";
+	private static final String TASK_DIR = "/proc/self/task";
+	private static final int STAT_BUFFER_SIZE = 512;
+	/**
+	 * スレッド名の最大長, カーネルのTASK_COMM_LEN-1
+	 */
+	private static final int MAX_NAME_LENGTH = 15;
+	/**
+	 * アプリ自身が生成するスレッドの名前の先頭部分
+	 * スレッド名は15文字に切り詰められる
+	 */
+	private static final String[] APP_THREAD_PREFIXES = {
+		PeerConnectionClient.EXECUTOR_THREAD_NAME,
+		"TCPChannelClien",
+		"OpenMetricsServ",
+		"CpuMonitor",
+		"MemoryMonitor",
+		THREAD_NAME,
+		StatsPollScheduler.THREAD_NAME,
+		PerformanceGovernor.THREAD_NAME,
+		"AsyncHttpURLCon",
+	};
+
+	/**
+	 * スレッド毎の状態
+	 */
+	private static class ThreadState {
+		private final int tid;
+		@NonNull
+		private final ProcFileReader reader;
+		@NonNull
+		private final byte[] nameBytes = new byte[MAX_NAME_LENGTH];
+		private int nameLength = -1;
+		@NonNull
+		private String name = "";
+		@NonNull
+		private Category category = Category.OTHER;
+		private long lastTicks = -1;
+		/**
+		 * CPUコア1つに対する割合, 未計算なら0
+		 */
+		private double usage;
+		private boolean alive;
+
+		private ThreadState(final int tid) {
+			this.tid = tid;
+			reader = new ProcFileReader(TASK_DIR + "/" + tid + "/stat", STAT_BUFFER_SIZE);
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final List<ThreadState> mStates = new ArrayList<>();
+	@NonNull
+	private final byte[] mNameWork = new byte[MAX_NAME_LENGTH];
+	@NonNull
+	private final double[] mCategoryUsage = new double[Category.values().length];
+	private final int mPid = Process.myPid();
+	private final long mTicksPerSec;
+	@Nullable
+	private ScheduledExecutorService mExecutor;
+	@Nullable
+	private ScheduledFuture<?> mFuture;
+	@Nullable
+	private CpuMonitor mCpuMonitor;
+	private boolean mWasOverused;
+	private long mLastSampleMs;
+	private double mProcessUsage;
+
+	/**
+	 * コンストラクタ
+	 */
+	public ThreadCpuMonitor() {
+		long ticks = 0;
+		try {
+			ticks = Os.sysconf(OsConstants._SC_CLK_TCK);
+		} catch (final Exception e) {
+			if (DEBUG) Log.w(TAG, e);
+		}
+		mTicksPerSec = ticks > 0 ? ticks : 100;
+	}
+
+	/**
+	 * CPUの過負荷状態を取得するためのCpuMonitorをセット
+	 * セットすると過負荷になった時にCPU使用率の高いスレッドをログへ出力する
+	 * @param cpuMonitor
+	 */
+	public void setCpuMonitor(@Nullable final CpuMonitor cpuMonitor) {
+		synchronized (mSync) {
+			mCpuMonitor = cpuMonitor;
+		}
+	}
+
+	/**
+	 * 定期的な取得を開始する, 既に開始していれば取得間隔を変更する
+	 * @param periodMs
+	 */
+	public void start(final long periodMs) {
+		synchronized (mSync) {
+			if (mExecutor == null) {
+				mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(@NonNull final Runnable r) {
+						return new Thread(r, THREAD_NAME);
+					}
+				});
+			}
+			if (mFuture != null) {
+				mFuture.cancel(false);
+			}
+			mFuture = mExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					sample();
+				}
+			}, 0, periodMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 定期的な取得を終了する, 再度startすれば再開できる
+	 */
+	public void stop() {
+		synchronized (mSync) {
+			if (mFuture != null) {
+				mFuture.cancel(false);
+				mFuture = null;
+			}
+			if (mExecutor != null) {
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
+			// 再開時に停止中の時間を含めないようにする
+			mLastSampleMs = 0;
+		}
+	}
+
+	/**
+	 * 取得を終了して開いているファイルを閉じる
+	 */
+	public void release() {
+		stop();
+		synchronized (mSync) {
+			for (final ThreadState state: mStates) {
+				state.reader.close();
+			}
+			mStates.clear();
+			mCpuMonitor = null;
+		}
+	}
+
+	/**
+	 * 全スレッドのCPU使用時間を読み込んで前回からの使用率を更新する
+	 * 通常はstartで開始したスレッドから呼ばれる
+	 */
+	public void sample() {
+		// タスクの一覧はFile#listでしか取得できないのでこの配列だけは毎回生成される
+		final String[] tids = new File(TASK_DIR).list();
+		if (tids == null) {
+			return;
+		}
+		final CpuMonitor cpuMonitor;
+		final double sec;
+		synchronized (mSync) {
+			final long now = SystemClock.elapsedRealtime();
+			sec = mLastSampleMs > 0 ? (now - mLastSampleMs) / 1000.0 : 0;
+			mLastSampleMs = now;
+			for (final ThreadState state: mStates) {
+				state.alive = false;
+			}
+			for (final String name: tids) {
+				final int tid = parseTid(name);
+				if (tid > 0) {
+					update(findState(tid), sec);
+				}
+			}
+			// 終了したスレッドを破棄してプロセス全体と分類毎に集計する
+			mProcessUsage = 0;
+			for (int i = 0; i < mCategoryUsage.length; i++) {
+				mCategoryUsage[i] = 0;
+			}
+			for (int i = mStates.size() - 1; i >= 0; i--) {
+				final ThreadState state = mStates.get(i);
+				if (state.alive) {
+					mProcessUsage += state.usage;
+					mCategoryUsage[state.category.ordinal()] += state.usage;
+				} else {
+					state.reader.close();
+					mStates.remove(i);
+				}
+			}
+			cpuMonitor = mCpuMonitor;
+		}
+		// CpuMonitorは自身の同期オブジェクトを使うのでmSyncの外で呼ぶ
+		// 初回は使用率を計算できていないので判定しない
+		final boolean overused = (sec > 0) && (cpuMonitor != null) && cpuMonitor.isCpuOveruse();
+		if (overused && !mWasOverused) {
+			Log.w(TAG, "CPU overuse: " + getSummary(5));
+		}
+		mWasOverused = overused;
+	}
+
+	/**
+	 * プロセス全体のCPU使用率
+	 * @return CPUコア1つに対する割合[%], 複数のコアを使っていれば100を超える
+	 */
+	public double getProcessUsage() {
+		synchronized (mSync) {
+			return mProcessUsage * 100;
+		}
+	}
+
+	/**
+	 * 指定した分類のスレッドの合計CPU使用率
+	 * @param category
+	 * @return CPUコア1つに対する割合[%]
+	 */
+	public double getCategoryUsage(@NonNull final Category category) {
+		synchronized (mSync) {
+			return mCategoryUsage[category.ordinal()] * 100;
+		}
+	}
+
+	/**
+	 * 最もCPU使用率の高いスレッドの使用率
+	 * プロセス全体と違ってエンコーダー等の1つのスレッドがコアを使い切ると100%近くになる
+	 * @return CPUコア1つに対する割合[%]
+	 */
+	public double getBusiestThreadUsage() {
+		synchronized (mSync) {
+			double result = 0;
+			for (final ThreadState state: mStates) {
+				result = Math.max(result, state.usage);
+			}
+			return result * 100;
+		}
+	}
+
+	/**
+	 * CPU使用率の高い順にスレッドの情報をコピーする
+	 * @param out コピー先, 配列の長さ分だけ取得する
+	 * @return コピーしたスレッドの数
+	 */
+	public int getTopThreads(@NonNull final ThreadUsage[] out) {
+		synchronized (mSync) {
+			int count = 0;
+			for (final ThreadState state: mStates) {
+				if (state.usage <= 0) {
+					continue;
+				}
+				// 挿入ソート, outの長さは小さい前提
+				int pos = count;
+				while ((pos > 0) && (out[pos - 1].usagePercent < state.usage * 100)) {
+					pos--;
+				}
+				if (pos >= out.length) {
+					continue;
+				}
+				final int last = Math.min(count, out.length - 1);
+				final ThreadUsage recycled = out[last];
+				for (int i = last; i > pos; i--) {
+					out[i] = out[i - 1];
+				}
+				out[pos] = recycled;
+				recycled.tid = state.tid;
+				recycled.name = state.name;
+				recycled.category = state.category;
+				recycled.usagePercent = state.usage * 100;
+				if (count < out.length) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * ログ出力用にCPU使用率の高いスレッドと分類毎の使用率を文字列にする
+	 * @param top 出力するスレッドの数
+	 * @return
+	 */
+	@NonNull
+	public String getSummary(final int top) {
+		final ThreadUsage[] usages = new ThreadUsage[top];
+		for (int i = 0; i < top; i++) {
+			usages[i] = new ThreadUsage();
+		}
+		final int n = getTopThreads(usages);
+		final StringBuilder sb = new StringBuilder();
+		sb.append("process=").append(Math.round(getProcessUsage())).append('%');
+		for (final Category category: Category.values()) {
+			sb.append(", ").append(category).append('=')
+				.append(Math.round(getCategoryUsage(category))).append('%');
+		}
+		sb.append(", top:");
+		for (int i = 0; i < n; i++) {
+			sb.append(' ').append(usages[i].name).append('(').append(usages[i].tid).append(")=")
+				.append(Math.round(usages[i].usagePercent)).append('%');
+		}
+		return sb.toString();
+	}
+
+//--------------------------------------------------------------------------------
+	@NonNull
+	private ThreadState findState(final int tid) {
+		for (final ThreadState state: mStates) {
+			if (state.tid == tid) {
+				return state;
+			}
+		}
+		final ThreadState state = new ThreadState(tid);
+		mStates.add(state);
+		return state;
+	}
+
+	/**
+	 * スレッドのstatを読み込んで使用率を更新する
+	 * 読み込めなければ終了したスレッドとしてaliveをfalseのままにする
+	 * @param state
+	 * @param sec 前回の取得からの経過時間[秒], 初回は0
+	 */
+	private void update(@NonNull final ThreadState state, final double sec) {
+		final ProcFileReader reader = state.reader;
+		if (!reader.read()) {
+			return;
+		}
+		// tid (comm) state ppid pgrp session tty_nr tpgid flags minflt cminflt majflt cmajflt utime stime ...
+		final int nameLength = reader.readEnclosed('(', ')', mNameWork);
+		if (nameLength < 0) {
+			return;
+		}
+		for (int i = 0; i < 10; i++) {
+			// ppidからcmajfltまで, 状態を表す文字は読み飛ばされる
+			reader.nextLong();
+		}
+		final long utime = reader.nextLong();
+		final long stime = reader.nextLong();
+		if (stime < 0) {
+			return;
+		}
+		state.alive = true;
+		if (!sameName(state, mNameWork, nameLength)) {
+			// スレッド名が変化した時(新しいスレッドを含む)だけStringを生成する
+			System.arraycopy(mNameWork, 0, state.nameBytes, 0, nameLength);
+			state.nameLength = nameLength;
+			state.name = new String(state.nameBytes, 0, nameLength, CharsetsUtils.UTF8);
+			state.category = categorize(state.tid, state.name);
+			if (DEBUG) Log.v(TAG, "thread " + state.tid + ":" + state.name + "=" + state.category);
+		}
+		final long ticks = utime + stime;
+		if ((state.lastTicks >= 0) && (ticks >= state.lastTicks) && (sec > 0)) {
+			state.usage = (ticks - state.lastTicks) / (mTicksPerSec * sec);
+		} else {
+			state.usage = 0;
+		}
+		state.lastTicks = ticks;
+	}
+
+	private static boolean sameName(@NonNull final ThreadState state,
+		@NonNull final byte[] name, final int length) {
+
+		if (state.nameLength != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (state.nameBytes[i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * スレッド名からスレッドを分類する
+	 * スレッド名はカーネル側で15文字に切り詰められていることに注意
+	 */
+	@NonNull
+	private Category categorize(final int tid, @NonNull final String name) {
+		if (tid == mPid) {
+			// メインスレッド(UIスレッド)
+			return Category.APP;
+		}
+		for (final String prefix: APP_THREAD_PREFIXES) {
+			if (name.startsWith(prefix)) {
+				return Category.APP;
+			}
+		}
+		if (name.startsWith("CaptureThread")
+			|| name.contains("Camera") || name.contains("camera")
+			|| name.contains("ScreenCapture")) {
+			return Category.CAPTURE;
+		}
+		if (name.contains("ncoder") || name.contains("ecoder") || name.contains("Decoding")
+			|| name.contains("MediaCodec") || name.startsWith("IncomingVideo")) {
+			return Category.CODEC;
+		}
+		if (name.contains("Render") || name.startsWith("GLThread")) {
+			return Category.RENDER;
+		}
+		if (name.contains("Audio") || name.contains("audio")) {
+			return Category.AUDIO;
+		}
+		if (name.startsWith("network_thread") || name.startsWith("worker_thread")
+			|| name.startsWith("signaling_thre") || name.contains("Queue")
+			|| name.startsWith("rtc_") || name.startsWith("rtp_")
+			|| name.startsWith("ModuleProcess") || name.startsWith("PacerThread")) {
+			return Category.WEBRTC;
+		}
+		return Category.OTHER;
+	}
+
+	private static int parseTid(@NonNull final String name) {
+		int tid = 0;
+		final int n = name.length();
+		for (int i = 0; i < n; i++) {
+			final char c = name.charAt(i);
+			if ((c < '0') || (c > '9')) {
+				return -1;
+			}
+			tid = tid * 10 + (c - '0');
+		}
+		return tid;
+	}
+}
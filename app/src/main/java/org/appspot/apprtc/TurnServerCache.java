@@ -0,0 +1,447 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.content.Context;
+import android.util.Log;
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import org.appspot.apprtc.util.AsyncHttpURLConnection;
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * TURNサーバー情報(ice_server_urlへのリクエスト結果)をメモリーとディスクへ
+ * サーバーが返すTTLの間キャッシュするためのヘルパークラス
+ * ルームサーバー毎に前回のice_server_urlを記憶しておき、ルームへのjoinと並行して
+ * TURNサーバー情報を先読みできるようにする
+ * 同じURLへの取得要求が重なった場合は1回のリクエストにまとめる
+ */
+public class TurnServerCache {
+	private static final String TAG = TurnServerCache.class.getSimpleName();
+
+	private static final String CACHE_FILE_NAME = "turn_servers.json";
+	private static final String REFERER = "https://appr.tc";
+	/**
+	 * サーバーがTTLを返さなかった時の有効期間[ミリ秒]
+	 */
+	private static final long DEFAULT_TTL_MS = 10 * 60 * 1000L;
+	/**
+	 * 有効期限のこの時間前からは期限切れとして扱って再取得する[ミリ秒]
+	 */
+	private static final long EXPIRY_MARGIN_MS = 60 * 1000L;
+
+	/**
+	 * TURNサーバー情報取得時のコールバックインターフェース
+	 * AsyncHttpURLConnectionのワーカースレッドまたは呼び出したスレッド上で呼ばれる
+	 */
+	public interface Callback {
+		void onTurnServersReady(@NonNull final List<PeerConnection.IceServer> turnServers);
+		void onTurnServersError(@NonNull final String description);
+	}
+
+	/**
+	 * キャッシュエントリー
+	 */
+	private static class Entry {
+		@NonNull
+		final String response;
+		/**
+		 * 有効期限(System#currentTimeMillis基準)
+		 */
+		final long expiresAtMs;
+
+		Entry(@NonNull final String response, final long expiresAtMs) {
+			this.response = response;
+			this.expiresAtMs = expiresAtMs;
+		}
+
+		boolean isValid(final long nowMs) {
+			return nowMs < expiresAtMs - EXPIRY_MARGIN_MS;
+		}
+	}
+
+	@Nullable
+	private static TurnServerCache sInstance;
+
+	/**
+	 * アプリ内で共有するキャッシュを取得する
+	 * キャッシュファイルはContext#getCacheDirへ保存する
+	 * @param context
+	 * @return
+	 */
+	@NonNull
+	public static synchronized TurnServerCache getInstance(@NonNull final Context context) {
+		if (sInstance == null) {
+			sInstance = new TurnServerCache(context.getApplicationContext().getCacheDir());
+		}
+		return sInstance;
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@Nullable
+	private final File mCacheFile;
+	/**
+	 * ice_server_urlをキーとするキャッシュエントリー, mSyncで保護
+	 */
+	@NonNull
+	private final Map<String, Entry> mEntries = new HashMap<>();
+	/**
+	 * ルームサーバー(scheme://authority)をキーとする前回のice_server_url, mSyncで保護
+	 */
+	@NonNull
+	private final Map<String, String> mIceServerUrls = new HashMap<>();
+	/**
+	 * 取得中のice_server_urlと結果待ちのコールバック, mSyncで保護
+	 */
+	@NonNull
+	private final Map<String, List<Callback>> mPending = new HashMap<>();
+	private boolean mLoaded;
+
+	/**
+	 * コンストラクタ
+	 * @param cacheDir キャッシュファイルの保存先, nullならメモリー上にのみキャッシュする
+	 */
+	public TurnServerCache(@Nullable final File cacheDir) {
+		mCacheFile = cacheDir != null ? new File(cacheDir, CACHE_FILE_NAME) : null;
+	}
+
+	/**
+	 * 指定したルームURLのサーバーで前回使ったice_server_urlがわかっていて
+	 * 有効なキャッシュが無ければTURNサーバー情報の取得を開始する
+	 * @param roomUrl
+	 */
+	public void prefetch(@NonNull final String roomUrl) {
+		final String key = roomServerKey(roomUrl);
+		if (key == null) {
+			return;
+		}
+		final String iceServerUrl;
+		synchronized (mSync) {
+			loadLocked();
+			iceServerUrl = mIceServerUrls.get(key);
+		}
+		if (iceServerUrl != null) {
+			Log.d(TAG, "Prefetch TURN servers from: " + iceServerUrl);
+			request(iceServerUrl, null);
+		}
+	}
+
+	/**
+	 * ルームレスポンスで受け取ったice_server_urlを次回の先読み用に記憶する
+	 * @param roomUrl
+	 * @param iceServerUrl
+	 */
+	public void setIceServerUrl(@NonNull final String roomUrl, @NonNull final String iceServerUrl) {
+		final String key = roomServerKey(roomUrl);
+		if (key == null) {
+			return;
+		}
+		synchronized (mSync) {
+			loadLocked();
+			if (!iceServerUrl.equals(mIceServerUrls.put(key, iceServerUrl))) {
+				saveLocked();
+			}
+		}
+	}
+
+	/**
+	 * TURNサーバー情報を取得する
+	 * 有効なキャッシュがあれば呼び出したスレッド上で直ちにコールバックを呼ぶ
+	 * 取得中であればその結果を待つ
+	 * @param iceServerUrl
+	 * @param callback nullなら取得してキャッシュするだけ
+	 */
+	public void request(@NonNull final String iceServerUrl, @Nullable final Callback callback) {
+		Entry cached = null;
+		boolean start = false;
+		synchronized (mSync) {
+			loadLocked();
+			final Entry entry = mEntries.get(iceServerUrl);
+			if ((entry != null) && entry.isValid(System.currentTimeMillis())) {
+				cached = entry;
+			} else {
+				List<Callback> callbacks = mPending.get(iceServerUrl);
+				if (callbacks == null) {
+					callbacks = new ArrayList<>();
+					mPending.put(iceServerUrl, callbacks);
+					start = true;
+				}
+				if (callback != null) {
+					callbacks.add(callback);
+				}
+			}
+		}
+		if (cached != null) {
+			Log.d(TAG, "Use cached TURN servers for: " + iceServerUrl);
+			if (callback != null) {
+				deliver(cached.response, callback);
+			}
+		} else if (start) {
+			fetch(iceServerUrl);
+		}
+	}
+
+	/**
+	 * キャッシュを破棄する
+	 */
+	public void clear() {
+		synchronized (mSync) {
+			mEntries.clear();
+			mIceServerUrls.clear();
+			mLoaded = true;
+			if ((mCacheFile != null) && mCacheFile.exists() && !mCacheFile.delete()) {
+				Log.w(TAG, "Failed to delete " + mCacheFile);
+			}
+		}
+	}
+
+	private void fetch(@NonNull final String iceServerUrl) {
+		Log.d(TAG, "Request TURN from: " + iceServerUrl);
+		final AsyncHttpURLConnection httpConnection =
+			new AsyncHttpURLConnection("POST", iceServerUrl, null, new AsyncHttpEvents() {
+				@Override
+				public void onHttpError(final String errorMessage) {
+					Log.w(TAG, "TURN request error: " + errorMessage);
+					for (final Callback callback: takePending(iceServerUrl)) {
+						callback.onTurnServersError(errorMessage);
+					}
+				}
+
+				@Override
+				public void onHttpComplete(final String response) {
+					Log.d(TAG, "TURN response: " + response);
+					final List<PeerConnection.IceServer> turnServers;
+					try {
+						turnServers = parseIceServers(response);
+					} catch (final JSONException e) {
+						// 不正なレスポンスはキャッシュしない, キャッシュすると有効期間中ずっと使われてしまう
+						final String errorMessage = "TURN response JSON parsing error: " + e.toString();
+						Log.w(TAG, errorMessage);
+						for (final Callback callback: takePending(iceServerUrl)) {
+							callback.onTurnServersError(errorMessage);
+						}
+						return;
+					}
+					final long ttlMs = parseTtlMs(response);
+					synchronized (mSync) {
+						mEntries.put(iceServerUrl,
+							new Entry(response, System.currentTimeMillis() + ttlMs));
+						saveLocked();
+					}
+					for (final Callback callback: takePending(iceServerUrl)) {
+						callback.onTurnServersReady(turnServers);
+					}
+				}
+			});
+		httpConnection.addRequestProperty("REFERER", REFERER);
+		httpConnection.send();
+	}
+
+	@NonNull
+	private List<Callback> takePending(@NonNull final String iceServerUrl) {
+		synchronized (mSync) {
+			final List<Callback> callbacks = mPending.remove(iceServerUrl);
+			return callbacks != null ? callbacks : new ArrayList<Callback>();
+		}
+	}
+
+	private static void deliver(@NonNull final String response, @NonNull final Callback callback) {
+		final List<PeerConnection.IceServer> turnServers;
+		try {
+			turnServers = parseIceServers(response);
+		} catch (final JSONException e) {
+			callback.onTurnServersError("TURN response JSON parsing error: " + e.toString());
+			return;
+		}
+		callback.onTurnServersReady(turnServers);
+	}
+
+	/**
+	 * TURNサーバーからのレスポンスをIceServerのリストへ変換する
+	 * @param response
+	 * @return
+	 * @throws JSONException
+	 */
+	@NonNull
+	private static List<PeerConnection.IceServer> parseIceServers(@NonNull final String response)
+		throws JSONException {
+
+		final List<PeerConnection.IceServer> turnServers = new ArrayList<>();
+		final JSONObject responseJSON = new JSONObject(response);
+		final JSONArray iceServers = responseJSON.getJSONArray("iceServers");
+		for (int i = 0; i < iceServers.length(); ++i) {
+			final JSONObject server = iceServers.getJSONObject(i);
+			final JSONArray turnUrls = server.getJSONArray("urls");
+			final String username = server.has("username") ? server.getString("username") : "";
+			final String credential = server.has("credential") ? server.getString("credential") : "";
+			for (int j = 0; j < turnUrls.length(); j++) {
+				final String turnUrl = turnUrls.getString(j);
+				final PeerConnection.IceServer turnServer =
+					PeerConnection.IceServer.builder(turnUrl)
+						.setUsername(username)
+						.setPassword(credential)
+						.createIceServer();
+				turnServers.add(turnServer);
+			}
+		}
+		return turnServers;
+	}
+
+	/**
+	 * TURNサーバーのレスポンスから有効期間を取得する
+	 * "lifetimeDuration": "86400s"形式または"ttl": 秒数に対応、無ければDEFAULT_TTL_MS
+	 * @param response
+	 * @return
+	 */
+	private static long parseTtlMs(@NonNull final String response) {
+		try {
+			final JSONObject json = new JSONObject(response);
+			final String lifetime = json.optString("lifetimeDuration");
+			if (!lifetime.isEmpty()) {
+				final String seconds = lifetime.endsWith("s")
+					? lifetime.substring(0, lifetime.length() - 1) : lifetime;
+				return (long)(Double.parseDouble(seconds) * 1000);
+			}
+			final long ttlSecs = json.optLong("ttl", -1);
+			if (ttlSecs > 0) {
+				return ttlSecs * 1000;
+			}
+		} catch (final JSONException | NumberFormatException e) {
+			Log.w(TAG, "Failed to parse TURN lifetime: " + e.getMessage());
+		}
+		return DEFAULT_TTL_MS;
+	}
+
+	/**
+	 * ルームURLからルームサーバーを識別するキー(scheme://authority)を生成する
+	 * @param roomUrl
+	 * @return
+	 */
+	@Nullable
+	private static String roomServerKey(@NonNull final String roomUrl) {
+		try {
+			final URL url = new URL(roomUrl);
+			return url.getProtocol() + "://" + url.getAuthority();
+		} catch (final MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 未読込ならキャッシュファイルを読み込む, mSyncをロックした状態で呼ぶこと
+	 */
+	private void loadLocked() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		if ((mCacheFile == null) || !mCacheFile.canRead()) {
+			return;
+		}
+		try {
+			final JSONObject json = new JSONObject(readFile(mCacheFile));
+			final long nowMs = System.currentTimeMillis();
+			final JSONObject entries = json.optJSONObject("entries");
+			if (entries != null) {
+				for (final Iterator<String> it = entries.keys(); it.hasNext(); ) {
+					final String url = it.next();
+					final JSONObject item = entries.getJSONObject(url);
+					final Entry entry = new Entry(item.getString("response"), item.getLong("expires"));
+					if (entry.isValid(nowMs)) {
+						mEntries.put(url, entry);
+					}
+				}
+			}
+			final JSONObject urls = json.optJSONObject("iceServerUrls");
+			if (urls != null) {
+				for (final Iterator<String> it = urls.keys(); it.hasNext(); ) {
+					final String key = it.next();
+					mIceServerUrls.put(key, urls.getString(key));
+				}
+			}
+		} catch (final IOException | JSONException e) {
+			Log.w(TAG, "Failed to load " + mCacheFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * キャッシュファイルへ書き出す, mSyncをロックした状態で呼ぶこと
+	 */
+	private void saveLocked() {
+		if (mCacheFile == null) {
+			return;
+		}
+		try {
+			final JSONObject entries = new JSONObject();
+			for (final Map.Entry<String, Entry> e: mEntries.entrySet()) {
+				final JSONObject item = new JSONObject();
+				item.put("response", e.getValue().response);
+				item.put("expires", e.getValue().expiresAtMs);
+				entries.put(e.getKey(), item);
+			}
+			final JSONObject json = new JSONObject();
+			json.put("entries", entries);
+			json.put("iceServerUrls", new JSONObject(mIceServerUrls));
+			// 書き込み途中の内容を読み込まないように一時ファイルへ書いてから置き換える
+			final File tmp = new File(mCacheFile.getPath() + ".tmp");
+			final OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(json.toString().getBytes(CharsetsUtils.UTF8));
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(mCacheFile)) {
+				Log.w(TAG, "Failed to rename " + tmp + " to " + mCacheFile);
+			}
+		} catch (final IOException | JSONException e) {
+			Log.w(TAG, "Failed to save " + mCacheFile + ": " + e.getMessage());
+		}
+	}
+
+	@NonNull
+	private static String readFile(@NonNull final File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+			final byte[] buf = new byte[4096];
+			int bytes;
+			while ((bytes = in.read(buf)) != -1) {
+				out.write(buf, 0, bytes);
+			}
+			return new String(out.toByteArray(), CharsetsUtils.UTF8);
+		} finally {
+			in.close();
+		}
+	}
+}
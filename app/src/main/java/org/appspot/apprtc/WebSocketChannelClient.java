@@ -92,6 +92,7 @@ public class WebSocketChannelClient {
     postServerUrl = postUrl;
     closeEvent = false;
 
+    CallSetupTracer.getInstance().begin(CallSetupTracer.Phase.WS_REGISTER);
     Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
     ws = new WebSocketConnection();
     wsObserver = new WebSocketObserver();
@@ -121,6 +122,7 @@ public class WebSocketChannelClient {
       Log.d(TAG, "C->WSS: " + json.toString());
       ws.sendTextMessage(json.toString());
       state = WebSocketConnectionState.REGISTERED;
+      CallSetupTracer.getInstance().end(CallSetupTracer.Phase.WS_REGISTER);
       // Send any previously accumulated messages.
       for (String sendMessage : wsSendQueue) {
         send(sendMessage);
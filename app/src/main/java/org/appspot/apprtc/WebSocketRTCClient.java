@@ -24,6 +24,9 @@ import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import androidx.annotation.Nullable;
 
 /**
@@ -49,14 +52,30 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   private final Handler handler;
   private boolean initiator;
   private final SignalingEvents events;
+  @Nullable
+  private final TurnServerCache turnServerCache;
   private WebSocketChannelClient wsClient;
   private ConnectionState roomState;
   private RoomConnectionParameters connectionParameters;
   private String messageUrl;
   private String leaveUrl;
+  // Local ICE candidates waiting for the coalescing window to expire.
+  private final List<IceCandidate> pendingIceCandidates = new ArrayList<>();
+  private final Runnable flushIceCandidatesTask = new Runnable() {
+    @Override
+    public void run() {
+      flushPendingIceCandidates();
+    }
+  };
 
   public WebSocketRTCClient(SignalingEvents events) {
+    this(events, null);
+  }
+
+  // |turnServerCache| keeps TURN servers across calls so repeat calls skip the TURN request.
+  public WebSocketRTCClient(SignalingEvents events, @Nullable TurnServerCache turnServerCache) {
     this.events = events;
+    this.turnServerCache = turnServerCache;
     roomState = ConnectionState.NEW;
     handler = HandlerThreadHandler.createHandler(TAG);
   }
@@ -111,12 +130,14 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       }
     };
 
-    new RoomParametersFetcher(connectionUrl, null, callbacks).makeRequest();
+    new RoomParametersFetcher(connectionUrl, null, callbacks, turnServerCache).makeRequest();
   }
 
   // Disconnect from room and send bye messages - runs on a local looper thread.
   private void disconnectFromRoomInternal() {
     Log.d(TAG, "Disconnect. Room state: " + roomState);
+    handler.removeCallbacks(flushIceCandidatesTask);
+    pendingIceCandidates.clear();
     if (roomState == ConnectionState.CONNECTED) {
       Log.d(TAG, "Closing room.");
       sendPostMessage(MessageType.LEAVE, leaveUrl, null);
@@ -223,46 +244,65 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     });
   }
 
-  // Send Ice candidate to the other participant.
+  // Send Ice candidate to the other participant. Candidates gathered within
+  // the configured batch window are coalesced into a single message.
   @Override
   public void sendLocalIceCandidate(final IceCandidate candidate) {
     handler.post(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "candidate");
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-        if (initiator) {
-          // Call initiator sends ice candidates to GAE server.
-          if (roomState != ConnectionState.CONNECTED) {
-            reportError("Sending ICE candidate in non connected state.");
-            return;
-          }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
-          if (connectionParameters.loopback) {
-            events.onRemoteIceCandidate(candidate);
-          }
-        } else {
-          // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+        pendingIceCandidates.add(candidate);
+        final int batchWindowMs = connectionParameters.iceCandidateBatchWindowMs;
+        if (batchWindowMs <= 0) {
+          flushPendingIceCandidates();
+        } else if (pendingIceCandidates.size() == 1) {
+          handler.postDelayed(flushIceCandidatesTask, batchWindowMs);
         }
       }
     });
   }
 
+  // Sends all pending local ICE candidates - runs on a local looper thread.
+  private void flushPendingIceCandidates() {
+    handler.removeCallbacks(flushIceCandidatesTask);
+    if (pendingIceCandidates.isEmpty()) {
+      return;
+    }
+    final IceCandidate[] candidates =
+        pendingIceCandidates.toArray(new IceCandidate[pendingIceCandidates.size()]);
+    pendingIceCandidates.clear();
+    final String message = IceCandidateJson.toMessage(candidates);
+    if (initiator) {
+      // Call initiator sends ice candidates to GAE server.
+      if (roomState != ConnectionState.CONNECTED) {
+        reportError("Sending ICE candidate in non connected state.");
+        return;
+      }
+      sendPostMessage(MessageType.MESSAGE, messageUrl, message);
+      if (connectionParameters.loopback) {
+        for (final IceCandidate candidate : candidates) {
+          events.onRemoteIceCandidate(candidate);
+        }
+      }
+    } else {
+      // Call receiver sends ice candidates to websocket server.
+      wsClient.send(message);
+    }
+  }
+
   // Send removed Ice candidates to the other participant.
   @Override
   public void sendLocalIceCandidateRemovals(final IceCandidate[] candidates) {
     handler.post(new Runnable() {
       @Override
       public void run() {
+        // Candidates must reach the other side before their removal.
+        flushPendingIceCandidates();
         JSONObject json = new JSONObject();
         jsonPut(json, "type", "remove-candidates");
         JSONArray jsonArray = new JSONArray();
         for (final IceCandidate candidate : candidates) {
-          jsonArray.put(toJsonCandidate(candidate));
+          jsonArray.put(IceCandidateJson.toJson(candidate));
         }
         jsonPut(json, "candidates", jsonArray);
         if (initiator) {
@@ -301,12 +341,17 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         json = new JSONObject(msgText);
         String type = json.optString("type");
         if (type.equals("candidate")) {
-          events.onRemoteIceCandidate(toJavaCandidate(json));
+          events.onRemoteIceCandidate(IceCandidateJson.fromJson(json));
+        } else if (type.equals("candidates")) {
+          JSONArray candidateArray = json.getJSONArray("candidates");
+          for (int i = 0; i < candidateArray.length(); ++i) {
+            events.onRemoteIceCandidate(IceCandidateJson.fromJson(candidateArray.getJSONObject(i)));
+          }
         } else if (type.equals("remove-candidates")) {
           JSONArray candidateArray = json.getJSONArray("candidates");
           IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
           for (int i = 0; i < candidateArray.length(); ++i) {
-            candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
+            candidates[i] = IceCandidateJson.fromJson(candidateArray.getJSONObject(i));
           }
           events.onRemoteIceCandidatesRemoved(candidates);
         } else if (type.equals("answer")) {
@@ -408,19 +453,4 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         });
     httpConnection.send();
   }
-
-  // Converts a Java candidate to a JSONObject.
-  private JSONObject toJsonCandidate(final IceCandidate candidate) {
-    JSONObject json = new JSONObject();
-    jsonPut(json, "label", candidate.sdpMLineIndex);
-    jsonPut(json, "id", candidate.sdpMid);
-    jsonPut(json, "candidate", candidate.sdp);
-    return json;
-  }
-
-  // Converts a JSON candidate to a Java object.
-  IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-    return new IceCandidate(
-        json.getString("id"), json.getInt("label"), json.getString("candidate"));
-  }
 }
@@ -12,25 +12,69 @@ package org.appspot.apprtc.util;
 
 import com.serenegiant.nio.CharsetsUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Asynchronous http requests implementation.
+ *
+ * <p>All requests run on a shared, bounded executor. Responses are read to the end and the
+ * stream is closed without calling disconnect(), so HttpURLConnection can return the socket to
+ * its keep-alive pool and the next request to the same room server skips the TCP/TLS handshake.
  */
 public class AsyncHttpURLConnection {
   private static final int HTTP_TIMEOUT_MS = 8000;
   private static final String HTTP_ORIGIN = "https://appr.tc";
+  // Maximum number of requests in flight at the same time.
+  private static final int MAX_CONCURRENT_REQUESTS = 4;
+  // Idle request threads are released after this timeout.
+  private static final long IDLE_THREAD_TIMEOUT_MS = 30000;
+  private static final int READ_BUFFER_SIZE = 4096;
+  // Response buffers that grew beyond this size are not kept for the next request.
+  private static final int MAX_RETAINED_RESPONSE_BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadPoolExecutor executor;
+  static {
+    executor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS,
+        IDLE_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "AsyncHttpURLConnection-" + count.incrementAndGet());
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  // Per request thread buffers reused to drain responses.
+  private static final ThreadLocal<ResponseBuffer> responseBuffer =
+      new ThreadLocal<ResponseBuffer>() {
+        @Override
+        protected ResponseBuffer initialValue() {
+          return new ResponseBuffer();
+        }
+      };
+
   private final String method;
   private final String url;
   private final String message;
   private final AsyncHttpEvents events;
   private String contentType;
+  private final Map<String, String> requestProperties = new LinkedHashMap<>();
 
   /**
    * Http requests callbacks.
@@ -51,8 +95,13 @@ public class AsyncHttpURLConnection {
     this.contentType = contentType;
   }
 
+  // Adds an extra request header, must be called before send().
+  public void addRequestProperty(String key, String value) {
+    requestProperties.put(key, value);
+  }
+
   public void send() {
-    new Thread(this ::sendHttpMessage).start();
+    executor.execute(this ::sendHttpMessage);
   }
 
   private void sendHttpMessage() {
@@ -69,6 +118,9 @@ public class AsyncHttpURLConnection {
       connection.setReadTimeout(HTTP_TIMEOUT_MS);
       // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
       connection.addRequestProperty("origin", HTTP_ORIGIN);
+      for (Map.Entry<String, String> property : requestProperties.entrySet()) {
+        connection.addRequestProperty(property.getKey(), property.getValue());
+      }
       boolean doOutput = false;
       if (method.equals("POST")) {
         doOutput = true;
@@ -91,15 +143,17 @@ public class AsyncHttpURLConnection {
       // Get response.
       int responseCode = connection.getResponseCode();
       if (responseCode != 200) {
+        String statusLine = connection.getHeaderField(null);
+        // Consume the error body as well so the connection can still be reused.
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream != null) {
+          drainStream(errorStream);
+        }
         events.onHttpError("Non-200 response to " + method + " to URL: " + url + " : "
-            + connection.getHeaderField(null));
-        connection.disconnect();
+            + statusLine);
         return;
       }
-      InputStream responseStream = connection.getInputStream();
-      String response = drainStream(responseStream);
-      responseStream.close();
-      connection.disconnect();
+      String response = drainStream(connection.getInputStream());
       events.onHttpComplete(response);
     } catch (SocketTimeoutException e) {
       events.onHttpError("HTTP " + method + " to " + url + " timeout");
@@ -108,9 +162,38 @@ public class AsyncHttpURLConnection {
     }
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  // Return the contents of an InputStream as a String and close it.
+  private static String drainStream(InputStream in) throws IOException {
+    ResponseBuffer buffer = responseBuffer.get();
+    try {
+      return buffer.drain(in);
+    } finally {
+      in.close();
+      if (buffer.capacity() > MAX_RETAINED_RESPONSE_BUFFER_SIZE) {
+        responseBuffer.remove();
+      }
+    }
+  }
+
+  // Growable byte buffer that is reset and reused for every response on the same thread.
+  private static class ResponseBuffer extends ByteArrayOutputStream {
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+    ResponseBuffer() {
+      super(READ_BUFFER_SIZE);
+    }
+
+    String drain(InputStream in) throws IOException {
+      reset();
+      int bytesRead;
+      while ((bytesRead = in.read(readBuffer)) != -1) {
+        write(readBuffer, 0, bytesRead);
+      }
+      return new String(buf, 0, count, CharsetsUtils.UTF8);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
   }
 }
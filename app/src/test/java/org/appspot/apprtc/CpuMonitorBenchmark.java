@@ -0,0 +1,164 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * 記録した/procとsysfsのスナップショットをReplayCpuDataSourceで再生して
+ * CpuMonitorの精度とサンプリング1回当たりのコストを計測する
+ * 端末を使わずにビルドマシン上で実行できる(./gradlew :app:testDebugUnitTest)
+ * フィクスチャはsrc/test/resources/cpumonitor/以下にスナップショット毎のディレクトリで置く
+ */
+public class CpuMonitorBenchmark {
+	/**
+	 * 4+4コアのbig.LITTLE構成, 途中でcpu7がオフラインになる
+	 */
+	private static final String FIXTURE = "cpumonitor/big_little";
+	private static final int WARMUP_ROUNDS = 200;
+	private static final int MEASURE_ROUNDS = 2000;
+	/**
+	 * サンプリング1回当たりの時間の上限[マイクロ秒]
+	 * 実機の/procの読み込みを含まない再生なので、遅いビルドマシンでも十分に下回る値にする
+	 */
+	private static final double MAX_US_PER_SAMPLE = 1000;
+
+	/**
+	 * スナップショット間の差分から計算した使用率と一致するかどうか
+	 */
+	@Test
+	public void accuracy() throws Exception {
+		final ReplayCpuDataSource source = new ReplayCpuDataSource(getFixture(), 0);
+		final CpuMonitor monitor = new CpuMonitor(source, false);
+		try {
+			// 最初のサンプリングは差分を取れないので比較しない
+			assertTrue(monitor.sample());
+			for (int i = 1; i < source.getSnapshotCount(); i++) {
+				assertTrue(source.advance());
+				assertTrue("sample " + i, monitor.sample());
+				assertEquals("total " + i,
+					expectedUsage(source, i, "cpu "), monitor.getCpuUsageCurrent(), 1);
+				for (int core = 0; core < monitor.getCoreCount(); core++) {
+					assertEquals("core " + core + " at " + i,
+						expectedUsage(source, i, "cpu" + core + " "),
+						monitor.getCoreUsageCurrent(core), 1);
+				}
+				assertEquals(2, monitor.getClusterCount());
+				assertEquals(4, monitor.getClusterFirstCore(1));
+				assertEquals(2400000, monitor.getClusterMaxFrequency(1));
+			}
+			assertEquals(8, monitor.getCoreCount());
+		} finally {
+			monitor.release();
+		}
+	}
+
+	/**
+	 * サンプリング1回当たりの時間とヒープの割り当て量を計測する
+	 * 時間は環境に依存するので大きめの上限を超えないこと、割り当て量が無いことを確認する
+	 */
+	@Test
+	public void samplingCost() throws Exception {
+		final ReplayCpuDataSource source = new ReplayCpuDataSource(getFixture(), 0);
+		final CpuMonitor monitor = new CpuMonitor(source, false);
+		try {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				step(source, monitor);
+			}
+			final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			final com.sun.management.ThreadMXBean allocBean
+				= bean instanceof com.sun.management.ThreadMXBean
+					? (com.sun.management.ThreadMXBean) bean : null;
+			final long threadId = Thread.currentThread().getId();
+			final long startBytes = allocBean != null ? allocBean.getThreadAllocatedBytes(threadId) : 0;
+			final long startNs = System.nanoTime();
+			for (int i = 0; i < MEASURE_ROUNDS; i++) {
+				step(source, monitor);
+			}
+			final long elapsedNs = System.nanoTime() - startNs;
+			final long allocatedBytes = allocBean != null
+				? allocBean.getThreadAllocatedBytes(threadId) - startBytes : -1;
+			final double usPerSample = elapsedNs / 1000.0 / MEASURE_ROUNDS;
+			assertTrue(String.format(Locale.US, "%.1f us/sample", usPerSample),
+				usPerSample < MAX_US_PER_SAMPLE);
+			if (allocatedBytes >= 0) {
+				assertTrue("allocated " + allocatedBytes + " bytes",
+					allocatedBytes / MEASURE_ROUNDS < 16);
+			}
+		} finally {
+			monitor.release();
+		}
+	}
+
+	/**
+	 * スナップショットを1つ進めて(最後なら最初へ戻して)サンプリングする
+	 */
+	private static void step(final ReplayCpuDataSource source, final CpuMonitor monitor) {
+		if (!source.advance()) {
+			source.rewind();
+		}
+		monitor.sample();
+	}
+
+	private File getFixture() throws Exception {
+		final URL url = getClass().getClassLoader().getResource(FIXTURE);
+		assertNotNull(FIXTURE, url);
+		return new File(url.toURI());
+	}
+
+	/**
+	 * index-1番目とindex番目のスナップショットの/proc/statの指定した行から使用率を計算する
+	 * CpuMonitorと同じくiowaitもビジーとして数える
+	 * @return [%], その行が無ければ-1
+	 */
+	private static int expectedUsage(final ReplayCpuDataSource source,
+		final int index, final String prefix) {
+
+		final long[] prev = parseStatLine(source, index - 1, prefix);
+		final long[] cur = parseStatLine(source, index, prefix);
+		if ((prev == null) || (cur == null)) {
+			return -1;
+		}
+		final long busy = (cur[0] - prev[0]) + (cur[1] - prev[1]) + (cur[2] - prev[2])
+			+ (cur[4] - prev[4]) + (cur[5] - prev[5]) + (cur[6] - prev[6]);
+		final long all = busy + (cur[3] - prev[3]);
+		return all > 0 ? (int) (busy * 100.0 / all + 0.5) : -1;
+	}
+
+	/**
+	 * @return user, nice, system, idle, iowait, irq, softirq
+	 */
+	private static long[] parseStatLine(final ReplayCpuDataSource source,
+		final int index, final String prefix) {
+
+		final byte[] content = source.getContent(index, "/proc/stat");
+		assertNotNull(content);
+		for (final String line: new String(content, StandardCharsets.US_ASCII).split("\n")) {
+			if (line.startsWith(prefix)) {
+				final String[] values = line.substring(prefix.length()).trim().split("\\s+");
+				final long[] result = new long[7];
+				for (int i = 0; i < result.length; i++) {
+					result[i] = Long.parseLong(values[i]);
+				}
+				return result;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,195 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+
+/**
+ * OpenMetricsServerのレスポンスがOpenMetricsのテキスト形式になっていることを確認する
+ * ・メトリクス毎に# TYPEと# HELPがあり、サンプル名はメトリクス名(カウンターは+"_total")
+ * ・最後の行は# EOF
+ */
+public class OpenMetricsServerTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	private OpenMetricsServer mServer;
+	private int mPort;
+
+	@Before
+	public void setUp() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			mPort = socket.getLocalPort();
+		}
+		mServer = new OpenMetricsServer(mPort, false);
+		mServer.start();
+	}
+
+	@After
+	public void tearDown() {
+		mServer.stop();
+	}
+
+	/**
+	 * update()でセットした値を単位を変換して返す
+	 */
+	@Test
+	public void knownValues() throws Exception {
+		final DerivedMetrics metrics = new DerivedMetrics(1000000, 1);
+		final DerivedMetrics.StreamMetrics send
+			= new DerivedMetrics.StreamMetrics(1, RtcStatsSnapshot.MediaKind.VIDEO, true);
+		send.bitrateBps = 1500000;
+		send.framesPerSecond = 29.97;
+		metrics.outbound.add(send);
+		final DerivedMetrics.StreamMetrics recv
+			= new DerivedMetrics.StreamMetrics(2, RtcStatsSnapshot.MediaKind.VIDEO, false);
+		recv.packetLossPercent = 2.5;
+		metrics.inbound.add(recv);
+		metrics.rttMs = 120;
+		mServer.update(metrics);
+
+		final List<String> lines = lines(assertMetricsResponse(get("/metrics")));
+		assertTrue(lines.contains("apprtc_send_bitrate_bps 1500000"));
+		assertTrue(lines.contains("apprtc_send_fps 29.97"));
+		assertTrue(lines.contains("apprtc_recv_bitrate_bps NaN"));
+		assertTrue(lines.contains("apprtc_packet_loss_ratio 0.025"));
+		assertTrue(lines.contains("apprtc_rtt_seconds 0.12"));
+		assertTrue(lines.contains("apprtc_executor_queue_depth 0"));
+		// PeerConnectionClientが無いのでICEの接続状態はどれも0
+		assertTrue(lines.contains("apprtc_ice_connection_state{apprtc_ice_connection_state=\"CONNECTED\"} 0"));
+	}
+
+	/**
+	 * 間引いたフレーム数はカウンターで、値が無い時はサンプルを書き込まない
+	 */
+	@Test
+	public void counter() throws Exception {
+		final List<String> lines = lines(assertMetricsResponse(get("/metrics")));
+		final int type = lines.indexOf("# TYPE apprtc_capture_dropped_frames counter");
+		assertTrue(type >= 0);
+		assertTrue(lines.get(type + 1).startsWith("# HELP apprtc_capture_dropped_frames "));
+		assertTrue(lines.get(type + 2).startsWith("# TYPE "));
+		for (final String line: lines) {
+			assertFalse(line, line.startsWith("apprtc_capture_dropped_frames"));
+		}
+	}
+
+	@Test
+	public void notFound() throws Exception {
+		final String response = get("/");
+		assertTrue(response, response.startsWith("HTTP/1.1 404 Not Found\r\n"));
+	}
+
+	/**
+	 * ステータス行、ヘッダー、ボディの形式を確認してボディを返す
+	 * @param response
+	 * @return
+	 */
+	@NonNull
+	private static String assertMetricsResponse(@NonNull final String response) {
+		final int headerEnd = response.indexOf("\r\n\r\n");
+		assertTrue(headerEnd > 0);
+		final List<String> headers = Arrays.asList(response.substring(0, headerEnd).split("\r\n"));
+		assertEquals("HTTP/1.1 200 OK", headers.get(0));
+		assertTrue(headers.contains(
+			"Content-Type: application/openmetrics-text; version=1.0.0; charset=utf-8"));
+		final String body = response.substring(headerEnd + 4);
+		// レスポンスはASCIIだけなので文字数=バイト数
+		assertTrue(headers.contains("Content-Length: " + body.length()));
+
+		assertTrue(body.endsWith("\n# EOF\n"));
+		assertEquals(body.length() - "# EOF\n".length(), body.indexOf("# EOF"));
+		String family = null;
+		String type = null;
+		String previous = "";
+		for (final String line: lines(body)) {
+			if (line.equals("# EOF")) {
+				break;
+			} else if (line.startsWith("# TYPE ")) {
+				final String[] fields = line.split(" ");
+				assertEquals(line, 4, fields.length);
+				family = fields[2];
+				type = fields[3];
+				assertTrue(line, Arrays.asList("gauge", "counter", "stateset").contains(type));
+			} else if (line.startsWith("# HELP ")) {
+				assertTrue(line, previous.startsWith("# TYPE " + family + " "));
+				assertTrue(line, line.startsWith("# HELP " + family + " "));
+			} else {
+				assertNotNull(line, family);
+				final String name = line.substring(0, line.indexOf(line.contains("{") ? '{' : ' '));
+				assertEquals(line, "counter".equals(type) ? family + "_total" : family, name);
+				final String value = line.substring(line.lastIndexOf(' ') + 1);
+				if (!value.equals("NaN")) {
+					Double.parseDouble(value);
+				}
+			}
+			previous = line;
+		}
+		return body;
+	}
+
+	@NonNull
+	private static List<String> lines(@NonNull final String body) {
+		return new ArrayList<>(Arrays.asList(body.split("\n")));
+	}
+
+	/**
+	 * 待ち受けの開始はサーバースレッドで非同期に行われるので接続できるまで再試行する
+	 */
+	@NonNull
+	private String get(@NonNull final String path) throws Exception {
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		Socket socket;
+		while (true) {
+			try {
+				socket = new Socket(InetAddress.getLoopbackAddress(), mPort);
+				break;
+			} catch (final IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+		try {
+			socket.setSoTimeout((int) TIMEOUT_MS);
+			final OutputStream out = socket.getOutputStream();
+			out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			final InputStream in = socket.getInputStream();
+			final ByteArrayOutputStream response = new ByteArrayOutputStream();
+			final byte[] buf = new byte[1024];
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				response.write(buf, 0, n);
+			}
+			return new String(response.toByteArray(), StandardCharsets.US_ASCII);
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 記録した/procとsysfsのスナップショットを再生するCpuDataSource実装
+ * CpuMonitorのオーバーヘッドや精度を端末外(Linuxのビルドマシン等)で計測するために使う
+ * CpuMonitorBenchmarkからだけ使うのでAPKには含めない
+ *
+ * スナップショットはディレクトリ毎に記録して、ディレクトリ名を記録開始からの経過時間[ミリ秒]にする
+ * 各ディレクトリの下には端末上の絶対パスと同じ相対パスでファイルを置く
+ *   fixture/0/proc/stat
+ *   fixture/0/sys/devices/system/cpu/present
+ *   fixture/0/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq
+ *   fixture/2000/proc/stat
+ *   ...
+ * スナップショットに無いファイルはその時点で存在しない(オフラインのコア等)として扱う
+ * バッテリー残量はsys/class/power_supply/battery/capacityがあればその値を返す
+ * 端末上では例えば次のようにして記録できる
+ *   for t in 0 2000 4000; do d=/data/local/tmp/fixture/$t; mkdir -p $d/proc;
+ *     cat /proc/stat > $d/proc/stat; ...; sleep 2; done
+ * 全てのファイルは生成時にメモリーへ読み込むので、再生中にファイルアクセスは発生しない
+ */
+public class ReplayCpuDataSource implements CpuDataSource {
+	private static final String BATTERY_CAPACITY_PATH = "/sys/class/power_supply/battery/capacity";
+
+	/**
+	 * 1つのスナップショット
+	 */
+	private static class Snapshot {
+		private final long timeMs;
+		@NonNull
+		private final Map<String, byte[]> files = new HashMap<>();
+
+		private Snapshot(final long timeMs) {
+			this.timeMs = timeMs;
+		}
+	}
+
+	@NonNull
+	private final List<Snapshot> mSnapshots = new ArrayList<>();
+	/**
+	 * 再生速度, 1なら記録時と同じ速さ, 0以下ならadvanceを呼んだ時だけ進める
+	 */
+	private final double mSpeed;
+	private volatile long mStartNs;
+	private volatile int mIndex;
+
+	/**
+	 * コンストラクタ
+	 * @param fixtureDir スナップショットのディレクトリを含むディレクトリ
+	 * @param speed 再生速度, 1なら記録時と同じ速さ, 0以下ならadvanceを呼んだ時だけ進める
+	 * @throws IOException スナップショットが無いか読み込めなかった時
+	 */
+	public ReplayCpuDataSource(@NonNull final File fixtureDir, final double speed)
+		throws IOException {
+
+		mSpeed = speed;
+		final File[] dirs = fixtureDir.listFiles();
+		if (dirs != null) {
+			for (final File dir: dirs) {
+				if (!dir.isDirectory()) {
+					continue;
+				}
+				final Snapshot snapshot;
+				try {
+					snapshot = new Snapshot(Long.parseLong(dir.getName()));
+				} catch (final NumberFormatException e) {
+					continue;
+				}
+				load(snapshot, dir, "");
+				mSnapshots.add(snapshot);
+			}
+		}
+		if (mSnapshots.isEmpty()) {
+			throw new IOException("No snapshot in " + fixtureDir);
+		}
+		Collections.sort(mSnapshots, (a, b) -> Long.compare(a.timeMs, b.timeMs));
+		rewind();
+	}
+
+	@NonNull
+	@Override
+	public ProcFileReader open(@NonNull final String path, final int initialCapacity) {
+		return new ReplayReader(path, initialCapacity);
+	}
+
+	@Override
+	public int getBatteryLevel() {
+		final byte[] content = getContent(getIndex(), BATTERY_CAPACITY_PATH);
+		if (content == null) {
+			return -1;
+		}
+		int value = 0;
+		for (final byte b: content) {
+			if ((b < '0') || (b > '9')) {
+				break;
+			}
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * スナップショットの数
+	 * @return
+	 */
+	public int getSnapshotCount() {
+		return mSnapshots.size();
+	}
+
+	/**
+	 * 指定したスナップショットの記録開始からの経過時間
+	 * @param index
+	 * @return [ミリ秒]
+	 */
+	public long getTimeMs(final int index) {
+		return mSnapshots.get(index).timeMs - mSnapshots.get(0).timeMs;
+	}
+
+	/**
+	 * 現在再生中のスナップショットのインデックス
+	 * 再生速度が正なら生成またはrewindからの経過時間から決める, 最後まで再生すれば最後のまま
+	 * @return
+	 */
+	public int getIndex() {
+		if (mSpeed > 0) {
+			final double elapsedMs = (System.nanoTime() - mStartNs) / 1000000.0 * mSpeed;
+			int index = mIndex;
+			while ((index + 1 < mSnapshots.size()) && (getTimeMs(index + 1) <= elapsedMs)) {
+				index++;
+			}
+			mIndex = index;
+		}
+		return mIndex;
+	}
+
+	/**
+	 * 次のスナップショットへ進める
+	 * @return 最後のスナップショットを超えればfalse
+	 */
+	public boolean advance() {
+		if (mIndex + 1 < mSnapshots.size()) {
+			mIndex++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 最初のスナップショットへ戻す
+	 */
+	public void rewind() {
+		mIndex = 0;
+		mStartNs = System.nanoTime();
+	}
+
+	/**
+	 * 指定したスナップショットのファイルの内容
+	 * @param index
+	 * @param path 端末上の絶対パス
+	 * @return 記録されていなければnull
+	 */
+	@Nullable
+	public byte[] getContent(final int index, @NonNull final String path) {
+		return mSnapshots.get(index).files.get(path);
+	}
+
+	/**
+	 * ディレクトリ以下のファイルを再帰的に読み込む
+	 */
+	private static void load(@NonNull final Snapshot snapshot,
+		@NonNull final File dir, @NonNull final String path) throws IOException {
+
+		final File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (final File file: files) {
+			final String filePath = path + "/" + file.getName();
+			if (file.isDirectory()) {
+				load(snapshot, file, filePath);
+			} else {
+				snapshot.files.put(filePath, readFully(file));
+			}
+		}
+	}
+
+	@NonNull
+	private static byte[] readFully(@NonNull final File file) throws IOException {
+		try (final InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[4096];
+			int length = 0;
+			while (true) {
+				final int n = in.read(buf, length, buf.length - length);
+				if (n < 0) {
+					break;
+				}
+				length += n;
+				if (length == buf.length) {
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				}
+			}
+			return Arrays.copyOf(buf, length);
+		}
+	}
+
+	/**
+	 * 現在のスナップショットから内容を読み込むProcFileReader
+	 */
+	private class ReplayReader extends ProcFileReader {
+		private ReplayReader(@NonNull final String path, final int initialCapacity) {
+			super(path, initialCapacity);
+		}
+
+		@Override
+		protected boolean fill() {
+			final byte[] content = getContent(getIndex(), getPath());
+			if (content == null) {
+				return false;
+			}
+			setContent(content, content.length);
+			return true;
+		}
+	}
+}
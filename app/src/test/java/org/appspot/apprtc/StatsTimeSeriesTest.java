@@ -0,0 +1,101 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * StatsTimeSeries#averageがサンプル数ではなく時間で区切って平均することを確認する
+ */
+public class StatsTimeSeriesTest {
+	private static final double DELTA = 1e-9;
+	private static final StatsTimeSeries.Channel CHANNEL = StatsTimeSeries.Channel.SEND_BITRATE_KBPS;
+
+	@Test
+	public void empty() {
+		final StatsTimeSeries series = new StatsTimeSeries();
+		assertTrue(Double.isNaN(series.average(StatsTimeSeries.Tier.SECOND, CHANNEL, 10000)));
+	}
+
+	/**
+	 * 1秒毎に記録した時は直近10秒の10サンプルを平均する
+	 */
+	@Test
+	public void everySecond() {
+		final StatsTimeSeries series = new StatsTimeSeries();
+		for (int i = 0; i < 20; i++) {
+			record(series, i * 1000, i);
+		}
+		// 10〜19の平均
+		assertEquals(14.5, series.average(StatsTimeSeries.Tier.SECOND, CHANNEL, 10000), DELTA);
+		// 区間の途中でも区間の開始時刻で判定する
+		record(series, 19500, 19);
+		assertEquals(14.5, series.average(StatsTimeSeries.Tier.SECOND, CHANNEL, 10000), DELTA);
+	}
+
+	/**
+	 * 統計情報の取得間隔が4秒の時は直近10秒に含まれる3サンプルだけを平均し、
+	 * それより前のサンプルは10サンプル以内でも含めない
+	 */
+	@Test
+	public void gaps() {
+		final StatsTimeSeries series = new StatsTimeSeries();
+		for (long t = 0; t <= 28000; t += 4000) {
+			record(series, t, 100);
+		}
+		for (long t = 32000; t <= 40000; t += 4000) {
+			record(series, t, 200);
+		}
+		assertEquals(11, series.getCount(StatsTimeSeries.Tier.SECOND));
+		assertEquals(200, series.average(StatsTimeSeries.Tier.SECOND, CHANNEL, 10000), DELTA);
+		// 16秒だと28000からの4サンプル
+		assertEquals(175, series.average(StatsTimeSeries.Tier.SECOND, CHANNEL, 16000), DELTA);
+	}
+
+	/**
+	 * 直近の時間内に値が無ければ古いサンプルがあってもNaN
+	 */
+	@Test
+	public void noValueInWindow() {
+		final StatsTimeSeries series = new StatsTimeSeries();
+		for (int i = 0; i < 5; i++) {
+			record(series, i * 1000, 50);
+		}
+		record(series, 60000, Double.NaN);
+		assertTrue(Double.isNaN(series.average(StatsTimeSeries.Tier.SECOND, CHANNEL, 10000)));
+		assertEquals(50, series.average(StatsTimeSeries.Tier.SECOND, CHANNEL, 61000), DELTA);
+	}
+
+	/**
+	 * 10秒毎の解像度でも区間の開始時刻で判定する
+	 */
+	@Test
+	public void tenSecondsTier() {
+		final StatsTimeSeries series = new StatsTimeSeries();
+		for (int i = 0; i < 60; i++) {
+			record(series, i * 1000, i < 30 ? 10 : 40);
+		}
+		// 区間の開始時刻が(29000, 59000]の30000, 40000, 50000
+		assertEquals(40, series.average(StatsTimeSeries.Tier.TEN_SECONDS, CHANNEL, 30000), DELTA);
+	}
+
+	private static void record(
+		final StatsTimeSeries series, final long timestampMs, final double value) {
+
+		final double[] values = new double[StatsTimeSeries.Channel.values().length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Double.NaN;
+		}
+		values[CHANNEL.ordinal()] = value;
+		series.record(timestampMs, values);
+	}
+}
@@ -0,0 +1,338 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.*;
+
+/**
+ * TCPChannelClientの複数セッションのサーバーモードで
+ * セッション毎の受け付け、メッセージのルーティング、切断を確認する
+ * クライアント側は長さ(4バイト、ビッグエンディアン)+UTF-8のフレームを直接読み書きする
+ */
+public class TCPChannelClientTest {
+	private static final String LOCALHOST = "127.0.0.1";
+	private static final long TIMEOUT_MS = 5000;
+
+	private ExecutorService mExecutor;
+	private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+	private final List<String> mErrors = Collections.synchronizedList(new ArrayList<String>());
+	@Nullable
+	private TCPChannelClient mServer;
+	private int mPort;
+	private final List<Socket> mClients = new ArrayList<>();
+
+	@Before
+	public void setUp() throws Exception {
+		mExecutor = Executors.newSingleThreadExecutor();
+		try (ServerSocket socket = new ServerSocket(0)) {
+			mPort = socket.getLocalPort();
+		}
+		mServer = call(new Callable<TCPChannelClient>() {
+			@Override
+			public TCPChannelClient call() {
+				return new TCPChannelClient(mExecutor, new SessionEvents(), LOCALHOST, mPort);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (final Socket client: mClients) {
+			client.close();
+		}
+		if (mServer != null) {
+			call(new Callable<Void>() {
+				@Override
+				public Void call() {
+					mServer.disconnect();
+					return null;
+				}
+			});
+		}
+		mExecutor.shutdown();
+		assertTrue(mExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * 複数のクライアントを受け付けてセッション毎に別のidを割り当て、
+	 * 受信したメッセージはそのセッションのidで、送信したメッセージはそのセッションのクライアントだけに届く
+	 */
+	@Test
+	public void acceptAndRoute() throws Exception {
+		final Socket first = connect();
+		final int firstId = awaitConnected();
+		final Socket second = connect();
+		final int secondId = awaitConnected();
+		assertNotEquals(firstId, secondId);
+
+		writeFrame(second, "from second");
+		writeFrame(first, "from first");
+		final List<String> received = new ArrayList<>();
+		received.add(awaitEvent());
+		received.add(awaitEvent());
+		assertTrue(received.contains("message " + firstId + " from first"));
+		assertTrue(received.contains("message " + secondId + " from second"));
+
+		send(secondId, "to second");
+		send(firstId, "to first");
+		assertEquals("to first", readFrame(first));
+		assertEquals("to second", readFrame(second));
+		assertTrue(mErrors.isEmpty());
+	}
+
+	/**
+	 * 1つのセッションを切断しても他のセッションはそのまま使える
+	 */
+	@Test
+	public void closeOneSession() throws Exception {
+		final Socket first = connect();
+		final int firstId = awaitConnected();
+		final Socket second = connect();
+		final int secondId = awaitConnected();
+
+		disconnect(firstId);
+		assertEquals("close " + firstId, awaitEvent());
+		assertEndOfStream(first);
+
+		send(secondId, "still open");
+		assertEquals("still open", readFrame(second));
+		writeFrame(second, "reply");
+		assertEquals("message " + secondId + " reply", awaitEvent());
+
+		// クライアント側から切断した時もそのセッションのcloseイベントだけが来る
+		second.close();
+		assertEquals("close " + secondId, awaitEvent());
+		final Socket third = connect();
+		final int thirdId = awaitConnected();
+		writeFrame(third, "after close");
+		assertEquals("message " + thirdId + " after close", awaitEvent());
+		assertTrue(mErrors.isEmpty());
+	}
+
+	/**
+	 * disconnect()で全てのセッションを切断して待ち受けも終了する
+	 */
+	@Test
+	public void disconnectAll() throws Exception {
+		final Socket first = connect();
+		final int firstId = awaitConnected();
+		final Socket second = connect();
+		final int secondId = awaitConnected();
+
+		call(new Callable<Void>() {
+			@Override
+			public Void call() {
+				mServer.disconnect();
+				return null;
+			}
+		});
+		final List<String> closed = new ArrayList<>();
+		closed.add(awaitEvent());
+		closed.add(awaitEvent());
+		assertTrue(closed.contains("close " + firstId));
+		assertTrue(closed.contains("close " + secondId));
+		assertEndOfStream(first);
+		assertEndOfStream(second);
+		mServer = null;
+	}
+
+	/**
+	 * 受信中のセッションをexecutorスレッドから切断してもセレクタースレッドが終了せず、
+	 * 他のセッションは使える(CancelledKeyExceptionで全セッションを切断していた不具合の回帰テスト)
+	 */
+	@Test
+	public void closeWhileReceiving() throws Exception {
+		final Socket keep = connect();
+		final int keepId = awaitConnected();
+
+		for (int i = 0; i < 200; i++) {
+			final Socket flooding = connect();
+			String event;
+			while (!(event = awaitEvent()).startsWith("connected ")) {
+				// 前回切断したセッションから切断前に受信済みだったメッセージは読み飛ばす
+				assertTrue(event, event.startsWith("message "));
+			}
+			final int floodingId = Integer.parseInt(event.substring("connected ".length()));
+			final Thread writer = startFlooding(flooding);
+			// 最初のメッセージが届いたらセレクタースレッドが受信中のうちに切断する
+			assertEquals("message " + floodingId + " first", awaitEvent());
+			disconnect(floodingId);
+			while (!(event = awaitEvent()).equals("close " + floodingId)) {
+				assertEquals("message " + floodingId + " closing", event);
+			}
+			writer.join(TIMEOUT_MS);
+		}
+
+		send(keepId, "still open");
+		assertEquals("still open", readFrame(keep));
+		writeFrame(keep, "reply");
+		String event;
+		while (!(event = awaitEvent()).startsWith("message " + keepId)) {
+			assertTrue(event, event.startsWith("message "));
+		}
+		assertEquals("message " + keepId + " reply", event);
+		assertTrue(mErrors.toString(), mErrors.isEmpty());
+	}
+
+	/**
+	 * TCPChannelClientのイベントを文字列にしてキューへ入れる
+	 */
+	private class SessionEvents implements TCPChannelClient.TCPSessionEvents {
+		@Override
+		public void onTCPSessionConnected(final int sessionId) {
+			mEvents.add("connected " + sessionId);
+		}
+
+		@Override
+		public void onTCPSessionMessage(final int sessionId, final String message) {
+			mEvents.add("message " + sessionId + " " + message);
+		}
+
+		@Override
+		public void onTCPSessionClose(final int sessionId) {
+			mEvents.add("close " + sessionId);
+		}
+
+		@Override
+		public void onTCPError(final String description) {
+			mErrors.add(description);
+		}
+	}
+
+	private <T> T call(@NonNull final Callable<T> task) throws Exception {
+		return mExecutor.submit(task).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void send(final int sessionId, @NonNull final String message) throws Exception {
+		call(new Callable<Void>() {
+			@Override
+			public Void call() {
+				mServer.send(sessionId, message);
+				return null;
+			}
+		});
+	}
+
+	private void disconnect(final int sessionId) throws Exception {
+		call(new Callable<Void>() {
+			@Override
+			public Void call() {
+				mServer.disconnect(sessionId);
+				return null;
+			}
+		});
+	}
+
+	@NonNull
+	private String awaitEvent() throws InterruptedException {
+		final String event = mEvents.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertNotNull("timeout", event);
+		return event;
+	}
+
+	private int awaitConnected() throws InterruptedException {
+		final String event = awaitEvent();
+		assertTrue(event, event.startsWith("connected "));
+		return Integer.parseInt(event.substring("connected ".length()));
+	}
+
+	/**
+	 * 待ち受けの開始はセレクタースレッドで非同期に行われるので接続できるまで再試行する
+	 */
+	@NonNull
+	private Socket connect() throws Exception {
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (true) {
+			try {
+				final Socket socket = new Socket(InetAddress.getByName(LOCALHOST), mPort);
+				socket.setSoTimeout((int) TIMEOUT_MS);
+				mClients.add(socket);
+				return socket;
+			} catch (final IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * ソケットが閉じられるまで小さいメッセージを送り続けるスレッドを開始する
+	 */
+	@NonNull
+	private static Thread startFlooding(@NonNull final Socket socket) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; ; i++) {
+						writeFrame(socket, i == 0 ? "first" : "closing");
+					}
+				} catch (final IOException e) {
+					// サーバー側から切断された
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	private static void writeFrame(
+		@NonNull final Socket socket, @NonNull final String message) throws IOException {
+
+		final byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+		final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.flush();
+	}
+
+	@NonNull
+	private static String readFrame(@NonNull final Socket socket) throws IOException {
+		final DataInputStream in = new DataInputStream(socket.getInputStream());
+		final byte[] payload = new byte[in.readInt()];
+		in.readFully(payload);
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+
+	private static void assertEndOfStream(@NonNull final Socket socket) throws IOException {
+		try {
+			assertEquals(-1, socket.getInputStream().read());
+		} catch (final EOFException e) {
+			// 切断済み
+		}
+	}
+}
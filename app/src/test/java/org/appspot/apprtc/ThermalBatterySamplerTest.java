@@ -0,0 +1,137 @@
+package org.appspot.apprtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+
+/**
+ * sysfsを模したフィクスチャのディレクトリを使ってThermalBatterySamplerの解析を確認する
+ * フィクスチャはsrc/test/resources/thermal/以下にsysfsのルート毎のディレクトリで置く
+ */
+public class ThermalBatterySamplerTest {
+	private static final String FIXTURE = "thermal";
+	private static final double DELTA = 0.001;
+
+	/**
+	 * 種類にcpu/soc/tsensを含むゾーンだけを使う, batteryのゾーンがより高温でも無視する
+	 * 1000以下の値は℃、それより大きい値はミリ℃として読み、範囲外の値は無視する
+	 */
+	@Test
+	public void cpuZones() throws Exception {
+		final ThermalBatterySampler sampler = create("cpu_zones");
+		try {
+			sampler.sample();
+			// cpu-1-0-usr: 52.3℃, tsens_tz_sensor3: 61℃, soc_thermal: 200℃は範囲外
+			assertEquals(61.0, sampler.getTemperatureCelsius(), DELTA);
+			assertEquals(57, sampler.getBatteryPercent());
+			assertTrue(sampler.isCharging());
+		} finally {
+			sampler.release();
+		}
+	}
+
+	/**
+	 * CPU/SoCのゾーンが無ければ全てのゾーンの最大値を使う
+	 */
+	@Test
+	public void fallbackToAllZones() throws Exception {
+		final ThermalBatterySampler sampler = create("other_zones");
+		try {
+			sampler.sample();
+			assertEquals(41.5, sampler.getTemperatureCelsius(), DELTA);
+			assertEquals(100, sampler.getBatteryPercent());
+			// Fullも充電中として扱う
+			assertTrue(sampler.isCharging());
+		} finally {
+			sampler.release();
+		}
+	}
+
+	/**
+	 * Charging/Full以外のstatusは充電していないとみなす
+	 */
+	@Test
+	public void notCharging() throws Exception {
+		final ThermalBatterySampler sampler = create("discharging");
+		try {
+			sampler.sample();
+			assertEquals(45.0, sampler.getTemperatureCelsius(), DELTA);
+			assertEquals(15, sampler.getBatteryPercent());
+			assertFalse(sampler.isCharging());
+		} finally {
+			sampler.release();
+		}
+	}
+
+	/**
+	 * ファイルが無くContextも無ければ取得できない値を返す
+	 */
+	@Test
+	public void missing() throws Exception {
+		final ThermalBatterySampler sampler = create("missing");
+		try {
+			sampler.sample();
+			assertTrue(Double.isNaN(sampler.getTemperatureCelsius()));
+			assertEquals(-1, sampler.getBatteryPercent());
+			assertFalse(sampler.isCharging());
+			assertEquals(ThermalBatterySampler.THERMAL_STATUS_UNKNOWN, sampler.getThermalStatus());
+		} finally {
+			sampler.release();
+		}
+	}
+
+	@NonNull
+	private ThermalBatterySampler create(@NonNull final String name) throws Exception {
+		final URL url = getClass().getClassLoader().getResource(FIXTURE);
+		assertNotNull(FIXTURE, url);
+		return new ThermalBatterySampler(
+			new File(new File(url.toURI()), name), new FileDataSource(), null);
+	}
+
+	/**
+	 * android.system.Osを使わずにjava.ioでファイルを読み込むCpuDataSource
+	 */
+	private static class FileDataSource implements CpuDataSource {
+		@NonNull
+		@Override
+		public ProcFileReader open(@NonNull final String path, final int initialCapacity) {
+			return new ProcFileReader(path, initialCapacity) {
+				@Override
+				protected boolean fill() {
+					final File file = new File(getPath());
+					if (!file.isFile()) {
+						return false;
+					}
+					try {
+						final byte[] content = Files.readAllBytes(file.toPath());
+						setContent(content, content.length);
+						return true;
+					} catch (final IOException e) {
+						return false;
+					}
+				}
+			};
+		}
+
+		@Override
+		public int getBatteryLevel() {
+			return -1;
+		}
+	}
+}
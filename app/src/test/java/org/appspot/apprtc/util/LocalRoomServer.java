@@ -0,0 +1,761 @@
+package org.appspot.apprtc.util;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * オフラインでのベンチマーク/回帰テスト用にプロセス内で動作するappr.tc互換のルームサーバー
+ * テスト専用なのでAPKには含めない(LocalRoomServerBenchmarkを参照)
+ * WebSocketRTCClient/RoomParametersFetcher/WebSocketChannelClientが使う以下のエンドポイントを
+ * ループバックアドレス上で提供する
+ * ・POST /join/{roomId}, POST /message/{roomId}/{clientId}, POST /leave/{roomId}/{clientId}
+ * ・POST /turn (ice_server_urlとして返す、空のTURNサーバーリストとTTLを返す)
+ * ・GET /ws (WebSocket, register/sendコマンド), POST/DELETE /wsp/{roomId}/{clientId}
+ * Android APIには依存しないので通常のJVM上でも動作する
+ * 接続毎にスレッドを使う単純な実装なので大量の同時接続には向かない
+ */
+public class LocalRoomServer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final String WS_PATH = "/ws";
+	private static final String WS_POST_PATH = "/wsp";
+	private static final String TURN_PATH = "/turn";
+	private static final int MAX_CLIENTS_PER_ROOM = 2;
+	private static final int MAX_HEADER_LINE = 8192;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+
+	/**
+	 * ルームに参加中のクライアント
+	 */
+	private static class Client {
+		@NonNull
+		final String clientId;
+		/**
+		 * WebSocketでregisterしていればその接続
+		 */
+		@Nullable
+		WebSocket webSocket;
+		/**
+		 * 相手がまだjoinしていない/WebSocketでregisterしていない間に届いたこのクライアント宛てのメッセージ
+		 */
+		@NonNull
+		final List<String> pending = new ArrayList<>();
+
+		Client(@NonNull final String clientId) {
+			this.clientId = clientId;
+		}
+	}
+
+	/**
+	 * ルーム, 参加しているクライアントは最大MAX_CLIENTS_PER_ROOM
+	 */
+	private static class Room {
+		@NonNull
+		final List<Client> clients = new ArrayList<>();
+		/**
+		 * 2人目のクライアントがjoinする前に1人目から送られたメッセージ
+		 */
+		@NonNull
+		final List<String> messages = new ArrayList<>();
+
+		@Nullable
+		Client find(@NonNull final String clientId) {
+			for (final Client client: clients) {
+				if (client.clientId.equals(clientId)) {
+					return client;
+				}
+			}
+			return null;
+		}
+
+		@Nullable
+		Client other(@NonNull final String clientId) {
+			for (final Client client: clients) {
+				if (!client.clientId.equals(clientId)) {
+					return client;
+				}
+			}
+			return null;
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	/**
+	 * ルームIDをキーとするルーム, mSyncで保護
+	 */
+	@NonNull
+	private final Map<String, Room> mRooms = new HashMap<>();
+	@NonNull
+	private final List<Socket> mSockets = new ArrayList<>();
+	@NonNull
+	private final Random mRandom = new Random();
+	@NonNull
+	private final AtomicLong mRelayedMessages = new AtomicLong();
+	@NonNull
+	private final AtomicLong mHttpRequests = new AtomicLong();
+	private final int mRequestedPort;
+	private volatile boolean mServeTurn = true;
+	@Nullable
+	private ServerSocket mServerSocket;
+	@Nullable
+	private Thread mAcceptThread;
+
+	/**
+	 * コンストラクタ
+	 * @param port 待ち受けるポート番号, 0なら空いているポートを使う
+	 */
+	public LocalRoomServer(final int port) {
+		mRequestedPort = port;
+	}
+
+	/**
+	 * ループバックアドレスで待ち受けを開始する
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		synchronized (mSync) {
+			if (mServerSocket != null) {
+				return;
+			}
+			mServerSocket = new ServerSocket(mRequestedPort, 50, InetAddress.getByName("127.0.0.1"));
+			final ServerSocket serverSocket = mServerSocket;
+			mAcceptThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					acceptLoop(serverSocket);
+				}
+			}, "LocalRoomServer");
+			mAcceptThread.setDaemon(true);
+			mAcceptThread.start();
+		}
+	}
+
+	/**
+	 * 待ち受けを終了して全ての接続を閉じる
+	 */
+	public void stop() {
+		final List<Socket> sockets;
+		synchronized (mSync) {
+			if (mServerSocket != null) {
+				closeQuietly(mServerSocket);
+				mServerSocket = null;
+			}
+			sockets = new ArrayList<>(mSockets);
+			mSockets.clear();
+			mRooms.clear();
+		}
+		for (final Socket socket: sockets) {
+			closeQuietly(socket);
+		}
+		if (mAcceptThread != null) {
+			try {
+				mAcceptThread.join(1000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			mAcceptThread = null;
+		}
+	}
+
+	/**
+	 * 待ち受けているポート番号を取得, start前は-1
+	 * @return
+	 */
+	public int getPort() {
+		synchronized (mSync) {
+			return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+		}
+	}
+
+	/**
+	 * RoomConnectionParameters#roomUrlとして使うURLを取得
+	 * @return
+	 */
+	@NonNull
+	public String getRoomUrl() {
+		return "http://127.0.0.1:" + getPort();
+	}
+
+	/**
+	 * joinのレスポンスでice_server_urlを返すかどうかを設定, デフォルトはtrue
+	 * @param serveTurn
+	 */
+	public void setServeTurn(final boolean serveTurn) {
+		mServeTurn = serveTurn;
+	}
+
+	/**
+	 * 相手のクライアントへ中継したメッセージ数を取得
+	 * @return
+	 */
+	public long getRelayedMessageCount() {
+		return mRelayedMessages.get();
+	}
+
+	/**
+	 * 2人目のクライアントがjoinした時にjoinのレスポンスで返すためにルームに保持しているメッセージ数を取得
+	 * @param roomId
+	 * @return
+	 */
+	public int getRoomMessageCount(@NonNull final String roomId) {
+		synchronized (mSync) {
+			final Room room = mRooms.get(roomId);
+			return room != null ? room.messages.size() : 0;
+		}
+	}
+
+	/**
+	 * 処理したHTTPリクエスト数を取得(WebSocketのハンドシェークを含む)
+	 * @return
+	 */
+	public long getHttpRequestCount() {
+		return mHttpRequests.get();
+	}
+
+	private void acceptLoop(@NonNull final ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (final IOException e) {
+				break;
+			}
+			synchronized (mSync) {
+				mSockets.add(socket);
+			}
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						handleConnection(socket);
+					} catch (final IOException | JSONException e) {
+						// 切断された
+					} finally {
+						synchronized (mSync) {
+							mSockets.remove(socket);
+						}
+						closeQuietly(socket);
+					}
+				}
+			}, "LocalRoomServer-" + socket.getPort());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+//--------------------------------------------------------------------------------
+// HTTP
+	/**
+	 * 1つの接続上でkeep-aliveのHTTPリクエストを順に処理する
+	 * WebSocketへのアップグレード要求であればWebSocketとして処理する
+	 */
+	private void handleConnection(@NonNull final Socket socket) throws IOException, JSONException {
+		socket.setTcpNoDelay(true);
+		final InputStream in = new BufferedInputStream(socket.getInputStream());
+		final OutputStream out = socket.getOutputStream();
+		while (true) {
+			final String requestLine = readLine(in);
+			if (requestLine == null) {
+				return;
+			}
+			if (requestLine.isEmpty()) {
+				continue;
+			}
+			mHttpRequests.incrementAndGet();
+			final String[] parts = requestLine.split(" ");
+			if (parts.length < 2) {
+				writeResponse(out, 400, "Bad Request", "", true);
+				return;
+			}
+			final String method = parts[0];
+			String path = parts[1];
+			final int query = path.indexOf('?');
+			if (query >= 0) {
+				path = path.substring(0, query);
+			}
+			final Map<String, String> headers = new HashMap<>();
+			String line;
+			while (((line = readLine(in)) != null) && !line.isEmpty()) {
+				final int colon = line.indexOf(':');
+				if (colon > 0) {
+					headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+						line.substring(colon + 1).trim());
+				}
+			}
+			if (line == null) {
+				return;
+			}
+			if (WS_PATH.equals(path) && "websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+				handleWebSocket(in, out, headers.get("sec-websocket-key"));
+				return;
+			}
+			final int contentLength = parseInt(headers.get("content-length"));
+			final byte[] body = new byte[contentLength];
+			readFully(in, body);
+			final boolean close = "close".equalsIgnoreCase(headers.get("connection"));
+			final String response = route(method, path, new String(body, UTF8));
+			if (response != null) {
+				writeResponse(out, 200, "OK", response, close);
+			} else {
+				writeResponse(out, 404, "Not Found", "", close);
+			}
+			if (close) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * HTTPリクエストを処理する
+	 * @return レスポンスボディ, 該当するエンドポイントが無ければnull
+	 */
+	@Nullable
+	private String route(@NonNull final String method,
+		@NonNull final String path, @NonNull final String body) throws JSONException {
+
+		final String[] segments = path.split("/");
+		// segments[0]は先頭の"/"の前の空文字列
+		if (segments.length < 2) {
+			return null;
+		}
+		final String endpoint = "/" + segments[1];
+		if ("/join".equals(endpoint) && (segments.length == 3)) {
+			return join(segments[2]);
+		} else if ("/message".equals(endpoint) && (segments.length == 4)) {
+			relay(segments[2], segments[3], body, true);
+			return result("SUCCESS");
+		} else if ("/leave".equals(endpoint) && (segments.length == 4)) {
+			leave(segments[2], segments[3]);
+			return result("SUCCESS");
+		} else if (TURN_PATH.equals(endpoint)) {
+			final JSONObject json = new JSONObject();
+			json.put("iceServers", new JSONArray());
+			json.put("lifetimeDuration", "86400s");
+			return json.toString();
+		} else if (WS_POST_PATH.equals(endpoint) && (segments.length == 4)) {
+			if ("DELETE".equals(method)) {
+				unregister(segments[2], segments[3]);
+			} else if (!body.isEmpty()) {
+				relay(segments[2], segments[3], body, false);
+			}
+			return "";
+		}
+		return null;
+	}
+
+	@NonNull
+	private String join(@NonNull final String roomId) throws JSONException {
+		final String clientId;
+		final boolean initiator;
+		final JSONArray messages = new JSONArray();
+		synchronized (mSync) {
+			Room room = mRooms.get(roomId);
+			if (room == null) {
+				room = new Room();
+				mRooms.put(roomId, room);
+			}
+			if (room.clients.size() >= MAX_CLIENTS_PER_ROOM) {
+				return result("FULL");
+			}
+			clientId = String.format(Locale.US, "%08d", mRandom.nextInt(100000000));
+			initiator = room.clients.isEmpty();
+			room.clients.add(new Client(clientId));
+			if (!initiator) {
+				for (final String message: room.messages) {
+					messages.put(message);
+				}
+				room.messages.clear();
+			}
+		}
+		final String baseUrl = getRoomUrl();
+		final JSONObject params = new JSONObject();
+		params.put("room_id", roomId);
+		params.put("client_id", clientId);
+		params.put("wss_url", "ws://127.0.0.1:" + getPort() + WS_PATH);
+		params.put("wss_post_url", baseUrl + WS_POST_PATH);
+		params.put("is_initiator", Boolean.toString(initiator));
+		params.put("messages", messages.toString());
+		params.put("pc_config", "{\"iceServers\": []}");
+		if (mServeTurn) {
+			params.put("ice_server_url", baseUrl + TURN_PATH);
+		}
+		final JSONObject json = new JSONObject();
+		json.put("result", "SUCCESS");
+		// RoomParametersFetcherはgetStringで読むので、JVM版の厳密なorg.jsonでも読めるように
+		// paramsはJSON文字列として返す
+		json.put("params", params.toString());
+		return json.toString();
+	}
+
+	private void leave(@NonNull final String roomId, @NonNull final String clientId) {
+		synchronized (mSync) {
+			final Room room = mRooms.get(roomId);
+			if (room != null) {
+				final Client client = room.find(clientId);
+				if (client != null) {
+					room.clients.remove(client);
+				}
+				if (room.clients.isEmpty()) {
+					mRooms.remove(roomId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 相手のクライアントへメッセージを中継する
+	 * 相手がまだjoinしていなければ(ルームへのPOSTのみ)ルームに保持してjoinのレスポンスで返す
+	 * 相手がregisterしていなければregister時に送る
+	 */
+	private void relay(@NonNull final String roomId, @NonNull final String clientId,
+		@NonNull final String message, final boolean fromRoomPost) {
+
+		final WebSocket target;
+		synchronized (mSync) {
+			final Room room = mRooms.get(roomId);
+			if (room == null) {
+				return;
+			}
+			final Client other = room.other(clientId);
+			if (other == null) {
+				if (fromRoomPost) {
+					room.messages.add(message);
+				}
+				return;
+			}
+			if (other.webSocket == null) {
+				other.pending.add(message);
+				return;
+			}
+			target = other.webSocket;
+		}
+		target.sendMessage(message);
+	}
+
+	private void register(@NonNull final WebSocket webSocket,
+		@NonNull final String roomId, @NonNull final String clientId) {
+
+		final List<String> pending;
+		synchronized (mSync) {
+			Room room = mRooms.get(roomId);
+			if (room == null) {
+				room = new Room();
+				mRooms.put(roomId, room);
+			}
+			Client client = room.find(clientId);
+			if (client == null) {
+				client = new Client(clientId);
+				room.clients.add(client);
+			}
+			client.webSocket = webSocket;
+			pending = new ArrayList<>(client.pending);
+			client.pending.clear();
+		}
+		for (final String message: pending) {
+			webSocket.sendMessage(message);
+		}
+	}
+
+	private void unregister(@NonNull final String roomId, @NonNull final String clientId) {
+		synchronized (mSync) {
+			final Room room = mRooms.get(roomId);
+			final Client client = room != null ? room.find(clientId) : null;
+			if (client != null) {
+				client.webSocket = null;
+			}
+		}
+	}
+
+	@NonNull
+	private static String result(@NonNull final String result) throws JSONException {
+		final JSONObject json = new JSONObject();
+		json.put("result", result);
+		return json.toString();
+	}
+
+	private static void writeResponse(@NonNull final OutputStream out,
+		final int code, @NonNull final String reason, @NonNull final String body,
+		final boolean close) throws IOException {
+
+		final byte[] bytes = body.getBytes(UTF8);
+		final String header = "HTTP/1.1 " + code + " " + reason + "\r\n"
+			+ "Content-Type: application/json; charset=utf-8\r\n"
+			+ "Content-Length: " + bytes.length + "\r\n"
+			+ "Connection: " + (close ? "close" : "keep-alive") + "\r\n\r\n";
+		out.write(header.getBytes(UTF8));
+		out.write(bytes);
+		out.flush();
+	}
+
+//--------------------------------------------------------------------------------
+// WebSocket
+	/**
+	 * WebSocketのハンドシェーク後、registerとsendコマンドを処理する
+	 */
+	private void handleWebSocket(@NonNull final InputStream in, @NonNull final OutputStream out,
+		@Nullable final String key) throws IOException, JSONException {
+
+		if (key == null) {
+			writeResponse(out, 400, "Bad Request", "", true);
+			return;
+		}
+		final String header = "HTTP/1.1 101 Switching Protocols\r\n"
+			+ "Upgrade: websocket\r\n"
+			+ "Connection: Upgrade\r\n"
+			+ "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+		out.write(header.getBytes(UTF8));
+		out.flush();
+
+		final WebSocket webSocket = new WebSocket(out);
+		String roomId = null;
+		String clientId = null;
+		try {
+			while (true) {
+				final String text = webSocket.readMessage(in);
+				if (text == null) {
+					break;
+				}
+				final JSONObject json = new JSONObject(text);
+				final String cmd = json.optString("cmd");
+				if ("register".equals(cmd)) {
+					roomId = json.getString("roomid");
+					clientId = json.getString("clientid");
+					register(webSocket, roomId, clientId);
+				} else if ("send".equals(cmd) && (roomId != null)) {
+					relay(roomId, clientId, json.getString("msg"), false);
+				}
+			}
+		} finally {
+			if (roomId != null) {
+				unregister(roomId, clientId);
+			}
+		}
+	}
+
+	/**
+	 * サーバー側のWebSocket接続
+	 */
+	private class WebSocket {
+		@NonNull
+		private final OutputStream out;
+
+		WebSocket(@NonNull final OutputStream out) {
+			this.out = out;
+		}
+
+		/**
+		 * 相手から届いたメッセージとしてコライダーと同じ形式で送る
+		 * @param message
+		 */
+		void sendMessage(@NonNull final String message) {
+			try {
+				final JSONObject json = new JSONObject();
+				json.put("msg", message);
+				json.put("error", "");
+				writeFrame(OPCODE_TEXT, json.toString().getBytes(UTF8));
+				mRelayedMessages.incrementAndGet();
+			} catch (final IOException | JSONException e) {
+				// 切断済み
+			}
+		}
+
+		/**
+		 * テキストメッセージを1つ受信する, ping/pongは内部で処理する
+		 * @return 受信したテキスト, closeを受信するか切断されればnull
+		 */
+		@Nullable
+		String readMessage(@NonNull final InputStream in) throws IOException {
+			final ByteArrayOutputStream message = new ByteArrayOutputStream();
+			while (true) {
+				final int b0 = in.read();
+				final int b1 = in.read();
+				if ((b0 < 0) || (b1 < 0)) {
+					return null;
+				}
+				final boolean fin = (b0 & 0x80) != 0;
+				final int opcode = b0 & 0x0f;
+				final boolean masked = (b1 & 0x80) != 0;
+				long length = b1 & 0x7f;
+				if (length == 126) {
+					length = (readByte(in) << 8) | readByte(in);
+				} else if (length == 127) {
+					length = 0;
+					for (int i = 0; i < 8; i++) {
+						length = (length << 8) | readByte(in);
+					}
+				}
+				if (length > Integer.MAX_VALUE) {
+					throw new IOException("Frame too large");
+				}
+				final byte[] mask = new byte[4];
+				if (masked) {
+					readFully(in, mask);
+				}
+				final byte[] payload = new byte[(int)length];
+				readFully(in, payload);
+				if (masked) {
+					for (int i = 0; i < payload.length; i++) {
+						payload[i] ^= mask[i & 3];
+					}
+				}
+				if (opcode == OPCODE_CLOSE) {
+					writeFrame(OPCODE_CLOSE, payload);
+					return null;
+				} else if (opcode == OPCODE_PING) {
+					writeFrame(OPCODE_PONG, payload);
+				} else if (opcode != OPCODE_PONG) {
+					// テキストまたは継続フレーム
+					message.write(payload, 0, payload.length);
+					if (fin) {
+						return new String(message.toByteArray(), UTF8);
+					}
+				}
+			}
+		}
+
+		/**
+		 * サーバーからはマスク無しで送る
+		 */
+		synchronized void writeFrame(final int opcode, @NonNull final byte[] payload)
+			throws IOException {
+
+			final int length = payload.length;
+			final byte[] header;
+			if (length < 126) {
+				header = new byte[] {(byte)(0x80 | opcode), (byte)length};
+			} else if (length < 65536) {
+				header = new byte[] {(byte)(0x80 | opcode), 126,
+					(byte)(length >> 8), (byte)length};
+			} else {
+				header = new byte[10];
+				header[0] = (byte)(0x80 | opcode);
+				header[1] = 127;
+				for (int i = 0; i < 8; i++) {
+					header[9 - i] = (byte)(i < 4 ? (length >>> (8 * i)) : 0);
+				}
+			}
+			out.write(header);
+			out.write(payload);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Sec-WebSocket-Acceptの値を計算する
+	 */
+	@NonNull
+	private static String acceptKey(@NonNull final String key) {
+		try {
+			final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(
+				sha1.digest((key + WEBSOCKET_GUID).getBytes(UTF8)));
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * CRLFまたはLFで終わる1行を読み込む
+	 * @return 読み込んだ行(改行を含まない), ストリームの終端ならnull
+	 */
+	@Nullable
+	private static String readLine(@NonNull final InputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) >= 0) {
+			if (b == '\n') {
+				final byte[] bytes = line.toByteArray();
+				final int len = (bytes.length > 0) && (bytes[bytes.length - 1] == '\r')
+					? bytes.length - 1 : bytes.length;
+				return new String(bytes, 0, len, UTF8);
+			}
+			if (line.size() >= MAX_HEADER_LINE) {
+				throw new IOException("Header line too long");
+			}
+			line.write(b);
+		}
+		return line.size() > 0 ? new String(line.toByteArray(), UTF8) : null;
+	}
+
+	private static int readByte(@NonNull final InputStream in) throws IOException {
+		final int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	private static void readFully(@NonNull final InputStream in, @NonNull final byte[] buf)
+		throws IOException {
+
+		int offset = 0;
+		while (offset < buf.length) {
+			final int bytes = in.read(buf, offset, buf.length - offset);
+			if (bytes < 0) {
+				throw new EOFException();
+			}
+			offset += bytes;
+		}
+	}
+
+	private static int parseInt(@Nullable final String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (final NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static void closeQuietly(@Nullable final Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+}
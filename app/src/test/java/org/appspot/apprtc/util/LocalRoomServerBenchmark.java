@@ -0,0 +1,360 @@
+package org.appspot.apprtc.util;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.util.Log;
+
+import com.serenegiant.webrtc.stats.LogLinearHistogram;
+
+import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
+import org.appspot.apprtc.AppRTCClient.SignalingEvents;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.WebSocketRTCClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * LocalRoomServerに対してアプリのシグナリングの実装(WebSocketRTCClient、RoomParametersFetcher、
+ * WebSocketChannelClient)でjoinからoffer/answer/ICE candidateの交換、leaveまでを実行する
+ * WebSocketChannelClientが使うautobahnはLooperが必要なのでRobolectricで実行する
+ * 通話開始の所要時間と中継の往復時間の計測(throughput)は時間がかかるので
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark を指定した時だけ実行して結果をログへ出力する
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class LocalRoomServerBenchmark {
+	private static final String TAG = LocalRoomServerBenchmark.class.getSimpleName();
+	/**
+	 * 計測を実行するかどうか, app/build.gradleで-Pbenchmarkの時にtrueにする
+	 */
+	private static final String BENCHMARK_PROPERTY = "apprtc.benchmark";
+	private static final int WARMUP_ROUNDS = 20;
+	private static final int MEASURE_ROUNDS = 200;
+	private static final long TIMEOUT_MS = 5000;
+	/**
+	 * この時間イベントが来なければautobahnのスレッドを起こす
+	 */
+	private static final long STALL_MS = 500;
+	/**
+	 * autobahnのWebSocketConnection#connectが開始を待つスレッドの名前
+	 */
+	private static final List<String> AUTOBAHN_THREAD_NAMES = Arrays.asList(
+		"WebSocketConnector", "WebSocketWriter", "WebSocketReader");
+	/**
+	 * ループバックアドレス上での計測値の上限, 実行環境の差を見込んで大きめにしておく
+	 */
+	private static final double MAX_SETUP_P99_MS = 2000;
+	private static final double MAX_RELAY_P99_MS = 1000;
+
+	private static final SessionDescription OFFER =
+		new SessionDescription(SessionDescription.Type.OFFER, "v=0 offer");
+	private static final SessionDescription ANSWER =
+		new SessionDescription(SessionDescription.Type.ANSWER, "v=0 answer");
+
+	private LocalRoomServer mServer;
+	private final List<Peer> mPeers = new ArrayList<>();
+	private int mStalls;
+
+	@Before
+	public void setUp() throws Exception {
+		mServer = new LocalRoomServer(0);
+		mServer.start();
+	}
+
+	@After
+	public void tearDown() {
+		for (final Peer peer: mPeers) {
+			peer.disconnect();
+		}
+		mServer.stop();
+	}
+
+	/**
+	 * join/message/leaveとWebSocketでの中継がappr.tcと同じようにアプリのクライアントで動作するかどうか
+	 */
+	@Test
+	public void signaling() throws Exception {
+		final Peer caller = new Peer("room1");
+		assertTrue(caller.connect().initiator);
+		// 相手がjoinする前のofferとICE candidateはルームに保持されてjoinのレスポンスで返される
+		caller.client.sendOfferSdp(OFFER);
+		caller.client.sendLocalIceCandidate(candidate(0));
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		long lastProgress = System.currentTimeMillis();
+		while (mServer.getRoomMessageCount("room1") < 2) {
+			assertTrue("timeout", System.currentTimeMillis() < deadline);
+			if (System.currentTimeMillis() - lastProgress > STALL_MS) {
+				wakeStalledConnectors();
+				lastProgress = System.currentTimeMillis();
+			}
+			Thread.sleep(1);
+		}
+
+		final Peer callee = new Peer("room1");
+		final SignalingParameters calleeParams = callee.connect();
+		assertFalse(calleeParams.initiator);
+		assertNotNull(calleeParams.offerSdp);
+		assertEquals(OFFER.description, calleeParams.offerSdp.description);
+		assertEquals(1, calleeParams.iceCandidates.size());
+		assertEquals(candidate(0).sdp, calleeParams.iceCandidates.get(0).sdp);
+
+		// 3人目は入れない
+		final Peer third = new Peer("room1");
+		third.client.connectToRoom(third.parameters());
+		final String error = third.await(third.errors);
+		assertTrue(error, error.contains("FULL"));
+		third.errors.clear();
+
+		// calleeからはWebSocketのsendコマンド、callerからはルームへのPOSTで相手へ中継される
+		callee.client.sendAnswerSdp(ANSWER);
+		assertEquals(ANSWER.description, caller.awaitDescription().description);
+		callee.client.sendLocalIceCandidate(candidate(1));
+		assertEquals(candidate(1).sdp, caller.awaitCandidate().sdp);
+		caller.client.sendLocalIceCandidate(candidate(2));
+		assertEquals(candidate(2).sdp, callee.awaitCandidate().sdp);
+
+		// 退出すると相手にWebSocketでbyeが届く
+		callee.disconnect();
+		assertTrue("bye", caller.closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		for (final Peer peer: mPeers) {
+			assertTrue(peer.errors.toString(), peer.errors.isEmpty());
+		}
+	}
+
+	/**
+	 * 2つのクライアントのjoinからoffer/answer/ICE candidateの交換までの所要時間と
+	 * ICE candidateの中継の往復時間を計測する
+	 */
+	@Test
+	public void throughput() throws Exception {
+		assumeTrue("Run with -Pbenchmark", Boolean.getBoolean(BENCHMARK_PROPERTY));
+
+		final LogLinearHistogram setupMs = new LogLinearHistogram(0.01, 10000);
+		for (int i = 0; i < WARMUP_ROUNDS + MEASURE_ROUNDS; i++) {
+			final long startNs = System.nanoTime();
+			final Peer[] call = callSetup("bench" + i);
+			if (i >= WARMUP_ROUNDS) {
+				setupMs.add((System.nanoTime() - startNs) / 1000000.0);
+			}
+			hangUp(call);
+		}
+
+		final LogLinearHistogram relayMs = new LogLinearHistogram(0.01, 10000);
+		final Peer[] call = callSetup("relay");
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			pingPong(call, i);
+		}
+		final long startNs = System.nanoTime();
+		for (int i = 0; i < MEASURE_ROUNDS; i++) {
+			final long roundNs = System.nanoTime();
+			pingPong(call, i);
+			relayMs.add((System.nanoTime() - roundNs) / 1000000.0);
+		}
+		final double relaySecs = (System.nanoTime() - startNs) / 1e9;
+		hangUp(call);
+
+		Log.i(TAG, String.format(Locale.US,
+			"call setup: p50 %.2f ms, p99 %.2f ms; "
+				+ "relay round trip: p50 %.2f ms, p99 %.2f ms, %.0f messages/s; "
+				+ "autobahn wakeups: %d",
+			setupMs.getPercentile(50), setupMs.getPercentile(99),
+			relayMs.getPercentile(50), relayMs.getPercentile(99),
+			2 * MEASURE_ROUNDS / relaySecs, mStalls));
+		assertEquals(MEASURE_ROUNDS, setupMs.getCount());
+		assertEquals(MEASURE_ROUNDS, relayMs.getCount());
+		assertTrue("setup p99", setupMs.getPercentile(99) < MAX_SETUP_P99_MS);
+		assertTrue("relay p99", relayMs.getPercentile(99) < MAX_RELAY_P99_MS);
+	}
+
+	/**
+	 * 1回分の通話のシグナリング, callerのjoinとoffer/ICE candidateの送信、calleeのjoinと
+	 * answer/ICE candidateの送信を行い、お互いが相手のSDPとICE candidateを受け取るまで待つ
+	 * callerからのofferとICE candidateはcalleeのjoinのレスポンスかWebSocketのどちらかで届く
+	 * @return [caller, callee]
+	 */
+	@NonNull
+	private Peer[] callSetup(@NonNull final String roomId) throws Exception {
+		final Peer caller = new Peer(roomId);
+		caller.connect();
+		caller.client.sendOfferSdp(OFFER);
+		caller.client.sendLocalIceCandidate(candidate(0));
+		final Peer callee = new Peer(roomId);
+		final SignalingParameters params = callee.connect();
+		if (params.offerSdp == null) {
+			assertEquals(OFFER.description, callee.awaitDescription().description);
+		}
+		if (params.iceCandidates.isEmpty()) {
+			callee.awaitCandidate();
+		}
+		callee.client.sendAnswerSdp(ANSWER);
+		callee.client.sendLocalIceCandidate(candidate(1));
+		caller.awaitDescription();
+		caller.awaitCandidate();
+		return new Peer[] {caller, callee};
+	}
+
+	/**
+	 * calleeからWebSocketで、callerからルームへのPOSTでICE candidateを1つずつ送る
+	 */
+	private static void pingPong(@NonNull final Peer[] call, final int i) throws Exception {
+		final IceCandidate candidate = candidate(i);
+		call[1].client.sendLocalIceCandidate(candidate);
+		assertEquals(candidate.sdp, call[0].awaitCandidate().sdp);
+		call[0].client.sendLocalIceCandidate(candidate);
+		assertEquals(candidate.sdp, call[1].awaitCandidate().sdp);
+	}
+
+	private void hangUp(@NonNull final Peer[] call) {
+		for (final Peer peer: call) {
+			assertTrue(peer.errors.toString(), peer.errors.isEmpty());
+			peer.disconnect();
+			mPeers.remove(peer);
+		}
+	}
+
+	/**
+	 * autobahnのWebSocketConnection#connectは接続用/書き込み用/読み込み用のスレッドを
+	 * 開始する毎にそのスレッドのwaitで開始を待つが、ループバックアドレスでは待つ前に
+	 * notifyAllされて戻ってこないことがある(lost wakeup)ので、それらのスレッドへ
+	 * notifyAllして呼び出し元を起こす, 起こされた呼び出し元はそのまま接続を続ける
+	 */
+	private void wakeStalledConnectors() {
+		for (final Thread thread: Thread.getAllStackTraces().keySet()) {
+			if (AUTOBAHN_THREAD_NAMES.contains(thread.getName())) {
+				synchronized (thread) {
+					thread.notifyAll();
+				}
+			}
+		}
+		mStalls++;
+	}
+
+	@NonNull
+	private static IceCandidate candidate(final int i) {
+		return new IceCandidate("0", 0, "candidate:" + i + " 1 udp 2122260223 127.0.0.1 "
+			+ (50000 + i) + " typ host");
+	}
+
+	/**
+	 * WebSocketRTCClientとそのSignalingEventsで受け取ったイベント
+	 */
+	private class Peer implements SignalingEvents {
+		@NonNull
+		final String roomId;
+		@NonNull
+		final WebSocketRTCClient client;
+		final BlockingQueue<SignalingParameters> connected = new LinkedBlockingQueue<>();
+		final BlockingQueue<SessionDescription> descriptions = new LinkedBlockingQueue<>();
+		final BlockingQueue<IceCandidate> candidates = new LinkedBlockingQueue<>();
+		final BlockingQueue<String> errors = new LinkedBlockingQueue<>();
+		final CountDownLatch closed = new CountDownLatch(1);
+		private boolean disconnected;
+
+		Peer(@NonNull final String roomId) {
+			this.roomId = roomId;
+			client = new WebSocketRTCClient(this);
+			mPeers.add(this);
+		}
+
+		@NonNull
+		RoomConnectionParameters parameters() {
+			return new RoomConnectionParameters(mServer.getRoomUrl(), roomId, false);
+		}
+
+		@NonNull
+		SignalingParameters connect() throws InterruptedException {
+			client.connectToRoom(parameters());
+			return await(connected);
+		}
+
+		@NonNull
+		SessionDescription awaitDescription() throws InterruptedException {
+			return await(descriptions);
+		}
+
+		@NonNull
+		IceCandidate awaitCandidate() throws InterruptedException {
+			return await(candidates);
+		}
+
+		/**
+		 * WebSocketRTCClientは切断するとLooperを終了するので1回だけ呼ぶ
+		 */
+		void disconnect() {
+			if (!disconnected) {
+				disconnected = true;
+				client.disconnectFromRoom();
+			}
+		}
+
+		@NonNull
+		private <T> T await(@NonNull final BlockingQueue<T> queue) throws InterruptedException {
+			T result = null;
+			for (long waited = 0; (result == null) && (waited < TIMEOUT_MS); waited += STALL_MS) {
+				result = queue.poll(STALL_MS, TimeUnit.MILLISECONDS);
+				if (result == null) {
+					wakeStalledConnectors();
+				}
+			}
+			assertNotNull("timeout, errors=" + errors, result);
+			return result;
+		}
+
+		@Override
+		public void onConnectedToRoom(final SignalingParameters params) {
+			connected.add(params);
+		}
+
+		@Override
+		public void onRemoteDescription(final SessionDescription sdp) {
+			descriptions.add(sdp);
+		}
+
+		@Override
+		public void onRemoteIceCandidate(final IceCandidate candidate) {
+			candidates.add(candidate);
+		}
+
+		@Override
+		public void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates) {
+			errors.add("Unexpected candidate removal");
+		}
+
+		@Override
+		public void onChannelClose() {
+			closed.countDown();
+		}
+
+		@Override
+		public void onChannelError(final String description) {
+			errors.add(description);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import androidx.annotation.Nullable;
+
+/**
+ * 映像フレームのタイムスタンプを元に目標フレームレートまでフレームを間引くクラス
+ * 目標フレームレートはキャプチャフォーマットのフレームレートと上限の小さい方
+ * 次にフレームを送る予定時刻を目標フレーム間隔ずつ進めて、それより前のフレームを破棄するので
+ * 例えば30fps→15fpsなら1フレームおき、30fps→20fpsなら3フレーム中1フレームのように
+ * 偏りなく等間隔に間引く(まとめて破棄しない)
+ * フレーム間隔の平均からソースのフレームレートが目標以下だと判断できる時は間引かない
+ * 映像が途切れた後は予定時刻を目標フレーム間隔の整数倍だけ進めて元の予定に再同期する
+ * フレームレートの設定は任意のスレッドから、#shouldDeliverはフレームを受け取るスレッドから呼ぶこと
+ */
+public class FrameRateDecimator {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	/**
+	 * 予定時刻より早く届いたフレームも送る許容範囲(目標フレーム間隔に対する比率)
+	 * タイムスタンプの揺らぎで本来送るフレームを破棄しないようにするため
+	 */
+	private static final double JITTER_TOLERANCE = 0.25;
+	/**
+	 * ソースのフレーム間隔の平均が目標フレーム間隔のこの比率以上なら間引かない
+	 * タイムスタンプの揺らぎで平均が短くなっても間引かないように余裕を持たせる
+	 */
+	private static final double PASS_THROUGH_RATIO = 0.9;
+	/**
+	 * ソースのフレーム間隔の指数移動平均の係数
+	 */
+	private static final double SOURCE_INTERVAL_ALPHA = 1 / 8.0;
+
+	/**
+	 * 目標フレーム間隔[ナノ秒], 0なら間引かない
+	 */
+	private volatile long mIntervalNs;
+	/**
+	 * キャプチャフォーマットのフレーム間隔[ナノ秒], 不明なら0
+	 */
+	private volatile long mCaptureIntervalNs;
+	private float mCaptureFps;
+	private float mFpsLimit;
+	private long mNextDeliveryNs;
+	private boolean mHasNext;
+	private long mLastTimestampNs;
+	/**
+	 * ソースのフレーム間隔の指数移動平均[ナノ秒], 0なら未計算
+	 */
+	private double mSourceIntervalNs;
+
+	/**
+	 * キャプチャフォーマットのフレームレートを設定する
+	 * ソースがこれより速いフレームレートで映像を送ってくる時に間引く
+	 * @param fps 0以下ならキャプチャフォーマットでは間引かない
+	 */
+	public synchronized void setCaptureFps(final float fps) {
+		mCaptureFps = Math.max(0, fps);
+		updateInterval();
+	}
+
+	/**
+	 * フレームレートの上限を設定する
+	 * キャプチャフォーマットを変更せずに(カメラを再起動せずに)フレームレートを下げる時に使う
+	 * @param fps 0以下なら上限なし
+	 */
+	public synchronized void setFpsLimit(final float fps) {
+		mFpsLimit = Math.max(0, fps);
+		updateInterval();
+	}
+
+	/**
+	 * 目標フレームレート
+	 * @return 間引かない時は0
+	 */
+	public float getTargetFps() {
+		final long intervalNs = mIntervalNs;
+		return intervalNs > 0 ? (float) (NANOS_PER_SECOND / (double) intervalNs) : 0;
+	}
+
+	/**
+	 * 予定時刻をリセットして次のフレームを必ず送るようにする
+	 * キャプチャの開始時等に呼ぶ
+	 */
+	public void reset() {
+		mHasNext = false;
+		mSourceIntervalNs = 0;
+	}
+
+	/**
+	 * フレームを送るかどうかを判定して、破棄する時は統計情報に数える
+	 * @param timestampNs フレームのタイムスタンプ[ナノ秒]
+	 * @param statistics nullなら数えない
+	 * @return true: 送る, false: 破棄する
+	 */
+	public boolean shouldDeliver(final long timestampNs,
+		@Nullable final SurfaceVideoCapture.Statistics statistics) {
+
+		if (shouldDeliver(timestampNs)) {
+			return true;
+		}
+		if (statistics != null) {
+			try {
+				statistics.addDroppedFrame();
+			} catch (final Exception e) {
+				// ignore
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * フレームを送るかどうかを判定する
+	 * @param timestampNs フレームのタイムスタンプ[ナノ秒]
+	 * @return true: 送る, false: 破棄する
+	 */
+	public boolean shouldDeliver(final long timestampNs) {
+		final long intervalNs = mIntervalNs;
+		if (intervalNs <= 0) {
+			mHasNext = false;
+			mSourceIntervalNs = 0;
+			return true;
+		}
+		if (!mHasNext) {
+			// 最初のフレームはそのまま送ってこのフレームを予定の基準にする
+			// ソースのフレーム間隔はキャプチャフォーマット(不明なら目標)と同じと仮定して始める
+			final long captureIntervalNs = mCaptureIntervalNs;
+			mNextDeliveryNs = timestampNs + intervalNs;
+			mLastTimestampNs = timestampNs;
+			mSourceIntervalNs = captureIntervalNs > 0 ? captureIntervalNs : intervalNs;
+			mHasNext = true;
+			return true;
+		}
+		// 映像が途切れた時の間隔で平均が大きく変わらないように目標フレーム間隔の2倍までにする
+		final long delta = Math.max(0, Math.min(timestampNs - mLastTimestampNs, 2 * intervalNs));
+		mLastTimestampNs = timestampNs;
+		mSourceIntervalNs += (delta - mSourceIntervalNs) * SOURCE_INTERVAL_ALPHA;
+		if (mSourceIntervalNs >= intervalNs * PASS_THROUGH_RATIO) {
+			// ソースが目標より速くないので間引かずに、間引き始めた時のためにこのフレームを予定の基準にする
+			mNextDeliveryNs = timestampNs + intervalNs;
+			return true;
+		}
+		if (timestampNs < mNextDeliveryNs - (long) (intervalNs * JITTER_TOLERANCE)) {
+			return false;
+		}
+		advance(timestampNs, intervalNs);
+		return true;
+	}
+
+	/**
+	 * 送るフレームのタイムスタンプより後になるまで予定時刻を目標フレーム間隔ずつ進める
+	 * 映像が途切れたりソースが目標より遅くて予定時刻より遅れた時も、このフレームを基準にせずに
+	 * 元の予定のまま進めるので、タイムスタンプの揺らぎで次のフレームを破棄することはない
+	 * @param timestampNs
+	 * @param intervalNs
+	 */
+	private void advance(final long timestampNs, final long intervalNs) {
+		mNextDeliveryNs += intervalNs;
+		if (mNextDeliveryNs <= timestampNs) {
+			mNextDeliveryNs += ((timestampNs - mNextDeliveryNs) / intervalNs + 1) * intervalNs;
+		}
+	}
+
+	/**
+	 * キャプチャフォーマットのフレームレートと上限の小さい方からフレーム間隔を更新する
+	 */
+	private void updateInterval() {
+		float fps = mCaptureFps;
+		if ((mFpsLimit > 0) && ((fps <= 0) || (mFpsLimit < fps))) {
+			fps = mFpsLimit;
+		}
+		mIntervalNs = fps > 0 ? Math.round(NANOS_PER_SECOND / (double) fps) : 0;
+		mCaptureIntervalNs
+			= mCaptureFps > 0 ? Math.round(NANOS_PER_SECOND / (double) mCaptureFps) : 0;
+	}
+}
@@ -22,7 +22,6 @@ import com.serenegiant.math.Fraction;
 import org.webrtc.CapturerObserver;
 import org.webrtc.Logging;
 import org.webrtc.SurfaceTextureHelper;
-import org.webrtc.TextureBufferImpl;
 import org.webrtc.ThreadUtils;
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
@@ -59,6 +58,11 @@ public class SurfaceCaptureAndroid implements SurfaceVideoDistributeCapture {
 	private int height;
 	private int framerate;
 	private int frameRotation;
+	/**
+	 * WebRTCへ引き渡す前にキャプチャフォーマットのフレームレートまたは
+	 * #setFramerateLimitで設定した上限までフレームを間引くため
+	 */
+	private final FrameRateDecimator mDecimator = new FrameRateDecimator();
 	/**
 	 * このクラス内でIRendererHolderを生成したかどうか
 	 */
@@ -120,6 +124,8 @@ public class SurfaceCaptureAndroid implements SurfaceVideoDistributeCapture {
 			this.width = width;
 			this.height = height;
 			this.framerate = framerate;
+			mDecimator.reset();
+			mDecimator.setCaptureFps(framerate);
 			firstFrameObserved = false;
 			state = CaptureState.RUNNING;
 			capturerObserver.onCapturerStarted(true);
@@ -161,6 +167,7 @@ public class SurfaceCaptureAndroid implements SurfaceVideoDistributeCapture {
 			this.width = width;
 			this.height = height;
 			this.framerate = framerate;
+			mDecimator.setCaptureFps(framerate);
 			resize(width, height);
 			setSurface(false);
 		}
@@ -189,12 +196,11 @@ public class SurfaceCaptureAndroid implements SurfaceVideoDistributeCapture {
 			if (DEBUG && ((numCapturedFrames % 100) == 0))
 				Log.v(TAG, "onFrame:" + numCapturedFrames);
 
-			final VideoFrame modifiedFrame = new VideoFrame(
-				SurfaceVideoCapture.createTextureBufferWithModifiedTransformMatrix(
-					(TextureBufferImpl)frame.getBuffer(), isMirror(), 0),
-				getFrameRotation(), frame.getTimestampNs());
-			capturerObserver.onFrameCaptured(modifiedFrame);
-			modifiedFrame.release();
+			if (!mDecimator.shouldDeliver(frame.getTimestampNs(), mStatistics)) {
+				return;
+			}
+			SurfaceVideoCapture.deliverFrame(
+				capturerObserver, frame, isMirror(), getFrameRotation());
 			if (!firstFrameObserved) {
 				captureListener.onFirstFrameAvailable(SurfaceCaptureAndroid.this);
 				firstFrameObserved = true;
@@ -213,6 +219,18 @@ public class SurfaceCaptureAndroid implements SurfaceVideoDistributeCapture {
 		return numCapturedFrames;
 	}
 
+	/**
+	 * WebRTCへ流した映像の統計情報を取得
+	 * @return キャプチャ中でなければnull
+	 */
+	@Override
+	@Nullable
+	public Statistics getStatistics() {
+		synchronized (stateLock) {
+			return mStatistics;
+		}
+	}
+
 	/**
 	 * 映像入力用のSurfaceを取得
 	 * #getInputSurfaceTextureとは排他使用のこと
@@ -326,6 +344,16 @@ public class SurfaceCaptureAndroid implements SurfaceVideoDistributeCapture {
 		mRendererHolder = null;
 	}
 
+	/**
+	 * WebRTCへ引き渡す最大フレームレートを設定する
+	 * キャプチャフォーマットのフレームレートとの小さい方を目標にしてフレームを間引く
+	 * @param fps 0以下ならキャプチャフォーマットのフレームレートのみに従う
+	 */
+	@Override
+	public void setFramerateLimit(final float fps) {
+		mDecimator.setFpsLimit(fps);
+	}
+
 	/**
 	 * 映像フレームの回転角を設定
 	 * カメラアクセスする下位クラスはここで設定した値よりもカメラから取得した値が優先される
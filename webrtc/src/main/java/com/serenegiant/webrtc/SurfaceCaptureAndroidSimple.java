@@ -19,7 +19,6 @@ import android.view.Surface;
 import org.webrtc.CapturerObserver;
 import org.webrtc.Logging;
 import org.webrtc.SurfaceTextureHelper;
-import org.webrtc.TextureBufferImpl;
 import org.webrtc.ThreadUtils;
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
@@ -56,6 +55,11 @@ public class SurfaceCaptureAndroidSimple implements SurfaceVideoCapture {
 	private int height;
 	private int framerate;
 	private int frameRotation;
+	/**
+	 * WebRTCへ引き渡す前にキャプチャフォーマットのフレームレートまたは
+	 * #setFramerateLimitで設定した上限までフレームを間引くため
+	 */
+	private final FrameRateDecimator mDecimator = new FrameRateDecimator();
 	@Nullable
 	private Statistics mStatistics;
 	private boolean firstFrameObserved;
@@ -100,6 +104,8 @@ public class SurfaceCaptureAndroidSimple implements SurfaceVideoCapture {
 			this.width = width;
 			this.height = height;
 			this.framerate = framerate;
+			mDecimator.reset();
+			mDecimator.setCaptureFps(framerate);
 			firstFrameObserved = false;
 			state = CaptureState.RUNNING;
 			capturerObserver.onCapturerStarted(true);
@@ -136,6 +142,7 @@ public class SurfaceCaptureAndroidSimple implements SurfaceVideoCapture {
 			this.width = width;
 			this.height = height;
 			this.framerate = framerate;
+			mDecimator.setCaptureFps(framerate);
 			resize(width, height);
 		}
 	}
@@ -161,12 +168,11 @@ public class SurfaceCaptureAndroidSimple implements SurfaceVideoCapture {
 			++numCapturedFrames;
 			if (DEBUG && ((numCapturedFrames % 100) == 0)) Log.v(TAG, "onFrame:" + numCapturedFrames);
 
-			final VideoFrame modifiedFrame = new VideoFrame(
-				SurfaceVideoCapture.createTextureBufferWithModifiedTransformMatrix(
-					(TextureBufferImpl)frame.getBuffer(), isMirror(), 0),
-				getFrameRotation(), frame.getTimestampNs());
-			capturerObserver.onFrameCaptured(modifiedFrame);
-			modifiedFrame.release();
+			if (!mDecimator.shouldDeliver(frame.getTimestampNs(), mStatistics)) {
+				return;
+			}
+			SurfaceVideoCapture.deliverFrame(
+				capturerObserver, frame, isMirror(), getFrameRotation());
 			if (!firstFrameObserved) {
 				captureListener.onFirstFrameAvailable(SurfaceCaptureAndroidSimple.this);
 				firstFrameObserved = true;
@@ -185,6 +191,18 @@ public class SurfaceCaptureAndroidSimple implements SurfaceVideoCapture {
 		return numCapturedFrames;
 	}
 
+	/**
+	 * WebRTCへ流した映像の統計情報を取得
+	 * @return キャプチャ中でなければnull
+	 */
+	@Override
+	@Nullable
+	public Statistics getStatistics() {
+		synchronized (stateLock) {
+			return mStatistics;
+		}
+	}
+
 	/**
 	 * 映像入力用のSurfaceを取得
 	 * #getInputSurfaceTextureとは排他使用のこと
@@ -213,6 +231,16 @@ public class SurfaceCaptureAndroidSimple implements SurfaceVideoCapture {
 		}
 	}
 
+	/**
+	 * WebRTCへ引き渡す最大フレームレートを設定する
+	 * キャプチャフォーマットのフレームレートとの小さい方を目標にしてフレームを間引く
+	 * @param fps 0以下ならキャプチャフォーマットのフレームレートのみに従う
+	 */
+	@Override
+	public void setFramerateLimit(final float fps) {
+		mDecimator.setFpsLimit(fps);
+	}
+
 	/**
 	 * 映像フレームの回転角を設定
 	 * カメラアクセスする下位クラスはここで設定した値よりもカメラから取得した値が優先される
@@ -9,16 +9,21 @@ package com.serenegiant.webrtc;
  *  be found in the AUTHORS file in the root of the source tree.
  */
 
-import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.view.Surface;
 
+import com.serenegiant.webrtc.stats.Ewma;
+import com.serenegiant.webrtc.stats.LogLinearHistogram;
+
+import org.webrtc.CapturerObserver;
 import org.webrtc.Logging;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.TextureBufferImpl;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFrame;
 
+import java.util.Locale;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -50,11 +55,31 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 	@Nullable
 	public SurfaceTexture getInputSurfaceTexture();
 
+	/**
+	 * WebRTCへ流した映像の統計情報を取得
+	 * 値の取得は任意のスレッドから呼び出して良い
+	 * @return キャプチャ中でなければnull
+	 */
+	@Nullable
+	public Statistics getStatistics();
+
+	/**
+	 * WebRTCへ引き渡す最大フレームレートを設定する
+	 * キャプチャフォーマットを変更しないのでカメラを再起動せずにフレームレートを下げることができる
+	 * キャプチャフォーマットのフレームレートとの小さい方を目標にしてフレームを間引く
+	 * @param fps 0以下ならキャプチャフォーマットのフレームレートのみに従う
+	 */
+	public void setFramerateLimit(final float fps);
+
 	/**
 	 * WebRTCへ流した映像の統計情報(フレームレート)計算用ヘルパークラス
 	 */
 	public static class Statistics {
 		private static final String TAG = Statistics.class.getSimpleName();
+		private static final long OBSERVE_PERIOD_MS = 2000L;
+		private static final double FRAME_INTERVAL_RESOLUTION_MS = 0.1;
+		private static final double FRAME_INTERVAL_MAX_MS = 2000;
+		private static final double FPS_HALF_LIFE_PERIODS = 3;
 
 		@NonNull
 		private final SurfaceVideoCapture mParent;
@@ -64,7 +89,27 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 		private final CaptureListener captureListener;
 		private final int cameraFailureCounts;
 		private int frameCount;
+		/**
+		 * 観測区間内にフレームレートの間引きで破棄したフレーム数
+		 */
+		private int droppedCount;
+		private volatile long totalDroppedCount;
 		private int freezePeriodCount;
+		/**
+		 * 観測区間内のフレーム間隔[ミリ秒]の分布, ジッターを見るためにパーセンタイルを使う
+		 */
+		private final LogLinearHistogram frameIntervals
+			= new LogLinearHistogram(FRAME_INTERVAL_RESOLUTION_MS, FRAME_INTERVAL_MAX_MS);
+		/**
+		 * 観測区間毎のフレームレートの移動平均
+		 */
+		private final Ewma fpsAverage = new Ewma(FPS_HALF_LIFE_PERIODS);
+		private long lastFrameNs;
+		// 直前の観測区間の結果, 他のスレッドから参照できるようにvolatileにする
+		private volatile float averageFps = Float.NaN;
+		private volatile float intervalP50Ms = Float.NaN;
+		private volatile float intervalP95Ms = Float.NaN;
+		private volatile float intervalP99Ms = Float.NaN;
 
 		public Statistics(
 			@NonNull final SurfaceVideoCapture parent,
@@ -78,7 +123,7 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 			frameCount = 0;
 			freezePeriodCount = 0;
 			this.cameraFailureCounts = cameraFailureCounts;
-			surfaceTextureHelper.getHandler().postDelayed(cameraObserver, 2000L);
+			surfaceTextureHelper.getHandler().postDelayed(cameraObserver, OBSERVE_PERIOD_MS);
 		}
 
 		private void checkThread() {
@@ -90,6 +135,52 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 		public void addFrame() {
 			checkThread();
 			++frameCount;
+			final long now = System.nanoTime();
+			if (lastFrameNs != 0) {
+				frameIntervals.add((now - lastFrameNs) / 1000000.0);
+			}
+			lastFrameNs = now;
+		}
+
+		/**
+		 * フレームレートの間引きで破棄したフレームを数える
+		 * 破棄したフレームも映像は届いているのでフリーズの判定には含める
+		 */
+		public void addDroppedFrame() {
+			checkThread();
+			++droppedCount;
+			++totalDroppedCount;
+		}
+
+		/**
+		 * 生成してからフレームレートの間引きで破棄したフレーム数
+		 * @return
+		 */
+		public long getDroppedFrames() {
+			return totalDroppedCount;
+		}
+
+		/**
+		 * 観測区間毎のフレームレートの移動平均
+		 * @return 最初の観測区間が終わるまではNaN
+		 */
+		public float getAverageFps() {
+			return averageFps;
+		}
+
+		/**
+		 * 直前の観測区間のフレーム間隔のパーセンタイル
+		 * @param percentile 50, 95, 99のいずれか
+		 * @return [ミリ秒], フレームが無ければNaN
+		 */
+		public float getFrameIntervalPercentileMs(final int percentile) {
+			switch (percentile) {
+			case 50:	return intervalP50Ms;
+			case 95:	return intervalP95Ms;
+			case 99:	return intervalP99Ms;
+			default:
+				throw new IllegalArgumentException("unsupported percentile " + percentile);
+			}
 		}
 
 		public void release() {
@@ -98,9 +189,18 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 
 		private final Runnable cameraObserver = new Runnable() {
 			public void run() {
-				final int cameraFps = Math.round((float) frameCount * 1000.0F / 2000.0F);
-				Logging.d(TAG, "Camera fps: " + cameraFps + ".");
-				if (frameCount == 0) {
+				final float fps = frameCount * 1000.0F / OBSERVE_PERIOD_MS;
+				final int cameraFps = Math.round(fps);
+				fpsAverage.update(fps);
+				averageFps = (float) fpsAverage.getValue();
+				intervalP50Ms = (float) frameIntervals.getPercentile(50);
+				intervalP95Ms = (float) frameIntervals.getPercentile(95);
+				intervalP99Ms = (float) frameIntervals.getPercentile(99);
+				frameIntervals.reset();
+				Logging.d(TAG, String.format(Locale.US,
+					"Camera fps: %d (avg %.1f), dropped: %d, interval p50/p95/p99: %.1f/%.1f/%.1f ms.",
+					cameraFps, averageFps, droppedCount, intervalP50Ms, intervalP95Ms, intervalP99Ms));
+				if (frameCount + droppedCount == 0) {
 					++freezePeriodCount;
 					if (freezePeriodCount >= cameraFailureCounts) {
 						Logging.e(TAG, "Camera freezed.");
@@ -117,7 +217,8 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 				}
 
 				frameCount = 0;
-				surfaceTextureHelper.getHandler().postDelayed(this, 2000L);
+				droppedCount = 0;
+				surfaceTextureHelper.getHandler().postDelayed(this, OBSERVE_PERIOD_MS);
 			}
 		};
 	}
@@ -131,17 +232,48 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 		public void onFirstFrameAvailable(@NonNull final SurfaceVideoCapture capture);
 	}
 
+	/**
+	 * 左右反転と回転を適用したTextureBufferを生成する
+	 * 変換行列はTransformMatrixCacheにキャッシュしたものを使う
+	 * 変換が不要ならbufferの参照カウントを増やしてそのまま返す
+	 * @param buffer
+	 * @param mirror
+	 * @param rotation
+	 * @return 呼び出し側でreleaseすること
+	 */
 	static VideoFrame.TextureBuffer createTextureBufferWithModifiedTransformMatrix(
 		@NonNull final TextureBufferImpl buffer, final boolean mirror, final int rotation) {
 
-		final Matrix transformMatrix = new Matrix();
-		transformMatrix.preTranslate(0.5F, 0.5F);
-		if (mirror) {
-			transformMatrix.preScale(-1.0F, 1.0F);
+		if (TransformMatrixCache.isIdentity(mirror, rotation)) {
+			buffer.retain();
+			return buffer;
 		}
+		return buffer.applyTransformMatrix(
+			TransformMatrixCache.get(mirror, rotation), buffer.getWidth(), buffer.getHeight());
+	}
+
+	/**
+	 * 左右反転とフレームの回転角を適用して映像フレームをCapturerObserverへ引き渡す
+	 * 変換が不要で回転角も同じ時は受け取ったフレームをそのまま引き渡して
+	 * TextureBufferとVideoFrameの生成を省略する
+	 * @param observer
+	 * @param frame VideoSink#onFrameで受け取ったフレーム, ここではreleaseしない
+	 * @param mirror
+	 * @param frameRotation
+	 */
+	static void deliverFrame(
+		@NonNull final CapturerObserver observer, @NonNull final VideoFrame frame,
+		final boolean mirror, final int frameRotation) {
 
-		transformMatrix.preRotate((float)rotation);
-		transformMatrix.preTranslate(-0.5F, -0.5F);
-		return buffer.applyTransformMatrix(transformMatrix, buffer.getWidth(), buffer.getHeight());
+		if (!mirror && (frame.getRotation() == frameRotation)) {
+			observer.onFrameCaptured(frame);
+			return;
+		}
+		final VideoFrame modifiedFrame = new VideoFrame(
+			createTextureBufferWithModifiedTransformMatrix(
+				(TextureBufferImpl)frame.getBuffer(), mirror, 0),
+			frameRotation, frame.getTimestampNs());
+		observer.onFrameCaptured(modifiedFrame);
+		modifiedFrame.release();
 	}
 }
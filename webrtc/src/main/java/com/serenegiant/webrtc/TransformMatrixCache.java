@@ -0,0 +1,83 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.graphics.Matrix;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 左右反転と回転(90度単位)の組み合わせ毎のテクスチャ変換行列を保持するクラス
+ * 映像フレーム毎にMatrixを生成しないようにクラスの初期化時に全ての組み合わせを生成する
+ * TextureBufferImpl#applyTransformMatrixは引き渡した行列をコピーして使うので
+ * 同じインスタンスを複数のスレッドから共有しても良いが、取得した行列は変更しないこと
+ */
+final class TransformMatrixCache {
+	private static final int ROTATIONS = 4;
+	/**
+	 * [反転無し0/90/180/270度, 反転有り0/90/180/270度]
+	 */
+	private static final Matrix[] MATRICES = new Matrix[ROTATIONS * 2];
+	static {
+		for (int i = 0; i < MATRICES.length; i++) {
+			MATRICES[i] = create(i >= ROTATIONS, (i % ROTATIONS) * 90);
+		}
+	}
+
+	private TransformMatrixCache() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * 変換が不要(単位行列)かどうか
+	 * @param mirror
+	 * @param rotation
+	 * @return
+	 */
+	static boolean isIdentity(final boolean mirror, final int rotation) {
+		return !mirror && (rotation % 360 == 0);
+	}
+
+	/**
+	 * 左右反転と回転に対応する変換行列を取得する
+	 * 90度単位の回転ならキャッシュした行列を返す, それ以外は新しく生成する
+	 * @param mirror
+	 * @param rotation
+	 * @return 変更してはいけない
+	 */
+	@NonNull
+	static Matrix get(final boolean mirror, final int rotation) {
+		final Matrix cached = getCached(mirror, rotation);
+		return cached != null ? cached : create(mirror, rotation);
+	}
+
+	@Nullable
+	private static Matrix getCached(final boolean mirror, final int rotation) {
+		if (rotation % 90 != 0) {
+			return null;
+		}
+		final int index = ((rotation % 360 + 360) % 360) / 90;
+		return MATRICES[(mirror ? ROTATIONS : 0) + index];
+	}
+
+	@NonNull
+	private static Matrix create(final boolean mirror, final int rotation) {
+		final Matrix transformMatrix = new Matrix();
+		transformMatrix.preTranslate(0.5F, 0.5F);
+		if (mirror) {
+			transformMatrix.preScale(-1.0F, 1.0F);
+		}
+
+		transformMatrix.preRotate((float)rotation);
+		transformMatrix.preTranslate(-0.5F, -0.5F);
+		return transformMatrix;
+	}
+}
@@ -0,0 +1,103 @@
+package com.serenegiant.webrtc.stats;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+/**
+ * 指数加重移動平均(EWMA)
+ * 半減期(その間に古い値の重みが半分になる量)で平滑化の強さを指定する
+ * 半減期と経過量の単位はサンプル数でも時間でも良いが、揃えること
+ * 最初の値はそのまま平均値になる
+ * スレッドセーフではないので1つのスレッドから呼び出すか呼び出し側で同期すること
+ */
+public class Ewma {
+	private final double mHalfLife;
+	/**
+	 * 経過量が1の時の新しい値の重み
+	 */
+	private final double mUnitAlpha;
+	private double mValue = Double.NaN;
+	private double mLast = Double.NaN;
+
+	/**
+	 * コンストラクタ
+	 * @param halfLife 半減期, 0より大きいこと
+	 */
+	public Ewma(final double halfLife) {
+		if (halfLife <= 0) {
+			throw new IllegalArgumentException("halfLife should be positive");
+		}
+		mHalfLife = halfLife;
+		mUnitAlpha = alpha(1.0);
+	}
+
+	/**
+	 * 値を破棄して初期状態に戻す
+	 */
+	public void reset() {
+		mValue = mLast = Double.NaN;
+	}
+
+	/**
+	 * 経過量1で値を追加する, 一定間隔のサンプリング用
+	 * @param value NaNなら無視する
+	 */
+	public void update(final double value) {
+		updateWithAlpha(value, mUnitAlpha);
+	}
+
+	/**
+	 * 前回からの経過量を指定して値を追加する, サンプリング間隔が一定でない時用
+	 * @param value NaNなら無視する
+	 * @param elapsed 前回からの経過量, 半減期と同じ単位
+	 */
+	public void update(final double value, final double elapsed) {
+		updateWithAlpha(value, elapsed == 1.0 ? mUnitAlpha : alpha(elapsed));
+	}
+
+	/**
+	 * 平均値
+	 * @return 値が無ければNaN
+	 */
+	public double getValue() {
+		return mValue;
+	}
+
+	/**
+	 * 最後に追加した値
+	 * @return 値が無ければNaN
+	 */
+	public double getLast() {
+		return mLast;
+	}
+
+	/**
+	 * 値を追加済みかどうか
+	 * @return
+	 */
+	public boolean hasValue() {
+		return !Double.isNaN(mValue);
+	}
+
+	private void updateWithAlpha(final double value, final double alpha) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		mLast = value;
+		if (Double.isNaN(mValue)) {
+			mValue = value;
+		} else {
+			mValue += alpha * (value - mValue);
+		}
+	}
+
+	private double alpha(final double elapsed) {
+		return elapsed > 0 ? 1.0 - Math.pow(0.5, elapsed / mHalfLife) : 0;
+	}
+}
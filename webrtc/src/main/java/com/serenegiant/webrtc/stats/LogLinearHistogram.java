@@ -0,0 +1,180 @@
+package com.serenegiant.webrtc.stats;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+/**
+ * 固定バケットの対数線形ヒストグラム
+ * 値をresolution単位の整数にして、SUB_BUCKETS未満はそのまま、それ以上は2の累乗毎の区間を
+ * SUB_BUCKETS個の等幅のバケットに分けて数える(HdrHistogramと同じ考え方)
+ * バケットの相対誤差は1/SUB_BUCKETS以下で、バケット数は最大値の対数に比例するので
+ * 少ないメモリーでP50/P95/P99のような裾の値を求めることができる
+ * バケットは生成時に確保するので値の追加時にオブジェクトを生成しない
+ * スレッドセーフではないので1つのスレッドから呼び出すか呼び出し側で同期すること
+ */
+public class LogLinearHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final double mResolution;
+	private final long[] mCounts;
+	private long mTotalCount;
+	private double mSum;
+	private double mMin = Double.NaN;
+	private double mMax = Double.NaN;
+
+	/**
+	 * コンストラクタ
+	 * @param resolution 最小の分解能, 例えばミリ秒単位の値を0.1ミリ秒単位で数えるなら0.1
+	 * @param maxValue 数える最大値, これより大きい値は最後のバケットに数える
+	 */
+	public LogLinearHistogram(final double resolution, final double maxValue) {
+		if ((resolution <= 0) || (maxValue < resolution)) {
+			throw new IllegalArgumentException("invalid resolution or maxValue");
+		}
+		mResolution = resolution;
+		mCounts = new long[indexOf((long) Math.ceil(maxValue / resolution)) + 1];
+	}
+
+	/**
+	 * 値を破棄して初期状態に戻す
+	 */
+	public void reset() {
+		for (int i = 0; i < mCounts.length; i++) {
+			mCounts[i] = 0;
+		}
+		mTotalCount = 0;
+		mSum = 0;
+		mMin = mMax = Double.NaN;
+	}
+
+	/**
+	 * 同じ設定の別のヒストグラムの内容をコピーする
+	 * 区間毎に集計して直前の区間の結果を保持する時等に使う
+	 * @param other
+	 */
+	public void copyFrom(final LogLinearHistogram other) {
+		if ((other.mCounts.length != mCounts.length) || (other.mResolution != mResolution)) {
+			throw new IllegalArgumentException("histogram settings are different");
+		}
+		System.arraycopy(other.mCounts, 0, mCounts, 0, mCounts.length);
+		mTotalCount = other.mTotalCount;
+		mSum = other.mSum;
+		mMin = other.mMin;
+		mMax = other.mMax;
+	}
+
+	/**
+	 * 値を追加する
+	 * @param value 負の値は0, NaNは無視する
+	 */
+	public void add(final double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		final double v = Math.max(0, value);
+		final int index = Math.min(indexOf((long) (v / mResolution)), mCounts.length - 1);
+		mCounts[index]++;
+		mTotalCount++;
+		mSum += v;
+		if (Double.isNaN(mMin) || (v < mMin)) {
+			mMin = v;
+		}
+		if (Double.isNaN(mMax) || (v > mMax)) {
+			mMax = v;
+		}
+	}
+
+	/**
+	 * 追加した値の数
+	 * @return
+	 */
+	public long getCount() {
+		return mTotalCount;
+	}
+
+	/**
+	 * 平均値
+	 * @return 値が無ければNaN
+	 */
+	public double getMean() {
+		return mTotalCount > 0 ? mSum / mTotalCount : Double.NaN;
+	}
+
+	/**
+	 * 最小値
+	 * @return 値が無ければNaN
+	 */
+	public double getMin() {
+		return mMin;
+	}
+
+	/**
+	 * 最大値
+	 * @return 値が無ければNaN
+	 */
+	public double getMax() {
+		return mMax;
+	}
+
+	/**
+	 * 指定したパーセンタイルの値
+	 * 該当するバケットの中央の値を返すが、追加した値の最小値と最大値の範囲に収める
+	 * @param percentile 0-100, 例えばP95なら95
+	 * @return 値が無ければNaN
+	 */
+	public double getPercentile(final double percentile) {
+		if (mTotalCount == 0) {
+			return Double.NaN;
+		}
+		final long rank = Math.max(1,
+			(long) Math.ceil(mTotalCount * Math.min(100, Math.max(0, percentile)) / 100.0));
+		long seen = 0;
+		int index = 0;
+		for (; index < mCounts.length; index++) {
+			seen += mCounts[index];
+			if (seen >= rank) {
+				break;
+			}
+		}
+		final double value = (lowerBoundOf(index) + widthOf(index) / 2.0) * mResolution;
+		return Math.min(mMax, Math.max(mMin, value));
+	}
+
+	/**
+	 * 値(resolution単位)に対応するバケットのインデックス
+	 */
+	private static int indexOf(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		// valueが[2^e, 2^(e+1))ならshift=e-SUB_BUCKET_BITSで、
+		// value>>shiftは[SUB_BUCKETS, 2*SUB_BUCKETS)になる
+		final int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return (int) (SUB_BUCKETS * shift + (value >> shift));
+	}
+
+	/**
+	 * バケットの下限値(resolution単位)
+	 */
+	private static long lowerBoundOf(final int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		final int shift = index / SUB_BUCKETS - 1;
+		return (long) (index - SUB_BUCKETS * shift) << shift;
+	}
+
+	/**
+	 * バケットの幅(resolution単位)
+	 */
+	private static long widthOf(final int index) {
+		return index < 2 * SUB_BUCKETS ? 1 : 1L << (index / SUB_BUCKETS - 1);
+	}
+}
@@ -0,0 +1,93 @@
+package com.serenegiant.webrtc.stats;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+/**
+ * 直近の指定したサンプル数の最小値と最大値を保持するクラス
+ * 固定長のリングバッファを使うので値の追加時にオブジェクトを生成しない
+ * 最小値/最大値の取得はウインドウ長に比例するので、数十サンプル程度の短いウインドウに使う
+ * スレッドセーフではないので1つのスレッドから呼び出すか呼び出し側で同期すること
+ */
+public class MinMaxWindow {
+	private final double[] mValues;
+	private int mHead;
+	private int mCount;
+
+	/**
+	 * コンストラクタ
+	 * @param size ウインドウのサンプル数, 1以上
+	 */
+	public MinMaxWindow(final int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size should be positive");
+		}
+		mValues = new double[size];
+	}
+
+	/**
+	 * 値を破棄して初期状態に戻す
+	 */
+	public void reset() {
+		mHead = mCount = 0;
+	}
+
+	/**
+	 * 値を追加する, ウインドウがいっぱいなら最も古い値を上書きする
+	 * @param value NaNなら無視する
+	 */
+	public void add(final double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		mValues[mHead] = value;
+		mHead = (mHead + 1) % mValues.length;
+		if (mCount < mValues.length) {
+			mCount++;
+		}
+	}
+
+	/**
+	 * ウインドウ内のサンプル数
+	 * @return
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * ウインドウ内の最小値
+	 * @return 値が無ければNaN
+	 */
+	public double getMin() {
+		if (mCount == 0) {
+			return Double.NaN;
+		}
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < mCount; i++) {
+			min = Math.min(min, mValues[i]);
+		}
+		return min;
+	}
+
+	/**
+	 * ウインドウ内の最大値
+	 * @return 値が無ければNaN
+	 */
+	public double getMax() {
+		if (mCount == 0) {
+			return Double.NaN;
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < mCount; i++) {
+			max = Math.max(max, mValues[i]);
+		}
+		return max;
+	}
+}
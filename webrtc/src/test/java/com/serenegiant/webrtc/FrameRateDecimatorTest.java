@@ -0,0 +1,127 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * FrameRateDecimatorが目標フレームレートまで等間隔に間引き、
+ * ソースが目標以下の時はタイムスタンプが揺らいでも間引かないことを確認する
+ */
+public class FrameRateDecimatorTest {
+	private static final long FRAME_30FPS_NS = 1000000000L / 30;
+	private static final long JITTER_NS = 6000000L;
+	private static final int FRAMES = 900;
+
+	/**
+	 * 30fps→30fpsでは±6ミリ秒揺らいでも1フレームも破棄しない
+	 */
+	@Test
+	public void sameRateWithJitter() {
+		final FrameRateDecimator decimator = new FrameRateDecimator();
+		decimator.setCaptureFps(30);
+		final Random random = new Random(1);
+		for (int i = 0; i < FRAMES; i++) {
+			assertTrue("frame " + i, decimator.shouldDeliver(jittered(i, random)));
+		}
+	}
+
+	/**
+	 * ソースが目標より遅ければ間引かない
+	 */
+	@Test
+	public void slowerSource() {
+		final FrameRateDecimator decimator = new FrameRateDecimator();
+		decimator.setCaptureFps(30);
+		for (int i = 0; i < FRAMES; i++) {
+			assertTrue("frame " + i, decimator.shouldDeliver(i * FRAME_30FPS_NS * 2));
+		}
+	}
+
+	/**
+	 * 30fps→15fpsでは1フレームおきに送る, ±6ミリ秒揺らいでも変わらない
+	 */
+	@Test
+	public void halfRate() {
+		final FrameRateDecimator decimator = new FrameRateDecimator();
+		decimator.setCaptureFps(30);
+		decimator.setFpsLimit(15);
+		assertEquals(15, decimator.getTargetFps(), 0.01);
+		final Random random = new Random(2);
+		for (int i = 0; i < FRAMES; i++) {
+			assertEquals("frame " + i, i % 2 == 0, decimator.shouldDeliver(jittered(i, random)));
+		}
+	}
+
+	/**
+	 * 30fps→20fpsでは連続する3フレーム毎に2フレームを送る
+	 */
+	@Test
+	public void twoThirdsRate() {
+		final FrameRateDecimator decimator = new FrameRateDecimator();
+		decimator.setCaptureFps(30);
+		decimator.setFpsLimit(20);
+		final boolean[] delivered = new boolean[FRAMES];
+		int count = 0;
+		for (int i = 0; i < FRAMES; i++) {
+			delivered[i] = decimator.shouldDeliver(i * FRAME_30FPS_NS);
+			if (delivered[i]) {
+				count++;
+			}
+		}
+		assertEquals(FRAMES * 2 / 3, count, 1);
+		for (int i = 0; i + 3 <= FRAMES; i++) {
+			int n = 0;
+			for (int j = i; j < i + 3; j++) {
+				n += delivered[j] ? 1 : 0;
+			}
+			assertEquals("frames " + i + "-" + (i + 2), 2, n);
+		}
+	}
+
+	/**
+	 * 映像が途切れた後も予定を作り直さずに元の予定(偶数フレーム)に再同期する
+	 */
+	@Test
+	public void resyncAfterGap() {
+		final FrameRateDecimator decimator = new FrameRateDecimator();
+		decimator.setCaptureFps(30);
+		decimator.setFpsLimit(15);
+		for (int i = 0; i < 30; i++) {
+			assertEquals("frame " + i, i % 2 == 0, decimator.shouldDeliver(i * FRAME_30FPS_NS));
+		}
+		// 31フレーム分途切れるので再開後の最初のフレームは予定時刻を過ぎている
+		final int restart = 30 + 31;
+		assertTrue(decimator.shouldDeliver(restart * FRAME_30FPS_NS));
+		for (int i = restart + 1; i < restart + 60; i++) {
+			assertEquals("frame " + i, i % 2 == 0, decimator.shouldDeliver(i * FRAME_30FPS_NS));
+		}
+	}
+
+	/**
+	 * 上限を解除すると間引かない
+	 */
+	@Test
+	public void noLimit() {
+		final FrameRateDecimator decimator = new FrameRateDecimator();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(decimator.shouldDeliver(i * FRAME_30FPS_NS / 2));
+		}
+		assertEquals(0, decimator.getTargetFps(), 0);
+	}
+
+	private static long jittered(final int frame, final Random random) {
+		return frame * FRAME_30FPS_NS + (long) ((random.nextDouble() * 2 - 1) * JITTER_NS);
+	}
+}
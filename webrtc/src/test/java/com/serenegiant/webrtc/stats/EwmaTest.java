@@ -0,0 +1,94 @@
+package com.serenegiant.webrtc.stats;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ewmaの半減期と経過量の扱いを確認する
+ */
+public class EwmaTest {
+	private static final double DELTA = 1e-9;
+
+	/**
+	 * 最初の値はそのまま平均値になる
+	 */
+	@Test
+	public void firstValue() {
+		final Ewma ewma = new Ewma(3);
+		assertFalse(ewma.hasValue());
+		assertTrue(Double.isNaN(ewma.getValue()));
+		ewma.update(42);
+		assertTrue(ewma.hasValue());
+		assertEquals(42, ewma.getValue(), DELTA);
+		assertEquals(42, ewma.getLast(), DELTA);
+	}
+
+	/**
+	 * 半減期だけ経過すると古い値との差が半分になる
+	 */
+	@Test
+	public void halfLife() {
+		final Ewma ewma = new Ewma(4);
+		ewma.update(0);
+		for (int i = 0; i < 4; i++) {
+			ewma.update(100);
+		}
+		assertEquals(50, ewma.getValue(), DELTA);
+		for (int i = 0; i < 4; i++) {
+			ewma.update(100);
+		}
+		assertEquals(75, ewma.getValue(), DELTA);
+	}
+
+	/**
+	 * 経過量を指定した1回の更新は、同じ経過量を分けた複数回の更新と一致する
+	 */
+	@Test
+	public void elapsed() {
+		final Ewma split = new Ewma(2);
+		final Ewma once = new Ewma(2);
+		split.update(0);
+		once.update(0);
+		split.update(100, 0.5);
+		split.update(100, 1.5);
+		once.update(100, 2);
+		assertEquals(50, once.getValue(), DELTA);
+		assertEquals(once.getValue(), split.getValue(), DELTA);
+		// 経過量が0なら平均値は変わらない
+		once.update(1000, 0);
+		assertEquals(50, once.getValue(), DELTA);
+		assertEquals(1000, once.getLast(), DELTA);
+	}
+
+	/**
+	 * NaNは無視し、resetで初期状態に戻る
+	 */
+	@Test
+	public void nanAndReset() {
+		final Ewma ewma = new Ewma(1);
+		ewma.update(Double.NaN);
+		assertFalse(ewma.hasValue());
+		ewma.update(10);
+		ewma.update(Double.NaN);
+		assertEquals(10, ewma.getValue(), DELTA);
+		assertEquals(10, ewma.getLast(), DELTA);
+		ewma.reset();
+		assertFalse(ewma.hasValue());
+		assertTrue(Double.isNaN(ewma.getLast()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidHalfLife() {
+		new Ewma(0);
+	}
+}
@@ -0,0 +1,152 @@
+package com.serenegiant.webrtc.stats;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * LogLinearHistogramのバケットの境界とパーセンタイルの精度を確認する
+ * バケットは16(=SUB_BUCKETS)未満は幅1、それ以上は2の累乗毎の区間を16等分した幅になる
+ */
+public class LogLinearHistogramTest {
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void empty() {
+		final LogLinearHistogram histogram = new LogLinearHistogram(1, 1000);
+		assertEquals(0, histogram.getCount());
+		assertTrue(Double.isNaN(histogram.getPercentile(50)));
+		assertTrue(Double.isNaN(histogram.getMean()));
+		assertTrue(Double.isNaN(histogram.getMin()));
+		assertTrue(Double.isNaN(histogram.getMax()));
+	}
+
+	/**
+	 * 16未満は幅1のバケットなのでバケットの中央値を返す
+	 */
+	@Test
+	public void linearBuckets() {
+		final LogLinearHistogram histogram = new LogLinearHistogram(1, 1000);
+		for (int i = 0; i < 10; i++) {
+			histogram.add(i);
+		}
+		assertEquals(4.5, histogram.getPercentile(50), DELTA);
+		assertEquals(8.5, histogram.getPercentile(90), DELTA);
+		assertEquals(0.5, histogram.getPercentile(0), DELTA);
+		// バケットの中央の9.5は最大値を超えるので最大値に収める
+		assertEquals(9, histogram.getPercentile(100), DELTA);
+		assertEquals(4.5, histogram.getMean(), DELTA);
+	}
+
+	/**
+	 * [32, 64)は幅2のバケットなので32と33は同じ、34は次のバケットになる
+	 */
+	@Test
+	public void bucketBoundaries() {
+		final LogLinearHistogram same = new LogLinearHistogram(1, 1000);
+		same.add(32);
+		same.add(33);
+		same.add(1000);
+		// [32, 34)の中央
+		assertEquals(33, same.getPercentile(50), DELTA);
+
+		final LogLinearHistogram next = new LogLinearHistogram(1, 1000);
+		next.add(32);
+		next.add(34);
+		next.add(1000);
+		// [34, 36)の中央
+		assertEquals(35, next.getPercentile(50), DELTA);
+	}
+
+	/**
+	 * 分解能の単位で数える
+	 */
+	@Test
+	public void resolution() {
+		final LogLinearHistogram histogram = new LogLinearHistogram(0.1, 100);
+		histogram.add(1.0);
+		histogram.add(1.24);
+		histogram.add(50);
+		// 1.24は0.1単位で12になり[1.2, 1.3)に入る
+		assertEquals(1.25, histogram.getPercentile(50), DELTA);
+	}
+
+	/**
+	 * 最大値より大きい値は最後のバケットに数える
+	 */
+	@Test
+	public void overflow() {
+		final LogLinearHistogram histogram = new LogLinearHistogram(1, 100);
+		histogram.add(1);
+		histogram.add(1000000);
+		assertEquals(2, histogram.getCount());
+		assertEquals(1000000, histogram.getMax(), DELTA);
+		// 最後のバケットは[100, 104)
+		assertEquals(102, histogram.getPercentile(100), DELTA);
+	}
+
+	/**
+	 * パーセンタイルの相対誤差は1/16以下になる
+	 */
+	@Test
+	public void relativeError() {
+		final LogLinearHistogram histogram = new LogLinearHistogram(1, 100000);
+		for (int i = 1; i <= 10000; i++) {
+			histogram.add(i);
+		}
+		for (final double percentile: new double[] {1, 10, 50, 90, 95, 99, 99.9}) {
+			final double expected = percentile * 100;
+			assertEquals("p" + percentile, expected,
+				histogram.getPercentile(percentile), expected / 16);
+		}
+	}
+
+	/**
+	 * NaNは無視し、負の値は0として数える
+	 */
+	@Test
+	public void nanAndNegative() {
+		final LogLinearHistogram histogram = new LogLinearHistogram(1, 100);
+		histogram.add(Double.NaN);
+		assertEquals(0, histogram.getCount());
+		histogram.add(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMin(), DELTA);
+		assertEquals(0, histogram.getPercentile(50), DELTA);
+	}
+
+	@Test
+	public void resetAndCopy() {
+		final LogLinearHistogram source = new LogLinearHistogram(1, 1000);
+		source.add(10);
+		source.add(500);
+		final LogLinearHistogram copy = new LogLinearHistogram(1, 1000);
+		copy.copyFrom(source);
+		source.reset();
+		assertEquals(0, source.getCount());
+		assertTrue(Double.isNaN(source.getPercentile(50)));
+		assertEquals(2, copy.getCount());
+		assertEquals(10, copy.getMin(), DELTA);
+		assertEquals(500, copy.getMax(), DELTA);
+		assertEquals(255, copy.getMean(), DELTA);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void copyFromDifferentSettings() {
+		new LogLinearHistogram(1, 1000).copyFrom(new LogLinearHistogram(0.1, 1000));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidResolution() {
+		new LogLinearHistogram(0, 1000);
+	}
+}
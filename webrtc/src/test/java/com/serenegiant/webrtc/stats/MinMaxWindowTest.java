@@ -0,0 +1,80 @@
+package com.serenegiant.webrtc.stats;
+/*
+ *  Copyright 2023 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * MinMaxWindowのウインドウから古い値が外れることを確認する
+ */
+public class MinMaxWindowTest {
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void empty() {
+		final MinMaxWindow window = new MinMaxWindow(3);
+		assertEquals(0, window.getCount());
+		assertTrue(Double.isNaN(window.getMin()));
+		assertTrue(Double.isNaN(window.getMax()));
+	}
+
+	/**
+	 * ウインドウがいっぱいになると最も古い値から上書きする
+	 */
+	@Test
+	public void eviction() {
+		final MinMaxWindow window = new MinMaxWindow(3);
+		window.add(5);
+		window.add(1);
+		window.add(9);
+		assertEquals(3, window.getCount());
+		assertEquals(1, window.getMin(), DELTA);
+		assertEquals(9, window.getMax(), DELTA);
+		// 5が外れる
+		window.add(4);
+		assertEquals(3, window.getCount());
+		assertEquals(1, window.getMin(), DELTA);
+		assertEquals(9, window.getMax(), DELTA);
+		// 1が外れる
+		window.add(6);
+		assertEquals(4, window.getMin(), DELTA);
+		assertEquals(9, window.getMax(), DELTA);
+		// 9が外れる
+		window.add(2);
+		assertEquals(2, window.getMin(), DELTA);
+		assertEquals(6, window.getMax(), DELTA);
+	}
+
+	/**
+	 * NaNは無視し、resetで空に戻る
+	 */
+	@Test
+	public void nanAndReset() {
+		final MinMaxWindow window = new MinMaxWindow(2);
+		window.add(3);
+		window.add(Double.NaN);
+		assertEquals(1, window.getCount());
+		assertEquals(3, window.getMin(), DELTA);
+		assertEquals(3, window.getMax(), DELTA);
+		window.reset();
+		assertEquals(0, window.getCount());
+		assertTrue(Double.isNaN(window.getMax()));
+		window.add(-1);
+		assertEquals(-1, window.getMin(), DELTA);
+		assertEquals(-1, window.getMax(), DELTA);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidSize() {
+		new MinMaxWindow(0);
+	}
+}